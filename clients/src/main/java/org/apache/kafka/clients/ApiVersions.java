@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.record.Record;
+
+/**
+ * The api versions of the brokers a client is connected to. The network client keeps them up to date as it connects to
+ * brokers, and the threads that write requests read them, such as the threads appending records to the producer.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ApiVersions {
+
+    private final Map<String, NodeApiVersions> nodeApiVersions = new ConcurrentHashMap<>();
+
+    /* the latest magic value accepted by all the brokers whose versions are known, which is read on every append */
+    private volatile byte maxUsableProduceMagic = Record.CURRENT_MAGIC_VALUE;
+
+    public synchronized void update(String nodeId, NodeApiVersions apiVersions) {
+        this.nodeApiVersions.put(nodeId, apiVersions);
+        this.maxUsableProduceMagic = computeMaxUsableProduceMagic();
+    }
+
+    public synchronized void remove(String nodeId) {
+        this.nodeApiVersions.remove(nodeId);
+        this.maxUsableProduceMagic = computeMaxUsableProduceMagic();
+    }
+
+    /**
+     * The api versions of the given node, or null if they are not known
+     */
+    public NodeApiVersions get(String nodeId) {
+        return this.nodeApiVersions.get(nodeId);
+    }
+
+    /**
+     * The latest magic value of the records that all the brokers whose api versions are known accept in produce
+     * requests. Records are written with it so that they rarely have to be converted before they are sent.
+     */
+    public byte maxUsableProduceMagic() {
+        return this.maxUsableProduceMagic;
+    }
+
+    /**
+     * The latest magic value of the records that a produce request of the given version may carry: brokers that only
+     * support versions before 2 do not accept records with relative offsets or timestamps
+     */
+    public static byte maxProduceMagic(int produceVersion) {
+        return produceVersion < 2 ? Record.MAGIC_VALUE_V0 : Record.CURRENT_MAGIC_VALUE;
+    }
+
+    private byte computeMaxUsableProduceMagic() {
+        byte magic = Record.CURRENT_MAGIC_VALUE;
+        for (NodeApiVersions apiVersions : this.nodeApiVersions.values())
+            magic = (byte) Math.min(magic, maxProduceMagic(apiVersions.usableVersion(ApiKeys.PRODUCE)));
+        return magic;
+    }
+}
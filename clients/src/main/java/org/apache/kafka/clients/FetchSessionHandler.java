@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.apache.kafka.clients;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.requests.FetchRequest;
+import org.apache.kafka.common.requests.FetchRequest.PartitionData;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The incremental fetch session of a client with a broker. The first fetch of a session sends all the partitions to
+ * fetch and the broker caches them under a new session id. The following fetches of the session only send the partitions
+ * that are new or whose fetch offset or max bytes changed, and the partitions removed from the session, and the broker
+ * only responds with the partitions that have new data, a new high watermark or an error.
+ *
+ * If the broker does not create a session, or the session fails, the next fetch sends all the partitions again.
+ *
+ * This class is not thread-safe!
+ */
+public class FetchSessionHandler {
+    private static final Logger log = LoggerFactory.getLogger(FetchSessionHandler.class);
+
+    private final int node;
+    private int sessionId = FetchRequest.INVALID_SESSION_ID;
+    private int nextEpoch = FetchRequest.INITIAL_EPOCH;
+    // the partitions of the session, with the fetch offsets and max bytes the broker has for them
+    private Map<TopicPartition, PartitionData> sessionPartitions = new LinkedHashMap<>();
+
+    public FetchSessionHandler(int node) {
+        this.node = node;
+    }
+
+    /**
+     * The data of the next fetch request of the session
+     */
+    public static final class FetchRequestData {
+        private final Map<TopicPartition, PartitionData> toSend;
+        private final List<TopicPartition> toForget;
+        private final Map<TopicPartition, PartitionData> sessionPartitions;
+        private final int sessionId;
+        private final int epoch;
+
+        FetchRequestData(Map<TopicPartition, PartitionData> toSend, List<TopicPartition> toForget,
+                         Map<TopicPartition, PartitionData> sessionPartitions, int sessionId, int epoch) {
+            this.toSend = toSend;
+            this.toForget = toForget;
+            this.sessionPartitions = sessionPartitions;
+            this.sessionId = sessionId;
+            this.epoch = epoch;
+        }
+
+        /**
+         * The partitions to send in the request
+         */
+        public Map<TopicPartition, PartitionData> toSend() {
+            return toSend;
+        }
+
+        /**
+         * The partitions to remove from the session
+         */
+        public List<TopicPartition> toForget() {
+            return toForget;
+        }
+
+        /**
+         * All the partitions fetched by the request, including those of the session that are not sent
+         */
+        public Map<TopicPartition, PartitionData> sessionPartitions() {
+            return sessionPartitions;
+        }
+
+        public int sessionId() {
+            return sessionId;
+        }
+
+        public int epoch() {
+            return epoch;
+        }
+
+        public boolean isFull() {
+            return epoch == FetchRequest.INITIAL_EPOCH;
+        }
+    }
+
+    public class Builder {
+        private final Map<TopicPartition, PartitionData> next = new LinkedHashMap<>();
+
+        /**
+         * Add a partition to fetch
+         */
+        public void add(TopicPartition partition, PartitionData data) {
+            next.put(partition, data);
+        }
+
+        public FetchRequestData build() {
+            Map<TopicPartition, PartitionData> previous = sessionPartitions;
+            sessionPartitions = next;
+            if (nextEpoch == FetchRequest.INITIAL_EPOCH)
+                return new FetchRequestData(next, Collections.<TopicPartition>emptyList(), next, sessionId, nextEpoch);
+
+            Map<TopicPartition, PartitionData> toSend = new LinkedHashMap<>();
+            for (Map.Entry<TopicPartition, PartitionData> entry : next.entrySet()) {
+                PartitionData data = entry.getValue();
+                PartitionData sent = previous.get(entry.getKey());
+                if (sent == null || sent.offset != data.offset || sent.maxBytes != data.maxBytes)
+                    toSend.put(entry.getKey(), data);
+            }
+            List<TopicPartition> toForget = new ArrayList<>();
+            for (TopicPartition partition : previous.keySet()) {
+                if (!next.containsKey(partition))
+                    toForget.add(partition);
+            }
+            return new FetchRequestData(toSend, toForget, next, sessionId, nextEpoch);
+        }
+    }
+
+    public Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Handle the response to the last request built for the session.
+     *
+     * @return false if the session failed and the partitions of the response should not be processed
+     */
+    public boolean handleResponse(FetchResponse response) {
+        Errors error = Errors.forCode(response.errorCode());
+        if (error != Errors.NONE) {
+            log.info("Node {} was unable to process the fetch request with session id {} and epoch {}: {}",
+                    node, sessionId, nextEpoch, error.exception().getMessage());
+            if (error == Errors.FETCH_SESSION_ID_NOT_FOUND)
+                sessionId = FetchRequest.INVALID_SESSION_ID;
+            nextEpoch = FetchRequest.INITIAL_EPOCH;
+            return false;
+        }
+
+        if (nextEpoch == FetchRequest.INITIAL_EPOCH) {
+            sessionId = response.sessionId();
+            if (sessionId == FetchRequest.INVALID_SESSION_ID) {
+                log.debug("Node {} did not create a fetch session for {} partitions", node, sessionPartitions.size());
+            } else {
+                log.debug("Node {} created fetch session {} for {} partitions", node, sessionId, sessionPartitions.size());
+                nextEpoch = nextEpoch(nextEpoch);
+            }
+        } else {
+            nextEpoch = nextEpoch(nextEpoch);
+        }
+        return true;
+    }
+
+    /**
+     * Handle the failure of the last request built for the session, after which the next request sends all the
+     * partitions again
+     */
+    public void handleError(Throwable t) {
+        log.debug("Error sending the fetch request with session id {} and epoch {} to node {}", sessionId, nextEpoch, node, t);
+        nextEpoch = FetchRequest.INITIAL_EPOCH;
+    }
+
+    public int sessionId() {
+        return sessionId;
+    }
+
+    private static int nextEpoch(int epoch) {
+        return epoch == Integer.MAX_VALUE ? 1 : epoch + 1;
+    }
+}
@@ -18,8 +18,11 @@ import org.apache.kafka.common.network.NetworkReceive;
 import org.apache.kafka.common.network.Selectable;
 import org.apache.kafka.common.network.Send;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.ProtoUtils;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.requests.ApiVersionsRequest;
+import org.apache.kafka.common.requests.ApiVersionsResponse;
 import org.apache.kafka.common.requests.MetadataRequest;
 import org.apache.kafka.common.requests.MetadataResponse;
 import org.apache.kafka.common.requests.RequestHeader;
@@ -35,6 +38,7 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -82,6 +86,16 @@ public class NetworkClient implements KafkaClient {
 
     /* max time in ms for the producer to wait for acknowledgement from server*/
     private final int requestTimeoutMs;
+
+    /* the api versions of the nodes, which are requested when connecting to them, or null if they are not requested */
+    private final ApiVersions apiVersions;
+
+    /* the connected nodes to which an ApiVersions request has yet to be sent */
+    private final Set<String> nodesNeedingApiVersions;
+
+    /* the nodes that closed the connection on an ApiVersions request, which are assumed to predate it until they
+     * disconnect again, so that a broker that has been upgraded in the meantime is asked again */
+    private final Set<String> legacyNodes;
     
     private final Time time;
 
@@ -95,7 +109,26 @@ public class NetworkClient implements KafkaClient {
                          int requestTimeoutMs,
                          Time time) {
         this(null, metadata, selector, clientId, maxInFlightRequestsPerConnection,
-                reconnectBackoffMs, socketSendBuffer, socketReceiveBuffer, requestTimeoutMs, time);
+                reconnectBackoffMs, socketSendBuffer, socketReceiveBuffer, requestTimeoutMs, time, null);
+    }
+
+    /**
+     * Create a network client that requests the api versions of each node when it connects to it, and that only
+     * declares the node ready once they are known. Nodes that close the connection on the request are assumed to
+     * predate it.
+     */
+    public NetworkClient(Selectable selector,
+                         Metadata metadata,
+                         String clientId,
+                         int maxInFlightRequestsPerConnection,
+                         long reconnectBackoffMs,
+                         int socketSendBuffer,
+                         int socketReceiveBuffer,
+                         int requestTimeoutMs,
+                         Time time,
+                         ApiVersions apiVersions) {
+        this(null, metadata, selector, clientId, maxInFlightRequestsPerConnection,
+                reconnectBackoffMs, socketSendBuffer, socketReceiveBuffer, requestTimeoutMs, time, apiVersions);
     }
 
     public NetworkClient(Selectable selector,
@@ -108,7 +141,7 @@ public class NetworkClient implements KafkaClient {
                          int requestTimeoutMs,
                          Time time) {
         this(metadataUpdater, null, selector, clientId, maxInFlightRequestsPerConnection, reconnectBackoffMs,
-                socketSendBuffer, socketReceiveBuffer, requestTimeoutMs, time);
+                socketSendBuffer, socketReceiveBuffer, requestTimeoutMs, time, null);
     }
 
     private NetworkClient(MetadataUpdater metadataUpdater,
@@ -120,7 +153,8 @@ public class NetworkClient implements KafkaClient {
                           int socketSendBuffer,
                           int socketReceiveBuffer, 
                           int requestTimeoutMs,
-                          Time time) {
+                          Time time,
+                          ApiVersions apiVersions) {
 
         /* It would be better if we could pass `DefaultMetadataUpdater` from the public constructor, but it's not
          * possible because `DefaultMetadataUpdater` is an inner class and it can only be instantiated after the
@@ -144,7 +178,10 @@ public class NetworkClient implements KafkaClient {
         this.requestTimeoutMs = requestTimeoutMs;
         this.nodesEverSeen = new ArrayList<>();
         this.nodesEverSeenById = new HashMap<>();
-        
+        this.apiVersions = apiVersions;
+        this.nodesNeedingApiVersions = new HashSet<>();
+        this.legacyNodes = new HashSet<>();
+
         this.time = time;
     }
 
@@ -178,6 +215,11 @@ public class NetworkClient implements KafkaClient {
         for (ClientRequest request : inFlightRequests.clearAll(nodeId))
             metadataUpdater.maybeHandleDisconnection(request);
         connectionStates.remove(nodeId);
+        if (apiVersions != null) {
+            nodesNeedingApiVersions.remove(nodeId);
+            legacyNodes.remove(nodeId);
+            apiVersions.remove(nodeId);
+        }
     }
 
     /**
@@ -227,7 +269,8 @@ public class NetworkClient implements KafkaClient {
      * @param node The node
      */
     private boolean canSendRequest(String node) {
-        return connectionStates.isConnected(node) && selector.isChannelReady(node) && inFlightRequests.canSendMore(node);
+        return connectionStates.isConnected(node) && selector.isChannelReady(node) && inFlightRequests.canSendMore(node) &&
+            (apiVersions == null || apiVersions.get(node) != null);
     }
 
     /**
@@ -276,6 +319,7 @@ public class NetworkClient implements KafkaClient {
         handleDisconnections(responses, updatedNow);
         handleConnections();
         handleTimedOutRequests(responses, updatedNow);
+        maybeSendApiVersionsRequests(updatedNow);
 
         // invoke callbacks
         for (ClientResponse response : responses) {
@@ -400,11 +444,26 @@ public class NetworkClient implements KafkaClient {
      */
     private void processDisconnection(List<ClientResponse> responses, String nodeId, long now) {
         connectionStates.disconnected(nodeId, now);
+        boolean apiVersionsInFlight = false;
         for (ClientRequest request : this.inFlightRequests.clearAll(nodeId)) {
             log.trace("Cancelled request {} due to node {} being disconnected", request, nodeId);
-            if (!metadataUpdater.maybeHandleDisconnection(request))
+            if (isApiVersionsRequest(request))
+                apiVersionsInFlight = true;
+            else if (!metadataUpdater.maybeHandleDisconnection(request))
                 responses.add(new ClientResponse(request, now, true, null));
         }
+        if (apiVersions != null) {
+            nodesNeedingApiVersions.remove(nodeId);
+            if (apiVersionsInFlight) {
+                // brokers that predate the request close the connection on it, they are not asked on the next connection
+                log.debug("Node {} disconnected on the ApiVersions request, assuming that it does not support it", nodeId);
+                legacyNodes.add(nodeId);
+                apiVersions.update(nodeId, NodeApiVersions.legacy());
+            } else {
+                legacyNodes.remove(nodeId);
+                apiVersions.remove(nodeId);
+            }
+        }
     }
 
     /**
@@ -461,7 +520,9 @@ public class NetworkClient implements KafkaClient {
             short apiVer = req.request().header().apiVersion();
             Struct body = ProtoUtils.responseSchema(apiKey, apiVer).read(receive.payload());
             correlate(req.request().header(), header);
-            if (!metadataUpdater.maybeHandleCompletedReceive(req, now, body))
+            if (isApiVersionsRequest(req))
+                handleApiVersionsResponse(source, body);
+            else if (!metadataUpdater.maybeHandleCompletedReceive(req, now, body))
                 responses.add(new ClientResponse(req, now, false, body));
         }
     }
@@ -489,6 +550,40 @@ public class NetworkClient implements KafkaClient {
         for (String node : this.selector.connected()) {
             log.debug("Completed connection to node {}", node);
             this.connectionStates.connected(node);
+            if (this.apiVersions != null && !this.legacyNodes.contains(node))
+                this.nodesNeedingApiVersions.add(node);
+        }
+    }
+
+    /**
+     * Send an ApiVersions request to the connected nodes that need one, once their channel is ready
+     */
+    private void maybeSendApiVersionsRequests(long now) {
+        Iterator<String> iter = this.nodesNeedingApiVersions.iterator();
+        while (iter.hasNext()) {
+            String node = iter.next();
+            if (selector.isChannelReady(node) && inFlightRequests.canSendMore(node)) {
+                log.debug("Sending ApiVersions request to node {}", node);
+                RequestSend send = new RequestSend(node, nextRequestHeader(ApiKeys.API_VERSIONS), new ApiVersionsRequest().toStruct());
+                doSend(new ClientRequest(now, true, send, null, true), now);
+                iter.remove();
+            }
+        }
+    }
+
+    private boolean isApiVersionsRequest(ClientRequest request) {
+        return request.isInitiatedByNetworkClient() && request.request().header().apiKey() == ApiKeys.API_VERSIONS.id;
+    }
+
+    private void handleApiVersionsResponse(String node, Struct body) {
+        ApiVersionsResponse response = new ApiVersionsResponse(body);
+        if (response.errorCode() != Errors.NONE.code()) {
+            // the node is used as one that predates the request rather than not at all
+            log.warn("Node {} failed the ApiVersions request with error {}", node, Errors.forCode(response.errorCode()));
+            this.apiVersions.update(node, NodeApiVersions.legacy());
+        } else {
+            log.debug("Received api versions of node {}: {}", node, response.apiVersions());
+            this.apiVersions.update(node, new NodeApiVersions(response.apiVersions()));
         }
     }
 
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.ProtoUtils;
+import org.apache.kafka.common.requests.ApiVersionsResponse.ApiVersion;
+
+/**
+ * The versions of the apis a broker supports, as listed in its response to an ApiVersions request or as assumed for a
+ * broker that predates the ApiVersions request.
+ */
+public class NodeApiVersions {
+
+    /* the latest produce request version of the brokers that predate the ApiVersions request */
+    private static final short LEGACY_PRODUCE_VERSION = 1;
+
+    private final Map<Short, ApiVersion> apiVersions;
+
+    public NodeApiVersions(Collection<ApiVersion> apiVersions) {
+        this.apiVersions = new HashMap<>();
+        for (ApiVersion apiVersion : apiVersions)
+            this.apiVersions.put(apiVersion.apiKey, apiVersion);
+    }
+
+    /**
+     * The api versions assumed for a broker that closed the connection on an ApiVersions request. Only the produce api
+     * is listed, which is the only api whose version clients choose from the versions of the broker.
+     */
+    public static NodeApiVersions legacy() {
+        return new NodeApiVersions(Collections.singletonList(new ApiVersion(ApiKeys.PRODUCE.id, (short) 0, LEGACY_PRODUCE_VERSION)));
+    }
+
+    /**
+     * The latest version of the given api that both this client and the broker support, or -1 if there is none
+     */
+    public short usableVersion(ApiKeys api) {
+        ApiVersion apiVersion = apiVersions.get(api.id);
+        short latestVersion = ProtoUtils.latestVersion(api.id);
+        if (apiVersion == null || apiVersion.minVersion > latestVersion)
+            return -1;
+        return (short) Math.min(latestVersion, apiVersion.maxVersion);
+    }
+
+    @Override
+    public String toString() {
+        return "NodeApiVersions(" + apiVersions.values() + ")";
+    }
+}
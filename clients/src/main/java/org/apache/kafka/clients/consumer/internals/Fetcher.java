@@ -14,6 +14,7 @@
 package org.apache.kafka.clients.consumer.internals;
 
 import org.apache.kafka.clients.ClientResponse;
+import org.apache.kafka.clients.FetchSessionHandler;
 import org.apache.kafka.clients.Metadata;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.NoOffsetForPartitionException;
@@ -38,6 +39,7 @@ import org.apache.kafka.common.metrics.stats.Max;
 import org.apache.kafka.common.metrics.stats.Rate;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.protocol.ProtoUtils;
 import org.apache.kafka.common.record.LogEntry;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.requests.FetchRequest;
@@ -86,6 +88,7 @@ public class Fetcher<K, V> {
     private final Map<TopicPartition, Long> offsetOutOfRangePartitions;
     private final Set<String> unauthorizedTopics;
     private final Map<TopicPartition, Long> recordTooLargePartitions;
+    private final Map<Integer, FetchSessionHandler> sessionHandlers;
 
     public Fetcher(ConsumerNetworkClient client,
                    int minBytes,
@@ -117,6 +120,7 @@ public class Fetcher<K, V> {
         this.offsetOutOfRangePartitions = new HashMap<>();
         this.unauthorizedTopics = new HashSet<>();
         this.recordTooLargePartitions = new HashMap<>();
+        this.sessionHandlers = new HashMap<>();
 
         this.sensors = new FetchManagerMetrics(metrics, metricGrpPrefix);
         this.retryBackoffMs = retryBackoffMs;
@@ -128,17 +132,23 @@ public class Fetcher<K, V> {
      * @param cluster The current cluster metadata
      */
     public void initFetches(Cluster cluster) {
-        for (Map.Entry<Node, FetchRequest> fetchEntry: createFetchRequests(cluster).entrySet()) {
-            final FetchRequest fetch = fetchEntry.getValue();
+        for (Map.Entry<Node, FetchSessionHandler.FetchRequestData> fetchEntry: createFetchRequests(cluster).entrySet()) {
+            final FetchSessionHandler sessionHandler = sessionHandlers.get(fetchEntry.getKey().id());
+            final FetchSessionHandler.FetchRequestData data = fetchEntry.getValue();
+            FetchRequest fetch = new FetchRequest(ProtoUtils.latestVersion(ApiKeys.FETCH.id), FetchRequest.CONSUMER_REPLICA_ID,
+                    this.maxWaitMs, this.minBytes, data.toSend(), data.sessionId(), data.epoch(), data.toForget());
             client.send(fetchEntry.getKey(), ApiKeys.FETCH, fetch)
                     .addListener(new RequestFutureListener<ClientResponse>() {
                         @Override
-                        public void onSuccess(ClientResponse response) {
-                            handleFetchResponse(response, fetch);
+                        public void onSuccess(ClientResponse resp) {
+                            FetchResponse response = new FetchResponse(resp.responseBody());
+                            if (sessionHandler.handleResponse(response))
+                                handleFetchResponse(resp, response, data.sessionPartitions());
                         }
 
                         @Override
                         public void onFailure(RuntimeException e) {
+                            sessionHandler.handleError(e);
                             log.debug("Fetch failed", e);
                         }
                     });
@@ -495,46 +505,51 @@ public class Fetcher<K, V> {
 
     /**
      * Create fetch requests for all nodes for which we have assigned partitions
-     * that have no existing requests in flight.
+     * that have no existing requests in flight. The request to a node only sends the partitions that changed since
+     * the last request of its fetch session.
      */
-    private Map<Node, FetchRequest> createFetchRequests(Cluster cluster) {
+    private Map<Node, FetchSessionHandler.FetchRequestData> createFetchRequests(Cluster cluster) {
         // create the fetch info
-        Map<Node, Map<TopicPartition, FetchRequest.PartitionData>> fetchable = new HashMap<>();
+        Map<Node, FetchSessionHandler.Builder> fetchable = new HashMap<>();
         for (TopicPartition partition : subscriptions.fetchablePartitions()) {
             Node node = cluster.leaderFor(partition);
             if (node == null) {
                 metadata.requestUpdate();
             } else if (this.client.pendingRequestCount(node) == 0) {
                 // if there is a leader and no in-flight requests, issue a new fetch
-                Map<TopicPartition, FetchRequest.PartitionData> fetch = fetchable.get(node);
+                FetchSessionHandler.Builder fetch = fetchable.get(node);
                 if (fetch == null) {
-                    fetch = new HashMap<>();
+                    FetchSessionHandler sessionHandler = sessionHandlers.get(node.id());
+                    if (sessionHandler == null) {
+                        sessionHandler = new FetchSessionHandler(node.id());
+                        sessionHandlers.put(node.id(), sessionHandler);
+                    }
+                    fetch = sessionHandler.newBuilder();
                     fetchable.put(node, fetch);
                 }
 
                 long position = this.subscriptions.position(partition);
-                fetch.put(partition, new FetchRequest.PartitionData(position, this.fetchSize));
+                fetch.add(partition, new FetchRequest.PartitionData(position, this.fetchSize));
                 log.trace("Added fetch request for partition {} at offset {}", partition, position);
             }
         }
 
         // create the fetches
-        Map<Node, FetchRequest> requests = new HashMap<>();
-        for (Map.Entry<Node, Map<TopicPartition, FetchRequest.PartitionData>> entry : fetchable.entrySet()) {
-            Node node = entry.getKey();
-            FetchRequest fetch = new FetchRequest(this.maxWaitMs, this.minBytes, entry.getValue());
-            requests.put(node, fetch);
-        }
+        Map<Node, FetchSessionHandler.FetchRequestData> requests = new HashMap<>();
+        for (Map.Entry<Node, FetchSessionHandler.Builder> entry : fetchable.entrySet())
+            requests.put(entry.getKey(), entry.getValue().build());
         return requests;
     }
 
     /**
      * The callback for fetch completion
+     *
+     * @param fetchData The fetch offsets of all the partitions of the request, including those of its fetch session
+     *                  that were not sent
      */
-    private void handleFetchResponse(ClientResponse resp, FetchRequest request) {
+    private void handleFetchResponse(ClientResponse resp, FetchResponse response, Map<TopicPartition, FetchRequest.PartitionData> fetchData) {
         int totalBytes = 0;
         int totalCount = 0;
-        FetchResponse response = new FetchResponse(resp.responseBody());
         for (Map.Entry<TopicPartition, FetchResponse.PartitionData> entry : response.responseData().entrySet()) {
             TopicPartition tp = entry.getKey();
             FetchResponse.PartitionData partition = entry.getValue();
@@ -543,7 +558,7 @@ public class Fetcher<K, V> {
                 // while fetch is still in-flight
                 log.debug("Ignoring fetched records for partition {} since it is no longer fetchable", tp);
             } else if (partition.errorCode == Errors.NONE.code()) {
-                long fetchOffset = request.fetchData().get(tp).offset;
+                long fetchOffset = fetchData.get(tp).offset;
 
                 // we are interested in this fetch only if the beginning offset matches the
                 // current consumed position
@@ -582,7 +597,7 @@ public class Fetcher<K, V> {
                 || partition.errorCode == Errors.UNKNOWN_TOPIC_OR_PARTITION.code()) {
                 this.metadata.requestUpdate();
             } else if (partition.errorCode == Errors.OFFSET_OUT_OF_RANGE.code()) {
-                long fetchOffset = request.fetchData().get(tp).offset;
+                long fetchOffset = fetchData.get(tp).offset;
                 if (subscriptions.hasDefaultOffsetResetPolicy())
                     subscriptions.needOffsetReset(tp);
                 else
@@ -24,9 +24,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.kafka.clients.ApiVersions;
 import org.apache.kafka.clients.ClientUtils;
 import org.apache.kafka.clients.Metadata;
 import org.apache.kafka.clients.NetworkClient;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
 import org.apache.kafka.clients.producer.internals.RecordAccumulator;
 import org.apache.kafka.clients.producer.internals.Sender;
 import org.apache.kafka.common.Cluster;
@@ -132,6 +134,8 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
 
     private String clientId;
     private final Partitioner partitioner;
+    // the partitioner if it sticks to a partition per topic for records without a key until a new batch is needed
+    private final DefaultPartitioner stickyPartitioner;
     private final int maxRequestSize;
     private final long totalMemorySize;
     private final Metadata metadata;
@@ -220,6 +224,10 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             reporters.add(new JmxReporter(JMX_PREFIX));
             this.metrics = new Metrics(metricConfig, reporters, time);
             this.partitioner = config.getConfiguredInstance(ProducerConfig.PARTITIONER_CLASS_CONFIG, Partitioner.class);
+            if (partitioner instanceof DefaultPartitioner && ((DefaultPartitioner) partitioner).isSticky())
+                this.stickyPartitioner = (DefaultPartitioner) partitioner;
+            else
+                this.stickyPartitioner = null;
             long retryBackoffMs = config.getLong(ProducerConfig.RETRY_BACKOFF_MS_CONFIG);
             this.metadata = new Metadata(retryBackoffMs, config.getLong(ProducerConfig.METADATA_MAX_AGE_CONFIG));
             this.maxRequestSize = config.getInt(ProducerConfig.MAX_REQUEST_SIZE_CONFIG);
@@ -262,13 +270,21 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                 this.requestTimeoutMs = config.getInt(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG);
             }
 
+            // the api versions of the brokers decide the format of the records, which is only written when the
+            // brokers the records are sent to accept it
+            ApiVersions apiVersions = new ApiVersions();
             this.accumulator = new RecordAccumulator(config.getInt(ProducerConfig.BATCH_SIZE_CONFIG),
                     this.totalMemorySize,
                     this.compressionType,
+                    config.getBoolean(ProducerConfig.COMPRESSION_DEFERRED_ENABLE_CONFIG),
+                    config.getBoolean(ProducerConfig.CONCURRENT_APPEND_ENABLE_CONFIG),
+                    config.getBoolean(ProducerConfig.BUFFER_MEMORY_DIRECT_ENABLE_CONFIG),
                     config.getLong(ProducerConfig.LINGER_MS_CONFIG),
+                    config.getBoolean(ProducerConfig.LINGER_ADAPTIVE_ENABLE_CONFIG) ? config.getLong(ProducerConfig.LINGER_ADAPTIVE_LATENCY_BUDGET_MS_CONFIG) : -1L,
                     retryBackoffMs,
                     metrics,
-                    time);
+                    time,
+                    apiVersions);
             List<InetSocketAddress> addresses = ClientUtils.parseAndValidateAddresses(config.getList(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG));
             this.metadata.update(Cluster.bootstrap(addresses), time.milliseconds());
             ChannelBuilder channelBuilder = ClientUtils.createChannelBuilder(config.values());
@@ -280,7 +296,8 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                     config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
                     config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
                     config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
-                    this.requestTimeoutMs, time);
+                    this.requestTimeoutMs, time,
+                    apiVersions);
             this.sender = new Sender(client,
                     this.metadata,
                     this.accumulator,
@@ -290,7 +307,8 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                     this.metrics,
                     new SystemTime(),
                     clientId,
-                    this.requestTimeoutMs);
+                    this.requestTimeoutMs,
+                    apiVersions);
             String ioThreadName = "kafka-producer-network-thread" + (clientId.length() > 0 ? " | " + clientId : "");
             this.ioThread = new KafkaThread(ioThreadName, this.sender, true);
             this.ioThread.start();
@@ -430,12 +448,23 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                         " to class " + producerConfig.getClass(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG).getName() +
                         " specified in value.serializer");
             }
-            int partition = partition(record, serializedKey, serializedValue, metadata.fetch());
+            Cluster cluster = metadata.fetch();
+            int partition = partition(record, serializedKey, serializedValue, cluster);
             int serializedSize = Records.LOG_OVERHEAD + Record.recordSize(serializedKey, serializedValue);
             ensureValidRecordSize(serializedSize);
             TopicPartition tp = new TopicPartition(record.topic(), partition);
             log.trace("Sending record {} with callback {} to topic {} partition {}", record, callback, record.topic(), partition);
-            RecordAccumulator.RecordAppendResult result = accumulator.append(tp, serializedKey, serializedValue, callback, remainingWaitMs);
+            // a record on a sticky partition would rather go to another partition than start a new batch
+            boolean abortOnNewBatch = stickyPartitioner != null && record.partition() == null && serializedKey == null;
+            RecordAccumulator.RecordAppendResult result = accumulator.append(tp, serializedKey, serializedValue, callback,
+                    remainingWaitMs, abortOnNewBatch);
+            if (result.abortedForNewBatch) {
+                int prevPartition = partition;
+                partition = stickyPartitioner.onNewBatch(record.topic(), cluster, prevPartition);
+                tp = new TopicPartition(record.topic(), partition);
+                log.trace("Switching the sticky partition of topic {} from {} to {}", record.topic(), prevPartition, partition);
+                result = accumulator.append(tp, serializedKey, serializedValue, callback, remainingWaitMs, false);
+            }
             if (result.batchIsFull || result.newBatchCreated) {
                 log.trace("Waking up the sender since topic {} partition {} is either full or getting a new batch", record.topic(), partition);
                 this.sender.wakeup();
@@ -57,6 +57,21 @@ public class ProducerConfig extends AbstractConfig {
     public static final String METADATA_MAX_AGE_CONFIG = CommonClientConfigs.METADATA_MAX_AGE_CONFIG;
     private static final String METADATA_MAX_AGE_DOC = CommonClientConfigs.METADATA_MAX_AGE_DOC;
 
+    /** <code>compression.deferred.enable</code> */
+    public static final String COMPRESSION_DEFERRED_ENABLE_CONFIG = "compression.deferred.enable";
+    private static final String COMPRESSION_DEFERRED_ENABLE_DOC = "When true, records are appended to their batch uncompressed and the batch is compressed by the "
+                                                                  + "producer's I/O thread when it is sent, instead of being compressed record by record in <code>send()</code>. "
+                                                                  + "This keeps threads sending to the same partition from waiting on each other's compression, "
+                                                                  + "at the cost of compressing on a single thread. Since <code>batch.size</code> then applies to "
+                                                                  + "the uncompressed records, the batches sent are smaller. It has no effect without compression.";
+
+    /** <code>concurrent.append.enable</code> */
+    public static final String CONCURRENT_APPEND_ENABLE_CONFIG = "concurrent.append.enable";
+    private static final String CONCURRENT_APPEND_ENABLE_DOC = "When true, records that are appended to their batch uncompressed, either without compression or with "
+                                                               + "<code>" + COMPRESSION_DEFERRED_ENABLE_CONFIG + "</code>, are appended without taking the lock of their partition, "
+                                                               + "so that threads sending to the same partition do not wait on each other. A batch is then only sent once the records "
+                                                               + "appended to it have been written, and it is failed if they are not written within a second.";
+
     /** <code>batch.size</code> */
     public static final String BATCH_SIZE_CONFIG = "batch.size";
     private static final String BATCH_SIZE_DOC = "The producer will attempt to batch records together into fewer requests whenever multiple records are being sent" + " to the same partition. This helps performance on both the client and the server. This configuration controls the "
@@ -79,6 +94,13 @@ public class ProducerConfig extends AbstractConfig {
                                                     + "not all memory the producer uses is used for buffering. Some additional memory will be used for compression (if "
                                                     + "compression is enabled) as well as for maintaining in-flight requests.";
 
+    /** <code>buffer.memory.direct.enable</code> */
+    public static final String BUFFER_MEMORY_DIRECT_ENABLE_CONFIG = "buffer.memory.direct.enable";
+    private static final String BUFFER_MEMORY_DIRECT_ENABLE_DOC = "When true, the buffer memory is allocated outside of the Java heap as direct buffers, so that "
+                                                                  + "batches that are not recycled do not fill the old generation and are written to the network without "
+                                                                  + "a copy. The direct memory limit of the JVM, <code>-XX:MaxDirectMemorySize</code>, then has to leave "
+                                                                  + "room for <code>buffer.memory</code>.";
+
     /** <code>acks</code> */
     public static final String ACKS_CONFIG = "acks";
     private static final String ACKS_DOC = "The number of acknowledgments the producer requires the leader to have received before considering a request complete. This controls the "
@@ -119,6 +141,18 @@ public class ProducerConfig extends AbstractConfig {
                                                 + "specified time waiting for more records to show up. This setting defaults to 0 (i.e. no delay). Setting <code>linger.ms=5</code>, "
                                                 + "for example, would have the effect of reducing the number of requests sent but would add up to 5ms of latency to records sent in the absense of load.";
 
+    /** <code>linger.adaptive.enable</code> */
+    public static final String LINGER_ADAPTIVE_ENABLE_CONFIG = "linger.adaptive.enable";
+    private static final String LINGER_ADAPTIVE_ENABLE_DOC = "When true, <code>linger.ms</code> is not used and the producer chooses the linger of each partition from "
+                                                             + "the rate at which its records arrive and the average latency of produce requests: a partition lingers until "
+                                                             + "its batch is expected to be full, but no longer than <code>linger.adaptive.latency.budget.ms</code> minus the "
+                                                             + "request latency, and does not linger if no other record is expected to arrive by then.";
+
+    /** <code>linger.adaptive.latency.budget.ms</code> */
+    public static final String LINGER_ADAPTIVE_LATENCY_BUDGET_MS_CONFIG = "linger.adaptive.latency.budget.ms";
+    private static final String LINGER_ADAPTIVE_LATENCY_BUDGET_MS_DOC = "The time a record should at most spend lingering and in a produce request when "
+                                                                        + "<code>linger.adaptive.enable</code> is true.";
+
     /** <code>client.id</code> */
     public static final String CLIENT_ID_CONFIG = CommonClientConfigs.CLIENT_ID_CONFIG;
 
@@ -190,6 +224,13 @@ public class ProducerConfig extends AbstractConfig {
     public static final String PARTITIONER_CLASS_CONFIG = "partitioner.class";
     private static final String PARTITIONER_CLASS_DOC = "Partitioner class that implements the <code>Partitioner</code> interface.";
 
+    /** <code>partitioner.sticky.enable</code> */
+    public static final String PARTITIONER_STICKY_ENABLE_CONFIG = "partitioner.sticky.enable";
+    private static final String PARTITIONER_STICKY_ENABLE_DOC = "When true, the default partitioner sends the records that have neither a partition nor a key "
+                                                                + "to one partition until its current batch is full or has been sent, and then switches to another "
+                                                                + "partition, rather than spreading them over the partitions one record at a time. This fills batches "
+                                                                + "faster when a topic has many partitions. Other partitioners are not affected.";
+
     /** <code>max.block.ms</code> */
     public static final String MAX_BLOCK_MS_CONFIG = "max.block.ms";
     private static final String MAX_BLOCK_MS_DOC = "The configuration controls how long {@link KafkaProducer#send()} and {@link KafkaProducer#partitionsFor} will block."
@@ -203,6 +244,7 @@ public class ProducerConfig extends AbstractConfig {
     static {
         CONFIG = new ConfigDef().define(BOOTSTRAP_SERVERS_CONFIG, Type.LIST, Importance.HIGH, CommonClientConfigs.BOOSTRAP_SERVERS_DOC)
                                 .define(BUFFER_MEMORY_CONFIG, Type.LONG, 32 * 1024 * 1024L, atLeast(0L), Importance.HIGH, BUFFER_MEMORY_DOC)
+                                .define(BUFFER_MEMORY_DIRECT_ENABLE_CONFIG, Type.BOOLEAN, false, Importance.LOW, BUFFER_MEMORY_DIRECT_ENABLE_DOC)
                                 .define(RETRIES_CONFIG, Type.INT, 0, between(0, Integer.MAX_VALUE), Importance.HIGH, RETRIES_DOC)
                                 .define(ACKS_CONFIG,
                                         Type.STRING,
@@ -212,8 +254,12 @@ public class ProducerConfig extends AbstractConfig {
                                         ACKS_DOC)
                                 .define(COMPRESSION_TYPE_CONFIG, Type.STRING, "none", Importance.HIGH, COMPRESSION_TYPE_DOC)
                                 .define(BATCH_SIZE_CONFIG, Type.INT, 16384, atLeast(0), Importance.MEDIUM, BATCH_SIZE_DOC)
+                                .define(COMPRESSION_DEFERRED_ENABLE_CONFIG, Type.BOOLEAN, false, Importance.LOW, COMPRESSION_DEFERRED_ENABLE_DOC)
+                                .define(CONCURRENT_APPEND_ENABLE_CONFIG, Type.BOOLEAN, false, Importance.LOW, CONCURRENT_APPEND_ENABLE_DOC)
                                 .define(TIMEOUT_CONFIG, Type.INT, 30 * 1000, atLeast(0), Importance.MEDIUM, TIMEOUT_DOC)
                                 .define(LINGER_MS_CONFIG, Type.LONG, 0, atLeast(0L), Importance.MEDIUM, LINGER_MS_DOC)
+                                .define(LINGER_ADAPTIVE_ENABLE_CONFIG, Type.BOOLEAN, false, Importance.LOW, LINGER_ADAPTIVE_ENABLE_DOC)
+                                .define(LINGER_ADAPTIVE_LATENCY_BUDGET_MS_CONFIG, Type.LONG, 100L, atLeast(0L), Importance.LOW, LINGER_ADAPTIVE_LATENCY_BUDGET_MS_DOC)
                                 .define(CLIENT_ID_CONFIG, Type.STRING, "", Importance.MEDIUM, CommonClientConfigs.CLIENT_ID_DOC)
                                 .define(SEND_BUFFER_CONFIG, Type.INT, 128 * 1024, atLeast(0), Importance.MEDIUM, CommonClientConfigs.SEND_BUFFER_DOC)
                                 .define(RECEIVE_BUFFER_CONFIG, Type.INT, 32 * 1024, atLeast(0), Importance.MEDIUM, CommonClientConfigs.RECEIVE_BUFFER_DOC)
@@ -277,6 +323,7 @@ public class ProducerConfig extends AbstractConfig {
                                         Type.CLASS,
                                         DefaultPartitioner.class.getName(),
                                         Importance.MEDIUM, PARTITIONER_CLASS_DOC)
+                                .define(PARTITIONER_STICKY_ENABLE_CONFIG, Type.BOOLEAN, false, Importance.LOW, PARTITIONER_STICKY_ENABLE_DOC)
 
                                 // security support
                                 .define(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG,
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Chooses the linger of each partition from the rate at which its records arrive and the latency of produce requests,
+ * so that a record spends at most the latency budget lingering and in flight:
+ * <ul>
+ * <li>A partition lingers until its batch is expected to be full, but no longer than the latency budget minus the
+ * average request latency
+ * <li>A partition does not linger if no other record is expected to arrive within that time, since lingering would
+ * only add latency
+ * </ul>
+ * The arrival rate of a partition is estimated from the bytes drained from it and the time between its drains, which
+ * does not depend on the linger it was drained with.
+ * <p>
+ * This class is not thread safe, it is only used by the sender thread.
+ */
+public final class AdaptiveLinger {
+
+    // the weight of the latest observation in the moving averages
+    private static final double ALPHA = 0.2;
+
+    private final int batchSize;
+    private final long latencyBudgetMs;
+    private final Map<TopicPartition, PartitionRate> rates;
+    private double requestLatencyMs;
+
+    /**
+     * @param batchSize The size of the batches
+     * @param latencyBudgetMs The time a record should at most spend lingering and in flight
+     */
+    public AdaptiveLinger(int batchSize, long latencyBudgetMs) {
+        this.batchSize = batchSize;
+        this.latencyBudgetMs = latencyBudgetMs;
+        this.rates = new HashMap<TopicPartition, PartitionRate>();
+        this.requestLatencyMs = 0.0;
+    }
+
+    /**
+     * Record a batch drained from its partition, unless it is a retry
+     */
+    public void recordDrained(RecordBatch batch, long now) {
+        if (batch.attempts > 0)
+            return;
+        PartitionRate rate = this.rates.get(batch.topicPartition);
+        if (rate == null) {
+            // the first batch of the partition started to arrive when it was created
+            rate = new PartitionRate(batch.createdMs);
+            this.rates.put(batch.topicPartition, rate);
+        }
+        rate.record(batch.records.sizeInBytes(), batch.recordCount, now);
+    }
+
+    /**
+     * Record the latency of a produce request
+     */
+    public void recordRequestLatency(long latencyMs) {
+        this.requestLatencyMs = ALPHA * latencyMs + (1 - ALPHA) * this.requestLatencyMs;
+    }
+
+    /**
+     * The time the batch of the given partition should linger for
+     */
+    public long lingerMs(TopicPartition tp) {
+        PartitionRate rate = this.rates.get(tp);
+        double lingerBudgetMs = this.latencyBudgetMs - this.requestLatencyMs;
+        if (rate == null || rate.bytesPerMs <= 0 || lingerBudgetMs <= 0)
+            return 0L;
+        if (rate.bytesPerMs * lingerBudgetMs < rate.bytesPerRecord)
+            return 0L;
+        return (long) Math.min(this.batchSize / rate.bytesPerMs, lingerBudgetMs);
+    }
+
+    /**
+     * The average request latency in ms
+     */
+    public double requestLatencyMs() {
+        return this.requestLatencyMs;
+    }
+
+    /**
+     * The moving averages of the arrival rate and the record size of a partition. The bytes drained within the same
+     * millisecond as the last drain are counted with the next drain.
+     */
+    private static final class PartitionRate {
+        private long lastDrainMs;
+        private int pendingBytes;
+        private int pendingRecords;
+        private double bytesPerMs;
+        private double bytesPerRecord;
+
+        PartitionRate(long startMs) {
+            this.lastDrainMs = startMs;
+            this.bytesPerMs = -1.0;
+            this.bytesPerRecord = -1.0;
+        }
+
+        void record(int bytes, int records, long now) {
+            this.pendingBytes += bytes;
+            this.pendingRecords += records;
+            long elapsedMs = now - this.lastDrainMs;
+            if (elapsedMs <= 0 || this.pendingRecords == 0)
+                return;
+            double observedBytesPerMs = (double) this.pendingBytes / elapsedMs;
+            double observedBytesPerRecord = (double) this.pendingBytes / this.pendingRecords;
+            this.bytesPerMs = this.bytesPerMs < 0 ? observedBytesPerMs : ALPHA * observedBytesPerMs + (1 - ALPHA) * this.bytesPerMs;
+            this.bytesPerRecord = this.bytesPerRecord < 0 ? observedBytesPerRecord : ALPHA * observedBytesPerRecord + (1 - ALPHA) * this.bytesPerRecord;
+            this.pendingBytes = 0;
+            this.pendingRecords = 0;
+            this.lastDrainMs = now;
+        }
+    }
+}
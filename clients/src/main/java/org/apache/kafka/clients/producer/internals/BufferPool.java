@@ -18,15 +18,21 @@ package org.apache.kafka.clients.producer.internals;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
 import org.apache.kafka.common.metrics.stats.Rate;
 import org.apache.kafka.common.utils.Time;
 
@@ -35,7 +41,11 @@ import org.apache.kafka.common.utils.Time;
  * A pool of ByteBuffers kept under a given memory limit. This class is fairly specific to the needs of the producer. In
  * particular it has the following properties:
  * <ol>
- * <li>There is a special "poolable size" and buffers of this size are kept in a free list and recycled
+ * <li>There are size classes, the "poolable size" and its successive doubles, and buffers of these sizes are kept in a
+ * free list per size class and recycled. A request for a size between the poolable size and the largest size class is
+ * rounded up to its size class, other sizes are allocated as requested and not recycled.
+ * <li>Buffers are taken from and returned to the free list of their size class under the lock of the size class only,
+ * the lock of the pool is taken when memory has to be allocated or freed.
  * <li>It is fair. That is all memory is given to the longest waiting thread until it has sufficient memory. This
  * prevents starvation or deadlock when a thread asks for a large chunk of memory and needs to block until multiple
  * buffers are deallocated.
@@ -43,30 +53,58 @@ import org.apache.kafka.common.utils.Time;
  */
 public final class BufferPool {
 
+    // the maximum number of size classes, the largest one being 128 times the poolable size
+    static final int MAX_SIZE_CLASSES = 8;
+
     private final long totalMemory;
     private final int poolableSize;
+    private final boolean direct;
     private final ReentrantLock lock;
-    private final Deque<ByteBuffer> free;
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong pooledMemory;
     private final Deque<Condition> waiters;
+    private volatile int queued;
     private long availableMemory;
     private final Metrics metrics;
     private final Time time;
     private final Sensor waitTime;
+    private final Sensor hits;
+    private final Sensor fragmentation;
 
     /**
-     * Create a new buffer pool
+     * Create a new buffer pool of heap buffers
      * 
      * @param memory The maximum amount of memory that this buffer pool can allocate
-     * @param poolableSize The buffer size to cache in the free list rather than deallocating
+     * @param poolableSize The smallest buffer size to cache in the free lists rather than deallocating
      * @param metrics instance of Metrics
      * @param time time instance
      * @param metricGrpName logical group name for metrics
      */
     public BufferPool(long memory, int poolableSize, Metrics metrics, Time time, String metricGrpName) {
+        this(memory, poolableSize, false, metrics, time, metricGrpName);
+    }
+
+    /**
+     * Create a new buffer pool
+     *
+     * @param memory The maximum amount of memory that this buffer pool can allocate
+     * @param poolableSize The smallest buffer size to cache in the free lists rather than deallocating
+     * @param direct Whether to allocate direct buffers rather than heap buffers
+     * @param metrics instance of Metrics
+     * @param time time instance
+     * @param metricGrpName logical group name for metrics
+     */
+    public BufferPool(long memory, int poolableSize, boolean direct, Metrics metrics, Time time, String metricGrpName) {
         this.poolableSize = poolableSize;
+        this.direct = direct;
         this.lock = new ReentrantLock();
-        this.free = new ArrayDeque<ByteBuffer>();
+        List<SizeClass> classes = new ArrayList<SizeClass>();
+        for (long size = poolableSize; poolableSize > 0 && classes.size() < MAX_SIZE_CLASSES && size <= Math.min(memory, Integer.MAX_VALUE); size *= 2)
+            classes.add(new SizeClass((int) size));
+        this.sizeClasses = classes.toArray(new SizeClass[classes.size()]);
+        this.pooledMemory = new AtomicLong(0L);
         this.waiters = new ArrayDeque<Condition>();
+        this.queued = 0;
         this.totalMemory = memory;
         this.availableMemory = memory;
         this.metrics = metrics;
@@ -76,6 +114,28 @@ public final class BufferPool {
                                                    metricGrpName,
                                                    "The fraction of time an appender waits for space allocation.");
         this.waitTime.add(metricName, new Rate(TimeUnit.NANOSECONDS));
+        this.hits = this.metrics.sensor("bufferpool-hits");
+        metricName = metrics.metricName("bufferpool-hit-ratio",
+                                        metricGrpName,
+                                        "The fraction of the buffer allocations served from a free list of the pool.");
+        this.hits.add(metricName, new Avg());
+        this.fragmentation = this.metrics.sensor("bufferpool-fragmentation");
+        metricName = metrics.metricName("bufferpool-fragmentation-ratio",
+                                        metricGrpName,
+                                        "The average fraction of an allocated buffer that was not requested, since requests are rounded up to their size class.");
+        this.fragmentation.add(metricName, new Avg());
+        registerMetrics(metricGrpName);
+    }
+
+    private void registerMetrics(String metricGrpName) {
+        MetricName metricName = metrics.metricName("bufferpool-pooled-bytes",
+                                        metricGrpName,
+                                        "The memory held in the free lists of the pool.");
+        this.metrics.addMetric(metricName, new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                return pooledMemory.get();
+            }
+        });
     }
 
     /**
@@ -84,7 +144,7 @@ public final class BufferPool {
      * 
      * @param size The buffer size to allocate in bytes
      * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
-     * @return The buffer
+     * @return The buffer, whose capacity is the size class of the given size if it has one
      * @throws InterruptedException If the thread is interrupted while blocked
      * @throws IllegalArgumentException if size is larger than the total memory controlled by the pool (and hence we would block
      *         forever)
@@ -96,48 +156,71 @@ public final class BufferPool {
                                                + this.totalMemory
                                                + " on memory allocations.");
 
+        SizeClass sizeClass = sizeClassFor(size);
+        int capacity = sizeClass == null ? size : sizeClass.size;
+        this.fragmentation.record(capacity == 0 ? 0.0 : (double) (capacity - size) / capacity, time.milliseconds());
+
+        // check if we have a free buffer of the right size pooled
+        if (sizeClass != null) {
+            ByteBuffer buffer = sizeClass.poll();
+            if (buffer != null) {
+                this.hits.record(1.0, time.milliseconds());
+                return buffer;
+            }
+        }
+
         this.lock.lock();
         try {
-            // check if we have a free buffer of the right size pooled
-            if (size == poolableSize && !this.free.isEmpty())
-                return this.free.pollFirst();
-
             // now check if the request is immediately satisfiable with the
-            // memory on hand or if we need to block
-            int freeListSize = this.free.size() * this.poolableSize;
-            if (this.availableMemory + freeListSize >= size) {
+            // memory on hand or if we need to block, pooled buffers may be
+            // taken by other threads meanwhile so free them up first
+            freeUp(capacity);
+            if (this.availableMemory >= capacity) {
                 // we have enough unallocated or pooled memory to immediately
                 // satisfy the request
-                freeUp(size);
-                this.availableMemory -= size;
+                this.availableMemory -= capacity;
                 lock.unlock();
-                return ByteBuffer.allocate(size);
+                this.hits.record(0.0, time.milliseconds());
+                return allocateBuffer(capacity);
             } else {
                 // we are out of memory and will have to block
                 int accumulated = 0;
                 ByteBuffer buffer = null;
                 Condition moreMemory = this.lock.newCondition();
                 this.waiters.addLast(moreMemory);
+                this.queued = this.waiters.size();
+                // a buffer returned to its free list before this thread was
+                // queued is not signalled, so the first waiter checks the free
+                // lists again before it waits, later ones are signalled
+                boolean wait = this.waiters.peekFirst() != moreMemory;
                 // loop over and over until we have a buffer or have reserved
                 // enough memory to allocate one
-                while (accumulated < size) {
-                    long startWait = time.nanoseconds();
-                    if (!moreMemory.await(maxTimeToBlock, TimeUnit.MILLISECONDS))
-                        throw new TimeoutException("Failed to allocate memory within the configured max blocking time");
-                    long endWait = time.nanoseconds();
-                    this.waitTime.record(endWait - startWait, time.milliseconds());
+                while (accumulated < capacity) {
+                    if (wait) {
+                        long startWait = time.nanoseconds();
+                        if (!moreMemory.await(maxTimeToBlock, TimeUnit.MILLISECONDS)) {
+                            this.waiters.remove(moreMemory);
+                            this.queued = this.waiters.size();
+                            this.availableMemory += accumulated;
+                            if (!this.waiters.isEmpty())
+                                this.waiters.peekFirst().signal();
+                            throw new TimeoutException("Failed to allocate memory within the configured max blocking time");
+                        }
+                        long endWait = time.nanoseconds();
+                        this.waitTime.record(endWait - startWait, time.milliseconds());
+                    }
+                    wait = true;
 
                     // check if we can satisfy this request from the free list,
                     // otherwise allocate memory
-                    if (accumulated == 0 && size == this.poolableSize && !this.free.isEmpty()) {
+                    if (accumulated == 0 && sizeClass != null && (buffer = sizeClass.poll()) != null) {
                         // just grab a buffer from the free list
-                        buffer = this.free.pollFirst();
-                        accumulated = size;
+                        accumulated = capacity;
                     } else {
                         // we'll need to allocate memory, but we may only get
                         // part of what we need on this iteration
-                        freeUp(size - accumulated);
-                        int got = (int) Math.min(size - accumulated, this.availableMemory);
+                        freeUp(capacity - accumulated);
+                        int got = (int) Math.min(capacity - accumulated, this.availableMemory);
                         this.availableMemory -= got;
                         accumulated += got;
                     }
@@ -146,20 +229,22 @@ public final class BufferPool {
                 // remove the condition for this thread to let the next thread
                 // in line start getting memory
                 Condition removed = this.waiters.removeFirst();
+                this.queued = this.waiters.size();
                 if (removed != moreMemory)
                     throw new IllegalStateException("Wrong condition: this shouldn't happen.");
 
                 // signal any additional waiters if there is more memory left
                 // over for them
-                if (this.availableMemory > 0 || !this.free.isEmpty()) {
+                if (this.availableMemory > 0 || this.pooledMemory.get() > 0) {
                     if (!this.waiters.isEmpty())
                         this.waiters.peekFirst().signal();
                 }
 
                 // unlock and return the buffer
                 lock.unlock();
+                this.hits.record(buffer == null ? 0.0 : 1.0, time.milliseconds());
                 if (buffer == null)
-                    return ByteBuffer.allocate(size);
+                    return allocateBuffer(capacity);
                 else
                     return buffer;
             }
@@ -169,17 +254,38 @@ public final class BufferPool {
         }
     }
 
+    private ByteBuffer allocateBuffer(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * The size class of the given size, or null if the size is smaller than the poolable size or larger than the
+     * largest size class
+     */
+    private SizeClass sizeClassFor(int size) {
+        if (size < this.poolableSize)
+            return null;
+        for (SizeClass sizeClass : this.sizeClasses) {
+            if (size <= sizeClass.size)
+                return sizeClass;
+        }
+        return null;
+    }
+
     /**
      * Attempt to ensure we have at least the requested number of bytes of memory for allocation by deallocating pooled
-     * buffers (if needed)
+     * buffers (if needed), starting with the largest ones
      */
     private void freeUp(int size) {
-        while (!this.free.isEmpty() && this.availableMemory < size)
-            this.availableMemory += this.free.pollLast().capacity();
+        for (int i = this.sizeClasses.length - 1; i >= 0 && this.availableMemory < size; i--) {
+            SizeClass sizeClass = this.sizeClasses[i];
+            while (this.availableMemory < size && sizeClass.release())
+                this.availableMemory += sizeClass.size;
+        }
     }
 
     /**
-     * Return buffers to the pool. If they are of the poolable size add them to the free list, otherwise just mark the
+     * Return buffers to the pool. If they are of a size class add them to its free list, otherwise just mark the
      * memory as free.
      * 
      * @param buffer The buffer to return
@@ -187,14 +293,39 @@ public final class BufferPool {
      *             since the buffer may re-allocate itself during in-place compression
      */
     public void deallocate(ByteBuffer buffer, int size) {
+        SizeClass sizeClass = sizeClassFor(size);
+        if (sizeClass != null && size == sizeClass.size && size == buffer.capacity() && buffer.isDirect() == this.direct) {
+            buffer.clear();
+            sizeClass.add(buffer);
+            // the first thread to wait checks the free lists once it is queued, so it either sees this buffer or
+            // is queued by now and gets signalled
+            if (this.queued > 0)
+                signalFirstWaiter();
+        } else {
+            deallocate(size);
+        }
+    }
+
+    /**
+     * Mark the memory of a buffer that must not be reused as free
+     *
+     * @param size The size of the buffer to mark as deallocated
+     */
+    public void deallocate(int size) {
+        lock.lock();
+        try {
+            this.availableMemory += size;
+            Condition moreMem = this.waiters.peekFirst();
+            if (moreMem != null)
+                moreMem.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalFirstWaiter() {
         lock.lock();
         try {
-            if (size == this.poolableSize && size == buffer.capacity()) {
-                buffer.clear();
-                this.free.add(buffer);
-            } else {
-                this.availableMemory += size;
-            }
             Condition moreMem = this.waiters.peekFirst();
             if (moreMem != null)
                 moreMem.signal();
@@ -208,19 +339,19 @@ public final class BufferPool {
     }
 
     /**
-     * the total free memory both unallocated and in the free list
+     * the total free memory both unallocated and in the free lists
      */
     public long availableMemory() {
         lock.lock();
         try {
-            return this.availableMemory + this.free.size() * this.poolableSize;
+            return this.availableMemory + this.pooledMemory.get();
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * Get the unallocated memory (not in the free list or in use)
+     * Get the unallocated memory (not in the free lists or in use)
      */
     public long unallocatedMemory() {
         lock.lock();
@@ -235,25 +366,63 @@ public final class BufferPool {
      * The number of threads blocked waiting on memory
      */
     public int queued() {
-        lock.lock();
-        try {
-            return this.waiters.size();
-        } finally {
-            lock.unlock();
-        }
+        return this.queued;
     }
 
     /**
-     * The buffer size that will be retained in the free list after use
+     * The smallest buffer size that will be retained in the free lists after use
      */
     public int poolableSize() {
         return this.poolableSize;
     }
 
+    /**
+     * Whether the buffers of this pool are direct buffers
+     */
+    public boolean isDirect() {
+        return this.direct;
+    }
+
     /**
      * The total memory managed by this pool
      */
     public long totalMemory() {
         return this.totalMemory;
     }
-}
\ No newline at end of file
+
+    /**
+     * The free list of the buffers of a size class. It has its own lock so that threads taking and returning buffers
+     * of different sizes, or buffers without waiting for memory, do not contend on the lock of the pool.
+     */
+    private final class SizeClass {
+        private final int size;
+        private final Deque<ByteBuffer> free;
+
+        SizeClass(int size) {
+            this.size = size;
+            this.free = new ArrayDeque<ByteBuffer>();
+        }
+
+        synchronized ByteBuffer poll() {
+            ByteBuffer buffer = this.free.pollFirst();
+            if (buffer != null)
+                pooledMemory.addAndGet(-this.size);
+            return buffer;
+        }
+
+        synchronized void add(ByteBuffer buffer) {
+            this.free.addLast(buffer);
+            pooledMemory.addAndGet(this.size);
+        }
+
+        /**
+         * Drop a buffer of the free list so that its memory can be allocated for another size
+         */
+        synchronized boolean release() {
+            if (this.free.pollLast() == null)
+                return false;
+            pooledMemory.addAndGet(-this.size);
+            return true;
+        }
+    }
+}
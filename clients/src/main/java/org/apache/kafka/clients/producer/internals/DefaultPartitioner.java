@@ -19,9 +19,13 @@ package org.apache.kafka.clients.producer.internals;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.utils.Utils;
@@ -31,11 +35,17 @@ import org.apache.kafka.common.utils.Utils;
  * <ul>
  * <li>If a partition is specified in the record, use it
  * <li>If no partition is specified but a key is present choose a partition based on a hash of the key
- * <li>If no partition or key is present choose a partition in a round-robin fashion
+ * <li>If no partition or key is present choose a partition in a round-robin fashion, or if
+ * {@link ProducerConfig#PARTITIONER_STICKY_ENABLE_CONFIG} is set, the sticky partition of the topic
+ * </ul>
+ * The sticky partition of a topic only changes when the producer is about to create a new batch for it,
+ * that is when its current batch is full or has been sent, see {@link #onNewBatch(String, Cluster, int)}.
  */
 public class DefaultPartitioner implements Partitioner {
 
     private final AtomicInteger counter = new AtomicInteger(new Random().nextInt());
+    private final ConcurrentMap<String, Integer> stickyPartitions = new ConcurrentHashMap<String, Integer>();
+    private boolean sticky = false;
 
     /**
      * A cheap way to deterministically convert a number to a positive value. When the input is
@@ -53,7 +63,17 @@ public class DefaultPartitioner implements Partitioner {
         return number & 0x7fffffff;
     }
 
-    public void configure(Map<String, ?> configs) {}
+    public void configure(Map<String, ?> configs) {
+        Object stickyConfig = configs.get(ProducerConfig.PARTITIONER_STICKY_ENABLE_CONFIG);
+        this.sticky = stickyConfig != null && Boolean.parseBoolean(stickyConfig.toString());
+    }
+
+    /**
+     * @return Whether records without a partition or key are sent to the sticky partition of their topic
+     */
+    public boolean isSticky() {
+        return sticky;
+    }
 
     /**
      * Compute the partition for the given record.
@@ -68,7 +88,10 @@ public class DefaultPartitioner implements Partitioner {
     public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
         List<PartitionInfo> partitions = cluster.partitionsForTopic(topic);
         int numPartitions = partitions.size();
-        if (keyBytes == null) {
+        if (keyBytes == null && sticky) {
+            Integer stickyPartition = stickyPartitions.get(topic);
+            return stickyPartition != null ? stickyPartition : onNewBatch(topic, cluster, -1);
+        } else if (keyBytes == null) {
             int nextValue = counter.getAndIncrement();
             List<PartitionInfo> availablePartitions = cluster.availablePartitionsForTopic(topic);
             if (availablePartitions.size() > 0) {
@@ -84,6 +107,39 @@ public class DefaultPartitioner implements Partitioner {
         }
     }
 
+    /**
+     * Switch the sticky partition of the topic away from the given partition, since the producer is about to create a
+     * new batch for it. If another thread has already switched it, the partition it switched to is kept.
+     *
+     * @param topic The topic name
+     * @param cluster The current cluster metadata
+     * @param prevPartition The partition that needs a new batch, or -1 if the topic has no sticky partition yet
+     * @return The new sticky partition of the topic
+     */
+    public int onNewBatch(String topic, Cluster cluster, int prevPartition) {
+        Integer current = stickyPartitions.get(topic);
+        if (current != null && current != prevPartition)
+            return current;
+
+        List<PartitionInfo> availablePartitions = cluster.availablePartitionsForTopic(topic);
+        int next;
+        if (availablePartitions.size() > 1) {
+            // pick a random available partition other than the previous one
+            do {
+                next = availablePartitions.get(ThreadLocalRandom.current().nextInt(availablePartitions.size())).partition();
+            } while (next == prevPartition);
+        } else if (availablePartitions.size() == 1) {
+            next = availablePartitions.get(0).partition();
+        } else {
+            // no partitions are available, give a non-available partition
+            next = ThreadLocalRandom.current().nextInt(cluster.partitionsForTopic(topic).size());
+        }
+
+        boolean switched = current == null ? stickyPartitions.putIfAbsent(topic, next) == null
+                                           : stickyPartitions.replace(topic, current, next);
+        return switched ? next : stickyPartitions.get(topic);
+    }
+
     public void close() {}
 
 }
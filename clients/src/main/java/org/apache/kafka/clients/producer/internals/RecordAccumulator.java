@@ -13,8 +13,11 @@
 package org.apache.kafka.clients.producer.internals;
 
 import java.util.Iterator;
+
+import org.apache.kafka.clients.ApiVersions;
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
@@ -35,7 +38,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
@@ -44,6 +46,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -53,6 +56,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p>
  * The accumulator uses a bounded amount of memory and append calls will block when that memory is exhausted, unless
  * this behavior is explicitly disabled.
+ * <p>
+ * When concurrent appends are enabled and records are appended uncompressed, either without compression or with
+ * deferred compression, they are appended to the last batch of their partition without taking the lock of its deque,
+ * see {@link RecordBatch}. The lock is then only taken to add or remove batches.
  */
 public final class RecordAccumulator {
 
@@ -64,12 +71,16 @@ public final class RecordAccumulator {
     private final AtomicInteger appendsInProgress;
     private final int batchSize;
     private final CompressionType compression;
+    private final boolean deferCompression;
+    private final boolean concurrentAppends;
     private final long lingerMs;
+    private final AdaptiveLinger adaptiveLinger;
     private final long retryBackoffMs;
     private final BufferPool free;
     private final Time time;
     private final ConcurrentMap<TopicPartition, Deque<RecordBatch>> batches;
     private final IncompleteRecordBatches incomplete;
+    private final ApiVersions apiVersions;
 
 
     /**
@@ -93,19 +104,117 @@ public final class RecordAccumulator {
                              long retryBackoffMs,
                              Metrics metrics,
                              Time time) {
+        this(batchSize, totalSize, compression, false, lingerMs, retryBackoffMs, metrics, time);
+    }
+
+    /**
+     * Create a new record accumulator
+     *
+     * @param batchSize The size to use when allocating {@link org.apache.kafka.common.record.MemoryRecords} instances
+     * @param totalSize The maximum memory the record accumulator can use.
+     * @param compression The compression codec for the records
+     * @param deferCompression Whether records are appended uncompressed and compressed when their batch is drained,
+     *        which takes the compression out of the appending threads and the partition lock
+     * @param lingerMs An artificial delay time to add before declaring a records instance that isn't full ready for
+     *        sending.
+     * @param retryBackoffMs An artificial delay time to retry the produce request upon receiving an error.
+     * @param metrics The metrics
+     * @param time The time instance to use
+     */
+    public RecordAccumulator(int batchSize,
+                             long totalSize,
+                             CompressionType compression,
+                             boolean deferCompression,
+                             long lingerMs,
+                             long retryBackoffMs,
+                             Metrics metrics,
+                             Time time) {
+        this(batchSize, totalSize, compression, deferCompression, false, false, lingerMs, -1L, retryBackoffMs, metrics, time);
+    }
+
+    /**
+     * Create a new record accumulator
+     *
+     * @param batchSize The size to use when allocating {@link org.apache.kafka.common.record.MemoryRecords} instances
+     * @param totalSize The maximum memory the record accumulator can use.
+     * @param compression The compression codec for the records
+     * @param deferCompression Whether records are appended uncompressed and compressed when their batch is drained,
+     *        which takes the compression out of the appending threads and the partition lock
+     * @param concurrentAppends Whether records that are appended uncompressed are appended to the last batch of their
+     *        partition without taking the lock of its deque
+     * @param directMemory Whether the memory of the batches is allocated outside of the heap
+     * @param lingerMs An artificial delay time to add before declaring a records instance that isn't full ready for
+     *        sending.
+     * @param lingerLatencyBudgetMs The time a record should at most spend lingering and in flight, in which case the
+     *        linger of each partition adapts to its traffic and lingerMs is not used, or -1 to linger for lingerMs
+     * @param retryBackoffMs An artificial delay time to retry the produce request upon receiving an error.
+     * @param metrics The metrics
+     * @param time The time instance to use
+     */
+    public RecordAccumulator(int batchSize,
+                             long totalSize,
+                             CompressionType compression,
+                             boolean deferCompression,
+                             boolean concurrentAppends,
+                             boolean directMemory,
+                             long lingerMs,
+                             long lingerLatencyBudgetMs,
+                             long retryBackoffMs,
+                             Metrics metrics,
+                             Time time) {
+        this(batchSize, totalSize, compression, deferCompression, concurrentAppends, directMemory, lingerMs,
+                lingerLatencyBudgetMs, retryBackoffMs, metrics, time, new ApiVersions());
+    }
+
+    /**
+     * Create a new record accumulator
+     *
+     * @param batchSize The size to use when allocating {@link org.apache.kafka.common.record.MemoryRecords} instances
+     * @param totalSize The maximum memory the record accumulator can use.
+     * @param compression The compression codec for the records
+     * @param deferCompression Whether records are appended uncompressed and compressed when their batch is drained,
+     *        which takes the compression out of the appending threads and the partition lock
+     * @param concurrentAppends Whether records that are appended uncompressed are appended to the last batch of their
+     *        partition without taking the lock of its deque
+     * @param directMemory Whether the memory of the batches is allocated outside of the heap
+     * @param lingerMs An artificial delay time to add before declaring a records instance that isn't full ready for
+     *        sending.
+     * @param lingerLatencyBudgetMs The time a record should at most spend lingering and in flight, in which case the
+     *        linger of each partition adapts to its traffic and lingerMs is not used, or -1 to linger for lingerMs
+     * @param retryBackoffMs An artificial delay time to retry the produce request upon receiving an error.
+     * @param metrics The metrics
+     * @param time The time instance to use
+     * @param apiVersions The api versions of the brokers, which decide the magic value new batches are written with
+     */
+    public RecordAccumulator(int batchSize,
+                             long totalSize,
+                             CompressionType compression,
+                             boolean deferCompression,
+                             boolean concurrentAppends,
+                             boolean directMemory,
+                             long lingerMs,
+                             long lingerLatencyBudgetMs,
+                             long retryBackoffMs,
+                             Metrics metrics,
+                             Time time,
+                             ApiVersions apiVersions) {
         this.drainIndex = 0;
         this.closed = false;
         this.flushesInProgress = new AtomicInteger(0);
         this.appendsInProgress = new AtomicInteger(0);
         this.batchSize = batchSize;
         this.compression = compression;
+        this.deferCompression = deferCompression;
+        this.concurrentAppends = concurrentAppends && (compression == CompressionType.NONE || deferCompression);
         this.lingerMs = lingerMs;
+        this.adaptiveLinger = lingerLatencyBudgetMs < 0 ? null : new AdaptiveLinger(batchSize, lingerLatencyBudgetMs);
         this.retryBackoffMs = retryBackoffMs;
         this.batches = new CopyOnWriteMap<TopicPartition, Deque<RecordBatch>>();
         String metricGrpName = "producer-metrics";
-        this.free = new BufferPool(totalSize, batchSize, metrics, time, metricGrpName);
+        this.free = new BufferPool(totalSize, batchSize, directMemory, metrics, time, metricGrpName);
         this.incomplete = new IncompleteRecordBatches();
         this.time = time;
+        this.apiVersions = apiVersions;
         registerMetrics(metrics, metricGrpName);
     }
 
@@ -152,6 +261,28 @@ public final class RecordAccumulator {
      * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
      */
     public RecordAppendResult append(TopicPartition tp, byte[] key, byte[] value, Callback callback, long maxTimeToBlock) throws InterruptedException {
+        return append(tp, key, value, callback, maxTimeToBlock, false);
+    }
+
+    /**
+     * Add a record to the accumulator, return the append result
+     * <p>
+     * If abortOnNewBatch is set and the record does not fit in the last batch of the partition, no batch is created
+     * and the result is marked as aborted, so that the caller can pick another partition first
+     *
+     * @param tp The topic/partition to which this record is being sent
+     * @param key The key for the record
+     * @param value The value for the record
+     * @param callback The user-supplied callback to execute when the request is complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
+     * @param abortOnNewBatch Whether to return without appending the record rather than create a new batch
+     */
+    public RecordAppendResult append(TopicPartition tp,
+                                     byte[] key,
+                                     byte[] value,
+                                     Callback callback,
+                                     long maxTimeToBlock,
+                                     boolean abortOnNewBatch) throws InterruptedException {
         // We keep track of the number of appending thread to make sure we do not miss batches in
         // abortIncompleteBatches().
         appendsInProgress.incrementAndGet();
@@ -160,45 +291,64 @@ public final class RecordAccumulator {
                 throw new IllegalStateException("Cannot send after the producer is closed.");
             // check if we have an in-progress batch
             Deque<RecordBatch> dq = dequeFor(tp);
-            synchronized (dq) {
-                RecordBatch last = dq.peekLast();
-                if (last != null) {
-                    FutureRecordMetadata future = last.tryAppend(key, value, callback, time.milliseconds());
-                    if (future != null)
-                        return new RecordAppendResult(future, dq.size() > 1 || last.records.isFull(), false);
+            if (concurrentAppends) {
+                RecordAppendResult result = tryAppend(dq, key, value, callback);
+                if (result != null)
+                    return result;
+            } else {
+                synchronized (dq) {
+                    RecordAppendResult result = tryAppend(dq, key, value, callback);
+                    if (result != null)
+                        return result;
                 }
             }
 
-            // we don't have an in-progress record batch try to allocate a new batch
-            int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + Record.recordSize(key, value));
+            if (abortOnNewBatch)
+                return new RecordAppendResult(null, false, false, true);
+
+            // we don't have an in-progress record batch try to allocate a new batch, written with the latest magic
+            // value the brokers accept so that it does not have to be converted when it is sent
+            byte magic = apiVersions.maxUsableProduceMagic();
+            int size = Math.max(this.batchSize, Records.LOG_OVERHEAD + Record.recordSize(magic, key, value));
             log.trace("Allocating a new {} byte message buffer for topic {} partition {}", size, tp.topic(), tp.partition());
             ByteBuffer buffer = free.allocate(size, maxTimeToBlock);
             synchronized (dq) {
                 // Need to check if producer is closed again after grabbing the dequeue lock.
                 if (closed)
                     throw new IllegalStateException("Cannot send after the producer is closed.");
-                RecordBatch last = dq.peekLast();
-                if (last != null) {
-                    FutureRecordMetadata future = last.tryAppend(key, value, callback, time.milliseconds());
-                    if (future != null) {
-                        // Somebody else found us a batch, return the one we waited for! Hopefully this doesn't happen often...
-                        free.deallocate(buffer);
-                        return new RecordAppendResult(future, dq.size() > 1 || last.records.isFull(), false);
-                    }
+                RecordAppendResult result = tryAppend(dq, key, value, callback);
+                if (result != null) {
+                    // Somebody else found us a batch, return the one we waited for! Hopefully this doesn't happen often...
+                    free.deallocate(buffer);
+                    return result;
                 }
-                MemoryRecords records = MemoryRecords.emptyRecords(buffer, compression, this.batchSize);
-                RecordBatch batch = new RecordBatch(tp, records, time.milliseconds());
+                MemoryRecords records = MemoryRecords.emptyRecords(buffer, compression, this.batchSize, deferCompression, magic);
+                RecordBatch batch = new RecordBatch(tp, records, time.milliseconds(), concurrentAppends);
                 FutureRecordMetadata future = Utils.notNull(batch.tryAppend(key, value, callback, time.milliseconds()));
 
                 dq.addLast(batch);
                 incomplete.add(batch);
-                return new RecordAppendResult(future, dq.size() > 1 || batch.records.isFull(), true);
+                return new RecordAppendResult(future, dq.size() > 1 || batch.isFull(), true);
             }
         } finally {
             appendsInProgress.decrementAndGet();
         }
     }
 
+    /**
+     * Try to append the record to the last batch of the deque, which requires the lock of the deque unless records are
+     * appended concurrently
+     */
+    private RecordAppendResult tryAppend(Deque<RecordBatch> dq, byte[] key, byte[] value, Callback callback) {
+        RecordBatch last = dq.peekLast();
+        if (last != null) {
+            FutureRecordMetadata future = last.tryAppend(key, value, callback, time.milliseconds());
+            if (future != null)
+                return new RecordAppendResult(future, dq.size() > 1 || last.isFull(), false);
+        }
+        return null;
+    }
+
     /**
      * Abort the batches that have been sitting in RecordAccumulator for more than the configured requestTimeout
      * due to metadata being unavailable
@@ -257,7 +407,8 @@ public final class RecordAccumulator {
      * following are true :
      * <ol>
      * <li>The record set is full
-     * <li>The record set has sat in the accumulator for at least lingerMs milliseconds
+     * <li>The record set has sat in the accumulator for at least the linger of its partition, which is lingerMs
+     * milliseconds unless the linger adapts to the traffic of the partition
      * <li>The accumulator is out of memory and threads are blocking waiting for data (in this case all partitions are
      * immediately considered ready).
      * <li>The accumulator has been closed
@@ -282,9 +433,9 @@ public final class RecordAccumulator {
                     if (batch != null) {
                         boolean backingOff = batch.attempts > 0 && batch.lastAttemptMs + retryBackoffMs > nowMs;
                         long waitedTimeMs = nowMs - batch.lastAttemptMs;
-                        long timeToWaitMs = backingOff ? retryBackoffMs : lingerMs;
+                        long timeToWaitMs = backingOff ? retryBackoffMs : lingerMs(part);
                         long timeLeftMs = Math.max(timeToWaitMs - waitedTimeMs, 0);
-                        boolean full = deque.size() > 1 || batch.records.isFull();
+                        boolean full = deque.size() > 1 || batch.isFull();
                         boolean expired = waitedTimeMs >= timeToWaitMs;
                         boolean sendable = full || expired || exhausted || closed || flushInProgress();
                         if (sendable && !backingOff) {
@@ -342,27 +493,40 @@ public final class RecordAccumulator {
                 PartitionInfo part = parts.get(drainIndex);
                 Deque<RecordBatch> deque = dequeFor(new TopicPartition(part.topic(), part.partition()));
                 if (deque != null) {
+                    RecordBatch batch = null;
                     synchronized (deque) {
                         RecordBatch first = deque.peekFirst();
                         if (first != null) {
                             boolean backoff = first.attempts > 0 && first.lastAttemptMs + retryBackoffMs > now;
-                            // Only drain the batch if it is not during backoff period.
-                            if (!backoff) {
-                                if (size + first.records.sizeInBytes() > maxSize && !ready.isEmpty()) {
+                            // Only drain the batch if it is not during backoff period, nor while it is held back for
+                            // the concurrent appends that are still writing their records to it
+                            if (!backoff && first.trySeal(now)) {
+                                if (size + first.estimatedSizeInBytes() > maxSize && !ready.isEmpty()) {
                                     // there is a rare case that a single batch size is larger than the request size due
                                     // to compression; in this case we will still eventually send this batch in a single
                                     // request
                                     break;
                                 } else {
-                                    RecordBatch batch = deque.pollFirst();
-                                    batch.records.close();
-                                    size += batch.records.sizeInBytes();
-                                    ready.add(batch);
-                                    batch.drainedMs = now;
+                                    batch = deque.pollFirst();
                                 }
                             }
                         }
                     }
+                    if (batch != null) {
+                        // close the batch outside of the deque lock since it may compress its records
+                        batch.close();
+                        if (batch.appendsFailed()) {
+                            // some records of the batch were not written, so it cannot be sent
+                            batch.done(-1L, new KafkaException("Failed to write the records appended to the batch"));
+                            deallocate(batch);
+                        } else {
+                            size += batch.records.sizeInBytes();
+                            ready.add(batch);
+                            batch.drainedMs = now;
+                            if (adaptiveLinger != null)
+                                adaptiveLinger.recordDrained(batch, now);
+                        }
+                    }
                 }
                 this.drainIndex = (this.drainIndex + 1) % parts.size();
             } while (start != drainIndex);
@@ -371,6 +535,30 @@ public final class RecordAccumulator {
         return batches;
     }
 
+    /**
+     * The time a batch of the given partition lingers for before it is ready unless it is full. This is only called
+     * by the sender thread.
+     */
+    public long lingerMs(TopicPartition tp) {
+        return adaptiveLinger == null ? lingerMs : adaptiveLinger.lingerMs(tp);
+    }
+
+    /**
+     * Record the latency of a produce request, which the linger of the partitions adapts to if it is adaptive. This
+     * is only called by the sender thread.
+     */
+    public void recordRequestLatency(long latencyMs) {
+        if (adaptiveLinger != null)
+            adaptiveLinger.recordRequestLatency(latencyMs);
+    }
+
+    /**
+     * The size of the batches
+     */
+    public int batchSize() {
+        return batchSize;
+    }
+
     /**
      * Get the deque for the given topic-partition, creating it if necessary. Since new topics will only be added rarely
      * we copy-on-write the hashmap
@@ -379,7 +567,7 @@ public final class RecordAccumulator {
         Deque<RecordBatch> d = this.batches.get(tp);
         if (d != null)
             return d;
-        this.batches.putIfAbsent(tp, new ArrayDeque<RecordBatch>());
+        this.batches.putIfAbsent(tp, new ConcurrentLinkedDeque<RecordBatch>());
         return this.batches.get(tp);
     }
 
@@ -388,7 +576,11 @@ public final class RecordAccumulator {
      */
     public void deallocate(RecordBatch batch) {
         incomplete.remove(batch);
-        free.deallocate(batch.records.buffer(), batch.records.initialCapacity());
+        if (batch.appendsFailed())
+            // an append may still write to the buffer, so it is not reused
+            free.deallocate(batch.records.initialCapacity());
+        else
+            free.deallocate(batch.records.buffer(), batch.records.initialCapacity());
     }
     
     /**
@@ -448,7 +640,7 @@ public final class RecordAccumulator {
             Deque<RecordBatch> dq = dequeFor(batch.topicPartition);
             // Close the batch before aborting
             synchronized (dq) {
-                batch.records.close();
+                batch.close();
             }
             batch.done(-1L, new IllegalStateException("Producer is closed forcefully."));
             deallocate(batch);
@@ -469,11 +661,17 @@ public final class RecordAccumulator {
         public final FutureRecordMetadata future;
         public final boolean batchIsFull;
         public final boolean newBatchCreated;
+        public final boolean abortedForNewBatch;
 
         public RecordAppendResult(FutureRecordMetadata future, boolean batchIsFull, boolean newBatchCreated) {
+            this(future, batchIsFull, newBatchCreated, false);
+        }
+
+        public RecordAppendResult(FutureRecordMetadata future, boolean batchIsFull, boolean newBatchCreated, boolean abortedForNewBatch) {
             this.future = future;
             this.batchIsFull = batchIsFull;
             this.newBatchCreated = newBatchCreated;
+            this.abortedForNewBatch = abortedForNewBatch;
         }
     }
 
@@ -13,7 +13,13 @@
 package org.apache.kafka.clients.producer.internals;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.RecordMetadata;
@@ -21,18 +27,39 @@ import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.TimeoutException;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.Records;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A batch of records that is or will be sent.
  * 
- * This class is not thread safe and external synchronization must be used when modifying it
+ * This class is not thread safe and external synchronization must be used when modifying it, except for a batch
+ * created for concurrent appends, whose records can be appended by any number of threads at once until it is closed.
+ * Each of these appends reserves the space of its record in the batch with a CAS and then writes the record to it.
  */
 public final class RecordBatch {
 
     private static final Logger log = LoggerFactory.getLogger(RecordBatch.class);
 
+    // the flag of the reservations of a batch that no longer takes concurrent appends
+    private static final long SEALED = Long.MIN_VALUE;
+
+    // the flag of the written records of a batch that was closed, appends that find it were too late to be sent
+    private static final int CLOSED = -1;
+
+    // how long a sealed batch is held back for the appends that reserved space in it to finish writing
+    private static final long MAX_SEAL_WAIT_MS = 1000L;
+
+    private static final Comparator<Thunk> THUNK_ORDER = new Comparator<Thunk>() {
+        @Override
+        public int compare(Thunk thunk1, Thunk thunk2) {
+            long offset1 = thunk1.future.relativeOffset();
+            long offset2 = thunk2.future.relativeOffset();
+            return offset1 < offset2 ? -1 : (offset1 == offset2 ? 0 : 1);
+        }
+    };
+
     public int recordCount = 0;
     public int maxRecordSize = 0;
     public volatile int attempts = 0;
@@ -42,11 +69,33 @@ public final class RecordBatch {
     public final MemoryRecords records;
     public final TopicPartition topicPartition;
     public final ProduceRequestResult produceFuture;
-    public long lastAppendTime;
+    public volatile long lastAppendTime;
     private final List<Thunk> thunks;
     private boolean retry;
 
+    // for concurrent appends: the records reserved in the upper half and the bytes reserved in the lower half, or the
+    // SEALED flag once the batch no longer takes appends, the reservations and the time they were sealed at, the
+    // records written to their reserved space or the CLOSED flag once the batch is closed, the largest record size and
+    // timestamp, and the thunks, which are moved to the list of thunks once the batch is closed
+    private final boolean concurrentAppends;
+    private final AtomicLong reserved;
+    private long sealedReservations;
+    private long sealedMs;
+    private final AtomicInteger written;
+    private final AtomicInteger maxConcurrentRecordSize;
+    private final AtomicLong maxTimestamp;
+    private final Queue<Thunk> concurrentThunks;
+    private volatile boolean appendsFailed;
+
     public RecordBatch(TopicPartition tp, MemoryRecords records, long now) {
+        this(tp, records, now, false);
+    }
+
+    /**
+     * @param concurrentAppends Whether the records are appended concurrently, which requires records that are appended
+     *        uncompressed to a buffer starting at position 0
+     */
+    public RecordBatch(TopicPartition tp, MemoryRecords records, long now, boolean concurrentAppends) {
         this.createdMs = now;
         this.lastAttemptMs = now;
         this.records = records;
@@ -55,19 +104,38 @@ public final class RecordBatch {
         this.thunks = new ArrayList<Thunk>();
         this.lastAppendTime = createdMs;
         this.retry = false;
+        this.concurrentAppends = concurrentAppends;
+        this.appendsFailed = false;
+        if (concurrentAppends) {
+            this.reserved = new AtomicLong(0L);
+            this.written = new AtomicInteger(0);
+            this.maxConcurrentRecordSize = new AtomicInteger(0);
+            this.maxTimestamp = new AtomicLong(Record.NO_TIMESTAMP);
+            this.concurrentThunks = new ConcurrentLinkedQueue<Thunk>();
+        } else {
+            this.reserved = null;
+            this.written = null;
+            this.maxConcurrentRecordSize = null;
+            this.maxTimestamp = null;
+            this.concurrentThunks = null;
+        }
     }
 
     /**
-     * Append the record to the current record set and return the relative offset within that record set
+     * Append the record to the current record set and return the relative offset within that record set. The record
+     * is stamped with the given time as its create time.
      * 
      * @return The RecordSend corresponding to this record or null if there isn't sufficient room.
      */
     public FutureRecordMetadata tryAppend(byte[] key, byte[] value, Callback callback, long now) {
-        if (!this.records.hasRoomFor(key, value)) {
+        if (concurrentAppends) {
+            return tryAppendConcurrently(key, value, callback, now);
+        } else if (!this.records.hasRoomFor(key, value)) {
             return null;
         } else {
-            this.records.append(0L, key, value);
-            this.maxRecordSize = Math.max(this.maxRecordSize, Record.recordSize(key, value));
+            // the offsets are relative to the batch, the broker rebases them on the offset of the first record
+            this.records.append(this.recordCount, now, key, value);
+            this.maxRecordSize = Math.max(this.maxRecordSize, Record.recordSize(this.records.magic(), key, value));
             this.lastAppendTime = now;
             FutureRecordMetadata future = new FutureRecordMetadata(this.produceFuture, this.recordCount);
             if (callback != null)
@@ -77,6 +145,179 @@ public final class RecordBatch {
         }
     }
 
+    private FutureRecordMetadata tryAppendConcurrently(byte[] key, byte[] value, Callback callback, long now) {
+        int recordSize = Record.recordSize(this.records.magic(), key, value);
+        int size = Records.LOG_OVERHEAD + recordSize;
+        long current;
+        int relativeOffset;
+        int position;
+        do {
+            current = reserved.get();
+            if (current == SEALED)
+                return null;
+            relativeOffset = (int) (current >>> 32);
+            position = (int) current;
+            if (!records.hasRoomFor(position, relativeOffset, size))
+                return null;
+        } while (!reserved.compareAndSet(current, current + (1L << 32) + size));
+
+        FutureRecordMetadata future = null;
+        Thunk thunk = null;
+        boolean counted = false;
+        try {
+            // the offsets are relative to the batch, the broker rebases them on the offset of the first record
+            records.writeAt(position, relativeOffset, now, key, value);
+            updateMax(maxConcurrentRecordSize, recordSize);
+            updateMax(maxTimestamp, now);
+            this.lastAppendTime = now;
+            future = new FutureRecordMetadata(this.produceFuture, relativeOffset);
+            if (callback != null) {
+                thunk = new Thunk(callback, future);
+                concurrentThunks.add(thunk);
+            }
+        } finally {
+            // the reserved space does not hold a valid record, so the batch cannot be sent
+            if (future == null)
+                this.appendsFailed = true;
+            // the batch is only closed once all the reserved records have been written, or it waited too long for them
+            counted = countWritten();
+        }
+        if (counted)
+            return future;
+
+        // the batch was closed without the record, it is failed and so is the record, whose callback is run here
+        // unless the batch took it when it was closed
+        TimeoutException exception = new TimeoutException("The batch of " + topicPartition + " was closed before the record was written to it");
+        if (thunk != null && concurrentThunks.remove(thunk)) {
+            try {
+                callback.onCompletion(null, exception);
+            } catch (Exception e) {
+                log.error("Error executing user-provided callback on message for topic-partition {}:", topicPartition, e);
+            }
+        }
+        ProduceRequestResult failed = new ProduceRequestResult();
+        failed.done(topicPartition, -1L, exception);
+        return new FutureRecordMetadata(failed, relativeOffset);
+    }
+
+    /**
+     * Count a record written to its reserved space, unless the batch has already been closed
+     */
+    private boolean countWritten() {
+        int current;
+        do {
+            current = written.get();
+            if (current == CLOSED)
+                return false;
+        } while (!written.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    /**
+     * Whether no more records fit in the batch
+     */
+    public boolean isFull() {
+        if (!concurrentAppends)
+            return records.isFull();
+        long current = reserved.get();
+        return current == SEALED || records.isFull((int) current);
+    }
+
+    /**
+     * The size of the records of the batch, which for records that are still being appended may be an estimate
+     */
+    public int estimatedSizeInBytes() {
+        if (concurrentAppends && written.get() != CLOSED) {
+            long current = reserved.get();
+            return (int) (current == SEALED ? sealedReservations : current);
+        }
+        return records.sizeInBytes();
+    }
+
+    /**
+     * Whether a concurrent append failed to write the record it reserved space for, or did not finish writing it when
+     * the batch was closed. Such a batch has to be failed rather than sent, and its buffer must not be reused since
+     * an append may still write to it.
+     */
+    public boolean appendsFailed() {
+        return this.appendsFailed;
+    }
+
+    /**
+     * Stop the concurrent appends to the batch and check whether it can be closed without leaving out records that
+     * are still being written to their reserved space, or whether it was held back for them long enough. The sender
+     * thread skips a batch that cannot be closed yet rather than wait for the appends.
+     *
+     * @return Whether the batch can be closed
+     */
+    public boolean trySeal(long now) {
+        if (!concurrentAppends)
+            return true;
+        if (seal())
+            this.sealedMs = now;
+        int count = (int) (sealedReservations >>> 32);
+        if (written.get() >= count)
+            return true;
+        if (now - sealedMs >= MAX_SEAL_WAIT_MS) {
+            log.error("Appends to a batch of {} did not finish writing their records in time, failing the batch", topicPartition);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stop the concurrent appends to the batch, and return whether they were stopped by this call
+     */
+    private boolean seal() {
+        long current = reserved.getAndSet(SEALED);
+        if (current == SEALED)
+            return false;
+        this.sealedReservations = current;
+        return true;
+    }
+
+    /**
+     * Close the batch for appends. Concurrent appends are stopped first, the batch is failed if some of the records
+     * that were reserved in it have not been written yet, and these records are failed when their appends finish.
+     * This is only called by the sender thread.
+     */
+    public void close() {
+        if (concurrentAppends)
+            closeAppends();
+        records.close();
+    }
+
+    private void closeAppends() {
+        if (written.get() == CLOSED)
+            return;
+        seal();
+        int count = (int) (sealedReservations >>> 32);
+        if (written.getAndSet(CLOSED) < count)
+            this.appendsFailed = true;
+        if (!this.appendsFailed)
+            records.appendWritten((int) sealedReservations, count, maxTimestamp.get());
+        this.recordCount = count;
+        this.maxRecordSize = maxConcurrentRecordSize.get();
+        // the callbacks have to run in the order of the offsets, which may not be the order the appends finished in,
+        // the thunks of the records that are still being written are taken as well since the batch is failed
+        Thunk thunk;
+        while ((thunk = concurrentThunks.poll()) != null)
+            thunks.add(thunk);
+        Collections.sort(thunks, THUNK_ORDER);
+    }
+
     /**
      * Complete the request
      * 
@@ -130,9 +371,9 @@ public final class RecordBatch {
      */
     public boolean maybeExpire(int requestTimeout, long now, long lingerMs) {
         boolean expire = false;
-        if ((this.records.isFull() && requestTimeout < (now - this.lastAppendTime)) || requestTimeout < (now - (this.lastAttemptMs + lingerMs))) {
+        if ((isFull() && requestTimeout < (now - this.lastAppendTime)) || requestTimeout < (now - (this.lastAttemptMs + lingerMs))) {
             expire = true;
-            this.records.close();
+            close();
             this.done(-1L, new TimeoutException("Batch Expired"));
         }
 
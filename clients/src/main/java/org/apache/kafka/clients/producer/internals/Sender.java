@@ -20,10 +20,12 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.kafka.clients.ApiVersions;
 import org.apache.kafka.clients.ClientRequest;
 import org.apache.kafka.clients.ClientResponse;
 import org.apache.kafka.clients.KafkaClient;
 import org.apache.kafka.clients.Metadata;
+import org.apache.kafka.clients.NodeApiVersions;
 import org.apache.kafka.clients.RequestCompletionHandler;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.Node;
@@ -41,6 +43,7 @@ import org.apache.kafka.common.metrics.stats.Max;
 import org.apache.kafka.common.metrics.stats.Rate;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.protocol.ProtoUtils;
 import org.apache.kafka.common.requests.ProduceRequest;
 import org.apache.kafka.common.requests.ProduceResponse;
 import org.apache.kafka.common.requests.RequestSend;
@@ -93,6 +96,9 @@ public class Sender implements Runnable {
     /* the max time to wait for the server to respond to the request*/
     private final int requestTimeout;
 
+    /* the api versions of the nodes, which decide the version of the produce requests sent to them */
+    private final ApiVersions apiVersions;
+
     public Sender(KafkaClient client,
                   Metadata metadata,
                   RecordAccumulator accumulator,
@@ -103,6 +109,21 @@ public class Sender implements Runnable {
                   Time time,
                   String clientId,
                   int requestTimeout) {
+        this(client, metadata, accumulator, maxRequestSize, acks, retries, metrics, time, clientId, requestTimeout,
+             new ApiVersions());
+    }
+
+    public Sender(KafkaClient client,
+                  Metadata metadata,
+                  RecordAccumulator accumulator,
+                  int maxRequestSize,
+                  short acks,
+                  int retries,
+                  Metrics metrics,
+                  Time time,
+                  String clientId,
+                  int requestTimeout,
+                  ApiVersions apiVersions) {
         this.client = client;
         this.accumulator = accumulator;
         this.metadata = metadata;
@@ -114,6 +135,7 @@ public class Sender implements Runnable {
         this.clientId = clientId;
         this.sensors = new SenderMetrics(metrics);
         this.requestTimeout = requestTimeout;
+        this.apiVersions = apiVersions;
     }
 
     /**
@@ -260,6 +282,7 @@ public class Sender implements Runnable {
                     completeBatch(batch, error, partResp.baseOffset, correlationId, now);
                 }
                 this.sensors.recordLatency(response.request().request().destination(), response.requestLatencyMs());
+                this.accumulator.recordRequestLatency(response.requestLatencyMs());
                 this.sensors.recordThrottleTime(response.request().request().destination(),
                                                 produceResponse.getThrottleTime());
             } else {
@@ -323,16 +346,22 @@ public class Sender implements Runnable {
      * Create a produce request from the given record batches
      */
     private ClientRequest produceRequest(long now, int destination, short acks, int timeout, List<RecordBatch> batches) {
+        // send the latest version the node supports, with the batches it does not accept the magic value of converted
+        short version = produceVersion(Integer.toString(destination));
+        byte maxMagic = ApiVersions.maxProduceMagic(version);
         Map<TopicPartition, ByteBuffer> produceRecordsByPartition = new HashMap<TopicPartition, ByteBuffer>(batches.size());
         final Map<TopicPartition, RecordBatch> recordsByPartition = new HashMap<TopicPartition, RecordBatch>(batches.size());
         for (RecordBatch batch : batches) {
             TopicPartition tp = batch.topicPartition;
-            produceRecordsByPartition.put(tp, batch.records.buffer());
+            if (batch.records.magic() > maxMagic)
+                produceRecordsByPartition.put(tp, batch.records.toMagic(maxMagic).buffer());
+            else
+                produceRecordsByPartition.put(tp, batch.records.buffer());
             recordsByPartition.put(tp, batch);
         }
         ProduceRequest request = new ProduceRequest(acks, timeout, produceRecordsByPartition);
         RequestSend send = new RequestSend(Integer.toString(destination),
-                                           this.client.nextRequestHeader(ApiKeys.PRODUCE),
+                                           this.client.nextRequestHeader(ApiKeys.PRODUCE, version),
                                            request.toStruct());
         RequestCompletionHandler callback = new RequestCompletionHandler() {
             public void onComplete(ClientResponse response) {
@@ -342,6 +371,16 @@ public class Sender implements Runnable {
         return new ClientRequest(now, acks != 0, send, callback);
     }
 
+    /**
+     * The version of the produce requests to send to the given node, the latest one if its api versions are not known
+     */
+    private short produceVersion(String node) {
+        NodeApiVersions nodeApiVersions = this.apiVersions.get(node);
+        if (nodeApiVersions == null)
+            return ProtoUtils.latestVersion(ApiKeys.PRODUCE.id);
+        return nodeApiVersions.usableVersion(ApiKeys.PRODUCE);
+    }
+
     /**
      * Wake up the selector associated with this send thread
      */
@@ -464,6 +503,18 @@ public class Sender implements Runnable {
                 Sensor topicErrorSensor = this.metrics.sensor(topicErrorName);
                 m = this.metrics.metricName("record-error-rate", metricGrpName, metricTags);
                 topicErrorSensor.add(m, new Rate());
+
+                String topicLingerName = "topic." + topic + ".linger";
+                Sensor topicLinger = this.metrics.sensor(topicLingerName);
+                m = this.metrics.metricName("linger-ms-avg", metricGrpName, "The average linger in ms of the partitions of the topic when their batches are sent.", metricTags);
+                topicLinger.add(m, new Avg());
+                m = this.metrics.metricName("linger-ms-max", metricGrpName, "The maximum linger in ms of the partitions of the topic when their batches are sent.", metricTags);
+                topicLinger.add(m, new Max());
+
+                String topicBatchFillName = "topic." + topic + ".batch-fill";
+                Sensor topicBatchFill = this.metrics.sensor(topicBatchFillName);
+                m = this.metrics.metricName("batch-fill-ratio-avg", metricGrpName, "The average fraction of the batch size filled by the batches of the topic.", metricTags);
+                topicBatchFill.add(m, new Avg());
             }
         }
 
@@ -491,6 +542,15 @@ public class Sender implements Runnable {
                     Sensor topicCompressionRate = Utils.notNull(this.metrics.getSensor(topicCompressionRateName));
                     topicCompressionRate.record(batch.records.compressionRate());
 
+                    // per-topic linger and batch fill ratio
+                    String topicLingerName = "topic." + topic + ".linger";
+                    Sensor topicLinger = Utils.notNull(this.metrics.getSensor(topicLingerName));
+                    topicLinger.record(accumulator.lingerMs(batch.topicPartition), now);
+                    String topicBatchFillName = "topic." + topic + ".batch-fill";
+                    Sensor topicBatchFill = Utils.notNull(this.metrics.getSensor(topicBatchFillName));
+                    if (accumulator.batchSize() > 0)
+                        topicBatchFill.record((double) batch.records.sizeInBytes() / accumulator.batchSize(), now);
+
                     // global metrics
                     this.batchSizeSensor.record(batch.records.sizeInBytes(), now);
                     this.queueTimeSensor.record(batch.drainedMs - batch.createdMs, now);
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.errors;
+
+/**
+ * The epoch of an incremental fetch is not the next epoch of the fetch session, so a full fetch is needed
+ */
+public class InvalidFetchSessionEpochException extends RetriableException {
+
+    private static final long serialVersionUID = 1L;
+
+    public InvalidFetchSessionEpochException() {
+        super();
+    }
+
+    public InvalidFetchSessionEpochException(String message) {
+        super(message);
+    }
+
+    public InvalidFetchSessionEpochException(Throwable cause) {
+        super(cause);
+    }
+
+    public InvalidFetchSessionEpochException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of memory for buffers that does not block when it is exhausted. Every buffer obtained from
+ * {@link #tryAllocate(int)} must be released to the pool exactly once.
+ */
+public interface MemoryPool {
+
+    /**
+     * A pool without a limit that allocates heap buffers and does not track them
+     */
+    MemoryPool NONE = new MemoryPool() {
+        @Override
+        public ByteBuffer tryAllocate(int sizeBytes) {
+            return ByteBuffer.allocate(sizeBytes);
+        }
+
+        @Override
+        public void release(ByteBuffer previouslyAllocated) {
+        }
+
+        @Override
+        public long size() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public long availableMemory() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public boolean isOutOfMemory() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "NONE";
+        }
+    };
+
+    /**
+     * Allocate a buffer of the given size if the pool has memory for it
+     *
+     * @param sizeBytes The size of the buffer
+     * @return The buffer, or null if the pool is out of memory
+     * @throws IllegalArgumentException If the size is negative or larger than the pool allows for a single buffer
+     */
+    ByteBuffer tryAllocate(int sizeBytes);
+
+    /**
+     * Return a buffer obtained from {@link #tryAllocate(int)} to the pool
+     *
+     * @param previouslyAllocated The buffer, whose capacity must not have changed
+     */
+    void release(ByteBuffer previouslyAllocated);
+
+    /**
+     * The total memory of the pool in bytes
+     */
+    long size();
+
+    /**
+     * The memory of the pool that is not allocated in bytes, which may be negative if the pool allows buffers to be
+     * allocated beyond its size
+     */
+    long availableMemory();
+
+    /**
+     * Returns true if the pool cannot allocate any buffer until memory is released, false otherwise
+     */
+    boolean isOutOfMemory();
+}
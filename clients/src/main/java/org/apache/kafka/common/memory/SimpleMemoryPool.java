@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.utils.Time;
+
+/**
+ * A memory pool that allocates heap buffers and tracks the bytes of the buffers that have not been released against
+ * its size. The pool allocates a buffer as long as some memory is available, even if the buffer is larger than the
+ * memory that is available, so that a large buffer is not starved by small ones. The pool may thus be overcommitted by
+ * up to the maximum size of a single buffer. The pool is thread safe.
+ */
+public class SimpleMemoryPool implements MemoryPool {
+
+    private final long sizeBytes;
+    private final int maxSingleAllocationBytes;
+    private final AtomicLong availableMemory;
+    private final Time time;
+    private final Sensor depletedTimeSensor;
+    // the time in nanoseconds at which the pool last ran out of memory, or -1 if it has memory
+    private final AtomicLong depletedSinceNanos = new AtomicLong(-1L);
+
+    /**
+     * Create a new pool
+     *
+     * @param sizeBytes The memory of the pool
+     * @param maxSingleAllocationBytes The maximum size of a single buffer
+     * @param time The time source for the depleted time sensor
+     * @param depletedTimeSensor A sensor that records the nanoseconds during which the pool is out of memory, or null
+     */
+    public SimpleMemoryPool(long sizeBytes, int maxSingleAllocationBytes, Time time, Sensor depletedTimeSensor) {
+        if (sizeBytes <= 0 || maxSingleAllocationBytes <= 0 || maxSingleAllocationBytes > sizeBytes)
+            throw new IllegalArgumentException("Invalid memory pool of " + sizeBytes + " bytes with buffers of at most "
+                + maxSingleAllocationBytes + " bytes");
+        this.sizeBytes = sizeBytes;
+        this.maxSingleAllocationBytes = maxSingleAllocationBytes;
+        this.availableMemory = new AtomicLong(sizeBytes);
+        this.time = time;
+        this.depletedTimeSensor = depletedTimeSensor;
+    }
+
+    @Override
+    public ByteBuffer tryAllocate(int sizeBytes) {
+        if (sizeBytes < 0 || sizeBytes > maxSingleAllocationBytes)
+            throw new IllegalArgumentException("Cannot allocate a buffer of " + sizeBytes + " bytes from a pool with buffers of at most "
+                + maxSingleAllocationBytes + " bytes");
+        long available;
+        do {
+            available = availableMemory.get();
+            if (available <= 0) {
+                depletedSinceNanos.compareAndSet(-1L, time.nanoseconds());
+                return null;
+            }
+        } while (!availableMemory.compareAndSet(available, available - sizeBytes));
+        return ByteBuffer.allocate(sizeBytes);
+    }
+
+    @Override
+    public void release(ByteBuffer previouslyAllocated) {
+        if (previouslyAllocated == null)
+            throw new IllegalArgumentException("Cannot release a null buffer");
+        if (availableMemory.addAndGet(previouslyAllocated.capacity()) > 0) {
+            long depletedSince = depletedSinceNanos.get();
+            if (depletedSince >= 0 && depletedSinceNanos.compareAndSet(depletedSince, -1L) && depletedTimeSensor != null)
+                depletedTimeSensor.record(time.nanoseconds() - depletedSince);
+        }
+    }
+
+    @Override
+    public long size() {
+        return sizeBytes;
+    }
+
+    @Override
+    public long availableMemory() {
+        return availableMemory.get();
+    }
+
+    @Override
+    public boolean isOutOfMemory() {
+        return availableMemory.get() <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SimpleMemoryPool(size=" + sizeBytes + ", available=" + availableMemory.get() + ")";
+    }
+}
@@ -16,6 +16,7 @@ import java.util.Map;
 import java.nio.channels.SelectionKey;
 
 import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.memory.MemoryPool;
 
 /**
  * A ChannelBuilder interface to build Channel based on configs
@@ -33,9 +34,10 @@ public interface ChannelBuilder {
      * @param  id  channel id
      * @param  key SelectionKey
      * @param  maxReceiveSize
+     * @param  memoryPool memory pool from which the channel allocates the buffers of its receives
      * @return KafkaChannel
      */
-    KafkaChannel buildChannel(String id, SelectionKey key, int maxReceiveSize) throws KafkaException;
+    KafkaChannel buildChannel(String id, SelectionKey key, int maxReceiveSize, MemoryPool memoryPool) throws KafkaException;
 
 
     /**
@@ -26,22 +26,37 @@ import java.nio.channels.SelectionKey;
 
 import java.security.Principal;
 
+import org.apache.kafka.common.memory.MemoryPool;
+
 public class KafkaChannel {
     private final String id;
     private final TransportLayer transportLayer;
     private final Authenticator authenticator;
     private final int maxReceiveSize;
+    private final MemoryPool memoryPool;
     private NetworkReceive receive;
     private Send send;
+    // reads may be stopped by mute() and for lack of memory in the pool independently
+    private boolean muted = false;
+    private boolean mutedForMemory = false;
 
     public KafkaChannel(String id, TransportLayer transportLayer, Authenticator authenticator, int maxReceiveSize) throws IOException {
+        this(id, transportLayer, authenticator, maxReceiveSize, MemoryPool.NONE);
+    }
+
+    public KafkaChannel(String id, TransportLayer transportLayer, Authenticator authenticator, int maxReceiveSize, MemoryPool memoryPool) throws IOException {
         this.id = id;
         this.transportLayer = transportLayer;
         this.authenticator = authenticator;
         this.maxReceiveSize = maxReceiveSize;
+        this.memoryPool = memoryPool;
     }
 
     public void close() throws IOException {
+        if (receive != null) {
+            receive.release();
+            receive = null;
+        }
         transportLayer.close();
         authenticator.close();
     }
@@ -81,21 +96,62 @@ public class KafkaChannel {
     }
 
     public void mute() {
+        muted = true;
         transportLayer.removeInterestOps(SelectionKey.OP_READ);
     }
 
     public void unmute() {
-        transportLayer.addInterestOps(SelectionKey.OP_READ);
+        muted = false;
+        if (!mutedForMemory)
+            transportLayer.addInterestOps(SelectionKey.OP_READ);
     }
 
+    /**
+     * Returns true if reads have been stopped by {@link #mute()}, whether or not they are also stopped for lack of memory
+     */
     public boolean isMute() {
-        return transportLayer.isMute();
+        return muted;
+    }
+
+    /**
+     * Stop reading from this channel until {@link #unmuteForMemory()} is called
+     */
+    void muteForMemory() {
+        if (!mutedForMemory) {
+            mutedForMemory = true;
+            transportLayer.removeInterestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Resume reading from this channel if it has been muted for lack of memory and is not muted otherwise
+     */
+    void unmuteForMemory() {
+        if (mutedForMemory) {
+            mutedForMemory = false;
+            if (!muted)
+                transportLayer.addInterestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Returns true if the receive in progress is waiting for the memory pool to have a buffer for it
+     */
+    public boolean isWaitingForMemory() {
+        return receive != null && receive.isWaitingForMemory();
     }
 
     public boolean ready() {
         return transportLayer.ready() && authenticator.complete();
     }
 
+    /**
+     * Returns true if the bytes sent and received on this channel are encrypted, false otherwise
+     */
+    public boolean isEncrypted() {
+        return transportLayer instanceof SslTransportLayer;
+    }
+
     public boolean hasSend() {
         return send != null;
     }
@@ -128,7 +184,7 @@ public class KafkaChannel {
         NetworkReceive result = null;
 
         if (receive == null) {
-            receive = new NetworkReceive(maxReceiveSize, id);
+            receive = new NetworkReceive(maxReceiveSize, id, memoryPool);
         }
 
         receive(receive);
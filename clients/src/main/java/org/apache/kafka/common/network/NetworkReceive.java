@@ -18,6 +18,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 
+import org.apache.kafka.common.memory.MemoryPool;
+
 /**
  * A size delimited Receive that consists of a 4 byte network-ordered size N followed by N bytes of content
  */
@@ -29,6 +31,7 @@ public class NetworkReceive implements Receive {
     private final String source;
     private final ByteBuffer size;
     private final int maxSize;
+    private final MemoryPool memoryPool;
     private ByteBuffer buffer;
 
 
@@ -37,20 +40,23 @@ public class NetworkReceive implements Receive {
         this.buffer = buffer;
         this.size = null;
         this.maxSize = UNLIMITED;
+        this.memoryPool = MemoryPool.NONE;
     }
 
     public NetworkReceive(String source) {
-        this.source = source;
-        this.size = ByteBuffer.allocate(4);
-        this.buffer = null;
-        this.maxSize = UNLIMITED;
+        this(UNLIMITED, source);
     }
 
     public NetworkReceive(int maxSize, String source) {
+        this(maxSize, source, MemoryPool.NONE);
+    }
+
+    public NetworkReceive(int maxSize, String source, MemoryPool memoryPool) {
         this.source = source;
         this.size = ByteBuffer.allocate(4);
         this.buffer = null;
         this.maxSize = maxSize;
+        this.memoryPool = memoryPool;
     }
 
     public NetworkReceive() {
@@ -64,7 +70,24 @@ public class NetworkReceive implements Receive {
 
     @Override
     public boolean complete() {
-        return !size.hasRemaining() && !buffer.hasRemaining();
+        return !size.hasRemaining() && buffer != null && !buffer.hasRemaining();
+    }
+
+    /**
+     * Returns true if the size of the receive has been read but the memory pool has not had a buffer for it yet
+     */
+    public boolean isWaitingForMemory() {
+        return size != null && !size.hasRemaining() && buffer == null;
+    }
+
+    /**
+     * Return the buffer of this receive to its memory pool, if it has one
+     */
+    public void release() {
+        if (buffer != null) {
+            memoryPool.release(buffer);
+            buffer = null;
+        }
     }
 
     public long readFrom(ScatteringByteChannel channel) throws IOException {
@@ -89,10 +112,13 @@ public class NetworkReceive implements Receive {
                     throw new InvalidReceiveException("Invalid receive (size = " + receiveSize + ")");
                 if (maxSize != UNLIMITED && receiveSize > maxSize)
                     throw new InvalidReceiveException("Invalid receive (size = " + receiveSize + " larger than " + maxSize + ")");
-
-                this.buffer = ByteBuffer.allocate(receiveSize);
             }
         }
+        // the payload is not read from the channel until the pool has memory for it
+        if (buffer == null && !size.hasRemaining()) {
+            size.rewind();
+            this.buffer = memoryPool.tryAllocate(size.getInt());
+        }
         if (buffer != null) {
             int bytesRead = channel.read(buffer);
             if (bytesRead < 0)
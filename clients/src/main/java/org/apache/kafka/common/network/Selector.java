@@ -32,6 +32,7 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.metrics.Measurable;
 import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.MetricName;
@@ -96,6 +97,9 @@ public class Selector implements Selectable {
     private final long connectionsMaxIdleNanos;
     private final int maxReceiveSize;
     private final boolean metricsPerConnection;
+    private final MemoryPool memoryPool;
+    // true if reads have been stopped because the memory pool had no buffer for a receive
+    private boolean outOfMemory = false;
     private long currentTimeNanos;
     private long nextIdleCloseCheckTime;
 
@@ -104,6 +108,14 @@ public class Selector implements Selectable {
      * Create a new nioSelector
      */
     public Selector(int maxReceiveSize, long connectionMaxIdleMs, Metrics metrics, Time time, String metricGrpPrefix, Map<String, String> metricTags, boolean metricsPerConnection, ChannelBuilder channelBuilder) {
+        this(maxReceiveSize, connectionMaxIdleMs, metrics, time, metricGrpPrefix, metricTags, metricsPerConnection, channelBuilder, MemoryPool.NONE);
+    }
+
+    /**
+     * Create a new nioSelector that allocates the buffers of its receives from the given memory pool. The buffers of
+     * completed receives must be released with {@link NetworkReceive#release()} once they are no longer used.
+     */
+    public Selector(int maxReceiveSize, long connectionMaxIdleMs, Metrics metrics, Time time, String metricGrpPrefix, Map<String, String> metricTags, boolean metricsPerConnection, ChannelBuilder channelBuilder, MemoryPool memoryPool) {
         try {
             this.nioSelector = java.nio.channels.Selector.open();
         } catch (IOException e) {
@@ -128,6 +140,7 @@ public class Selector implements Selectable {
         currentTimeNanos = new SystemTime().nanoseconds();
         nextIdleCloseCheckTime = currentTimeNanos + connectionsMaxIdleNanos;
         this.metricsPerConnection = metricsPerConnection;
+        this.memoryPool = memoryPool;
     }
 
     public Selector(long connectionMaxIdleMS, Metrics metrics, Time time, String metricGrpPrefix, ChannelBuilder channelBuilder) {
@@ -171,7 +184,7 @@ public class Selector implements Selectable {
             throw e;
         }
         SelectionKey key = socketChannel.register(nioSelector, SelectionKey.OP_CONNECT);
-        KafkaChannel channel = channelBuilder.buildChannel(id, key, maxReceiveSize);
+        KafkaChannel channel = channelBuilder.buildChannel(id, key, maxReceiveSize, memoryPool);
         key.attach(channel);
         this.channels.put(id, channel);
     }
@@ -183,7 +196,7 @@ public class Selector implements Selectable {
      */
     public void register(String id, SocketChannel socketChannel) throws ClosedChannelException {
         SelectionKey key = socketChannel.register(nioSelector, SelectionKey.OP_READ);
-        KafkaChannel channel = channelBuilder.buildChannel(id, key, maxReceiveSize);
+        KafkaChannel channel = channelBuilder.buildChannel(id, key, maxReceiveSize, memoryPool);
         key.attach(channel);
         this.channels.put(id, channel);
     }
@@ -259,6 +272,8 @@ public class Selector implements Selectable {
         if (timeout < 0)
             throw new IllegalArgumentException("timeout should be >= 0");
         clear();
+        if (outOfMemory && !memoryPool.isOutOfMemory())
+            resumeReadsAfterOutOfMemory();
         if (hasStagedReceives())
             timeout = 0;
         /* check ready keys */
@@ -293,11 +308,8 @@ public class Selector implements Selectable {
                         channel.prepare();
 
                     /* if channel is ready read from any connections that have readable data */
-                    if (channel.ready() && key.isReadable() && !hasStagedReceive(channel)) {
-                        NetworkReceive networkReceive;
-                        while ((networkReceive = channel.read()) != null)
-                            addToStagedReceives(channel, networkReceive);
-                    }
+                    if (channel.ready() && key.isReadable() && !hasStagedReceive(channel))
+                        attemptRead(channel);
 
                     /* if channel is ready write to any sockets that have space in their buffer and for which we have data */
                     if (channel.ready() && key.isWritable()) {
@@ -305,6 +317,8 @@ public class Selector implements Selectable {
                         if (send != null) {
                             this.completedSends.add(send);
                             this.sensors.recordBytesSent(channel.id(), send.size());
+                            if (channel.isEncrypted())
+                                this.sensors.bytesEncrypted.record(send.size());
                         }
                     }
 
@@ -407,6 +421,64 @@ public class Selector implements Selectable {
         }
     }
 
+    /**
+     * Read and stage as many receives as the channel has, stopping the reads from all channels if the memory pool has
+     * no buffer for the next one
+     */
+    private void attemptRead(KafkaChannel channel) throws IOException {
+        NetworkReceive networkReceive;
+        while ((networkReceive = channel.read()) != null)
+            addToStagedReceives(channel, networkReceive);
+        if (channel.isWaitingForMemory()) {
+            if (!outOfMemory) {
+                log.trace("Memory pool {} is out of memory, stopping reads", memoryPool);
+                outOfMemory = true;
+                this.sensors.memoryPoolDepleted.record();
+                for (KafkaChannel c : channels.values()) {
+                    if (c.ready())
+                        c.muteForMemory();
+                }
+            } else {
+                // the channel became ready after the reads were stopped
+                channel.muteForMemory();
+            }
+        }
+    }
+
+    /**
+     * Resume the reads stopped for lack of memory, first reading the channels that are waiting for a buffer since they
+     * may have buffered bytes that the nioSelector will not report as readable
+     */
+    private void resumeReadsAfterOutOfMemory() {
+        log.trace("Memory pool {} has memory again, resuming reads", memoryPool);
+        outOfMemory = false;
+        for (KafkaChannel channel : new ArrayList<>(channels.values())) {
+            try {
+                channel.unmuteForMemory();
+            } catch (CancelledKeyException e) {
+                close(channel);
+                this.disconnected.add(channel.id());
+            }
+        }
+        for (KafkaChannel channel : new ArrayList<>(channels.values())) {
+            // stop if the reads ran out of memory again
+            if (outOfMemory)
+                break;
+            try {
+                if (channel.isWaitingForMemory() && !hasStagedReceive(channel))
+                    attemptRead(channel);
+            } catch (Exception e) {
+                String desc = channel.socketDescription();
+                if (e instanceof IOException)
+                    log.debug("Connection with {} disconnected", desc, e);
+                else
+                    log.warn("Unexpected error from {}; closing connection", desc, e);
+                close(channel);
+                this.disconnected.add(channel.id());
+            }
+        }
+    }
+
     /**
      * Clear the results from the prior poll
      */
@@ -455,7 +527,11 @@ public class Selector implements Selectable {
         } catch (IOException e) {
             log.error("Exception closing connection to node {}:", channel.id(), e);
         }
-        this.stagedReceives.remove(channel);
+        Deque<NetworkReceive> deque = this.stagedReceives.remove(channel);
+        if (deque != null) {
+            for (NetworkReceive receive : deque)
+                receive.release();
+        }
         this.channels.remove(channel.id());
         this.lruConnections.remove(channel.id());
         this.sensors.connectionClosed.record();
@@ -561,6 +637,8 @@ public class Selector implements Selectable {
         public final Sensor bytesTransferred;
         public final Sensor bytesSent;
         public final Sensor bytesReceived;
+        public final Sensor bytesEncrypted;
+        public final Sensor memoryPoolDepleted;
         public final Sensor selectTime;
         public final Sensor ioTime;
 
@@ -607,6 +685,14 @@ public class Selector implements Selectable {
             metricName = metrics.metricName("response-rate", metricGrpName, "Responses received sent per second.", metricTags);
             this.bytesReceived.add(metricName, new Rate(new Count()));
 
+            this.bytesEncrypted = sensor("bytes-encrypted:" + tagsSuffix.toString());
+            metricName = metrics.metricName("encrypted-byte-rate", metricGrpName, "The average number of bytes encrypted per second for SSL connections.", metricTags);
+            this.bytesEncrypted.add(metricName, new Rate());
+
+            this.memoryPoolDepleted = sensor("memory-pool-depleted:" + tagsSuffix.toString());
+            metricName = metrics.metricName("memory-pool-depleted-rate", metricGrpName, "The number of times per second that reads were stopped because the memory pool was out of memory.", metricTags);
+            this.memoryPoolDepleted.add(metricName, new Rate(new Count()));
+
             this.selectTime = sensor("select-time:" + tagsSuffix.toString());
             metricName = metrics.metricName("select-rate", metricGrpName, "Number of times the I/O layer checked for new I/O to perform per second", metricTags);
             this.selectTime.add(metricName, new Rate(new Count()));
@@ -45,6 +45,14 @@ import org.slf4j.LoggerFactory;
  */
 public class SslTransportLayer implements TransportLayer {
     private static final Logger log = LoggerFactory.getLogger(SslTransportLayer.class);
+    // the size of the buffer that file regions are read into by transferFrom
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> TRANSFER_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+        }
+    };
     private final String channelId;
     private final SSLEngine sslEngine;
     private final SelectionKey key;
@@ -731,9 +739,52 @@ public class SslTransportLayer implements TransportLayer {
         return key.isValid() && (key.interestOps() & SelectionKey.OP_READ) == 0;
     }
 
+    /**
+     * Transfers bytes of a file to this channel. The bytes are read into a direct buffer of at least
+     * {@link #TRANSFER_BUFFER_SIZE} bytes that is reused by all the channels of the calling thread and are then wrapped
+     * into TLS records of the maximum size, rather than passing through the small heap buffers that
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} uses for channels that are not
+     * file or socket channels. Bytes that are read from the file but cannot be written are read again by the next call.
+     *
+     * @param fileChannel The file to transfer bytes from
+     * @param position The position in the file of the first byte to transfer
+     * @param count The maximum number of bytes to transfer
+     * @return The number of bytes consumed by SSLEngine.wrap, possibly zero
+     * @throws IOException If some other I/O error occurs
+     */
     @Override
     public long transferFrom(FileChannel fileChannel, long position, long count) throws IOException {
-        return fileChannel.transferTo(position, count, this);
+        if (closing) throw new IllegalStateException("Channel is in closing state");
+        if (!handshakeComplete || !flush(netWriteBuffer))
+            return 0;
+
+        ByteBuffer fileBuffer = transferBuffer(applicationBufferSize());
+        long transferred = 0;
+        while (transferred < count) {
+            fileBuffer.clear();
+            fileBuffer.limit((int) Math.min(fileBuffer.capacity(), count - transferred));
+            int read = fileChannel.read(fileBuffer, position + transferred);
+            if (read <= 0)
+                break;
+            fileBuffer.flip();
+            int written;
+            do {
+                written = write(fileBuffer);
+                transferred += written;
+            } while (written > 0 && fileBuffer.hasRemaining());
+            if (fileBuffer.hasRemaining())
+                break;
+        }
+        return transferred;
+    }
+
+    private static ByteBuffer transferBuffer(int minSize) {
+        ByteBuffer buffer = TRANSFER_BUFFER.get();
+        if (buffer.capacity() < minSize) {
+            buffer = ByteBuffer.allocateDirect(minSize);
+            TRANSFER_BUFFER.set(buffer);
+        }
+        return buffer;
     }
 
 }
@@ -51,7 +51,8 @@ public class ByteBufferOutputStream extends OutputStream {
     private void expandBuffer(int size) {
         int expandSize = Math.max((int) (buffer.capacity() * REALLOCATION_FACTOR), size);
         ByteBuffer temp = ByteBuffer.allocate(expandSize);
-        temp.put(buffer.array(), buffer.arrayOffset(), buffer.position());
+        buffer.flip();
+        temp.put(buffer);
         buffer = temp;
     }
 }
@@ -33,7 +33,7 @@ public class Compressor {
 
     static private final float COMPRESSION_RATE_DAMPING_FACTOR = 0.9f;
     static private final float COMPRESSION_RATE_ESTIMATION_FACTOR = 1.05f;
-    static private final int COMPRESSION_DEFAULT_BUFFER_SIZE = 1024;
+    static final int COMPRESSION_DEFAULT_BUFFER_SIZE = 1024;
 
     private static final float[] TYPE_TO_RATE;
 
@@ -82,24 +82,36 @@ public class Compressor {
     });
 
     private final CompressionType type;
+    private final byte magic;
     private final DataOutputStream appendStream;
     private final ByteBufferOutputStream bufferStream;
     private final int initPos;
 
     public long writtenUncompressed;
     public long numRecords;
+    public long maxTimestamp;
 
     public Compressor(ByteBuffer buffer, CompressionType type, int blockSize) {
+        this(buffer, type, blockSize, Record.CURRENT_MAGIC_VALUE);
+    }
+
+    /**
+     * Create a compressor that writes records, and the shallow record wrapping them if they are compressed, with the
+     * given magic value
+     */
+    public Compressor(ByteBuffer buffer, CompressionType type, int blockSize, byte magic) {
         this.type = type;
+        this.magic = magic;
         this.initPos = buffer.position();
 
         this.numRecords = 0;
         this.writtenUncompressed = 0;
+        this.maxTimestamp = Record.NO_TIMESTAMP;
 
         if (type != CompressionType.NONE) {
             // for compressed records, leave space for the header and the shallow message metadata
             // and move the starting position to the value payload offset
-            buffer.position(initPos + Records.LOG_OVERHEAD + Record.RECORD_OVERHEAD);
+            buffer.position(initPos + Records.LOG_OVERHEAD + Record.recordOverhead(magic));
         }
 
         // create the stream
@@ -115,6 +127,10 @@ public class Compressor {
         return bufferStream.buffer();
     }
 
+    public byte magic() {
+        return magic;
+    }
+
     public double compressionRate() {
         ByteBuffer buffer = bufferStream.buffer();
         if (this.writtenUncompressed == 0)
@@ -137,11 +153,11 @@ public class Compressor {
             buffer.position(initPos);
             buffer.putLong(numRecords - 1);
             buffer.putInt(pos - initPos - Records.LOG_OVERHEAD);
-            // write the shallow message (the crc and value size are not correct yet)
-            Record.write(buffer, null, null, type, 0, -1);
+            // write the shallow message with the largest timestamp of the records (the crc and value size are not correct yet)
+            Record.write(buffer, magic, maxTimestamp, null, null, type, 0, -1);
             // compute the fill the value size
-            int valueSize = pos - initPos - Records.LOG_OVERHEAD - Record.RECORD_OVERHEAD;
-            buffer.putInt(initPos + Records.LOG_OVERHEAD + Record.KEY_OFFSET, valueSize);
+            int valueSize = pos - initPos - Records.LOG_OVERHEAD - Record.recordOverhead(magic);
+            buffer.putInt(initPos + Records.LOG_OVERHEAD + Record.keyOffset(magic), valueSize);
             // compute and fill the crc at the beginning of the message
             long crc = Record.computeChecksum(buffer,
                 initPos + Records.LOG_OVERHEAD + Record.MAGIC_OFFSET,
@@ -201,19 +217,56 @@ public class Compressor {
         }
     }
 
-    public void putRecord(byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
+    public void putRecord(long timestamp, byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
         // put a record as un-compressed into the underlying stream
-        long crc = Record.computeChecksum(key, value, type, valueOffset, valueSize);
+        long crc = Record.computeChecksum(magic, timestamp, key, value, type, valueOffset, valueSize);
         byte attributes = Record.computeAttributes(type);
-        putRecord(crc, attributes, key, value, valueOffset, valueSize);
+        putRecord(crc, attributes, timestamp, key, value, valueOffset, valueSize);
+    }
+
+    public void putRecord(long timestamp, byte[] key, byte[] value) {
+        putRecord(timestamp, key, value, CompressionType.NONE, 0, -1);
     }
 
     public void putRecord(byte[] key, byte[] value) {
-        putRecord(key, value, CompressionType.NONE, 0, -1);
+        putRecord(Record.NO_TIMESTAMP, key, value);
     }
 
-    private void putRecord(final long crc, final byte attributes, final byte[] key, final byte[] value, final int valueOffset, final int valueSize) {
-        Record.write(this, crc, attributes, key, value, valueOffset, valueSize);
+    private void putRecord(final long crc, final byte attributes, final long timestamp, final byte[] key, final byte[] value, final int valueOffset, final int valueSize) {
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        Record.write(this, crc, attributes, timestamp, key, value, valueOffset, valueSize);
+    }
+
+    /**
+     * Write the records written by an uncompressed compressor, so that records appended uncompressed can be compressed
+     * as a whole later on
+     */
+    public void putRecords(Compressor uncompressed) {
+        ByteBuffer records = uncompressed.buffer();
+        int size = records.position() - uncompressed.initPos;
+        if (records.hasArray()) {
+            put(records.array(), records.arrayOffset() + uncompressed.initPos, size);
+        } else {
+            byte[] bytes = new byte[size];
+            ByteBuffer duplicate = records.duplicate();
+            duplicate.position(uncompressed.initPos);
+            duplicate.get(bytes);
+            put(bytes, 0, size);
+        }
+        numRecords += uncompressed.numRecords;
+        writtenUncompressed += uncompressed.writtenUncompressed;
+        maxTimestamp = Math.max(maxTimestamp, uncompressed.maxTimestamp);
+    }
+
+    /**
+     * Account for the records written directly to the buffer of an uncompressed compressor, up to the given position
+     */
+    public void recordsWrittenTo(int position, int count, long maxTimestamp) {
+        ByteBuffer buffer = bufferStream.buffer();
+        writtenUncompressed += position - buffer.position();
+        buffer.position(position);
+        numRecords += count;
+        this.maxTimestamp = Math.max(this.maxTimestamp, maxTimestamp);
     }
 
     public void recordWritten(int size) {
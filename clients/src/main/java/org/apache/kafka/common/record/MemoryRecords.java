@@ -16,10 +16,12 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.utils.AbstractIterator;
+import org.apache.kafka.common.utils.Utils;
 
 /**
  * A {@link Records} implementation backed by a ByteBuffer.
@@ -29,7 +31,16 @@ public class MemoryRecords implements Records {
     private final static int WRITE_LIMIT_FOR_READABLE_ONLY = -1;
 
     // the compressor used for appends-only
-    private final Compressor compressor;
+    private Compressor compressor;
+
+    // the compression type of the appends
+    private final CompressionType appendType;
+
+    // the compression type to compress the records with when they are closed, if they are appended uncompressed
+    private final CompressionType deferredType;
+
+    // the magic value the records are written with
+    private final byte magic;
 
     // the write limit for writable buffer, which may be smaller than the buffer capacity
     private final int writeLimit;
@@ -45,12 +56,19 @@ public class MemoryRecords implements Records {
 
     // Construct a writable memory records
     private MemoryRecords(ByteBuffer buffer, CompressionType type, boolean writable, int writeLimit) {
+        this(buffer, type, writable, writeLimit, CompressionType.NONE, Record.CURRENT_MAGIC_VALUE);
+    }
+
+    private MemoryRecords(ByteBuffer buffer, CompressionType type, boolean writable, int writeLimit, CompressionType deferredType, byte magic) {
         this.writable = writable;
         this.writeLimit = writeLimit;
         this.initialCapacity = buffer.capacity();
+        this.appendType = type;
+        this.deferredType = deferredType;
+        this.magic = magic;
         if (this.writable) {
             this.buffer = null;
-            this.compressor = new Compressor(buffer, type);
+            this.compressor = new Compressor(buffer, type, Compressor.COMPRESSION_DEFAULT_BUFFER_SIZE, magic);
         } else {
             this.buffer = buffer;
             this.compressor = null;
@@ -61,6 +79,26 @@ public class MemoryRecords implements Records {
         return new MemoryRecords(buffer, type, true, writeLimit);
     }
 
+    /**
+     * Create writable records that, if deferCompression is set, are appended uncompressed and only compressed when
+     * they are closed, which takes the compression out of the appends. Since the write limit then applies to the
+     * uncompressed records, fewer records fit than with compressed appends.
+     */
+    public static MemoryRecords emptyRecords(ByteBuffer buffer, CompressionType type, int writeLimit, boolean deferCompression) {
+        return emptyRecords(buffer, type, writeLimit, deferCompression, Record.CURRENT_MAGIC_VALUE);
+    }
+
+    /**
+     * Create writable records as above that are written with the given magic value, for brokers that do not accept
+     * records with the current one
+     */
+    public static MemoryRecords emptyRecords(ByteBuffer buffer, CompressionType type, int writeLimit, boolean deferCompression, byte magic) {
+        if (deferCompression && type != CompressionType.NONE)
+            return new MemoryRecords(buffer, CompressionType.NONE, true, writeLimit, type, magic);
+        else
+            return new MemoryRecords(buffer, type, true, writeLimit, CompressionType.NONE, magic);
+    }
+
     public static MemoryRecords emptyRecords(ByteBuffer buffer, CompressionType type) {
         // use the buffer capacity as the default write limit
         return emptyRecords(buffer, type, buffer.capacity());
@@ -88,17 +126,73 @@ public class MemoryRecords implements Records {
     /**
      * Append a new record and offset to the buffer
      */
-    public void append(long offset, byte[] key, byte[] value) {
+    public void append(long offset, long timestamp, byte[] key, byte[] value) {
         if (!writable)
             throw new IllegalStateException("Memory records is not writable");
 
-        int size = Record.recordSize(key, value);
+        int size = Record.recordSize(magic, key, value);
         compressor.putLong(offset);
         compressor.putInt(size);
-        compressor.putRecord(key, value);
+        compressor.putRecord(timestamp, key, value);
         compressor.recordWritten(size + Records.LOG_OVERHEAD);
     }
 
+    /**
+     * Append a new record without a timestamp and offset to the buffer
+     */
+    public void append(long offset, byte[] key, byte[] value) {
+        append(offset, Record.NO_TIMESTAMP, key, value);
+    }
+
+    /**
+     * Write a record and offset at the given position of the buffer, without appending it. This lets appenders that
+     * reserved disjoint ranges of the buffer write their records concurrently; the records must be appended
+     * uncompressed to a buffer that starts at position 0, and are only appended once
+     * {@link #appendWritten(int, int, long)} is called.
+     */
+    public void writeAt(int position, long offset, long timestamp, byte[] key, byte[] value) {
+        if (!writable || compressor.numRecordsWritten() > 0 || appendType != CompressionType.NONE)
+            throw new IllegalStateException("Memory records is not writable at a position");
+
+        ByteBuffer buffer = compressor.buffer().duplicate();
+        buffer.position(position);
+        buffer.putLong(offset);
+        buffer.putInt(Record.recordSize(magic, key, value));
+        Record.write(buffer, magic, timestamp, key, value, CompressionType.NONE, 0, -1);
+    }
+
+    /**
+     * Append the records written with {@link #writeAt(int, long, long, byte[], byte[])}, once all of them have been
+     * written
+     *
+     * @param sizeInBytes The size of the records written, including their offsets and sizes
+     * @param count The number of records written
+     * @param maxTimestamp The largest timestamp of the records written
+     */
+    public void appendWritten(int sizeInBytes, int count, long maxTimestamp) {
+        if (!writable)
+            throw new IllegalStateException("Memory records is not writable");
+        compressor.recordsWrittenTo(sizeInBytes, count, maxTimestamp);
+    }
+
+    /**
+     * Check if there is room for a record of the given size, including its offset and size, after the given bytes
+     * and records reserved for {@link #writeAt(int, long, long, byte[], byte[])}; the same exception as in
+     * {@link #hasRoomFor(byte[], byte[])} is made for the first record
+     */
+    public boolean hasRoomFor(int reservedBytes, int reservedRecords, int size) {
+        return this.writable && (reservedRecords == 0 ?
+            this.initialCapacity >= size :
+            this.writeLimit >= reservedBytes + size);
+    }
+
+    /**
+     * Whether the given bytes reserved for {@link #writeAt(int, long, long, byte[], byte[])} fill the records
+     */
+    public boolean isFull(int reservedBytes) {
+        return !this.writable || this.writeLimit <= reservedBytes;
+    }
+
     /**
      * Check if we have room for a new record containing the given key/value pair
      *
@@ -113,8 +207,8 @@ public class MemoryRecords implements Records {
      */
     public boolean hasRoomFor(byte[] key, byte[] value) {
         return this.writable && this.compressor.numRecordsWritten() == 0 ?
-            this.initialCapacity >= Records.LOG_OVERHEAD + Record.recordSize(key, value) :
-            this.writeLimit >= this.compressor.estimatedBytesWritten() + Records.LOG_OVERHEAD + Record.recordSize(key, value);
+            this.initialCapacity >= Records.LOG_OVERHEAD + Record.recordSize(magic, key, value) :
+            this.writeLimit >= this.compressor.estimatedBytesWritten() + Records.LOG_OVERHEAD + Record.recordSize(magic, key, value);
     }
 
     public boolean isFull() {
@@ -129,15 +223,43 @@ public class MemoryRecords implements Records {
             // close the compressor to fill-in wrapper message metadata if necessary
             compressor.close();
 
-            // flip the underlying buffer to be ready for reads
-            buffer = compressor.buffer();
-            buffer.flip();
+            if (deferredType != CompressionType.NONE) {
+                compressDeferred();
+            } else {
+                // flip the underlying buffer to be ready for reads
+                buffer = compressor.buffer();
+                buffer.flip();
+            }
 
             // reset the writable flag
             writable = false;
         }
     }
 
+    /*
+     * Compress the records that were appended uncompressed. The compressed records are copied back into the buffer of
+     * the uncompressed records if they fit, so that a buffer from a pool can be returned to it.
+     */
+    private void compressDeferred() {
+        ByteBuffer uncompressed = compressor.buffer();
+        Compressor deferred = new Compressor(ByteBuffer.allocate(uncompressed.position() + Records.LOG_OVERHEAD + Record.recordOverhead(magic)),
+                                             deferredType, Compressor.COMPRESSION_DEFAULT_BUFFER_SIZE, magic);
+        deferred.putRecords(compressor);
+        deferred.close();
+        compressor = deferred;
+
+        ByteBuffer compressed = deferred.buffer();
+        compressed.flip();
+        if (compressed.limit() <= uncompressed.capacity()) {
+            uncompressed.clear();
+            uncompressed.put(compressed.duplicate());
+            uncompressed.flip();
+            buffer = uncompressed;
+        } else {
+            buffer = compressed;
+        }
+    }
+
     /**
      * The size of this record set
      */
@@ -159,6 +281,39 @@ public class MemoryRecords implements Records {
             return compressor.compressionRate();
     }
 
+    /**
+     * The magic value of the records, for writable records and the records they are closed to
+     */
+    public byte magic() {
+        return this.magic;
+    }
+
+    /**
+     * Write these closed records again with the given magic value, keeping their offsets and compression, for a broker
+     * that does not accept the magic value they were written with. The timestamps of the records are dropped if the
+     * given magic value has none.
+     */
+    public MemoryRecords toMagic(byte magic) {
+        ByteBuffer buffer = buffer();
+        CompressionType type = CompressionType.NONE;
+        Iterator<LogEntry> shallow = new RecordsIterator(buffer.duplicate(), CompressionType.NONE, true);
+        if (shallow.hasNext())
+            type = shallow.next().record().compressionType();
+
+        MemoryRecords converted = emptyRecords(ByteBuffer.allocate(buffer.remaining()), type, buffer.remaining(), false, magic);
+        Iterator<LogEntry> iter = new RecordsIterator(buffer, CompressionType.NONE, false);
+        while (iter.hasNext()) {
+            LogEntry entry = iter.next();
+            ByteBuffer key = entry.record().key();
+            ByteBuffer value = entry.record().value();
+            converted.append(entry.offset(), entry.record().timestamp(),
+                             key == null ? null : Utils.toArray(key),
+                             value == null ? null : Utils.toArray(value));
+        }
+        converted.close();
+        return converted;
+    }
+
     /**
      * Return the capacity of the initial buffer, for writable records
      * it may be different from the current buffer's capacity
@@ -212,7 +367,7 @@ public class MemoryRecords implements Records {
         private final DataInputStream stream;
         private final CompressionType type;
         private final boolean shallow;
-        private RecordsIterator innerIter;
+        private Iterator<LogEntry> innerIter;
 
         public RecordsIterator(ByteBuffer buffer, CompressionType type, boolean shallow) {
             this.type = type;
@@ -265,7 +420,11 @@ public class MemoryRecords implements Records {
                         // since we assume nested compression is not allowed, the deep iterator
                         // would not try to further decompress underlying messages
                         ByteBuffer value = entry.record().value();
-                        innerIter = new RecordsIterator(value, compression, true);
+                        RecordsIterator records = new RecordsIterator(value, compression, true);
+                        if (entry.record().magic() > Record.MAGIC_VALUE_V0)
+                            innerIter = absoluteOffsets(records, entry.offset());
+                        else
+                            innerIter = records;
                         return innerIter.next();
                     }
                 } catch (EOFException e) {
@@ -281,5 +440,23 @@ public class MemoryRecords implements Records {
         private boolean innerDone() {
             return innerIter == null || !innerIter.hasNext();
         }
+
+        /*
+         * From magic value 1 on the records inside a compressed message carry offsets relative to the first one and the
+         * wrapper carries the absolute offset of the last one, so all inner records have to be read to convert them.
+         */
+        private static Iterator<LogEntry> absoluteOffsets(RecordsIterator records, long wrapperOffset) {
+            ArrayDeque<LogEntry> entries = new ArrayDeque<LogEntry>();
+            while (records.hasNext())
+                entries.add(records.next());
+            if (entries.isEmpty())
+                return entries.iterator();
+
+            long lastRelativeOffset = entries.getLast().offset();
+            ArrayDeque<LogEntry> absoluteEntries = new ArrayDeque<LogEntry>(entries.size());
+            for (LogEntry entry : entries)
+                absoluteEntries.add(new LogEntry(wrapperOffset - lastRelativeOffset + entry.offset(), entry.record()));
+            return absoluteEntries.iterator();
+        }
     }
 }
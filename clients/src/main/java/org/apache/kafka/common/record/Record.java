@@ -36,25 +36,49 @@ public final class Record {
     public static final int MAGIC_LENGTH = 1;
     public static final int ATTRIBUTES_OFFSET = MAGIC_OFFSET + MAGIC_LENGTH;
     public static final int ATTRIBUTE_LENGTH = 1;
-    public static final int KEY_SIZE_OFFSET = ATTRIBUTES_OFFSET + ATTRIBUTE_LENGTH;
+    public static final int TIMESTAMP_OFFSET = ATTRIBUTES_OFFSET + ATTRIBUTE_LENGTH;
+    public static final int TIMESTAMP_LENGTH = 8;
+    public static final int KEY_SIZE_OFFSET_V0 = ATTRIBUTES_OFFSET + ATTRIBUTE_LENGTH;
+    public static final int KEY_SIZE_OFFSET_V1 = KEY_SIZE_OFFSET_V0;
+    public static final int KEY_SIZE_OFFSET_V2 = TIMESTAMP_OFFSET + TIMESTAMP_LENGTH;
     public static final int KEY_SIZE_LENGTH = 4;
-    public static final int KEY_OFFSET = KEY_SIZE_OFFSET + KEY_SIZE_LENGTH;
+    public static final int KEY_OFFSET_V0 = KEY_SIZE_OFFSET_V0 + KEY_SIZE_LENGTH;
+    public static final int KEY_OFFSET_V1 = KEY_SIZE_OFFSET_V1 + KEY_SIZE_LENGTH;
+    public static final int KEY_OFFSET_V2 = KEY_SIZE_OFFSET_V2 + KEY_SIZE_LENGTH;
     public static final int VALUE_SIZE_LENGTH = 4;
 
+    /**
+     * The offsets of the key size and key in the current format
+     */
+    public static final int KEY_SIZE_OFFSET = KEY_SIZE_OFFSET_V2;
+    public static final int KEY_OFFSET = KEY_OFFSET_V2;
+
     /**
      * The size for the record header
      */
     public static final int HEADER_SIZE = CRC_LENGTH + MAGIC_LENGTH + ATTRIBUTE_LENGTH;
 
     /**
-     * The amount of overhead bytes in a record
+     * The amount of overhead bytes in a record with magic value 0 or 1
+     */
+    public static final int RECORD_OVERHEAD_V0 = HEADER_SIZE + KEY_SIZE_LENGTH + VALUE_SIZE_LENGTH;
+
+    /**
+     * The amount of overhead bytes in a record in the current format
      */
-    public static final int RECORD_OVERHEAD = HEADER_SIZE + KEY_SIZE_LENGTH + VALUE_SIZE_LENGTH;
+    public static final int RECORD_OVERHEAD = HEADER_SIZE + TIMESTAMP_LENGTH + KEY_SIZE_LENGTH + VALUE_SIZE_LENGTH;
+
+    /**
+     * The "magic" values
+     */
+    public static final byte MAGIC_VALUE_V0 = 0;
+    public static final byte MAGIC_VALUE_V1 = 1;
+    public static final byte MAGIC_VALUE_V2 = 2;
 
     /**
      * The current "magic" value
      */
-    public static final byte CURRENT_MAGIC_VALUE = 0;
+    public static final byte CURRENT_MAGIC_VALUE = MAGIC_VALUE_V2;
 
     /**
      * Specifies the mask for the compression code. 3 bits to hold the compression codec. 0 is reserved to indicate no
@@ -62,6 +86,17 @@ public final class Record {
      */
     public static final int COMPRESSION_CODEC_MASK = 0x07;
 
+    /**
+     * Specifies the mask for the timestamp type. 0 for the create time, 1 for the log append time. Records with magic
+     * value 0 or 1 have no timestamp and always have this bit unset
+     */
+    public static final int TIMESTAMP_TYPE_MASK = 0x08;
+
+    /**
+     * The timestamp of records that do not have one
+     */
+    public static final long NO_TIMESTAMP = -1L;
+
     /**
      * Compression code for uncompressed records
      */
@@ -78,19 +113,28 @@ public final class Record {
      * its value payload should be already compressed with the specified type; the constructor
      * would always write the value payload as is and will not do the compression itself.
      * 
+     * @param timestamp The create time of the record (or NO_TIMESTAMP, if none)
      * @param key The key of the record (null, if none)
      * @param value The record value
      * @param type The compression type used on the contents of the record (if any)
      * @param valueOffset The offset into the payload array used to extract payload
      * @param valueSize The size of the payload to use
      */
-    public Record(byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
+    public Record(long timestamp, byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
         this(ByteBuffer.allocate(recordSize(key == null ? 0 : key.length,
             value == null ? 0 : valueSize >= 0 ? valueSize : value.length - valueOffset)));
-        write(this.buffer, key, value, type, valueOffset, valueSize);
+        write(this.buffer, timestamp, key, value, type, valueOffset, valueSize);
         this.buffer.rewind();
     }
 
+    public Record(byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
+        this(NO_TIMESTAMP, key, value, type, valueOffset, valueSize);
+    }
+
+    public Record(long timestamp, byte[] key, byte[] value) {
+        this(timestamp, key, value, CompressionType.NONE, 0, -1);
+    }
+
     public Record(byte[] key, byte[] value, CompressionType type) {
         this(key, value, type, 0, -1);
     }
@@ -109,20 +153,30 @@ public final class Record {
 
     // Write a record to the buffer, if the record's compression type is none, then
     // its value payload should be already compressed with the specified type
-    public static void write(ByteBuffer buffer, byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
+    public static void write(ByteBuffer buffer, long timestamp, byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
+        write(buffer, CURRENT_MAGIC_VALUE, timestamp, key, value, type, valueOffset, valueSize);
+    }
+
+    // Write a record with the given magic value to the buffer, the timestamp is dropped for magic values before 2
+    public static void write(ByteBuffer buffer, byte magic, long timestamp, byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
         // construct the compressor with compression type none since this function will not do any
         //compression according to the input type, it will just write the record's payload as is
-        Compressor compressor = new Compressor(buffer, CompressionType.NONE, buffer.capacity());
-        compressor.putRecord(key, value, type, valueOffset, valueSize);
+        Compressor compressor = new Compressor(buffer, CompressionType.NONE, buffer.capacity(), magic);
+        compressor.putRecord(timestamp, key, value, type, valueOffset, valueSize);
     }
 
-    public static void write(Compressor compressor, long crc, byte attributes, byte[] key, byte[] value, int valueOffset, int valueSize) {
+    // Write a record with the magic value of the compressor
+    public static void write(Compressor compressor, long crc, byte attributes, long timestamp, byte[] key, byte[] value, int valueOffset, int valueSize) {
+        byte magic = compressor.magic();
         // write crc
         compressor.putInt((int) (crc & 0xffffffffL));
         // write magic value
-        compressor.putByte(CURRENT_MAGIC_VALUE);
+        compressor.putByte(magic);
         // write attributes
         compressor.putByte(attributes);
+        // write timestamp
+        if (magic >= MAGIC_VALUE_V2)
+            compressor.putLong(timestamp);
         // write the key
         if (key == null) {
             compressor.putInt(-1);
@@ -145,7 +199,29 @@ public final class Record {
     }
 
     public static int recordSize(int keySize, int valueSize) {
-        return CRC_LENGTH + MAGIC_LENGTH + ATTRIBUTE_LENGTH + KEY_SIZE_LENGTH + keySize + VALUE_SIZE_LENGTH + valueSize;
+        return recordSize(CURRENT_MAGIC_VALUE, keySize, valueSize);
+    }
+
+    public static int recordSize(byte magic, byte[] key, byte[] value) {
+        return recordSize(magic, key == null ? 0 : key.length, value == null ? 0 : value.length);
+    }
+
+    public static int recordSize(byte magic, int keySize, int valueSize) {
+        return recordOverhead(magic) + keySize + valueSize;
+    }
+
+    /**
+     * The size of a record with the given magic value without its key and value
+     */
+    public static int recordOverhead(byte magic) {
+        return magic < MAGIC_VALUE_V2 ? RECORD_OVERHEAD_V0 : RECORD_OVERHEAD;
+    }
+
+    /**
+     * The offset of the key in a record with the given magic value
+     */
+    public static int keyOffset(byte magic) {
+        return magic < MAGIC_VALUE_V2 ? KEY_OFFSET_V0 : KEY_OFFSET_V2;
     }
 
     public ByteBuffer buffer() {
@@ -164,20 +240,46 @@ public final class Record {
      */
     public static long computeChecksum(ByteBuffer buffer, int position, int size) {
         Crc32 crc = new Crc32();
-        crc.update(buffer.array(), buffer.arrayOffset() + position, size);
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + position, size);
+        } else {
+            // a direct buffer, such as one from a producer buffer pool backed by direct memory
+            byte[] bytes = new byte[size];
+            ByteBuffer record = buffer.duplicate();
+            record.position(position);
+            record.get(bytes);
+            crc.update(bytes, 0, size);
+        }
         return crc.getValue();
     }
 
     /**
-     * Compute the checksum of the record from the attributes, key and value payloads
+     * Compute the checksum of a record without a timestamp from the attributes, key and value payloads
      */
     public static long computeChecksum(byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
+        return computeChecksum(NO_TIMESTAMP, key, value, type, valueOffset, valueSize);
+    }
+
+    /**
+     * Compute the checksum of the record from the attributes, timestamp, key and value payloads
+     */
+    public static long computeChecksum(long timestamp, byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
+        return computeChecksum(CURRENT_MAGIC_VALUE, timestamp, key, value, type, valueOffset, valueSize);
+    }
+
+    /**
+     * Compute the checksum of a record with the given magic value from the attributes, timestamp, key and value payloads
+     */
+    public static long computeChecksum(byte magic, long timestamp, byte[] key, byte[] value, CompressionType type, int valueOffset, int valueSize) {
         Crc32 crc = new Crc32();
-        crc.update(CURRENT_MAGIC_VALUE);
+        crc.update(magic);
         byte attributes = 0;
         if (type.id > 0)
             attributes = (byte) (attributes | (COMPRESSION_CODEC_MASK & type.id));
         crc.update(attributes);
+        // update for the timestamp
+        if (magic >= MAGIC_VALUE_V2)
+            crc.updateLong(timestamp);
         // update for the key
         if (key == null) {
             crc.updateInt(-1);
@@ -236,11 +338,18 @@ public final class Record {
         return buffer.limit();
     }
 
+    /**
+     * The position where the key size is stored, which depends on the magic value of this record
+     */
+    private int keySizeOffset() {
+        return magic() < MAGIC_VALUE_V2 ? KEY_SIZE_OFFSET_V0 : KEY_SIZE_OFFSET_V2;
+    }
+
     /**
      * The length of the key in bytes
      */
     public int keySize() {
-        return buffer.getInt(KEY_SIZE_OFFSET);
+        return buffer.getInt(keySizeOffset());
     }
 
     /**
@@ -254,7 +363,7 @@ public final class Record {
      * The position where the value size is stored
      */
     private int valueSizeOffset() {
-        return KEY_OFFSET + Math.max(0, keySize());
+        return keySizeOffset() + KEY_SIZE_LENGTH + Math.max(0, keySize());
     }
 
     /**
@@ -278,6 +387,20 @@ public final class Record {
         return buffer.get(ATTRIBUTES_OFFSET);
     }
 
+    /**
+     * The timestamp of this record, or NO_TIMESTAMP for records with magic value 0 or 1
+     */
+    public long timestamp() {
+        return magic() < MAGIC_VALUE_V2 ? NO_TIMESTAMP : buffer.getLong(TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * The type of the timestamp of this record
+     */
+    public TimestampType timestampType() {
+        return (attributes() & TIMESTAMP_TYPE_MASK) == 0 ? TimestampType.CREATE_TIME : TimestampType.LOG_APPEND_TIME;
+    }
+
     /**
      * The compression type used with this record
      */
@@ -296,7 +419,7 @@ public final class Record {
      * A ByteBuffer containing the message key
      */
     public ByteBuffer key() {
-        return sliceDelimited(KEY_SIZE_OFFSET);
+        return sliceDelimited(keySizeOffset());
     }
 
     /**
@@ -317,11 +440,12 @@ public final class Record {
     }
 
     public String toString() {
-        return String.format("Record(magic = %d, attributes = %d, compression = %s, crc = %d, key = %d bytes, value = %d bytes)",
+        return String.format("Record(magic = %d, attributes = %d, compression = %s, crc = %d, timestamp = %d, key = %d bytes, value = %d bytes)",
                              magic(),
                              attributes(),
                              compressionType(),
                              checksum(),
+                             timestamp(),
                              key() == null ? 0 : key().limit(),
                              value() == null ? 0 : value().limit());
     }
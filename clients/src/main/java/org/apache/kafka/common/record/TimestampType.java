@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+/**
+ * The type of the timestamp carried by a record: the time the producer created it or the time the broker appended it
+ * to the log
+ */
+public enum TimestampType {
+    CREATE_TIME(0, "CreateTime"), LOG_APPEND_TIME(1, "LogAppendTime");
+
+    public final int id;
+    public final String name;
+
+    private TimestampType(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public static TimestampType forId(int id) {
+        switch (id) {
+            case 0:
+                return CREATE_TIME;
+            case 1:
+                return LOG_APPEND_TIME;
+            default:
+                throw new IllegalArgumentException("Unknown timestamp type id: " + id);
+        }
+    }
+
+    public static TimestampType forName(String name) {
+        if (CREATE_TIME.name.equals(name))
+            return CREATE_TIME;
+        else if (LOG_APPEND_TIME.name.equals(name))
+            return LOG_APPEND_TIME;
+        else
+            throw new IllegalArgumentException("Unknown timestamp type name: " + name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -14,6 +14,7 @@ package org.apache.kafka.common.requests;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,11 +30,20 @@ import org.apache.kafka.common.utils.CollectionUtils;
 public class FetchRequest extends AbstractRequest {
     
     public static final int CONSUMER_REPLICA_ID = -1;
+    // the session id of a fetch that is not part of a fetch session
+    public static final int INVALID_SESSION_ID = 0;
+    // the session epoch of a full fetch that asks for a new fetch session
+    public static final int INITIAL_EPOCH = 0;
+    // the session epoch of a fetch without a session, which also closes the given session
+    public static final int FINAL_EPOCH = -1;
     private static final Schema CURRENT_SCHEMA = ProtoUtils.currentRequestSchema(ApiKeys.FETCH.id);
     private static final String REPLICA_ID_KEY_NAME = "replica_id";
     private static final String MAX_WAIT_KEY_NAME = "max_wait_time";
     private static final String MIN_BYTES_KEY_NAME = "min_bytes";
+    private static final String SESSION_ID_KEY_NAME = "session_id";
+    private static final String SESSION_EPOCH_KEY_NAME = "session_epoch";
     private static final String TOPICS_KEY_NAME = "topics";
+    private static final String FORGOTTEN_TOPICS_KEY_NAME = "forgotten_topics_data";
 
     // topic level field names
     private static final String TOPIC_KEY_NAME = "topic";
@@ -48,6 +58,9 @@ public class FetchRequest extends AbstractRequest {
     private final int maxWait;
     private final int minBytes;
     private final Map<TopicPartition, PartitionData> fetchData;
+    private final int sessionId;
+    private final int sessionEpoch;
+    private final List<TopicPartition> toForget;
 
     public static final class PartitionData {
         public final long offset;
@@ -70,12 +83,37 @@ public class FetchRequest extends AbstractRequest {
      * Create a replica fetch request
      */
     public FetchRequest(int replicaId, int maxWait, int minBytes, Map<TopicPartition, PartitionData> fetchData) {
-        super(new Struct(CURRENT_SCHEMA));
+        this(ProtoUtils.latestVersion(ApiKeys.FETCH.id), replicaId, maxWait, minBytes, fetchData, INVALID_SESSION_ID,
+                FINAL_EPOCH, Collections.<TopicPartition>emptyList());
+    }
+
+    /**
+     * Create a fetch request of the given version. From version 2 the request may be part of a fetch session, in which
+     * case the fetch data are the partitions added to the session or changed, and the partitions to forget are those
+     * removed from the session.
+     */
+    public FetchRequest(int version, int replicaId, int maxWait, int minBytes, Map<TopicPartition, PartitionData> fetchData,
+                        int sessionId, int sessionEpoch, List<TopicPartition> toForget) {
+        super(new Struct(ProtoUtils.requestSchema(ApiKeys.FETCH.id, version)));
         Map<String, Map<Integer, PartitionData>> topicsData = CollectionUtils.groupDataByTopic(fetchData);
 
         struct.set(REPLICA_ID_KEY_NAME, replicaId);
         struct.set(MAX_WAIT_KEY_NAME, maxWait);
         struct.set(MIN_BYTES_KEY_NAME, minBytes);
+        if (struct.hasField(SESSION_ID_KEY_NAME)) {
+            struct.set(SESSION_ID_KEY_NAME, sessionId);
+            struct.set(SESSION_EPOCH_KEY_NAME, sessionEpoch);
+            List<Struct> forgottenTopicArray = new ArrayList<Struct>();
+            for (Map.Entry<String, List<Integer>> topicEntry : CollectionUtils.groupDataByTopic(toForget).entrySet()) {
+                Struct forgottenTopic = struct.instance(FORGOTTEN_TOPICS_KEY_NAME);
+                forgottenTopic.set(TOPIC_KEY_NAME, topicEntry.getKey());
+                forgottenTopic.set(PARTITIONS_KEY_NAME, topicEntry.getValue().toArray());
+                forgottenTopicArray.add(forgottenTopic);
+            }
+            struct.set(FORGOTTEN_TOPICS_KEY_NAME, forgottenTopicArray.toArray());
+        } else if (sessionId != INVALID_SESSION_ID || sessionEpoch != FINAL_EPOCH || !toForget.isEmpty()) {
+            throw new IllegalArgumentException("Fetch sessions are not supported by version " + version);
+        }
         List<Struct> topicArray = new ArrayList<Struct>();
         for (Map.Entry<String, Map<Integer, PartitionData>> topicEntry : topicsData.entrySet()) {
             Struct topicData = struct.instance(TOPICS_KEY_NAME);
@@ -97,6 +135,9 @@ public class FetchRequest extends AbstractRequest {
         this.maxWait = maxWait;
         this.minBytes = minBytes;
         this.fetchData = fetchData;
+        this.sessionId = sessionId;
+        this.sessionEpoch = sessionEpoch;
+        this.toForget = toForget;
     }
 
     public FetchRequest(Struct struct) {
@@ -117,6 +158,20 @@ public class FetchRequest extends AbstractRequest {
                 fetchData.put(new TopicPartition(topic, partition), partitionData);
             }
         }
+        toForget = new ArrayList<TopicPartition>();
+        if (struct.hasField(SESSION_ID_KEY_NAME)) {
+            sessionId = struct.getInt(SESSION_ID_KEY_NAME);
+            sessionEpoch = struct.getInt(SESSION_EPOCH_KEY_NAME);
+            for (Object forgottenTopicObj : struct.getArray(FORGOTTEN_TOPICS_KEY_NAME)) {
+                Struct forgottenTopic = (Struct) forgottenTopicObj;
+                String topic = forgottenTopic.getString(TOPIC_KEY_NAME);
+                for (Object partition : forgottenTopic.getArray(PARTITIONS_KEY_NAME))
+                    toForget.add(new TopicPartition(topic, (Integer) partition));
+            }
+        } else {
+            sessionId = INVALID_SESSION_ID;
+            sessionEpoch = FINAL_EPOCH;
+        }
     }
 
     @Override
@@ -132,7 +187,11 @@ public class FetchRequest extends AbstractRequest {
 
         switch (versionId) {
             case 0:
+                return new FetchResponse(responseData);
+            case 1:
                 return new FetchResponse(responseData, 0);
+            case 2:
+                return new FetchResponse(Errors.NONE.code(), INVALID_SESSION_ID, responseData, 0);
             default:
                 throw new IllegalArgumentException(String.format("Version %d is not valid. Valid versions for %s are 0 to %d",
                         versionId, this.getClass().getSimpleName(), ProtoUtils.latestVersion(ApiKeys.FETCH.id)));
@@ -155,6 +214,18 @@ public class FetchRequest extends AbstractRequest {
         return fetchData;
     }
 
+    public int sessionId() {
+        return sessionId;
+    }
+
+    public int sessionEpoch() {
+        return sessionEpoch;
+    }
+
+    public List<TopicPartition> toForget() {
+        return toForget;
+    }
+
     public static FetchRequest parse(ByteBuffer buffer, int versionId) {
         return new FetchRequest(ProtoUtils.parseRequest(ApiKeys.FETCH.id, versionId, buffer));
     }
@@ -18,6 +18,7 @@ package org.apache.kafka.common.requests;
 
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.ProtoUtils;
 import org.apache.kafka.common.protocol.types.Schema;
 import org.apache.kafka.common.protocol.types.Struct;
@@ -30,7 +31,7 @@ import java.util.List;
 import java.util.Map;
 
 /**
- * This wrapper supports both v0 and v1 of FetchResponse.
+ * This wrapper supports v0, v1 and v2 of FetchResponse.
  */
 public class FetchResponse extends AbstractRequestResponse {
     
@@ -41,6 +42,8 @@ public class FetchResponse extends AbstractRequestResponse {
     private static final String TOPIC_KEY_NAME = "topic";
     private static final String PARTITIONS_KEY_NAME = "partition_responses";
     private static final String THROTTLE_TIME_KEY_NAME = "throttle_time_ms";
+    private static final String SESSION_ERROR_CODE_KEY_NAME = "error_code";
+    private static final String SESSION_ID_KEY_NAME = "session_id";
 
     // partition level field names
     private static final String PARTITION_KEY_NAME = "partition";
@@ -67,6 +70,8 @@ public class FetchResponse extends AbstractRequestResponse {
 
     private final Map<TopicPartition, PartitionData> responseData;
     private final int throttleTime;
+    private final short errorCode;
+    private final int sessionId;
 
     public static final class PartitionData {
         public final short errorCode;
@@ -89,6 +94,8 @@ public class FetchResponse extends AbstractRequestResponse {
         initCommonFields(responseData);
         this.responseData = responseData;
         this.throttleTime = DEFAULT_THROTTLE_TIME;
+        this.errorCode = Errors.NONE.code();
+        this.sessionId = FetchRequest.INVALID_SESSION_ID;
     }
 
   /**
@@ -97,11 +104,32 @@ public class FetchResponse extends AbstractRequestResponse {
    * @param throttleTime Time in milliseconds the response was throttled
    */
     public FetchResponse(Map<TopicPartition, PartitionData> responseData, int throttleTime) {
+        super(new Struct(ProtoUtils.responseSchema(ApiKeys.FETCH.id, 1)));
+        initCommonFields(responseData);
+        struct.set(THROTTLE_TIME_KEY_NAME, throttleTime);
+        this.responseData = responseData;
+        this.throttleTime = throttleTime;
+        this.errorCode = Errors.NONE.code();
+        this.sessionId = FetchRequest.INVALID_SESSION_ID;
+    }
+
+    /**
+     * Constructor for Version 2
+     * @param errorCode The error of the fetch session
+     * @param sessionId The fetch session id, or 0 if the fetch is not part of a session
+     * @param responseData fetched data grouped by topic-partition
+     * @param throttleTime Time in milliseconds the response was throttled
+     */
+    public FetchResponse(short errorCode, int sessionId, Map<TopicPartition, PartitionData> responseData, int throttleTime) {
         super(new Struct(CURRENT_SCHEMA));
         initCommonFields(responseData);
         struct.set(THROTTLE_TIME_KEY_NAME, throttleTime);
+        struct.set(SESSION_ERROR_CODE_KEY_NAME, errorCode);
+        struct.set(SESSION_ID_KEY_NAME, sessionId);
         this.responseData = responseData;
         this.throttleTime = throttleTime;
+        this.errorCode = errorCode;
+        this.sessionId = sessionId;
     }
 
     public FetchResponse(Struct struct) {
@@ -121,6 +149,8 @@ public class FetchResponse extends AbstractRequestResponse {
             }
         }
         this.throttleTime = struct.hasField(THROTTLE_TIME_KEY_NAME) ? struct.getInt(THROTTLE_TIME_KEY_NAME) : DEFAULT_THROTTLE_TIME;
+        this.errorCode = struct.hasField(SESSION_ERROR_CODE_KEY_NAME) ? struct.getShort(SESSION_ERROR_CODE_KEY_NAME) : Errors.NONE.code();
+        this.sessionId = struct.hasField(SESSION_ID_KEY_NAME) ? struct.getInt(SESSION_ID_KEY_NAME) : FetchRequest.INVALID_SESSION_ID;
     }
 
     private void initCommonFields(Map<TopicPartition, PartitionData> responseData) {
@@ -155,6 +185,14 @@ public class FetchResponse extends AbstractRequestResponse {
         return this.throttleTime;
     }
 
+    public short errorCode() {
+        return this.errorCode;
+    }
+
+    public int sessionId() {
+        return this.sessionId;
+    }
+
     public static FetchResponse parse(ByteBuffer buffer) {
         return new FetchResponse(CURRENT_SCHEMA.read(buffer));
     }
@@ -103,6 +103,8 @@ public class ProduceRequest extends AbstractRequest {
 
         switch (versionId) {
             case 0:
+            case 1:
+            case 2:
                 return new ProduceResponse(responseMap, 0);
             default:
                 throw new IllegalArgumentException(String.format("Version %d is not valid. Valid versions for %s are 0 to %d",
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.requests.FetchRequest;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FetchSessionHandlerTest {
+
+    private final TopicPartition tp0 = new TopicPartition("foo", 0);
+    private final TopicPartition tp1 = new TopicPartition("foo", 1);
+    private final TopicPartition tp2 = new TopicPartition("bar", 0);
+
+    private final FetchSessionHandler handler = new FetchSessionHandler(1);
+
+    @Test
+    public void testIncrementalFetchesOnlySendChangedPartitions() {
+        FetchSessionHandler.FetchRequestData data = build(tp0, 10L, tp1, 20L);
+        assertTrue(data.isFull());
+        assertEquals(FetchRequest.INVALID_SESSION_ID, data.sessionId());
+        assertEquals(2, data.toSend().size());
+        assertTrue(handler.handleResponse(response(Errors.NONE, 123)));
+        assertEquals(123, handler.sessionId());
+
+        // only the partition whose offset changed is sent
+        data = build(tp0, 15L, tp1, 20L);
+        assertFalse(data.isFull());
+        assertEquals(123, data.sessionId());
+        assertEquals(1, data.epoch());
+        assertEquals(Collections.singleton(tp0), data.toSend().keySet());
+        assertEquals(15L, data.toSend().get(tp0).offset);
+        assertTrue(data.toForget().isEmpty());
+        assertEquals(2, data.sessionPartitions().size());
+        assertTrue(handler.handleResponse(response(Errors.NONE, 123)));
+
+        // a new partition is sent and a removed one is forgotten
+        data = build(tp1, 20L, tp2, 0L);
+        assertEquals(2, data.epoch());
+        assertEquals(Collections.singleton(tp2), data.toSend().keySet());
+        assertEquals(Arrays.asList(tp0), data.toForget());
+        assertEquals(2, data.sessionPartitions().size());
+    }
+
+    @Test
+    public void testFullFetchesWithoutSession() {
+        build(tp0, 10L, tp1, 20L);
+        assertTrue(handler.handleResponse(response(Errors.NONE, FetchRequest.INVALID_SESSION_ID)));
+
+        FetchSessionHandler.FetchRequestData data = build(tp0, 10L, tp1, 20L);
+        assertTrue(data.isFull());
+        assertEquals(2, data.toSend().size());
+    }
+
+    @Test
+    public void testSessionErrorResetsToFullFetch() {
+        build(tp0, 10L, tp1, 20L);
+        handler.handleResponse(response(Errors.NONE, 123));
+        build(tp0, 10L, tp1, 20L);
+
+        // the session is closed by the next full fetch when its epoch is invalid
+        assertFalse(handler.handleResponse(response(Errors.INVALID_FETCH_SESSION_EPOCH, 123)));
+        FetchSessionHandler.FetchRequestData data = build(tp0, 10L, tp1, 20L);
+        assertTrue(data.isFull());
+        assertEquals(123, data.sessionId());
+        assertEquals(2, data.toSend().size());
+
+        // the session is not closed when the broker does not know it
+        assertFalse(handler.handleResponse(response(Errors.FETCH_SESSION_ID_NOT_FOUND, FetchRequest.INVALID_SESSION_ID)));
+        data = build(tp0, 10L, tp1, 20L);
+        assertTrue(data.isFull());
+        assertEquals(FetchRequest.INVALID_SESSION_ID, data.sessionId());
+    }
+
+    @Test
+    public void testRequestFailureResetsToFullFetch() {
+        build(tp0, 10L, tp1, 20L);
+        handler.handleResponse(response(Errors.NONE, 123));
+        build(tp0, 15L, tp1, 20L);
+        handler.handleError(new IOException("disconnected"));
+
+        FetchSessionHandler.FetchRequestData data = build(tp0, 15L, tp1, 20L);
+        assertTrue(data.isFull());
+        assertEquals(2, data.toSend().size());
+    }
+
+    private FetchSessionHandler.FetchRequestData build(Object... partitionsAndOffsets) {
+        FetchSessionHandler.Builder builder = handler.newBuilder();
+        for (int i = 0; i < partitionsAndOffsets.length; i += 2)
+            builder.add((TopicPartition) partitionsAndOffsets[i],
+                    new FetchRequest.PartitionData((Long) partitionsAndOffsets[i + 1], 1024));
+        return builder.build();
+    }
+
+    private FetchResponse response(Errors error, int sessionId) {
+        Map<TopicPartition, FetchResponse.PartitionData> responseData = new LinkedHashMap<>();
+        return new FetchResponse(error.code(), sessionId, responseData, 0);
+    }
+}
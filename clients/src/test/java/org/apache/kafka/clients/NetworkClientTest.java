@@ -30,8 +30,11 @@ import org.apache.kafka.common.Node;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.network.NetworkReceive;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.ProtoUtils;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.requests.ApiVersionsResponse;
 import org.apache.kafka.common.requests.MetadataRequest;
 import org.apache.kafka.common.requests.ProduceRequest;
 import org.apache.kafka.common.requests.RequestHeader;
@@ -176,6 +179,60 @@ public class NetworkClientTest {
         
     }
     
+    @Test
+    public void testApiVersionsRequestedOnConnect() {
+        ApiVersions apiVersions = new ApiVersions();
+        NetworkClient client = new NetworkClient(selector, metadata, "mock", Integer.MAX_VALUE, reconnectBackoffMsTest,
+                64 * 1024, 64 * 1024, requestTimeoutMs, time, apiVersions);
+        client.ready(node, time.milliseconds());
+        client.poll(1, time.milliseconds());
+        selector.clear();
+        assertFalse("The node should not be ready before its api versions are known", client.isReady(node, time.milliseconds()));
+        assertEquals(1, client.inFlightRequestCount(node.idString()));
+
+        client.poll(1, time.milliseconds());
+        RequestSend send = (RequestSend) selector.completedSends().get(0);
+        assertEquals(ApiKeys.API_VERSIONS.id, send.header().apiKey());
+        ApiVersionsResponse response = new ApiVersionsResponse(Errors.NONE.code(),
+                Collections.singletonList(new ApiVersionsResponse.ApiVersion(ApiKeys.PRODUCE.id, (short) 0, (short) 2)));
+        ResponseHeader respHeader = new ResponseHeader(send.header().correlationId());
+        ByteBuffer buffer = ByteBuffer.allocate(respHeader.sizeOf() + response.sizeOf());
+        respHeader.writeTo(buffer);
+        response.writeTo(buffer);
+        buffer.flip();
+        selector.completeReceive(new NetworkReceive(node.idString(), buffer));
+        assertEquals("The response should not be returned", 0, client.poll(1, time.milliseconds()).size());
+
+        assertTrue("The node should be ready once its api versions are known", client.isReady(node, time.milliseconds()));
+        assertEquals(2, apiVersions.get(node.idString()).usableVersion(ApiKeys.PRODUCE));
+        assertEquals(Record.CURRENT_MAGIC_VALUE, apiVersions.maxUsableProduceMagic());
+    }
+
+    @Test
+    public void testLegacyNodeDisconnectingOnApiVersions() {
+        ApiVersions apiVersions = new ApiVersions();
+        NetworkClient client = new NetworkClient(selector, metadata, "mock", Integer.MAX_VALUE, reconnectBackoffMsTest,
+                64 * 1024, 64 * 1024, requestTimeoutMs, time, apiVersions);
+        client.ready(node, time.milliseconds());
+        client.poll(1, time.milliseconds());
+        selector.clear();
+
+        // brokers that predate the request close the connection on it
+        selector.close(node.idString());
+        client.poll(1, time.milliseconds());
+        assertEquals(1, apiVersions.get(node.idString()).usableVersion(ApiKeys.PRODUCE));
+        assertEquals(Record.MAGIC_VALUE_V0, apiVersions.maxUsableProduceMagic());
+
+        // the node is not asked again on the next connection
+        selector.clear();
+        metadata.update(cluster, time.milliseconds());
+        time.sleep(reconnectBackoffMsTest);
+        client.ready(node, time.milliseconds());
+        client.poll(1, time.milliseconds());
+        assertTrue("The node should be ready without an ApiVersions request", client.isReady(node, time.milliseconds()));
+        assertEquals(0, client.inFlightRequestCount(node.idString()));
+    }
+
     private static class TestCallbackHandler implements RequestCompletionHandler {
         public boolean executed = false;
         public ClientResponse response;
@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.Records;
+import org.junit.Test;
+
+public class AdaptiveLingerTest {
+
+    private final TopicPartition tp = new TopicPartition("test", 0);
+    private final byte[] value = new byte[100 - Records.LOG_OVERHEAD - Record.recordSize(null, new byte[0])];
+    private final int batchSize = 10 * 1000;
+
+    @Test
+    public void testNoLingerWithoutTraffic() {
+        AdaptiveLinger linger = new AdaptiveLinger(batchSize, 100L);
+        assertEquals(0L, linger.lingerMs(tp));
+
+        // a record every second, so that no other record arrives within the budget
+        for (int i = 1; i <= 5; i++)
+            linger.recordDrained(batch(1, i * 1000L), i * 1000L);
+        assertEquals(0L, linger.lingerMs(tp));
+    }
+
+    @Test
+    public void testLingerUntilBatchIsFull() {
+        AdaptiveLinger linger = new AdaptiveLinger(batchSize, 100L);
+        // 10 records of 100 bytes every 10 ms, so that a batch fills in 100 ms
+        for (int i = 1; i <= 5; i++)
+            linger.recordDrained(batch(10, i * 10L), i * 10L);
+        assertEquals(100L, linger.lingerMs(tp));
+
+        // a slower request leaves less of the budget to linger
+        linger.recordRequestLatency(50L);
+        assertEquals(90L, linger.lingerMs(tp));
+
+        // twice as many records fill a batch twice as fast
+        for (int i = 6; i <= 100; i++)
+            linger.recordDrained(batch(20, i * 10L), i * 10L);
+        assertEquals(50L, linger.lingerMs(tp));
+    }
+
+    @Test
+    public void testRetriesAreIgnored() {
+        AdaptiveLinger linger = new AdaptiveLinger(batchSize, 100L);
+        RecordBatch retry = batch(1000, 10L);
+        retry.attempts = 1;
+        linger.recordDrained(retry, 10L);
+        assertEquals(0L, linger.lingerMs(tp));
+    }
+
+    private RecordBatch batch(int records, long now) {
+        MemoryRecords memoryRecords = MemoryRecords.emptyRecords(ByteBuffer.allocate(records * 100), CompressionType.NONE);
+        RecordBatch batch = new RecordBatch(tp, memoryRecords, 0L);
+        for (int i = 0; i < records; i++)
+            batch.tryAppend(null, value, null, now);
+        batch.close();
+        return batch;
+    }
+}
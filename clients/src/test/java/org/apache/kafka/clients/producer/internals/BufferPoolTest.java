@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.Assert.assertEquals;
@@ -67,12 +68,87 @@ public class BufferPoolTest {
         pool.deallocate(buffer);
         assertEquals("All memory should be available", totalMemory, pool.availableMemory());
         assertEquals("Still a single buffer on the free list", totalMemory - size, pool.unallocatedMemory());
-        buffer = pool.allocate(2 * size, maxBlockTimeMs);
+        buffer = pool.allocate(size / 2, maxBlockTimeMs);
         pool.deallocate(buffer);
         assertEquals("All memory should be available", totalMemory, pool.availableMemory());
         assertEquals("Non-standard size didn't go to the free list.", totalMemory - size, pool.unallocatedMemory());
     }
 
+    /**
+     * Test that the hit and fragmentation ratios only cover the allocations of the recent metric windows
+     */
+    @Test
+    public void testRatiosAreWindowed() throws Exception {
+        BufferPool pool = new BufferPool(64 * 1024, 1024, metrics, time, metricGroup);
+        pool.deallocate(pool.allocate(1024, maxBlockTimeMs));
+        pool.deallocate(pool.allocate(1024, maxBlockTimeMs));
+        pool.deallocate(pool.allocate(1536, maxBlockTimeMs));
+        assertEquals("One of the three allocations was served from a free list", 1.0 / 3, metricValue("bufferpool-hit-ratio"), 0.0001);
+        assertEquals(0.25 / 3, metricValue("bufferpool-fragmentation-ratio"), 0.0001);
+
+        // once the windows have passed only the new allocations count
+        time.sleep(metrics.config().samples() * metrics.config().timeWindowMs());
+        pool.deallocate(pool.allocate(1024, maxBlockTimeMs));
+        assertEquals(1.0, metricValue("bufferpool-hit-ratio"), 0.0001);
+        assertEquals(0.0, metricValue("bufferpool-fragmentation-ratio"), 0.0001);
+    }
+
+    private double metricValue(String name) {
+        return metrics.metrics().get(metrics.metricName(name, metricGroup)).value();
+    }
+
+    /**
+     * Test that sizes larger than the poolable size are rounded up to their size class and recycled
+     */
+    @Test
+    public void testSizeClasses() throws Exception {
+        long totalMemory = 256 * 1024;
+        int size = 1024;
+        BufferPool pool = new BufferPool(totalMemory, size, metrics, time, metricGroup);
+        ByteBuffer buffer = pool.allocate(3 * size, maxBlockTimeMs);
+        assertEquals("Buffer size should be rounded up to its size class.", 4 * size, buffer.capacity());
+        assertEquals("Available memory should have shrunk by the size class", totalMemory - 4 * size, pool.availableMemory());
+        pool.deallocate(buffer);
+        assertEquals("All memory should be available", totalMemory, pool.availableMemory());
+        assertEquals("But now some is on the free list", totalMemory - 4 * size, pool.unallocatedMemory());
+        assertSame("The buffer should be recycled for its size class", buffer, pool.allocate(4 * size, maxBlockTimeMs));
+
+        // a buffer that was reallocated is not recycled
+        pool.deallocate(ByteBuffer.allocate(8 * size), 4 * size);
+        assertEquals("All memory should be available", totalMemory, pool.availableMemory());
+        assertEquals("Nothing should be on the free list", totalMemory, pool.unallocatedMemory());
+
+        // sizes larger than the largest size class are not rounded up
+        int largest = size << (BufferPool.MAX_SIZE_CLASSES - 1);
+        buffer = pool.allocate(largest + 1, maxBlockTimeMs);
+        assertEquals(largest + 1, buffer.capacity());
+        pool.deallocate(buffer);
+        assertEquals("Non-standard size didn't go to the free list.", totalMemory, pool.unallocatedMemory());
+
+        // pooled buffers are freed up for other sizes
+        pool.deallocate(pool.allocate(2 * size, maxBlockTimeMs));
+        buffer = pool.allocate((int) totalMemory, maxBlockTimeMs);
+        assertEquals("All memory should be allocated", 0, pool.availableMemory());
+        pool.deallocate(buffer);
+        assertEquals("All memory should be available", totalMemory, pool.availableMemory());
+    }
+
+    @Test
+    public void testDirectBuffers() throws Exception {
+        long totalMemory = 64 * 1024;
+        int size = 1024;
+        BufferPool pool = new BufferPool(totalMemory, size, true, metrics, time, metricGroup);
+        ByteBuffer buffer = pool.allocate(size, maxBlockTimeMs);
+        assertTrue("Buffer should be direct", buffer.isDirect());
+        pool.deallocate(buffer);
+        assertSame("The buffer should be recycled", buffer, pool.allocate(size, maxBlockTimeMs));
+
+        // a heap buffer does not go to the free list of a pool of direct buffers
+        pool.deallocate(ByteBuffer.allocate(size));
+        assertEquals("All memory should be available", totalMemory, pool.availableMemory());
+        assertEquals("Nothing should be on the free list", totalMemory, pool.unallocatedMemory());
+    }
+
     /**
      * Test that we cannot try to allocate more memory then we have in the whole pool
      */
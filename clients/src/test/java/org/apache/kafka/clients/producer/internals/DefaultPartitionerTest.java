@@ -14,12 +14,14 @@ package org.apache.kafka.clients.producer.internals;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Collections;
 import java.util.List;
 
 import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
@@ -61,4 +63,24 @@ public class DefaultPartitionerTest {
         }
         assertEquals("The distribution between two available partitions should be even", countForPart0, countForPart2);
     }
+
+    @Test
+    public void testStickyPartitionSwitchesOnNewBatch() {
+        DefaultPartitioner stickyPartitioner = new DefaultPartitioner();
+        stickyPartitioner.configure(Collections.singletonMap(ProducerConfig.PARTITIONER_STICKY_ENABLE_CONFIG, "true"));
+        assertTrue(stickyPartitioner.isSticky());
+
+        int part = stickyPartitioner.partition("test", null, null, null, null, cluster);
+        assertTrue("We should never choose a leader-less node", part == 0 || part == 2);
+        for (int i = 0; i < 10; i++)
+            assertEquals("Records without a key stick to the same partition", part, stickyPartitioner.partition("test", null, null, null, null, cluster));
+
+        int next = stickyPartitioner.onNewBatch("test", cluster, part);
+        assertNotEquals("A new batch switches to another available partition", part, next);
+        assertTrue(next == 0 || next == 2);
+        assertEquals(next, stickyPartitioner.partition("test", null, null, null, null, cluster));
+
+        // a thread that is late to switch keeps the partition another thread switched to
+        assertEquals(next, stickyPartitioner.onNewBatch("test", cluster, part));
+    }
 }
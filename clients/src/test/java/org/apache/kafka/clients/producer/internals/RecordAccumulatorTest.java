@@ -16,6 +16,9 @@ import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -36,6 +39,7 @@ import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.LogEntry;
+import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.Record;
 import org.apache.kafka.common.record.Records;
 import org.apache.kafka.common.utils.MockTime;
@@ -103,6 +107,20 @@ public class RecordAccumulatorTest {
         assertEquals("Our partition's leader should be ready", Collections.singleton(node1), accum.ready(cluster, time.milliseconds()).readyNodes);
     }
 
+    @Test
+    public void testAbortOnNewBatch() throws Exception {
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, 10L, 100L, metrics, time);
+        RecordAccumulator.RecordAppendResult result = accum.append(tp1, key, value, null, maxBlockTimeMs, true);
+        assertTrue("No batch should be created for the partition", result.abortedForNewBatch);
+        assertNull(result.future);
+        assertFalse(accum.hasUnsent());
+
+        accum.append(tp1, key, value, null, maxBlockTimeMs);
+        result = accum.append(tp1, key, value, null, maxBlockTimeMs, true);
+        assertFalse("The record should be appended to the existing batch", result.abortedForNewBatch);
+        assertNotNull(result.future);
+    }
+
     @Test
     public void testLinger() throws Exception {
         long lingerMs = 10L;
@@ -122,6 +140,32 @@ public class RecordAccumulatorTest {
         assertFalse("No more records", iter.hasNext());
     }
 
+    @Test
+    public void testAdaptiveLinger() throws Exception {
+        // a static linger of a second, which the adaptive linger replaces
+        RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, false, false, false, 1000L, 100L, 100L, metrics, time);
+        accum.append(tp1, key, value, null, maxBlockTimeMs);
+        assertEquals("Without traffic the partition should not linger", 0L, accum.lingerMs(tp1));
+        assertEquals("Our partition's leader should be ready", Collections.singleton(node1), accum.ready(cluster, time.milliseconds()).readyNodes);
+        accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, time.milliseconds());
+
+        // a few records every 10 ms fill a batch within the latency budget
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 4; j++)
+                accum.append(tp1, key, value, null, maxBlockTimeMs);
+            time.sleep(10);
+            for (RecordBatch batch : accum.drain(cluster, Collections.singleton(node1), Integer.MAX_VALUE, time.milliseconds()).get(node1.id()))
+                accum.deallocate(batch);
+        }
+        long lingerMs = accum.lingerMs(tp1);
+        assertTrue("The partition should linger within the latency budget, not " + lingerMs, lingerMs > 0 && lingerMs < 100);
+
+        accum.append(tp1, key, value, null, maxBlockTimeMs);
+        assertEquals("No partitions should be ready", 0, accum.ready(cluster, time.milliseconds()).readyNodes.size());
+        time.sleep(lingerMs);
+        assertEquals("Our partition's leader should be ready", Collections.singleton(node1), accum.ready(cluster, time.milliseconds()).readyNodes);
+    }
+
     @Test
     public void testPartialDrain() throws Exception {
         RecordAccumulator accum = new RecordAccumulator(1024, 10 * 1024, CompressionType.NONE, 10L, 100L, metrics, time);
@@ -178,6 +222,117 @@ public class RecordAccumulatorTest {
             t.join();
     }
 
+    @Test
+    public void testFailedConcurrentAppendFailsTheBatch() throws Exception {
+        MemoryRecords records = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), CompressionType.NONE);
+        // a record appended directly leaves no room for records written at a position
+        records.append(0L, key, value);
+        RecordBatch batch = new RecordBatch(tp1, records, time.milliseconds(), true);
+        try {
+            batch.tryAppend(key, value, null, time.milliseconds());
+            fail("The record should not have been written");
+        } catch (IllegalStateException e) {
+            // this is good
+        }
+
+        // the batch is closed without waiting for the failed append
+        batch.close();
+        assertTrue(batch.appendsFailed());
+    }
+
+    @Test
+    public void testAppendsRacingTheCloseOfTheBatchAreCompleted() throws Exception {
+        final int numThreads = 4;
+        MemoryRecords records = MemoryRecords.emptyRecords(ByteBuffer.allocate(64 * 1024), CompressionType.NONE);
+        final RecordBatch batch = new RecordBatch(tp1, records, time.milliseconds(), true);
+        final AtomicInteger completed = new AtomicInteger(0);
+        final Callback callback = new Callback() {
+            public void onCompletion(RecordMetadata metadata, Exception exception) {
+                completed.incrementAndGet();
+            }
+        };
+        final List<FutureRecordMetadata> futures = Collections.synchronizedList(new ArrayList<FutureRecordMetadata>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    FutureRecordMetadata future;
+                    while ((future = batch.tryAppend(key, value, callback, time.milliseconds())) != null)
+                        futures.add(future);
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        while (futures.isEmpty())
+            Thread.yield();
+
+        // the appends that are still writing their records when the batch is closed fail the batch and are failed
+        batch.close();
+        if (batch.appendsFailed())
+            batch.done(-1L, new RuntimeException("The batch was failed"));
+        else
+            batch.done(0L, null);
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals("Every callback should be completed once", futures.size(), completed.get());
+        for (FutureRecordMetadata future : futures)
+            assertTrue("Every future should be completed", future.isDone());
+    }
+
+    @Test
+    public void testConcurrentAppendsWhileDraining() throws Exception {
+        final int numThreads = 4;
+        final int msgs = 5000;
+        final RecordAccumulator accum = new RecordAccumulator(1024, 64 * 1024, CompressionType.NONE, false, true, false, 0L, -1L, 100L, metrics, time);
+        final List<Long> completedOffsets = Collections.synchronizedList(new ArrayList<Long>());
+        final Callback callback = new Callback() {
+            public void onCompletion(RecordMetadata metadata, Exception exception) {
+                completedOffsets.add(metadata.offset());
+            }
+        };
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            threads.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < msgs; i++) {
+                        try {
+                            accum.append(tp1, key, value, callback, maxBlockTimeMs);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        long baseOffset = 0;
+        while (baseOffset < numThreads * msgs) {
+            Set<Node> nodes = accum.ready(cluster, time.milliseconds()).readyNodes;
+            List<RecordBatch> batches = accum.drain(cluster, nodes, 5 * 1024, 0).get(node1.id());
+            if (batches != null) {
+                for (RecordBatch batch : batches) {
+                    // the records written by appenders racing with the drain are in the batch, in offset order
+                    long expectedOffset = 0;
+                    for (LogEntry entry : batch.records)
+                        assertEquals(expectedOffset++, entry.offset());
+                    assertEquals(expectedOffset, batch.recordCount);
+                    batch.done(baseOffset, null);
+                    baseOffset += batch.recordCount;
+                    accum.deallocate(batch);
+                }
+            }
+        }
+
+        for (Thread t : threads)
+            t.join();
+        assertEquals(numThreads * msgs, completedOffsets.size());
+        for (int i = 0; i < completedOffsets.size(); i++)
+            assertEquals("Callbacks should be completed in offset order", (long) i, (long) completedOffsets.get(i));
+    }
+
 
     @Test
     public void testNextReadyCheckDelay() throws Exception {
@@ -17,14 +17,18 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
+import org.apache.kafka.clients.ApiVersions;
 import org.apache.kafka.clients.Metadata;
 import org.apache.kafka.clients.MockClient;
+import org.apache.kafka.clients.NodeApiVersions;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.MetricName;
@@ -36,7 +40,13 @@ import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.types.Struct;
 import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.LogEntry;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.Records;
+import org.apache.kafka.common.requests.ProduceRequest;
 import org.apache.kafka.common.requests.ProduceResponse;
+import org.apache.kafka.common.requests.RequestSend;
 import org.apache.kafka.common.utils.MockTime;
 import org.apache.kafka.test.TestUtils;
 import org.junit.After;
@@ -177,6 +187,82 @@ public class SenderTest {
         }
     }
 
+    @Test
+    public void testProduceToBrokerWithoutApiVersions() throws Exception {
+        ApiVersions apiVersions = new ApiVersions();
+        Metrics m = new Metrics();
+        try {
+            Sender sender = new Sender(client,
+                                       metadata,
+                                       this.accumulator,
+                                       MAX_REQUEST_SIZE,
+                                       ACKS_ALL,
+                                       MAX_RETRIES,
+                                       m,
+                                       time,
+                                       CLIENT_ID,
+                                       REQUEST_TIMEOUT,
+                                       apiVersions);
+            // the batch is written with the current magic value before the broker is known to predate it
+            Future<RecordMetadata> future = accumulator.append(tp, "key".getBytes(), "value".getBytes(), null, MAX_BLOCK_TIMEOUT).future;
+            apiVersions.update("0", NodeApiVersions.legacy());
+            sender.run(time.milliseconds()); // connect
+            sender.run(time.milliseconds()); // send produce request
+
+            RequestSend send = client.requests().peek().request();
+            assertEquals(1, send.header().apiVersion());
+            ByteBuffer records = new ProduceRequest(send.body()).partitionRecords().get(tp);
+            Iterator<LogEntry> iter = MemoryRecords.readableRecords(records).iterator();
+            LogEntry entry = iter.next();
+            assertEquals(Record.MAGIC_VALUE_V0, entry.record().magic());
+            assertEquals(ByteBuffer.wrap("value".getBytes()), entry.record().value());
+            assertFalse(iter.hasNext());
+
+            client.respond(produceResponse(tp, 0L, Errors.NONE.code(), 0));
+            sender.run(time.milliseconds());
+            assertTrue("Request should be completed", future.isDone());
+        } finally {
+            m.close();
+        }
+    }
+
+    @Test
+    public void testTopicLingerAndBatchFillMetrics() throws Exception {
+        long lingerMs = 5L;
+        Metrics m = new Metrics(time);
+        try {
+            RecordAccumulator accumulator = new RecordAccumulator(batchSize, 1024 * 1024, CompressionType.NONE, lingerMs, 0L, m, time);
+            Sender sender = new Sender(client,
+                                       metadata,
+                                       accumulator,
+                                       MAX_REQUEST_SIZE,
+                                       ACKS_ALL,
+                                       MAX_RETRIES,
+                                       m,
+                                       time,
+                                       CLIENT_ID,
+                                       REQUEST_TIMEOUT);
+            byte[] key = "key".getBytes();
+            byte[] value = "value".getBytes();
+            for (int i = 0; i < 3; i++)
+                accumulator.append(tp, key, value, null, MAX_BLOCK_TIMEOUT);
+            time.sleep(lingerMs);
+            sender.run(time.milliseconds()); // connect
+            sender.run(time.milliseconds()); // send produce request
+            assertEquals("We should have a single produce request in flight.", 1, client.inFlightRequestCount());
+
+            Map<MetricName, KafkaMetric> allMetrics = m.metrics();
+            Map<String, String> tags = Collections.singletonMap("topic", tp.topic());
+            assertEquals(lingerMs, allMetrics.get(m.metricName("linger-ms-avg", "producer-topic-metrics", "", tags)).value(), EPS);
+            assertEquals(lingerMs, allMetrics.get(m.metricName("linger-ms-max", "producer-topic-metrics", "", tags)).value(), EPS);
+            int batchBytes = 3 * (Records.LOG_OVERHEAD + Record.recordSize(key, value));
+            assertEquals((double) batchBytes / batchSize,
+                         allMetrics.get(m.metricName("batch-fill-ratio-avg", "producer-topic-metrics", "", tags)).value(), EPS);
+        } finally {
+            m.close();
+        }
+    }
+
     private void completedWithError(Future<RecordMetadata> future, Errors error) throws Exception {
         assertTrue("Request should be completed", future.isDone());
         try {
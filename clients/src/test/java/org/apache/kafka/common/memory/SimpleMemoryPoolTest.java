@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Total;
+import org.apache.kafka.common.utils.MockTime;
+import org.junit.Test;
+
+public class SimpleMemoryPoolTest {
+
+    private final MockTime time = new MockTime();
+
+    @Test
+    public void testAllocateAndRelease() {
+        SimpleMemoryPool pool = new SimpleMemoryPool(100, 60, time, null);
+        ByteBuffer first = pool.tryAllocate(60);
+        assertEquals(60, first.capacity());
+        assertEquals(40, pool.availableMemory());
+        assertFalse(pool.isOutOfMemory());
+
+        // a buffer is allocated as long as some memory is available
+        ByteBuffer second = pool.tryAllocate(60);
+        assertNotNull(second);
+        assertEquals(-20, pool.availableMemory());
+        assertTrue(pool.isOutOfMemory());
+        assertNull(pool.tryAllocate(1));
+
+        pool.release(first);
+        assertEquals(40, pool.availableMemory());
+        assertFalse(pool.isOutOfMemory());
+        pool.release(second);
+        assertEquals(100, pool.availableMemory());
+        assertEquals(100, pool.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAllocateLargerThanMaxSingleAllocation() {
+        new SimpleMemoryPool(100, 60, time, null).tryAllocate(61);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxSingleAllocationLargerThanPool() {
+        new SimpleMemoryPool(100, 101, time, null);
+    }
+
+    @Test
+    public void testDepletedTime() {
+        Metrics metrics = new Metrics(time);
+        try {
+            Sensor sensor = metrics.sensor("depleted");
+            MetricName total = metrics.metricName("depleted-time-total", "test");
+            sensor.add(total, new Total());
+            SimpleMemoryPool pool = new SimpleMemoryPool(100, 100, time, sensor);
+
+            ByteBuffer buffer = pool.tryAllocate(100);
+            time.sleep(10);
+            assertNull(pool.tryAllocate(10));
+            time.sleep(20);
+            assertNull(pool.tryAllocate(10));
+            time.sleep(30);
+            pool.release(buffer);
+            assertEquals((double) TimeUnit.MILLISECONDS.toNanos(50), metrics.metrics().get(total).value(), 0.0);
+        } finally {
+            metrics.close();
+        }
+    }
+}
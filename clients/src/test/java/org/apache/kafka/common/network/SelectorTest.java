@@ -22,6 +22,8 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.ByteBuffer;
 
+import org.apache.kafka.common.memory.MemoryPool;
+import org.apache.kafka.common.memory.SimpleMemoryPool;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.utils.MockTime;
 import org.apache.kafka.common.utils.Time;
@@ -248,6 +250,38 @@ public class SelectorTest {
         assertEquals("The response should be from the previously muted node", "1", selector.completedReceives().get(0).source());
     }
 
+    @Test
+    public void testReadsStopWhenOutOfMemory() throws Exception {
+        this.selector.close();
+        // room for a single response
+        MemoryPool pool = new SimpleMemoryPool(10, 10, time, null);
+        this.selector = new Selector(NetworkReceive.UNLIMITED, 5000, metrics, time, "MetricGroup", new HashMap<String, String>(), true, channelBuilder, pool);
+        blockingConnect("0");
+        blockingConnect("1");
+
+        selector.send(createSend("0", "0123456789"));
+        selector.send(createSend("1", "9876543210"));
+        while (selector.completedReceives().isEmpty())
+            selector.poll(5);
+        assertEquals("We should have only one response", 1, selector.completedReceives().size());
+        NetworkReceive first = selector.completedReceives().get(0);
+        assertTrue(pool.isOutOfMemory());
+
+        for (int i = 0; i < 20; i++) {
+            selector.poll(5);
+            assertTrue("No response should be read without memory", selector.completedReceives().isEmpty());
+        }
+
+        first.release();
+        do {
+            selector.poll(5);
+        } while (selector.completedReceives().isEmpty());
+        assertEquals("We should have only one response", 1, selector.completedReceives().size());
+        NetworkReceive second = selector.completedReceives().get(0);
+        assertEquals(first.source().equals("0") ? "9876543210" : "0123456789", asString(second));
+        second.release();
+        assertEquals(10, pool.availableMemory());
+    }
 
     @Test
     public void testCloseOldestConnection() throws Exception {
@@ -26,9 +26,11 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.io.IOException;
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
@@ -59,6 +61,7 @@ public class SslTransportLayerTest {
     private SslEchoServer server;
     private Selector selector;
     private ChannelBuilder channelBuilder;
+    private TestSslTransportLayer transportLayer;
     private CertStores serverCertStores;
     private CertStores clientCertStores;
     private Map<String, Object> sslClientConfigs;
@@ -389,6 +392,59 @@ public class SslTransportLayerTest {
         testClientConnection(node, 64000, 10);
     }
 
+    /**
+     * Tests that transferFrom only returns the bytes of the file that were written when the socket cannot take all of
+     * them, so that the bytes left in the transfer buffer are read from the file again by the next call.
+     */
+    @Test
+    public void testTransferFromWithPartialWrites() throws Exception {
+        String node = "0";
+        createEchoServer(sslServerConfigs);
+        createSelector(sslClientConfigs);
+        InetSocketAddress addr = new InetSocketAddress("localhost", server.port);
+        // the small send buffer fills up long before the whole file is transferred
+        selector.connect(node, addr, BUFFER_SIZE, BUFFER_SIZE);
+        while (!selector.isChannelReady(node))
+            selector.poll(1000L);
+
+        String payload = TestUtils.randomString(1024 * 1024);
+        File file = File.createTempFile("transfer", ".log");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(4 + payload.length());
+            buffer.putInt(payload.length());
+            buffer.put(payload.getBytes());
+            buffer.flip();
+            fileChannel.write(buffer);
+            long size = fileChannel.size();
+
+            List<NetworkReceive> receives = new ArrayList<>();
+            long position = 0;
+            int partialTransfers = 0;
+            while (position < size || transportLayer.hasPendingWrites()) {
+                long transferred = transportLayer.transferFrom(fileChannel, position, size - position);
+                assertTrue(transferred >= 0 && transferred <= size - position);
+                if (position + transferred < size)
+                    partialTransfers++;
+                position += transferred;
+                selector.poll(10L);
+                receives.addAll(selector.completedReceives());
+            }
+            assertTrue("The socket should have filled up before the file was transferred", partialTransfers > 0);
+
+            while (receives.isEmpty()) {
+                selector.poll(1000L);
+                assertEquals("No disconnects should have occurred.", 0, selector.disconnected().size());
+                receives.addAll(selector.completedReceives());
+            }
+            assertEquals(1, receives.size());
+            assertEquals(payload, new String(Utils.toArray(receives.get(0).payload())));
+        } finally {
+            fileChannel.close();
+        }
+    }
+
     private void testClientConnection(String node, int minMessageSize, int messageCount) throws Exception {
 
         String prefix = TestUtils.randomString(minMessageSize);
@@ -445,7 +501,7 @@ public class SslTransportLayerTest {
                 SocketChannel socketChannel = (SocketChannel) key.channel();
                 SSLEngine sslEngine = sslFactory.createSslEngine(socketChannel.socket().getInetAddress().getHostName(),
                                 socketChannel.socket().getPort());
-                TestSslTransportLayer transportLayer = new TestSslTransportLayer(id, key, sslEngine, netReadBufSize, netWriteBufSize, appBufSize);
+                transportLayer = new TestSslTransportLayer(id, key, sslEngine, netReadBufSize, netWriteBufSize, appBufSize);
                 transportLayer.startHandshake();
                 return transportLayer;
             }
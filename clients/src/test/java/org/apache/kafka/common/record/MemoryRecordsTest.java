@@ -71,6 +71,110 @@ public class MemoryRecordsTest {
         }
     }
 
+    @Test
+    public void testIteratorWithRelativeOffsets() {
+        if (compression == CompressionType.NONE)
+            return;
+        MemoryRecords recs = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), compression);
+        for (int i = 0; i < 3; i++)
+            recs.append(i, ("key" + i).getBytes(), ("value" + i).getBytes());
+        recs.close();
+
+        // the broker only rewrites the offset of the wrapper to the absolute offset of the last record
+        ByteBuffer buffer = recs.buffer();
+        buffer.putLong(0, 102L);
+        Iterator<LogEntry> iter = MemoryRecords.readableRecords(buffer).iterator();
+        for (long offset = 100; offset < 103; offset++) {
+            assertTrue(iter.hasNext());
+            assertEquals(offset, iter.next().offset());
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testDeferredCompression() {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        MemoryRecords recs = MemoryRecords.emptyRecords(buffer, compression, 1024, true);
+        for (int i = 0; i < 3; i++)
+            recs.append(i, 10L + i, ("key" + i).getBytes(), ("value" + i).getBytes());
+        recs.close();
+
+        // the records are compressed on close, back into the buffer they were appended to
+        assertEquals(buffer.array(), recs.buffer().array());
+        Iterator<LogEntry> shallow = new MemoryRecords.RecordsIterator(recs.buffer(), CompressionType.NONE, true);
+        assertEquals(compression, shallow.next().record().compressionType());
+        Iterator<LogEntry> iter = recs.iterator();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(iter.hasNext());
+            LogEntry entry = iter.next();
+            assertEquals((long) i, entry.offset());
+            assertEquals(10L + i, entry.record().timestamp());
+            assertEquals(ByteBuffer.wrap(("value" + i).getBytes()), entry.record().value());
+            entry.record().ensureValid();
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testDirectBuffer() {
+        // too small for the records, so that it is also expanded
+        MemoryRecords recs = MemoryRecords.emptyRecords(ByteBuffer.allocateDirect(64), compression);
+        for (int i = 0; i < 3; i++)
+            recs.append(i, ("key" + i).getBytes(), ("value" + i).getBytes());
+        recs.close();
+
+        Iterator<LogEntry> iter = recs.iterator();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(iter.hasNext());
+            LogEntry entry = iter.next();
+            assertEquals((long) i, entry.offset());
+            assertEquals(ByteBuffer.wrap(("value" + i).getBytes()), entry.record().value());
+            entry.record().ensureValid();
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testHasRoomForReservedRecords() {
+        MemoryRecords recs = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), compression, 512);
+        assertTrue(recs.hasRoomFor(0, 0, 1024));
+        assertTrue(recs.hasRoomFor(256, 2, 256));
+        assertFalse(recs.hasRoomFor(256, 2, 257));
+        recs.close();
+
+        // closed records have no room, whatever is reserved
+        assertFalse(recs.hasRoomFor(0, 0, 100));
+        assertFalse(recs.hasRoomFor(100, 1, 100));
+    }
+
+    @Test
+    public void testToMagic() {
+        MemoryRecords recs = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), compression);
+        for (int i = 0; i < 3; i++)
+            recs.append(i, 10L + i, ("key" + i).getBytes(), ("value" + i).getBytes());
+        recs.close();
+
+        MemoryRecords converted = recs.toMagic(Record.MAGIC_VALUE_V0);
+        assertEquals(Record.MAGIC_VALUE_V0, converted.magic());
+        Iterator<LogEntry> shallow = new MemoryRecords.RecordsIterator(converted.buffer(), CompressionType.NONE, true);
+        Record wrapper = shallow.next().record();
+        assertEquals(compression, wrapper.compressionType());
+        assertEquals(Record.MAGIC_VALUE_V0, wrapper.magic());
+        wrapper.ensureValid();
+        Iterator<LogEntry> iter = converted.iterator();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(iter.hasNext());
+            LogEntry entry = iter.next();
+            assertEquals((long) i, entry.offset());
+            assertEquals(Record.MAGIC_VALUE_V0, entry.record().magic());
+            assertEquals(Record.NO_TIMESTAMP, entry.record().timestamp());
+            assertEquals(ByteBuffer.wrap(("key" + i).getBytes()), entry.record().key());
+            assertEquals(ByteBuffer.wrap(("value" + i).getBytes()), entry.record().value());
+            entry.record().ensureValid();
+        }
+        assertFalse(iter.hasNext());
+    }
+
     @Parameterized.Parameters
     public static Collection<Object[]> data() {
         List<Object[]> values = new ArrayList<Object[]>();
@@ -55,6 +55,8 @@ public class RecordTest {
         if (key != null)
             assertEquals(key.limit(), record.keySize());
         assertEquals(Record.CURRENT_MAGIC_VALUE, record.magic());
+        assertEquals(Record.NO_TIMESTAMP, record.timestamp());
+        assertEquals(TimestampType.CREATE_TIME, record.timestampType());
         assertEquals(value, record.value());
         if (value != null)
             assertEquals(value.limit(), record.valueSize());
@@ -81,6 +83,20 @@ public class RecordTest {
         }
     }
 
+    @Test
+    public void testTimestamp() {
+        Record stamped = new Record(1234L, this.key == null ? null : this.key.array(),
+            this.value == null ? null : this.value.array(), this.compression, 0, -1);
+        assertEquals(1234L, stamped.timestamp());
+        assertEquals(key, stamped.key());
+        assertEquals(value, stamped.value());
+        assertEquals(stamped.checksum(), Record.computeChecksum(1234L,
+            this.key == null ? null : this.key.array(),
+            this.value == null ? null : this.value.array(),
+            this.compression, 0, -1));
+        assertTrue(stamped.isValid());
+    }
+
     private Record copyOf(Record record) {
         ByteBuffer buffer = ByteBuffer.allocate(record.size());
         record.buffer().put(buffer);
@@ -51,8 +51,9 @@ public class RequestResponseTest {
                 createControlledShutdownResponse(),
                 createControlledShutdownRequest().getErrorResponse(1, new UnknownServerException()),
                 createFetchRequest(),
-                createFetchRequest().getErrorResponse(0, new UnknownServerException()),
+                createFetchRequest().getErrorResponse(2, new UnknownServerException()),
                 createFetchResponse(),
+                createIncrementalFetchRequest(),
                 createHeartBeatRequest(),
                 createHeartBeatRequest().getErrorResponse(0, new UnknownServerException()),
                 createHeartBeatResponse(),
@@ -65,6 +66,9 @@ public class RequestResponseTest {
                 createListGroupsRequest(),
                 createListGroupsRequest().getErrorResponse(0, new UnknownServerException()),
                 createListGroupsResponse(),
+                createApiVersionsRequest(),
+                createApiVersionsRequest().getErrorResponse(0, new UnknownServerException()),
+                createApiVersionsResponse(),
                 createDescribeGroupRequest(),
                 createDescribeGroupRequest().getErrorResponse(0, new UnknownServerException()),
                 createDescribeGroupResponse(),
@@ -99,6 +103,12 @@ public class RequestResponseTest {
 
         checkSerialization(createUpdateMetadataRequest(0), 0);
         checkSerialization(createUpdateMetadataRequest(0).getErrorResponse(0, new UnknownServerException()), 0);
+        checkSerialization(createFetchRequest().getErrorResponse(0, new UnknownServerException()), 0);
+        checkSerialization(createFetchRequest().getErrorResponse(1, new UnknownServerException()), 1);
+        checkSerialization(createProduceRequest(), 1);
+        checkSerialization(createProduceRequest(), 2);
+        checkSerialization(createProduceRequest().getErrorResponse(1, new UnknownServerException()), null);
+        checkSerialization(createProduceRequest().getErrorResponse(2, new UnknownServerException()), null);
     }
 
     private void checkSerialization(AbstractRequestResponse req, Integer version) throws Exception {
@@ -133,6 +143,49 @@ public class RequestResponseTest {
         assertEquals("Response data does not match", responseData, v1Response.responses());
     }
 
+    @Test
+    public void produceRequestVersionTest() {
+        assertEquals("Produce v2 should be the latest version", 2, ProtoUtils.latestVersion(ApiKeys.PRODUCE.id));
+        assertEquals("Produce v2 request should have the schema of v1",
+                ProtoUtils.requestSchema(ApiKeys.PRODUCE.id, 1), ProtoUtils.requestSchema(ApiKeys.PRODUCE.id, 2));
+        assertEquals("Produce v2 response should have the schema of v1",
+                ProtoUtils.responseSchema(ApiKeys.PRODUCE.id, 1), ProtoUtils.responseSchema(ApiKeys.PRODUCE.id, 2));
+
+        // a request written by a client that still sends v1 is read the same way at v2
+        AbstractRequest request = createProduceRequest();
+        ByteBuffer buffer = ByteBuffer.allocate(request.sizeOf());
+        request.writeTo(buffer);
+        buffer.rewind();
+        ProduceRequest v1Request = ProduceRequest.parse(buffer, 1);
+        buffer.rewind();
+        ProduceRequest v2Request = ProduceRequest.parse(buffer, 2);
+        assertEquals("Acks does not match", v1Request.acks(), v2Request.acks());
+        assertEquals("Timeout does not match", v1Request.timeout(), v2Request.timeout());
+        assertEquals("Request data does not match", v1Request.partitionRecords(), v2Request.partitionRecords());
+    }
+
+    @Test
+    public void apiVersionsResponseTest() {
+        List<ApiVersionsResponse.ApiVersion> apiVersions = new ArrayList<>();
+        for (ApiKeys api : ApiKeys.values())
+            apiVersions.add(new ApiVersionsResponse.ApiVersion(api.id, (short) 0, ProtoUtils.latestVersion(api.id)));
+        ApiVersionsResponse response = new ApiVersionsResponse(Errors.NONE.code(), apiVersions);
+
+        ByteBuffer buffer = ByteBuffer.allocate(response.sizeOf());
+        response.writeTo(buffer);
+        buffer.rewind();
+        ApiVersionsResponse deserialized = ApiVersionsResponse.parse(buffer);
+
+        assertEquals("Error code does not match", Errors.NONE.code(), deserialized.errorCode());
+        assertEquals("Every api should be listed", ApiKeys.values().length, deserialized.apiVersions().size());
+        for (ApiVersionsResponse.ApiVersion apiVersion : deserialized.apiVersions()) {
+            assertEquals("Min version of " + ApiKeys.forId(apiVersion.apiKey) + " does not match", 0, apiVersion.minVersion);
+            assertEquals("Max version of " + ApiKeys.forId(apiVersion.apiKey) + " does not match",
+                    ProtoUtils.latestVersion(apiVersion.apiKey), apiVersion.maxVersion);
+        }
+        assertEquals("An api versions request should have no body", 0, createApiVersionsRequest().sizeOf());
+    }
+
     @Test
     public void fetchResponseVersionTest() {
         Map<TopicPartition, FetchResponse.PartitionData> responseData = new HashMap<TopicPartition, FetchResponse.PartitionData>();
@@ -140,12 +193,18 @@ public class RequestResponseTest {
 
         FetchResponse v0Response = new FetchResponse(responseData);
         FetchResponse v1Response = new FetchResponse(responseData, 10);
+        FetchResponse v2Response = new FetchResponse(Errors.NONE.code(), 123, responseData, 10);
         assertEquals("Throttle time must be zero", 0, v0Response.getThrottleTime());
         assertEquals("Throttle time must be 10", 10, v1Response.getThrottleTime());
+        assertEquals("Throttle time must be 10", 10, v2Response.getThrottleTime());
         assertEquals("Should use schema version 0", ProtoUtils.responseSchema(ApiKeys.FETCH.id, 0), v0Response.toStruct().schema());
         assertEquals("Should use schema version 1", ProtoUtils.responseSchema(ApiKeys.FETCH.id, 1), v1Response.toStruct().schema());
+        assertEquals("Should use schema version 2", ProtoUtils.responseSchema(ApiKeys.FETCH.id, 2), v2Response.toStruct().schema());
+        assertEquals("Session id must be 0", FetchRequest.INVALID_SESSION_ID, v1Response.sessionId());
+        assertEquals("Session id must be 123", 123, v2Response.sessionId());
         assertEquals("Response data does not match", responseData, v0Response.responseData());
         assertEquals("Response data does not match", responseData, v1Response.responseData());
+        assertEquals("Response data does not match", responseData, v2Response.responseData());
     }
 
     @Test
@@ -183,10 +242,17 @@ public class RequestResponseTest {
         return new FetchRequest(-1, 100, 100000, fetchData);
     }
 
+    private AbstractRequest createIncrementalFetchRequest() {
+        Map<TopicPartition, FetchRequest.PartitionData> fetchData = new HashMap<TopicPartition, FetchRequest.PartitionData>();
+        fetchData.put(new TopicPartition("test1", 0), new FetchRequest.PartitionData(100, 1000000));
+        List<TopicPartition> toForget = Arrays.asList(new TopicPartition("test2", 0), new TopicPartition("test2", 1));
+        return new FetchRequest(2, 1, 100, 100000, fetchData, 123, 5, toForget);
+    }
+
     private AbstractRequestResponse createFetchResponse() {
         Map<TopicPartition, FetchResponse.PartitionData> responseData = new HashMap<TopicPartition, FetchResponse.PartitionData>();
         responseData.put(new TopicPartition("test", 0), new FetchResponse.PartitionData(Errors.NONE.code(), 1000000, ByteBuffer.allocate(10)));
-        return new FetchResponse(responseData, 0);
+        return new FetchResponse(Errors.NONE.code(), 123, responseData, 0);
     }
 
     private AbstractRequest createHeartBeatRequest() {
@@ -220,6 +286,15 @@ public class RequestResponseTest {
         return new ListGroupsResponse(Errors.NONE.code(), groups);
     }
 
+    private AbstractRequest createApiVersionsRequest() {
+        return new ApiVersionsRequest();
+    }
+
+    private AbstractRequestResponse createApiVersionsResponse() {
+        List<ApiVersionsResponse.ApiVersion> apiVersions = Arrays.asList(new ApiVersionsResponse.ApiVersion((short) 0, (short) 0, (short) 2));
+        return new ApiVersionsResponse(Errors.NONE.code(), apiVersions);
+    }
+
     private AbstractRequest createDescribeGroupRequest() {
         return new DescribeGroupsRequest(Collections.singletonList("test-group"));
     }
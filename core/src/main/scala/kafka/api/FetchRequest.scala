@@ -37,6 +37,10 @@ object FetchRequest {
   val DefaultMaxWait = 0
   val DefaultMinBytes = 0
   val DefaultCorrelationId = 0
+  // a fetch request without a session id and with the final epoch does not use an incremental fetch session
+  val InvalidSessionId = 0
+  val InitialEpoch = 0
+  val FinalEpoch = -1
 
   def readFrom(buffer: ByteBuffer): FetchRequest = {
     val versionId = buffer.getShort
@@ -45,6 +49,9 @@ object FetchRequest {
     val replicaId = buffer.getInt
     val maxWait = buffer.getInt
     val minBytes = buffer.getInt
+    val (sessionId, sessionEpoch) =
+      if (versionId >= 2) (buffer.getInt, buffer.getInt)
+      else (InvalidSessionId, FinalEpoch)
     val topicCount = buffer.getInt
     val pairs = (1 to topicCount).flatMap(_ => {
       val topic = readShortString(buffer)
@@ -56,7 +63,17 @@ object FetchRequest {
         (TopicAndPartition(topic, partitionId), PartitionFetchInfo(offset, fetchSize))
       })
     })
-    FetchRequest(versionId, correlationId, clientId, replicaId, maxWait, minBytes, Map(pairs:_*))
+    val forgotten =
+      if (versionId >= 2) {
+        val forgottenTopicCount = buffer.getInt
+        (1 to forgottenTopicCount).flatMap(_ => {
+          val topic = readShortString(buffer)
+          val partitionCount = buffer.getInt
+          (1 to partitionCount).map(_ => TopicAndPartition(topic, buffer.getInt))
+        })
+      } else Seq.empty
+    FetchRequest(versionId, correlationId, clientId, replicaId, maxWait, minBytes, Map(pairs:_*), sessionId, sessionEpoch,
+      forgotten)
   }
 }
 
@@ -66,7 +83,10 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
                         replicaId: Int = Request.OrdinaryConsumerId,
                         maxWait: Int = FetchRequest.DefaultMaxWait,
                         minBytes: Int = FetchRequest.DefaultMinBytes,
-                        requestInfo: Map[TopicAndPartition, PartitionFetchInfo])
+                        requestInfo: Map[TopicAndPartition, PartitionFetchInfo],
+                        sessionId: Int = FetchRequest.InvalidSessionId,
+                        sessionEpoch: Int = FetchRequest.FinalEpoch,
+                        forgotten: Seq[TopicAndPartition] = Seq.empty)
         extends RequestOrResponse(Some(ApiKeys.FETCH.id)) {
 
   /**
@@ -74,6 +94,8 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
    */
   lazy val requestInfoGroupedByTopic = requestInfo.groupBy(_._1.topic)
 
+  lazy val forgottenGroupedByTopic = forgotten.groupBy(_.topic)
+
   /**
    *  Public constructor for the clients
    */
@@ -98,6 +120,10 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
     buffer.putInt(replicaId)
     buffer.putInt(maxWait)
     buffer.putInt(minBytes)
+    if (versionId >= 2) {
+      buffer.putInt(sessionId)
+      buffer.putInt(sessionEpoch)
+    }
     buffer.putInt(requestInfoGroupedByTopic.size) // topic count
     requestInfoGroupedByTopic.foreach {
       case (topic, partitionFetchInfos) =>
@@ -110,6 +136,15 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
             buffer.putInt(fetchSize)
         }
     }
+    if (versionId >= 2) {
+      buffer.putInt(forgottenGroupedByTopic.size) // forgotten topic count
+      forgottenGroupedByTopic.foreach {
+        case (topic, partitions) =>
+          writeShortString(buffer, topic)
+          buffer.putInt(partitions.size)
+          partitions.foreach(topicAndPartition => buffer.putInt(topicAndPartition.partition))
+      }
+    }
   }
 
   def sizeInBytes: Int = {
@@ -119,6 +154,7 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
     4 + /* replicaId */
     4 + /* maxWait */
     4 + /* minBytes */
+    (if (versionId >= 2) 4 + 4 else 0) + /* sessionId and sessionEpoch */
     4 + /* topic count */
     requestInfoGroupedByTopic.foldLeft(0)((foldedTopics, currTopic) => {
       val (topic, partitionFetchInfos) = currTopic
@@ -130,7 +166,13 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
         8 + /* offset */
         4 /* fetch size */
       )
-    })
+    }) +
+    (if (versionId >= 2)
+      4 + /* forgotten topic count */
+      forgottenGroupedByTopic.foldLeft(0) { case (folded, (topic, partitions)) =>
+        folded + shortStringLength(topic) + 4 /* partition count */ + partitions.size * 4 /* partition id */
+      }
+    else 0)
   }
 
   def isFromFollower = Request.isValidBrokerId(replicaId)
@@ -141,6 +183,8 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
 
   def numPartitions = requestInfo.size
 
+  def isIncremental = sessionEpoch != FetchRequest.InitialEpoch && sessionEpoch != FetchRequest.FinalEpoch
+
   override def toString(): String = {
     describe(true)
   }
@@ -150,7 +194,7 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
       case (topicAndPartition, data) =>
         (topicAndPartition, FetchResponsePartitionData(Errors.forException(e).code, -1, MessageSet.Empty))
     }
-    val errorResponse = FetchResponse(correlationId, fetchResponsePartitionData)
+    val errorResponse = FetchResponse(correlationId, fetchResponsePartitionData, versionId)
     requestChannel.sendResponse(new RequestChannel.Response(request, new FetchResponseSend(request.connectionId, errorResponse)))
   }
 
@@ -163,8 +207,13 @@ case class FetchRequest(versionId: Short = FetchRequest.CurrentVersion,
     fetchRequest.append("; ReplicaId: " + replicaId)
     fetchRequest.append("; MaxWait: " + maxWait + " ms")
     fetchRequest.append("; MinBytes: " + minBytes + " bytes")
-    if(details)
+    if (versionId >= 2)
+      fetchRequest.append("; SessionId: " + sessionId + "; SessionEpoch: " + sessionEpoch)
+    if(details) {
       fetchRequest.append("; RequestInfo: " + requestInfo.mkString(","))
+      if (forgotten.nonEmpty)
+        fetchRequest.append("; Forgotten: " + forgotten.mkString(","))
+    }
     fetchRequest.toString()
   }
 }
@@ -55,6 +55,9 @@ class Partition(val topic: String,
   @volatile private var leaderEpoch: Int = LeaderAndIsr.initialLeaderEpoch - 1
   @volatile var leaderReplicaIdOpt: Option[Int] = None
   @volatile var inSyncReplicas: Set[Replica] = Set.empty[Replica]
+  // the bytes the log end offset and the high watermark advance by while the local replica is the leader
+  val logEndOffsetTracker = new EndOffsetTracker
+  val highWatermarkTracker = new EndOffsetTracker
 
   /* Epoch of the controller that last changed the leader. This needs to be initialized correctly upon broker startup.
    * One way of doing that is through the controller's start replica state change command. When a new broker starts up
@@ -146,6 +149,7 @@ class Partition(val topic: String,
       assignedReplicaMap.clear()
       inSyncReplicas = Set.empty[Replica]
       leaderReplicaIdOpt = None
+      resetEndOffsetTrackers(LogOffsetMetadata.UnknownOffsetMetadata, LogOffsetMetadata.UnknownOffsetMetadata)
       try {
         logManager.deleteLog(TopicAndPartition(topic, partitionId))
         removePartitionMetrics()
@@ -194,6 +198,7 @@ class Partition(val topic: String,
         leaderReplica.convertHWToLocalOffsetMetadata()
         // reset log end offset for remote replicas
         assignedReplicas.filter(_.brokerId != localBrokerId).foreach(_.updateLogReadResult(LogReadResult.UnknownLogReadResult))
+        resetEndOffsetTrackers(leaderReplica.logEndOffset, leaderReplica.highWatermark)
       }
       (maybeIncrementLeaderHW(leaderReplica), isNewLeader)
     }
@@ -221,6 +226,7 @@ class Partition(val topic: String,
       inSyncReplicas = Set.empty[Replica]
       leaderEpoch = partitionStateInfo.leaderEpoch
       zkVersion = partitionStateInfo.zkVersion
+      resetEndOffsetTrackers(LogOffsetMetadata.UnknownOffsetMetadata, LogOffsetMetadata.UnknownOffsetMetadata)
 
       if (leaderReplicaIdOpt.isDefined && leaderReplicaIdOpt.get == newLeaderBrokerId) {
         false
@@ -356,6 +362,7 @@ class Partition(val topic: String,
     val oldHighWatermark = leaderReplica.highWatermark
     if(oldHighWatermark.precedes(newHighWatermark)) {
       leaderReplica.highWatermark = newHighWatermark
+      highWatermarkTracker.advance(newHighWatermark)
       debug("High watermark for partition [%s,%d] updated to %s".format(topic, partitionId, newHighWatermark))
       true
     } else {
@@ -365,6 +372,11 @@ class Partition(val topic: String,
     }
   }
 
+  private def resetEndOffsetTrackers(logEndOffset: LogOffsetMetadata, highWatermark: LogOffsetMetadata) {
+    logEndOffsetTracker.reset(logEndOffset)
+    highWatermarkTracker.reset(highWatermark)
+  }
+
   /**
    * Try to complete any pending requests. This should be called without holding the leaderIsrUpdateLock.
    */
@@ -441,6 +453,7 @@ class Partition(val topic: String,
           }
 
           val info = log.append(messages, assignOffsets = true)
+          logEndOffsetTracker.advance(leaderReplica.logEndOffset)
           // probably unblock some follower fetch requests since log end offset has been updated
           replicaManager.tryCompleteDelayedFetch(new TopicPartitionOperationKey(this.topic, this.partitionId))
           // we may need to increment high watermark since ISR could be down to 1
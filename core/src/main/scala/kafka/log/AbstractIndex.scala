@@ -0,0 +1,328 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io._
+import java.nio._
+import java.nio.channels._
+import java.util.concurrent.locks._
+import java.util.concurrent.atomic._
+import kafka.utils._
+import kafka.utils.CoreUtils.{inLock, inReadLock}
+
+/**
+ * The memory-mapped, pre-allocated file of fixed-size entries that backs the indexes of a log segment. Subclasses
+ * define the entries and how they are looked up; this class handles the file and the memory map.
+ *
+ * The file is only memory-mapped when the index is first used, the number of entries of an existing index is known
+ * from the size of its file. A broker that opens many segments on startup thus only maps the indexes that are read.
+ * The index of an inactive segment can be managed by an IndexMappingCache, which unmaps it when it has not been used
+ * for a while. Unmapping frees the mapping forcefully, so that the cache bounds the mappings of the process and not
+ * only the references to them. Lookups read the mapping under the read lock of the mapping, which the cache takes as
+ * a writer to unmap the index, so that no lookup reads a freed mapping.
+ *
+ * @param file The index file
+ * @param baseOffset The base offset of the segment this index belongs to
+ * @param maxIndexSize The maximum index size in bytes, used to pre-allocate a newly created file
+ */
+abstract class AbstractIndex(@volatile var file: File, val baseOffset: Long, val maxIndexSize: Int = -1) extends Logging {
+
+  /* the size in bytes of an entry of this index */
+  protected def entrySize: Int
+
+  protected val lock = new ReentrantLock
+
+  /* held as a reader while the mapping is read without the index lock, and as a writer while it is freed */
+  private val mappingLock = new ReentrantReadWriteLock
+
+  /* the length of the file, which is pre-allocated if the file is new */
+  private val initialLength: Long =
+    {
+      val newlyCreated = file.createNewFile()
+      if(newlyCreated) {
+        if(maxIndexSize < entrySize)
+          throw new IllegalArgumentException("Invalid max index size: " + maxIndexSize)
+        val raf = new RandomAccessFile(file, "rw")
+        try {
+          raf.setLength(roundToExactMultiple(maxIndexSize, entrySize))
+        } finally {
+          CoreUtils.swallow(raf.close())
+        }
+        0L
+      } else {
+        // if this is a pre-existing index, assume it is all valid
+        file.length
+      }
+    }
+
+  /* the memory mapping of the index, null until the index is first used or after it was unmapped */
+  @volatile private var _mmap: MappedByteBuffer = null
+
+  /* the cache that unmaps this index when it is idle, null while the index is kept mapped */
+  @volatile private var mappingCache: IndexMappingCache = null
+
+  /* whether the mapping was used since the mapping cache last passed over this index */
+  @volatile private[log] var recentlyUsed = false
+
+  /**
+   * The memory mapping of the index file, which is created if the index is not mapped yet. Its position is that of the
+   * next entry.
+   */
+  protected def mmap: MappedByteBuffer = {
+    val current = _mmap
+    if(current != null) {
+      if(!recentlyUsed && mappingCache != null)
+        recentlyUsed = true
+      current
+    } else {
+      var cache: IndexMappingCache = null
+      val mapped = inLock(lock) {
+        if(_mmap == null) {
+          val raf = new RandomAccessFile(file, "rw")
+          try {
+            val idx = raf.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length())
+            /* set the position in the index for the next entry */
+            idx.position(entries * entrySize)
+            _mmap = idx
+          } finally {
+            CoreUtils.swallow(raf.close())
+          }
+          recentlyUsed = true
+          cache = mappingCache
+          if(cache != null)
+            cache.onMapped(this)
+        }
+        _mmap
+      }
+      // the index lock of this index is held by the caller, if at all, so it is not unmapped by the eviction
+      if(cache != null)
+        cache.evict()
+      mapped
+    }
+  }
+
+  /**
+   * Is the index file memory-mapped
+   */
+  def isMapped: Boolean = _mmap != null
+
+  /**
+   * Let the given cache unmap this index when it is idle, or keep the index mapped if the cache is null. The index of
+   * the active segment is kept mapped. The index is marked as recently used so that the cache passes over it at least
+   * once before unmapping it.
+   */
+  def useMappingCache(cache: IndexMappingCache) {
+    inLock(lock) {
+      val previous = mappingCache
+      if(previous ne cache) {
+        mappingCache = cache
+        if(_mmap != null) {
+          if(previous != null)
+            previous.onRemoved(this, unmapped = false)
+          if(cache != null) {
+            recentlyUsed = true
+            cache.onAdded(this)
+          }
+        }
+      }
+    }
+  }
+
+  private[log] def isManagedBy(cache: IndexMappingCache): Boolean = mappingCache eq cache
+
+  /**
+   * Free the mapping of this index on behalf of the given cache, unless the index is locked or its mapping is being
+   * read by any thread.
+   * @return true iff the index was unmapped
+   */
+  private[log] def unmap(cache: IndexMappingCache): Boolean = {
+    if(lock.isHeldByCurrentThread || !lock.tryLock())
+      false
+    else {
+      try {
+        if(_mmap == null || (mappingCache ne cache) || !mappingLock.writeLock.tryLock())
+          false
+        else {
+          try {
+            forceUnmap(_mmap)
+            _mmap = null
+          } finally {
+            mappingLock.writeLock.unlock()
+          }
+          cache.onRemoved(this, unmapped = true)
+          true
+        }
+      } finally {
+        lock.unlock()
+      }
+    }
+  }
+
+  /* the number of entries currently in the index */
+  protected val size = new AtomicInteger(roundToExactMultiple(initialLength.toInt, entrySize) / entrySize)
+
+  /**
+   * The maximum number of entries this index can hold
+   */
+  @volatile
+  var maxEntries = (if(initialLength == 0) roundToExactMultiple(maxIndexSize, entrySize) else initialLength.toInt) / entrySize
+
+  /**
+   * True iff there are no more slots available in this index
+   */
+  def isFull: Boolean = entries >= this.maxEntries
+
+  /**
+   * Truncate the entire index, deleting all entries
+   */
+  def truncate() = truncateToEntries(0)
+
+  /**
+   * Remove all entries from the index which have an offset greater than or equal to the given offset.
+   * Truncating to an offset larger than the largest in the index has no effect.
+   */
+  def truncateTo(offset: Long)
+
+  /**
+   * Truncates index to a known number of entries.
+   */
+  protected def truncateToEntries(entries: Int)
+
+  /**
+   * Do a basic sanity check on this index to detect obvious problems
+   * @throws IllegalArgumentException if any problems are found
+   */
+  def sanityCheck()
+
+  /**
+   * Trim this segment to fit just the valid entries, deleting all trailing unwritten bytes from
+   * the file.
+   */
+  def trimToValidSize() {
+    inLock(lock) {
+      resize(entries * entrySize)
+    }
+  }
+
+  /**
+   * Reset the size of the memory map and the underneath file. This is used in two kinds of cases: (1) in
+   * trimToValidSize() which is called at closing the segment or new segment being rolled; (2) at
+   * loading segments from disk or truncating back to an old segment where a new log segment became active;
+   * we want to reset the index size to maximum index size to avoid rolling new segment.
+   */
+  def resize(newSize: Int) {
+    inLock(lock) {
+      val raf = new RandomAccessFile(file, "rw")
+      val roundedNewSize = roundToExactMultiple(newSize, entrySize)
+
+      /* Windows won't let us modify the file length while the file is mmapped :-( */
+      if(Os.isWindows && _mmap != null)
+        forceUnmap(_mmap)
+      try {
+        raf.setLength(roundedNewSize)
+        // an index that is not mapped yet is mapped with its new size on first use
+        if(_mmap != null) {
+          val position = _mmap.position
+          _mmap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, roundedNewSize)
+          _mmap.position(position)
+        }
+        this.maxEntries = roundedNewSize / entrySize
+      } finally {
+        CoreUtils.swallow(raf.close())
+      }
+    }
+  }
+
+  /**
+   * Forcefully free the buffer's mmap. We do this on windows and when a mapping cache unmaps the index.
+   */
+  protected def forceUnmap(m: MappedByteBuffer) {
+    try {
+      if(m.isInstanceOf[sun.nio.ch.DirectBuffer])
+        (m.asInstanceOf[sun.nio.ch.DirectBuffer]).cleaner().clean()
+    } catch {
+      case t: Throwable => warn("Error when freeing index buffer", t)
+    }
+  }
+
+  /**
+   * Flush the data in the index to disk
+   */
+  def flush() {
+    inLock(lock) {
+      if(_mmap != null)
+        _mmap.force()
+    }
+  }
+
+  /**
+   * Delete this index file
+   */
+  def delete(): Boolean = {
+    info("Deleting index " + this.file.getAbsolutePath)
+    useMappingCache(null)
+    if(Os.isWindows && _mmap != null)
+      CoreUtils.swallow(forceUnmap(_mmap))
+    this.file.delete()
+  }
+
+  /** The number of entries in this index */
+  def entries() = size.get
+
+  /**
+   * The number of bytes actually used by this index
+   */
+  def sizeInBytes() = entrySize * entries
+
+  /** Close the index */
+  def close() {
+    trimToValidSize()
+  }
+
+  /**
+   * Rename the file that backs this index
+   * @return true iff the rename was successful
+   */
+  def renameTo(f: File): Boolean = {
+    val success = this.file.renameTo(f)
+    this.file = f
+    success
+  }
+
+  /**
+   * Round a number to the greatest exact multiple of the given factor less than the given number.
+   * E.g. roundToExactMultiple(67, 8) == 64
+   */
+  protected def roundToExactMultiple(number: Int, factor: Int) = factor * (number / factor)
+
+  /**
+   * Execute the given function, which reads the mapping, in a lock only if we are running on windows and in the read
+   * lock of the mapping. We do this because Windows won't let us resize a file while it is mmapped, and a mapping
+   * cache unmaps idle indexes. As a result we have to force unmap it and this requires synchronizing reads.
+   */
+  protected def maybeLock[T](lock: Lock)(fun: => T): T = {
+    if(Os.isWindows)
+      lock.lock()
+    try {
+      inReadLock(mappingLock)(fun)
+    } finally {
+      if(Os.isWindows)
+        lock.unlock()
+    }
+  }
+}
@@ -120,31 +120,67 @@ class FileMessageSet private[kafka](@volatile var file: File,
   /**
    * Search forward for the file position of the last offset that is greater than or equal to the target offset
    * and return its physical position. If no such offsets are found, return null.
+   *
+   * The file is read ahead through a buffer of the calling thread, so that a single read covers the headers of all
+   * the small messages between two entries of the offset index.
    * @param targetOffset The offset to search for.
    * @param startingPosition The starting position in the file to begin searching from.
    */
   def searchFor(targetOffset: Long, startingPosition: Int): OffsetPosition = {
     var position = startingPosition
-    val buffer = ByteBuffer.allocate(MessageSet.LogOverhead)
+    val buffer = FileMessageSet.searchBuffer.get
+    buffer.clear().limit(0)
+    // the position in the file of the first byte in the buffer
+    var bufferPosition = position
     val size = sizeInBytes()
     while(position + MessageSet.LogOverhead < size) {
-      buffer.rewind()
-      channel.read(buffer, position)
-      if(buffer.hasRemaining)
-        throw new IllegalStateException("Failed to read complete buffer for targetOffset %d startPosition %d in %s"
-                                        .format(targetOffset, startingPosition, file.getAbsolutePath))
-      buffer.rewind()
-      val offset = buffer.getLong()
+      if(position + MessageSet.LogOverhead > bufferPosition + buffer.limit) {
+        buffer.clear()
+        buffer.limit(math.min(buffer.capacity, size - position))
+        bufferPosition = position
+        var read = 0
+        while(buffer.position < MessageSet.LogOverhead && read >= 0)
+          read = channel.read(buffer, bufferPosition + buffer.position)
+        if(buffer.position < MessageSet.LogOverhead)
+          throw new IllegalStateException("Failed to read complete buffer for targetOffset %d startPosition %d in %s"
+                                          .format(targetOffset, startingPosition, file.getAbsolutePath))
+        buffer.flip()
+      }
+      val offset = buffer.getLong(position - bufferPosition)
       if(offset >= targetOffset)
         return OffsetPosition(offset, position)
-      val messageSize = buffer.getInt()
-      if(messageSize < Message.MessageOverhead)
+      val messageSize = buffer.getInt(position - bufferPosition + MessageSet.OffsetLength)
+      if(messageSize < Message.MinMessageOverhead)
         throw new IllegalStateException("Invalid message size: " + messageSize)
       position += MessageSet.LogOverhead + messageSize
     }
     null
   }
 
+  /**
+   * Search forward for the first message with a timestamp greater than or equal to the target timestamp and return its
+   * offset. Compressed messages are only decompressed if their timestamp, the largest of the messages they wrap, is
+   * large enough. If no such message is found, return None.
+   * @param targetTimestamp The timestamp to search for.
+   * @param startingPosition The starting position in the file to begin searching from.
+   */
+  def searchForTimestamp(targetTimestamp: Long, startingPosition: Int): Option[Long] = {
+    for (messageAndOffset <- read(startingPosition, sizeInBytes - startingPosition)) {
+      val message = messageAndOffset.message
+      if (message.timestamp >= targetTimestamp) {
+        message.compressionCodec match {
+          case NoCompressionCodec =>
+            return Some(messageAndOffset.offset)
+          case _ =>
+            val found = ByteBufferMessageSet.deepIterator(messageAndOffset).find(_.message.timestamp >= targetTimestamp)
+            if (found.isDefined)
+              return found.map(_.offset)
+        }
+      }
+    }
+    None
+  }
+
   /**
    * Write some of this set to the given channel.
    * @param destChannel The channel to write to.
@@ -177,6 +213,9 @@ class FileMessageSet private[kafka](@volatile var file: File,
 
   /**
    * Get an iterator over the messages in the set. We only do shallow iteration here.
+   *
+   * The messages are read ahead in chunks and sliced out of them, a chunk stays in memory as long as any of its
+   * messages does.
    * @param maxMessageSize A limit on allowable message size to avoid allocating unbounded memory.
    * If we encounter a message larger than this we throw an InvalidMessageException.
    * @return The iterator.
@@ -184,36 +223,50 @@ class FileMessageSet private[kafka](@volatile var file: File,
   def iterator(maxMessageSize: Int): Iterator[MessageAndOffset] = {
     new IteratorTemplate[MessageAndOffset] {
       var location = start
-      val sizeOffsetBuffer = ByteBuffer.allocate(12)
+      var chunk = ByteBuffer.allocate(0)
+      // the position in the file of the first byte in the chunk
+      var chunkPosition = start
+
+      /* make sure that the chunk holds the given number of bytes from the location on, false if the file ends before */
+      def readAhead(bytes: Long): Boolean = {
+        if(location + bytes > chunkPosition + chunk.limit) {
+          if(location + bytes > channel.size)
+            return false
+          chunk = ByteBuffer.allocate(math.max(bytes, math.min(FileMessageSet.IteratorChunkSize, end - location)).toInt)
+          chunkPosition = location
+          var read = 0
+          while(chunk.hasRemaining && read >= 0)
+            read = channel.read(chunk, chunkPosition + chunk.position)
+          chunk.flip()
+        }
+        location + bytes <= chunkPosition + chunk.limit
+      }
 
       override def makeNext(): MessageAndOffset = {
         if(location >= end)
           return allDone()
 
         // read the size of the item
-        sizeOffsetBuffer.rewind()
-        channel.read(sizeOffsetBuffer, location)
-        if(sizeOffsetBuffer.hasRemaining)
+        if(!readAhead(MessageSet.LogOverhead))
           return allDone()
 
-        sizeOffsetBuffer.rewind()
-        val offset = sizeOffsetBuffer.getLong()
-        val size = sizeOffsetBuffer.getInt()
+        val offset = chunk.getLong(location - chunkPosition)
+        val size = chunk.getInt(location - chunkPosition + MessageSet.OffsetLength)
         if(size < Message.MinHeaderSize)
           return allDone()
         if(size > maxMessageSize)
           throw new CorruptRecordException("Message size exceeds the largest allowable message size (%d).".format(maxMessageSize))
 
         // read the item itself
-        val buffer = ByteBuffer.allocate(size)
-        channel.read(buffer, location + 12)
-        if(buffer.hasRemaining)
+        if(!readAhead(MessageSet.LogOverhead.toLong + size))
           return allDone()
-        buffer.rewind()
+        val buffer = chunk.duplicate()
+        buffer.position(location - chunkPosition + MessageSet.LogOverhead)
+        buffer.limit(buffer.position + size)
 
         // increment the location and return the item
-        location += size + 12
-        new MessageAndOffset(new Message(buffer), offset)
+        location += size + MessageSet.LogOverhead
+        new MessageAndOffset(new Message(buffer.slice()), offset)
       }
     }
   }
@@ -303,6 +356,15 @@ class FileMessageSet private[kafka](@volatile var file: File,
 
 object FileMessageSet
 {
+  /* the size of the chunks in which the iterator reads the messages ahead */
+  private val IteratorChunkSize = 64 * 1024
+
+  /* the buffer of each thread through which searchFor reads the message headers, it covers the messages between two
+   * entries of the offset index with the default index interval */
+  private val searchBuffer = new ThreadLocal[ByteBuffer] {
+    override def initialValue: ByteBuffer = ByteBuffer.allocateDirect(8 * 1024)
+  }
+
   /**
    * Open a channel for the given file
    * For windows NTFS and some old LINUX file system, set preallocate to true and initFileSize
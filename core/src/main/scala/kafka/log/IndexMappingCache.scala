@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.yammer.metrics.core.Gauge
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{Logging, threadsafe}
+
+/**
+ * Bounds the number of memory-mapped indexes of inactive segments. Each index mapped while it is managed by this cache
+ * is queued; once more than maxMappedIndexes indexes are mapped the least recently used ones are unmapped, they are
+ * mapped again on their next use. The mapping of an unmapped index is freed right away, an index whose mapping is
+ * being read is skipped. The indexes of active segments are not managed and stay mapped.
+ *
+ * The recency of use is approximated with a clock: an index is marked as used on every access and the cache clears
+ * the mark when it passes over the index, only an index that was not used since the previous pass is unmapped. This
+ * keeps lookups free of any shared state.
+ *
+ * @param maxMappedIndexes The maximum number of mapped indexes managed by this cache
+ */
+@threadsafe
+class IndexMappingCache(val maxMappedIndexes: Int) extends Logging with KafkaMetricsGroup {
+
+  /* the indexes mapped while they were managed by this cache, in the order they were mapped or last passed over */
+  private val queue = new ConcurrentLinkedQueue[AbstractIndex]()
+  private val queued = new AtomicInteger(0)
+
+  /* the number of mapped indexes managed by this cache */
+  private val mapped = new AtomicInteger(0)
+
+  newGauge("MappedIndexCount",
+    new Gauge[Int] {
+      def value = mapped.get
+    })
+
+  private val mapRate = newMeter("IndexMapsPerSec", "maps", TimeUnit.SECONDS)
+  private val unmapRate = newMeter("IndexUnmapsPerSec", "unmaps", TimeUnit.SECONDS)
+
+  /**
+   * The number of mapped indexes managed by this cache
+   */
+  def mappedIndexes: Int = mapped.get
+
+  /* called by an index managed by this cache when it is memory-mapped */
+  private[log] def onMapped(index: AbstractIndex) {
+    mapRate.mark()
+    onAdded(index)
+  }
+
+  /* called by an index that is already mapped when it starts to be managed by this cache */
+  private[log] def onAdded(index: AbstractIndex) {
+    mapped.incrementAndGet()
+    queued.incrementAndGet()
+    queue.add(index)
+  }
+
+  /* called by an index that is unmapped, or that stops being managed by this cache while it is mapped */
+  private[log] def onRemoved(index: AbstractIndex, unmapped: Boolean) {
+    if (unmapped)
+      unmapRate.mark()
+    mapped.decrementAndGet()
+  }
+
+  /**
+   * Unmap the least recently used indexes until no more than maxMappedIndexes are mapped. Indexes that are in use by
+   * another thread are skipped, each index is passed over at most twice.
+   */
+  def evict() {
+    var budget = 2 * queued.get
+    while (mapped.get > maxMappedIndexes && budget > 0) {
+      budget -= 1
+      val index = queue.poll()
+      if (index == null) {
+        budget = 0
+      } else {
+        queued.decrementAndGet()
+        // an index that was unmapped or stopped being managed since it was queued is forgotten
+        if (index.isMapped && index.isManagedBy(this)) {
+          if (index.recentlyUsed) {
+            index.recentlyUsed = false
+            requeue(index)
+          } else if (!index.unmap(this)) {
+            requeue(index)
+          } else {
+            trace("Unmapped index %s".format(index.file.getAbsolutePath))
+          }
+        }
+      }
+    }
+  }
+
+  private def requeue(index: AbstractIndex) {
+    queued.incrementAndGet()
+    queue.add(index)
+  }
+
+  /**
+   * Remove the metrics of this cache, the indexes it manages stay mapped
+   */
+  def shutdown() {
+    removeMetric("MappedIndexCount")
+    removeMetric("IndexMapsPerSec")
+    removeMetric("IndexUnmapsPerSec")
+  }
+}
@@ -29,25 +29,27 @@ import java.util.concurrent.atomic._
 import java.text.NumberFormat
 import org.apache.kafka.common.errors.{OffsetOutOfRangeException, RecordBatchTooLargeException, RecordTooLargeException, CorruptRecordException}
 
-import scala.collection.JavaConversions
+import scala.collection.{JavaConversions, mutable}
 
 import com.yammer.metrics.core.Gauge
 
 object LogAppendInfo {
-  val UnknownLogAppendInfo = LogAppendInfo(-1, -1, NoCompressionCodec, NoCompressionCodec, -1, -1, false)
+  val UnknownLogAppendInfo = LogAppendInfo(-1, -1, Message.NoTimestamp, -1L, NoCompressionCodec, NoCompressionCodec, -1, -1, false)
 }
 
 /**
  * Struct to hold various quantities we compute about each message set before appending to the log
  * @param firstOffset The first offset in the message set
  * @param lastOffset The last offset in the message set
+ * @param maxTimestamp The largest timestamp in the message set, NoTimestamp if the messages have none
+ * @param offsetOfMaxTimestamp The offset of the message with the largest timestamp in the message set
  * @param shallowCount The number of shallow messages
  * @param validBytes The number of valid bytes
  * @param sourceCodec The source codec used in the message set (send by the producer)
  * @param targetCodec The target codec of the message set(after applying the broker compression configuration if any)
  * @param offsetsMonotonic Are the offsets in this message set monotonically increasing
  */
-case class LogAppendInfo(var firstOffset: Long, var lastOffset: Long, sourceCodec: CompressionCodec, targetCodec: CompressionCodec, shallowCount: Int, validBytes: Int, offsetsMonotonic: Boolean)
+case class LogAppendInfo(var firstOffset: Long, var lastOffset: Long, var maxTimestamp: Long, var offsetOfMaxTimestamp: Long, sourceCodec: CompressionCodec, targetCodec: CompressionCodec, shallowCount: Int, validBytes: Int, offsetsMonotonic: Boolean)
 
 
 /**
@@ -63,6 +65,10 @@ case class LogAppendInfo(var firstOffset: Long, var lastOffset: Long, sourceCode
  * @param recoveryPoint The offset at which to begin recovery--i.e. the first offset which has not been flushed to disk
  * @param scheduler The thread pool scheduler used for background actions
  * @param time The time instance used for checking the clock
+ * @param recoveryPool The threads that rebuild indexes and recover unflushed segments while the log is loaded
+ * @param segmentSummaries The summaries of flushed segments by base offset, the indexes of a segment whose files
+ *                         match its summary are not checked when the log is loaded
+ * @param indexMappingCache The cache that unmaps idle indexes of inactive segments, if null they are kept mapped
  *
  */
 @threadsafe
@@ -70,7 +76,10 @@ class Log(val dir: File,
           @volatile var config: LogConfig,
           @volatile var recoveryPoint: Long = 0L,
           scheduler: Scheduler,
-          time: Time = SystemTime) extends Logging with KafkaMetricsGroup {
+          time: Time = SystemTime,
+          recoveryPool: SegmentRecoveryPool = SegmentRecoveryPool.Serial,
+          segmentSummaries: collection.Map[Long, LogSegmentSummary] = Map.empty,
+          indexMappingCache: IndexMappingCache = null) extends Logging with KafkaMetricsGroup {
 
   import kafka.log.Log._
 
@@ -132,6 +141,8 @@ class Log(val dir: File,
     // create the log directory if it doesn't exist
     dir.mkdirs()
     var swapFiles = Set[File]()
+    // the segments whose indexes are missing or corrupt, they are rebuilt once all segments are found
+    val segmentsToRebuild = mutable.ArrayBuffer[LogSegment]()
 
     // first do a pass through the files in the log directory and remove any temporary files
     // and find any interrupted swap operations
@@ -144,26 +155,32 @@ class Log(val dir: File,
         file.delete()
       } else if(filename.endsWith(SwapFileSuffix)) {
         // we crashed in the middle of a swap operation, to recover:
-        // if a log, delete the .index file, complete the swap operation later
+        // if a log, delete the .index and .timeindex files, complete the swap operation later
         // if an index just delete it, it will be rebuilt
         val baseName = new File(CoreUtils.replaceSuffix(file.getPath, SwapFileSuffix, ""))
-        if(baseName.getPath.endsWith(IndexFileSuffix)) {
+        if(baseName.getPath.endsWith(IndexFileSuffix) || baseName.getPath.endsWith(TimeIndexFileSuffix)) {
           file.delete()
         } else if(baseName.getPath.endsWith(LogFileSuffix)){
-          // delete the index
+          // delete the indexes
           val index = new File(CoreUtils.replaceSuffix(baseName.getPath, LogFileSuffix, IndexFileSuffix))
           index.delete()
+          val timeIndex = new File(CoreUtils.replaceSuffix(baseName.getPath, LogFileSuffix, TimeIndexFileSuffix))
+          timeIndex.delete()
           swapFiles += file
         }
       }
     }
 
-    // now do a second pass and load all the .log and .index files
+    // now do a second pass and load all the .log, .index and .timeindex files
     for(file <- dir.listFiles if file.isFile) {
       val filename = file.getName
-      if(filename.endsWith(IndexFileSuffix)) {
+      if(filename.endsWith(IndexFileSuffix) || filename.endsWith(TimeIndexFileSuffix)) {
         // if it is an index file, make sure it has a corresponding .log file
-        val logFile = new File(file.getAbsolutePath.replace(IndexFileSuffix, LogFileSuffix))
+        val logFile =
+          if (filename.endsWith(TimeIndexFileSuffix))
+            new File(file.getAbsolutePath.replace(TimeIndexFileSuffix, LogFileSuffix))
+          else
+            new File(file.getAbsolutePath.replace(IndexFileSuffix, LogFileSuffix))
         if(!logFile.exists) {
           warn("Found an orphaned index file, %s, with no corresponding log file.".format(file.getAbsolutePath))
           file.delete()
@@ -172,6 +189,9 @@ class Log(val dir: File,
         // if its a log file, load the corresponding log segment
         val start = filename.substring(0, filename.length - LogFileSuffix.length).toLong
         val indexFile = Log.indexFilename(dir, start)
+        val timeIndexFile = Log.timeIndexFilename(dir, start)
+        // segments written before the time index existed have no time index file, their messages have no timestamps
+        val timeIndexFileExists = timeIndexFile.exists()
         val segment = new LogSegment(dir = dir,
                                      startOffset = start,
                                      indexIntervalBytes = config.indexInterval,
@@ -180,23 +200,33 @@ class Log(val dir: File,
                                      time = time,
                                      fileAlreadyExists = true)
 
-        if(indexFile.exists()) {
+        val summary = segmentSummaries.get(start)
+        if(timeIndexFileExists && summary.exists(_.matches(segment))) {
+          // the files are unchanged since they were last flushed, the indexes are only mapped when first read
+          segment.loadSummary(summary.get)
+        } else if(indexFile.exists()) {
           try {
               segment.index.sanityCheck()
+              if (!timeIndexFileExists)
+                segment.timeIndex.trimToValidSize()
+              segment.timeIndex.sanityCheck()
           } catch {
             case e: java.lang.IllegalArgumentException =>
-              warn("Found a corrupted index file, %s, deleting and rebuilding index...".format(indexFile.getAbsolutePath))
+              warn("Found a corrupted index file, %s or %s, deleting and rebuilding indexes...".format(indexFile.getAbsolutePath,
+                timeIndexFile.getAbsolutePath))
               indexFile.delete()
-              segment.recover(config.maxMessageSize)
+              timeIndexFile.delete()
+              segmentsToRebuild += segment
           }
         }
         else {
           error("Could not find index file corresponding to log file %s, rebuilding index...".format(segment.log.file.getAbsolutePath))
-          segment.recover(config.maxMessageSize)
+          segmentsToRebuild += segment
         }
         segments.put(start, segment)
       }
     }
+    recoveryPool.recover(segmentsToRebuild)(_.recover(config.maxMessageSize))
 
     // Finally, complete any interrupted swap operations. To be crash-safe,
     // log files that are replaced by the swap segment should be renamed to .deleted
@@ -206,9 +236,12 @@ class Log(val dir: File,
       val fileName = logFile.getName
       val startOffset = fileName.substring(0, fileName.length - LogFileSuffix.length).toLong
       val indexFile = new File(CoreUtils.replaceSuffix(logFile.getPath, LogFileSuffix, IndexFileSuffix) + SwapFileSuffix)
-      val index =  new OffsetIndex(file = indexFile, baseOffset = startOffset, maxIndexSize = config.maxIndexSize)
+      val index =  new OffsetIndex(indexFile, startOffset, config.maxIndexSize)
+      val timeIndexFile = new File(CoreUtils.replaceSuffix(logFile.getPath, LogFileSuffix, TimeIndexFileSuffix) + SwapFileSuffix)
+      val timeIndex = new TimeIndex(timeIndexFile, startOffset, config.maxIndexSize)
       val swapSegment = new LogSegment(new FileMessageSet(file = swapFile),
                                        index = index,
+                                       timeIndex = timeIndex,
                                        baseOffset = startOffset,
                                        indexIntervalBytes = config.indexInterval,
                                        rollJitterMs = config.randomSegmentJitter,
@@ -234,8 +267,13 @@ class Log(val dir: File,
       recoverLog()
       // reset the index size of the currently active log segment to allow more entries
       activeSegment.index.resize(config.maxIndexSize)
+      activeSegment.timeIndex.resize(config.maxIndexSize)
     }
 
+    // the indexes of the active segment stay mapped, those of the others are unmapped when idle
+    for (segment <- logSegments)
+      segment.useIndexMappingCache(if (segment eq activeSegment) null else indexMappingCache)
+
   }
 
   private def updateLogEndOffset(messageOffset: Long) {
@@ -249,27 +287,27 @@ class Log(val dir: File,
       return
     }
 
-    // okay we need to actually recovery this log
-    val unflushed = logSegments(this.recoveryPoint, Long.MaxValue).iterator
-    while(unflushed.hasNext) {
-      val curr = unflushed.next
+    // okay we need to actually recovery this log, the unflushed segments are recovered independently of one another
+    val unflushed = logSegments(this.recoveryPoint, Long.MaxValue).toBuffer
+    val truncatedBytes = recoveryPool.recover(unflushed) { curr =>
       info("Recovering unflushed segment %d in log %s.".format(curr.baseOffset, name))
-      val truncatedBytes =
-        try {
-          curr.recover(config.maxMessageSize)
-        } catch {
-          case e: InvalidOffsetException =>
-            val startOffset = curr.baseOffset
-            warn("Found invalid offset during recovery for log " + dir.getName +". Deleting the corrupt segment and " +
-                 "creating an empty one with starting offset " + startOffset)
-            curr.truncateTo(startOffset)
-        }
-      if(truncatedBytes > 0) {
-        // we had an invalid message, delete all remaining log
-        warn("Corruption found in segment %d of log %s, truncating to offset %d.".format(curr.baseOffset, name, curr.nextOffset))
-        unflushed.foreach(deleteSegment)
+      try {
+        curr.recover(config.maxMessageSize)
+      } catch {
+        case e: InvalidOffsetException =>
+          val startOffset = curr.baseOffset
+          warn("Found invalid offset during recovery for log " + dir.getName +". Deleting the corrupt segment and " +
+               "creating an empty one with starting offset " + startOffset)
+          curr.truncateTo(startOffset)
       }
     }
+    val firstTruncated = truncatedBytes.indexWhere(_ > 0)
+    if(firstTruncated >= 0) {
+      // we had an invalid message, delete all remaining log
+      val curr = unflushed(firstTruncated)
+      warn("Corruption found in segment %d of log %s, truncating to offset %d.".format(curr.baseOffset, name, curr.nextOffset))
+      unflushed.drop(firstTruncated + 1).foreach(deleteSegment)
+    }
   }
 
   /**
@@ -318,24 +356,43 @@ class Log(val dir: File,
     var validMessages = trimInvalidBytes(messages, appendInfo)
 
     try {
-      // they are valid, insert them in the log
-      lock synchronized {
-        appendInfo.firstOffset = nextOffsetMetadata.messageOffset
-
+      // validate, decompress and recompress the messages before taking the lock, so that appends to this log are not
+      // serialized behind the codec work; only their offsets are assigned under the lock. Messages compressed with
+      // magic value 0 carry absolute inner offsets, so they are compressed against the current log end offset and only
+      // recompressed under the lock if another append moved it in the meantime.
+      val validatedMessages =
         if (assignOffsets) {
-          // assign offsets to the message set
-          val offset = new AtomicLong(nextOffsetMetadata.messageOffset)
           try {
-            validMessages = validMessages.validateMessagesAndAssignOffsets(offset, appendInfo.sourceCodec, appendInfo.targetCodec, config
-              .compact)
+            Some(validMessages.validateMessages(Some(nextOffsetMetadata.messageOffset), appendInfo.sourceCodec, appendInfo.targetCodec,
+              config.compact, config.messageFormatVersion, config.messageTimestampType,
+              config.messageTimestampDifferenceMaxMs, time.milliseconds))
           } catch {
             case e: IOException => throw new KafkaException("Error in validating messages while appending to log '%s'".format(name), e)
           }
-          appendInfo.lastOffset = offset.get - 1
         } else {
-          // we are taking the offsets we are given
-          if (!appendInfo.offsetsMonotonic || appendInfo.firstOffset < nextOffsetMetadata.messageOffset)
-            throw new IllegalArgumentException("Out of order offsets found in " + messages)
+          None
+        }
+
+      // they are valid, insert them in the log
+      lock synchronized {
+        appendInfo.firstOffset = nextOffsetMetadata.messageOffset
+
+        validatedMessages match {
+          case Some(validated) =>
+            // assign offsets to the message set
+            val offset = new AtomicLong(nextOffsetMetadata.messageOffset)
+            try {
+              validMessages = validated.assignOffsets(offset)
+            } catch {
+              case e: IOException => throw new KafkaException("Error in assigning offsets while appending to log '%s'".format(name), e)
+            }
+            appendInfo.lastOffset = offset.get - 1
+            appendInfo.maxTimestamp = validated.maxTimestamp
+            appendInfo.offsetOfMaxTimestamp = appendInfo.firstOffset + validated.maxTimestampRelativeOffset
+          case None =>
+            // we are taking the offsets we are given
+            if (!appendInfo.offsetsMonotonic || appendInfo.firstOffset < nextOffsetMetadata.messageOffset)
+              throw new IllegalArgumentException("Out of order offsets found in " + messages)
         }
 
         // re-validate message sizes since after re-compression some may exceed the limit
@@ -360,7 +417,7 @@ class Log(val dir: File,
         val segment = maybeRoll(validMessages.sizeInBytes)
 
         // now append to the log
-        segment.append(appendInfo.firstOffset, validMessages)
+        segment.append(appendInfo.firstOffset, appendInfo.maxTimestamp, appendInfo.offsetOfMaxTimestamp, validMessages)
 
         // increment the log end offset
         updateLogEndOffset(appendInfo.lastOffset + 1)
@@ -389,6 +446,7 @@ class Log(val dir: File,
    * <ol>
    * <li> First offset in the message set
    * <li> Last offset in the message set
+   * <li> Largest timestamp in the message set and the offset of the message that has it
    * <li> Number of messages
    * <li> Number of valid bytes
    * <li> Whether the offsets are monotonically increasing
@@ -399,6 +457,8 @@ class Log(val dir: File,
     var shallowMessageCount = 0
     var validBytesCount = 0
     var firstOffset, lastOffset = -1L
+    var maxTimestamp = Message.NoTimestamp
+    var offsetOfMaxTimestamp = -1L
     var sourceCodec: CompressionCodec = NoCompressionCodec
     var monotonic = true
     for(messageAndOffset <- messages.shallowIterator) {
@@ -425,6 +485,12 @@ class Log(val dir: File,
       // check the validity of the message by checking CRC
       m.ensureValid()
 
+      // the timestamp of a compressed message is the largest of the messages it wraps, whose offsets it ends with
+      if(m.timestamp > maxTimestamp) {
+        maxTimestamp = m.timestamp
+        offsetOfMaxTimestamp = messageAndOffset.offset
+      }
+
       shallowMessageCount += 1
       validBytesCount += messageSize
 
@@ -436,7 +502,8 @@ class Log(val dir: File,
     // Apply broker-side compression if any
     val targetCodec = BrokerCompressionCodec.getTargetCompressionCodec(config.compressionType, sourceCodec)
 
-    LogAppendInfo(firstOffset, lastOffset, sourceCodec, targetCodec, shallowMessageCount, validBytesCount, monotonic)
+    LogAppendInfo(firstOffset, lastOffset, maxTimestamp, offsetOfMaxTimestamp, sourceCodec, targetCodec, shallowMessageCount,
+      validBytesCount, monotonic)
   }
 
   /**
@@ -533,6 +600,18 @@ class Log(val dir: File,
     }
   }
 
+  /**
+   * Find the offset of the first message in the log with a timestamp greater than or equal to the given timestamp.
+   * Segments whose messages have no timestamps are matched as a whole by their last modified time.
+   *
+   * @return The offset found, or None if all messages in the log have a smaller timestamp
+   */
+  def fetchOffsetByTimestamp(timestamp: Long): Option[Long] = {
+    // take a snapshot of the segments, the log end may move while they are searched
+    val segmentsCopy = logSegments.toBuffer
+    segmentsCopy.find(_.largestTimestamp >= timestamp).flatMap(_.findOffsetByTimestamp(timestamp))
+  }
+
   /**
    * Delete any log segments matching the given predicate function,
    * starting with the oldest segment and moving forward until a segment doesn't match.
@@ -585,7 +664,7 @@ class Log(val dir: File,
    * <ol>
    * <li> The logSegment is full
    * <li> The maxTime has elapsed
-   * <li> The index is full
+   * <li> The index or the time index is full
    * </ol>
    * @return The currently active segment after (perhaps) rolling to a new segment
    */
@@ -593,13 +672,15 @@ class Log(val dir: File,
     val segment = activeSegment
     if (segment.size > config.segmentSize - messagesSize ||
         segment.size > 0 && time.milliseconds - segment.created > config.segmentMs - segment.rollJitterMs ||
-        segment.index.isFull) {
-      debug("Rolling new log segment in %s (log_size = %d/%d, index_size = %d/%d, age_ms = %d/%d)."
+        segment.index.isFull || segment.timeIndex.isFull) {
+      debug("Rolling new log segment in %s (log_size = %d/%d, index_size = %d/%d, time_index_size = %d/%d, age_ms = %d/%d)."
             .format(name,
                     segment.size,
                     config.segmentSize,
                     segment.index.entries,
                     segment.index.maxEntries,
+                    segment.timeIndex.entries,
+                    segment.timeIndex.maxEntries,
                     time.milliseconds - segment.created,
                     config.segmentMs - segment.rollJitterMs))
       roll()
@@ -610,7 +691,8 @@ class Log(val dir: File,
 
   /**
    * Roll the log over to a new active segment starting with the current logEndOffset.
-   * This will trim the index to the exact size of the number of entries it currently contains.
+   * This will trim the indexes of the previous active segment to the exact size of the number of entries they currently
+   * contain, after recording its largest timestamp in its time index.
    * @return The newly rolled segment
    */
   def roll(): LogSegment = {
@@ -619,17 +701,17 @@ class Log(val dir: File,
       val newOffset = logEndOffset
       val logFile = logFilename(dir, newOffset)
       val indexFile = indexFilename(dir, newOffset)
-      for(file <- List(logFile, indexFile); if file.exists) {
+      val timeIndexFile = timeIndexFilename(dir, newOffset)
+      for(file <- List(logFile, indexFile, timeIndexFile); if file.exists) {
         warn("Newly rolled segment file " + file.getName + " already exists; deleting it first")
         file.delete()
       }
 
       segments.lastEntry() match {
         case null =>
-        case entry => {
-          entry.getValue.index.trimToValidSize()
-          entry.getValue.log.trim()
-        }
+        case entry =>
+          entry.getValue.onBecomeInactiveSegment()
+          entry.getValue.useIndexMappingCache(indexMappingCache)
       }
       val segment = new LogSegment(dir,
                                    startOffset = newOffset,
@@ -714,6 +796,7 @@ class Log(val dir: File,
       } else {
         val deletable = logSegments.filter(segment => segment.baseOffset > targetOffset)
         deletable.foreach(deleteSegment(_))
+        activeSegment.useIndexMappingCache(null)
         activeSegment.truncateTo(targetOffset)
         updateLogEndOffset(targetOffset)
         this.recoveryPoint = math.min(targetOffset, this.recoveryPoint)
@@ -754,6 +837,16 @@ class Log(val dir: File,
    */
   def activeSegment = segments.lastEntry.getValue
 
+  /**
+   * The summaries of the segments that are entirely flushed, i.e. that end at or below the recovery point
+   */
+  def flushedSegmentSummaries: Iterable[LogSegmentSummary] = {
+    val point = recoveryPoint
+    val segs = logSegments.toList
+    val ends = segs.drop(1).map(_.baseOffset) :+ logEndOffset
+    segs.zip(ends).takeWhile { case (_, end) => end <= point }.map { case (segment, _) => segment.summary }
+  }
+
   /**
    * All the log segments in this log ordered from oldest to newest
    */
@@ -843,6 +936,7 @@ class Log(val dir: File,
       if (!isRecoveredSwapFile)
         newSegment.changeFileSuffixes(Log.CleanedFileSuffix, Log.SwapFileSuffix)
       addSegment(newSegment)
+      newSegment.useIndexMappingCache(indexMappingCache)
 
       // delete the old files
       for(seg <- oldSegments) {
@@ -885,6 +979,9 @@ object Log {
   /** an index file */
   val IndexFileSuffix = ".index"
 
+  /** a time index file */
+  val TimeIndexFileSuffix = ".timeindex"
+
   /** a file that is scheduled to be deleted */
   val DeletedFileSuffix = ".deleted"
 
@@ -929,6 +1026,14 @@ object Log {
   def indexFilename(dir: File, offset: Long) =
     new File(dir, filenamePrefixFromOffset(offset) + IndexFileSuffix)
 
+  /**
+   * Construct a time index file name in the given dir using the given base offset
+   * @param dir The directory in which the log will reside
+   * @param offset The base offset of the log file
+   */
+  def timeIndexFilename(dir: File, offset: Long) =
+    new File(dir, filenamePrefixFromOffset(offset) + TimeIndexFileSuffix)
+
 
   /**
    * Parse the topic and partition out of the directory name of a log
@@ -20,15 +20,19 @@ package kafka.log
 import java.io.{DataOutputStream, File}
 import java.nio._
 import java.util.Date
-import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
 
 import com.yammer.metrics.core.Gauge
 import kafka.common._
 import kafka.message._
 import kafka.metrics.KafkaMetricsGroup
 import kafka.utils._
+import org.apache.kafka.common.record.TimestampType
+import org.apache.kafka.common.utils.Utils
 
 import scala.collection._
+import scala.collection.JavaConverters._
 
 /**
  * The cleaner is responsible for removing obsolete records from logs which have the dedupe retention strategy.
@@ -41,7 +45,8 @@ import scala.collection._
  * and cleans that. The dirtiness of the log is guessed by taking the ratio of bytes in the dirty section of the log to the total bytes in the log. 
  * 
  * To clean a log the cleaner first builds a mapping of key=>last_offset for the dirty section of the log. See kafka.log.OffsetMap for details of
- * the implementation of the mapping. 
+ * the implementation of the mapping. When a thread cleans the same log again right after, the mapping of the previous cleaning is kept and
+ * only the newly dirty segments are added to it, as long as they fit.
  * 
  * Once the key=>offset map is built, the log is cleaned by recopying each log segment but omitting any key that appears in the offset map with a 
  * higher offset than what is found in the segment (i.e. messages with a key that appears in the dirty section of the log).
@@ -49,7 +54,8 @@ import scala.collection._
  * To avoid segments shrinking to very small sizes with repeated cleanings we implement a rule by which if we will merge successive segments when
  * doing a cleaning if their log and index size are less than the maximum log and index size prior to the clean beginning.
  * 
- * Cleaned segments are swapped into the log as they become available.
+ * Cleaned segments are swapped into the log as they become available. With more than one thread per log the groups of segments of a log
+ * are cleaned in parallel against the same offset map.
  * 
  * One nuance that the cleaner must handle is log truncation. If a log is truncated while it is being cleaned the cleaning of that log is aborted.
  * 
@@ -87,6 +93,11 @@ class LogCleaner(val config: CleanerConfig,
            new Gauge[Int] {
              def value: Int = cleaners.map(_.lastStats).map(100 * _.bufferUtilization).max.toInt
            })
+  /* a metric to track the maximum rate of collisions in any thread's offset map while building it in the last cleaning */
+  newGauge("max-offset-map-collision-percent",
+           new Gauge[Int] {
+             def value: Int = cleaners.map(_.lastStats).map(100 * _.collisionRate).max.toInt
+           })
   /* a metric to track the recopy rate of each thread's last cleaning */
   newGauge("cleaner-recopy-percent", 
            new Gauge[Int] {
@@ -101,6 +112,9 @@ class LogCleaner(val config: CleanerConfig,
            new Gauge[Int] {
              def value: Int = cleaners.map(_.lastStats).map(_.elapsedSecs).max.toInt
            })
+
+  /* the outcome of the last cleaning of each log that was cleaned, for the metrics of the log */
+  private val lastCleanings = new Pool[TopicAndPartition, LastCleaning]()
   
   /**
    * Start the background cleaning
@@ -116,6 +130,7 @@ class LogCleaner(val config: CleanerConfig,
   def shutdown() {
     info("Shutting down the log cleaner.")
     cleaners.foreach(_.shutdown())
+    lastCleanings.keys.foreach(removeLogMetrics)
   }
   
   /**
@@ -124,8 +139,60 @@ class LogCleaner(val config: CleanerConfig,
    */
   def abortCleaning(topicAndPartition: TopicAndPartition) {
     cleanerManager.abortCleaning(topicAndPartition)
+    removeLogMetrics(topicAndPartition)
+  }
+
+  /**
+   * Record the outcome of the last cleaning of a log, the metrics of the log are registered on its first cleaning
+   *
+   * @param cleanable The log that was cleaned
+   * @param endOffset The first offset not cleaned
+   * @param stats The stats of the cleaning
+   */
+  private def updateLogMetrics(cleanable: LogToClean, endOffset: Long, stats: CleanerStats, maxDesiredMapSize: Int) {
+    def bytesPerSec(bytes: Long, ms: Long) = bytes * 1000 / math.max(ms, 1)
+    // the cleanings of a backlog index the dirty section from an empty offset map, so each of them indexes about as
+    // many offsets as the map holds, at the bytes per offset of this cleaning
+    val dirtyBytesBacklog = LogToClean(cleanable.topicPartition, cleanable.log, endOffset).dirtyBytes
+    val offsetsIndexed = math.max(endOffset - cleanable.firstDirtyOffset, 1L)
+    val bytesPerPass = math.max((stats.mapBytesRead.toDouble / offsetsIndexed * maxDesiredMapSize).toLong, 1L)
+    val passesToCatchUp = (dirtyBytesBacklog + bytesPerPass - 1) / bytesPerPass
+    val lastCleaning = LastCleaning(indexBytesPerSec = bytesPerSec(stats.mapBytesRead, stats.mapCompleteTime - stats.startTime),
+                                    cleanBytesPerSec = bytesPerSec(stats.bytesRead, stats.endTime - stats.startTime),
+                                    dirtyBytesBacklog = dirtyBytesBacklog,
+                                    passesToCatchUp = passesToCatchUp)
+    val topicAndPartition = cleanable.topicPartition
+    if (lastCleanings.put(topicAndPartition, lastCleaning) == null) {
+      def newLogGauge(name: String, metric: LastCleaning => Long) =
+        newGauge(name,
+                 new Gauge[Long] {
+                   def value: Long = Option(lastCleanings.get(topicAndPartition)).fold(0L)(metric)
+                 },
+                 logMetricTags(topicAndPartition))
+      /* the rate at which the dirty section of the log was read to build the offset map in its last cleaning */
+      newLogGauge("index-bytes-per-sec", _.indexBytesPerSec)
+      /* the rate at which the log was cleaned in its last cleaning, from the start of building the offset map */
+      newLogGauge("clean-bytes-per-sec", _.cleanBytesPerSec)
+      /* the bytes of the dirty section the last cleaning of the log could not fit in the offset map */
+      newLogGauge("dirty-bytes-backlog", _.dirtyBytesBacklog)
+      /* the number of cleanings estimated to clean the backlog, ignoring the messages appended meanwhile */
+      newLogGauge("estimated-passes-to-catch-up", _.passesToCatchUp)
+    }
   }
 
+  private def removeLogMetrics(topicAndPartition: TopicAndPartition) {
+    if (lastCleanings.remove(topicAndPartition) != null) {
+      val tags = logMetricTags(topicAndPartition)
+      removeMetric("index-bytes-per-sec", tags)
+      removeMetric("clean-bytes-per-sec", tags)
+      removeMetric("dirty-bytes-backlog", tags)
+      removeMetric("estimated-passes-to-catch-up", tags)
+    }
+  }
+
+  private def logMetricTags(topicAndPartition: TopicAndPartition) =
+    Map("topic" -> topicAndPartition.topic, "partition" -> topicAndPartition.partition.toString)
+
   /**
    * Update checkpoint file, removing topics and partitions that no longer exist
    */
@@ -183,14 +250,15 @@ class LogCleaner(val config: CleanerConfig,
       warn("Cannot use more than 2G of cleaner buffer space per cleaner thread, ignoring excess buffer space...")
 
     val cleaner = new Cleaner(id = threadId,
-                              offsetMap = new SkimpyOffsetMap(memory = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt, 
-                                                              hashAlgorithm = config.hashAlgorithm),
+                              offsetMap = OffsetMap(memory = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt,
+                                                    hashAlgorithm = config.hashAlgorithm),
                               ioBufferSize = config.ioBufferSize / config.numThreads / 2,
                               maxIoBufferSize = config.maxMessageSize,
                               dupBufferLoadFactor = config.dedupeBufferLoadFactor,
                               throttler = throttler,
                               time = time,
-                              checkDone = checkDone)
+                              checkDone = checkDone,
+                              numWorkers = config.numThreadsPerLog)
     
     @volatile var lastStats: CleanerStats = new CleanerStats()
     private val backOffWaitLatch = new CountDownLatch(1)
@@ -213,6 +281,7 @@ class LogCleaner(val config: CleanerConfig,
     	 initiateShutdown()
     	 backOffWaitLatch.countDown()
     	 awaitShutdown()
+    	 cleaner.shutdown()
      }
      
     /**
@@ -229,6 +298,7 @@ class LogCleaner(val config: CleanerConfig,
           try {
             endOffset = cleaner.clean(cleanable)
             recordStats(cleaner.id, cleanable.log.name, cleanable.firstDirtyOffset, endOffset, cleaner.stats)
+            updateLogMetrics(cleanable, endOffset, cleaner.stats, cleaner.maxDesiredMapSize)
           } catch {
             case pe: LogCleaningAbortedException => // task can be aborted, let it go.
           } finally {
@@ -254,13 +324,20 @@ class LogCleaner(val config: CleanerConfig,
                                                                                            mb(stats.mapBytesRead)/stats.elapsedIndexSecs, 
                                                                                            100 * stats.elapsedIndexSecs/stats.elapsedSecs) +
         "\tBuffer utilization: %.1f%%%n".format(100 * stats.bufferUtilization) +
+        "\tOffset map collision rate: %.1f%%%n".format(100 * stats.collisionRate) +
         "\tCleaned %,.1f MB in %.1f seconds (%,.1f Mb/sec, %.1f%% of total time)%n".format(mb(stats.bytesRead), 
                                                                                            stats.elapsedSecs - stats.elapsedIndexSecs, 
                                                                                            mb(stats.bytesRead)/(stats.elapsedSecs - stats.elapsedIndexSecs), 100 * (stats.elapsedSecs - stats.elapsedIndexSecs).toDouble/stats.elapsedSecs) + 
         "\tStart size: %,.1f MB (%,d messages)%n".format(mb(stats.bytesRead), stats.messagesRead) +
         "\tEnd size: %,.1f MB (%,d messages)%n".format(mb(stats.bytesWritten), stats.messagesWritten) + 
         "\t%.1f%% size reduction (%.1f%% fewer messages)%n".format(100.0 * (1.0 - stats.bytesWritten.toDouble/stats.bytesRead), 
-                                                                   100.0 * (1.0 - stats.messagesWritten.toDouble/stats.messagesRead))
+                                                                   100.0 * (1.0 - stats.messagesWritten.toDouble/stats.messagesRead)) +
+        cleaner.workers.zipWithIndex.filter(_._1.stats.bytesRead > 0).map { case (worker, i) =>
+          "\tWorker %d recopied %,.1f MB (%,d messages) into %,.1f MB (%,d messages)%n".format(i, mb(worker.stats.bytesRead),
+                                                                                             worker.stats.messagesRead,
+                                                                                             mb(worker.stats.bytesWritten),
+                                                                                             worker.stats.messagesWritten)
+        }.mkString
       info(message)
       if (stats.invalidMessagesRead > 0) {
         warn("\tFound %d invalid messages during compaction.".format(stats.invalidMessagesRead))
@@ -275,11 +352,14 @@ class LogCleaner(val config: CleanerConfig,
  * @param id An identifier used for logging
  * @param offsetMap The map used for deduplication
  * @param ioBufferSize The size of the buffers to use. Memory usage will be 2x this number as there is a read and write buffer.
+ *                     With several workers the size is split evenly between this cleaner and its workers.
  * @param maxIoBufferSize The maximum size of a message that can appear in the log
  * @param dupBufferLoadFactor The maximum percent full for the deduplication buffer
  * @param throttler The throttler instance to use for limiting I/O rate.
  * @param time The time instance
  * @param checkDone Check if the cleaning for a partition is finished or aborted.
+ * @param numWorkers The number of workers cleaning the segment groups of a log in parallel, with one worker the groups are
+ *                   cleaned on the calling thread
  */
 private[log] class Cleaner(val id: Int,
                            val offsetMap: OffsetMap,
@@ -288,7 +368,8 @@ private[log] class Cleaner(val id: Int,
                            dupBufferLoadFactor: Double,
                            throttler: Throttler,
                            time: Time,
-                           checkDone: (TopicAndPartition) => Unit) extends Logging {
+                           checkDone: (TopicAndPartition) => Unit,
+                           numWorkers: Int = 1) extends Logging {
   
   override val loggerName = classOf[LogCleaner].getName
 
@@ -298,11 +379,56 @@ private[log] class Cleaner(val id: Int,
   val statsUnderlying = (new CleanerStats(time), new CleanerStats(time))
   def stats = statsUnderlying._1
 
+  /* set once cleaning a segment group in parallel failed, so that the other workers abort the groups they clean */
+  @volatile private var groupFailed = false
+
+  /* the log and the end offset of the last cleaning the entries of the offset map were built for, null while the
+   * entries cannot be kept for the next cleaning */
+  private var offsetMapLog: Log = null
+  private var offsetMapEndOffset = -1L
+
+  /* whether the offset map could not fit the whole dirty section when it was last built */
+  private var offsetMapFull = false
+
+  /* the number of offsets the offset map is filled with at most */
+  private[log] def maxDesiredMapSize: Int = (offsetMap.slots * dupBufferLoadFactor).toInt
+
+  /* the size of the I/O buffers of this cleaner and of each of its workers, which together stay within ioBufferSize */
+  private[log] val bufferSize = if (numWorkers > 1) math.max(1, ioBufferSize / (numWorkers + 1)) else ioBufferSize
+
+  /* the cleaners of the segment groups when they are cleaned in parallel, each with its own I/O buffers and stats */
+  private[log] val workers: Seq[Cleaner] =
+    if (numWorkers > 1)
+      (0 until numWorkers).map { i =>
+        val worker = new Cleaner(id, offsetMap, bufferSize, maxIoBufferSize, dupBufferLoadFactor, throttler, time, checkWorkerDone)
+        worker.logIdent = "Cleaner " + id + " worker " + i + ": "
+        worker
+      }
+    else
+      Seq.empty
+
+  private val workerExecutor: ExecutorService =
+    if (workers.nonEmpty) {
+      val workerId = new AtomicInteger(0)
+      Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+        def newThread(runnable: Runnable): Thread =
+          Utils.newThread("kafka-log-cleaner-thread-" + id + "-worker-" + workerId.getAndIncrement(), runnable, true)
+      })
+    } else {
+      null
+    }
+
+  private def checkWorkerDone(topicAndPartition: TopicAndPartition) {
+    if (groupFailed)
+      throw new LogCleaningAbortedException()
+    checkDone(topicAndPartition)
+  }
+
   /* buffer used for read i/o */
-  private var readBuffer = ByteBuffer.allocate(ioBufferSize)
+  private var readBuffer = ByteBuffer.allocate(bufferSize)
   
   /* buffer used for write i/o */
-  private var writeBuffer = ByteBuffer.allocate(ioBufferSize)
+  private var writeBuffer = ByteBuffer.allocate(bufferSize)
 
   /**
    * Clean the given log
@@ -313,13 +439,20 @@ private[log] class Cleaner(val id: Int,
    */
   private[log] def clean(cleanable: LogToClean): Long = {
     stats.clear()
+    workers.foreach(_.stats.clear())
     info("Beginning cleaning of log %s.".format(cleanable.log.name))
     val log = cleanable.log
 
-    // build the offset map
+    // build the offset map, keeping the entries of the last cleaning if it cleaned this log up to where it is dirty now.
+    // A log truncated below the end of the last cleaning is dirty from the truncation offset, its entries are dropped.
+    // The entries are only kept after a cleaning that indexed the whole dirty section: a log with a backlog fills the
+    // offset map in each cleaning, so the entries would only take room from the dirty segments
     info("Building offset map for %s...".format(cleanable.log.name))
+    val retainEntries = (offsetMapLog eq log) && offsetMapEndOffset == cleanable.firstDirtyOffset
+    offsetMapLog = null
     val upperBoundOffset = log.activeSegment.baseOffset
-    val endOffset = buildOffsetMap(log, cleanable.firstDirtyOffset, upperBoundOffset, offsetMap) + 1
+    val endOffset = buildOffsetMap(log, cleanable.firstDirtyOffset, upperBoundOffset, offsetMap, retainEntries) + 1
+    stats.collisionRate = offsetMap.collisionRate
     stats.indexDone()
     
     // figure out the timestamp below which it is safe to remove delete tombstones
@@ -332,17 +465,79 @@ private[log] class Cleaner(val id: Int,
         
     // group the segments and clean the groups
     info("Cleaning log %s (discarding tombstones prior to %s)...".format(log.name, new Date(deleteHorizonMs)))
-    for (group <- groupSegmentsBySize(log.logSegments(0, endOffset), log.config.segmentSize, log.config.maxIndexSize))
-      cleanSegments(log, group, offsetMap, deleteHorizonMs)
+    val groups = groupSegmentsBySize(log.logSegments(0, endOffset), log.config.segmentSize, log.config.maxIndexSize)
+    if (workers.isEmpty || groups.size <= 1)
+      groups.foreach(cleanSegments(log, _, offsetMap, deleteHorizonMs))
+    else
+      cleanSegmentsInParallel(log, groups, deleteHorizonMs)
       
     // record buffer utilization
     stats.bufferUtilization = offsetMap.utilization
     
     stats.allDone()
 
+    if (!offsetMapFull) {
+      offsetMapLog = log
+      offsetMapEndOffset = endOffset
+    }
     endOffset
   }
 
+  /**
+   * Clean the groups of segments of a log on the workers, each worker takes the next group until all groups are cleaned.
+   * The groups cover disjoint offset ranges and are swapped in independently, the workers only share the offset map
+   * which is not updated while they clean. If cleaning a group fails the other workers abort the groups they clean,
+   * the groups swapped in already stay cleaned as when the cleaning of a log is aborted.
+   *
+   * @param log The log being cleaned
+   * @param groups The groups of segments to clean
+   * @param deleteHorizonMs The time to retain delete tombstones
+   */
+  private def cleanSegmentsInParallel(log: Log, groups: Seq[Seq[LogSegment]], deleteHorizonMs: Long) {
+    val queue = new ConcurrentLinkedQueue[Seq[LogSegment]](groups.asJava)
+    groupFailed = false
+    val futures = workers.map { worker =>
+      // the lookups in the offset map are not thread-safe, each worker gets its own view of the entries
+      val map = offsetMap.readOnlyView
+      workerExecutor.submit(new Callable[Unit] {
+        def call() {
+          try {
+            var group = queue.poll()
+            while (group != null) {
+              worker.cleanSegments(log, group, map, deleteHorizonMs)
+              group = queue.poll()
+            }
+          } catch {
+            case e: Throwable =>
+              groupFailed = true
+              throw e
+          }
+        }
+      })
+    }
+
+    // wait for all workers, no worker may still write to the log once its cleaning is done
+    val failures = futures.flatMap { future =>
+      try {
+        future.get
+        None
+      } catch {
+        case e: ExecutionException => Some(e.getCause)
+      }
+    }
+    workers.foreach(worker => stats.add(worker.stats))
+    // the aborts caused by the failure of another worker are not of interest
+    failures.find(!_.isInstanceOf[LogCleaningAbortedException]).orElse(failures.headOption).foreach(e => throw e)
+  }
+
+  /**
+   * Stop the worker threads, the segment groups submitted are cleaned first
+   */
+  def shutdown() {
+    if (workerExecutor != null)
+      workerExecutor.shutdown()
+  }
+
   /**
    * Clean a group of segments into a single replacement segment
    *
@@ -355,14 +550,17 @@ private[log] class Cleaner(val id: Int,
                                  segments: Seq[LogSegment], 
                                  map: OffsetMap, 
                                  deleteHorizonMs: Long) {
-    // create a new segment with the suffix .cleaned appended to both the log and index name
+    // create a new segment with the suffix .cleaned appended to the log, index and time index names
     val logFile = new File(segments.head.log.file.getPath + Log.CleanedFileSuffix)
     logFile.delete()
     val indexFile = new File(segments.head.index.file.getPath + Log.CleanedFileSuffix)
     indexFile.delete()
+    val timeIndexFile = new File(segments.head.timeIndex.file.getPath + Log.CleanedFileSuffix)
+    timeIndexFile.delete()
     val messages = new FileMessageSet(logFile, fileAlreadyExists = false, initFileSize = log.initFileSize(), preallocate = log.config.preallocate)
     val index = new OffsetIndex(indexFile, segments.head.baseOffset, segments.head.index.maxIndexSize)
-    val cleaned = new LogSegment(messages, index, segments.head.baseOffset, segments.head.indexIntervalBytes, log.config.randomSegmentJitter, time)
+    val timeIndex = new TimeIndex(timeIndexFile, segments.head.baseOffset, segments.head.timeIndex.maxIndexSize)
+    val cleaned = new LogSegment(messages, index, timeIndex, segments.head.baseOffset, segments.head.indexIntervalBytes, log.config.randomSegmentJitter, time)
 
     try {
       // clean segments into the new destination segment
@@ -373,8 +571,8 @@ private[log] class Cleaner(val id: Int,
         cleanInto(log.topicAndPartition, old, cleaned, map, retainDeletes)
       }
 
-      // trim excess index
-      index.trimToValidSize()
+      // record the largest timestamp and trim excess index
+      cleaned.onBecomeInactiveSegment()
 
       // flush new segment to disk before swap
       cleaned.flush()
@@ -415,6 +613,8 @@ private[log] class Cleaner(val id: Int,
       throttler.maybeThrottle(messages.sizeInBytes)
       // check each message to see if it is to be retained
       var messagesRead = 0
+      var maxTimestamp = Message.NoTimestamp
+      var offsetOfMaxTimestamp = -1L
       for (entry <- messages.shallowIterator) {
         val size = MessageSet.entrySize(entry.message)
         stats.readMessage(size)
@@ -422,17 +622,27 @@ private[log] class Cleaner(val id: Int,
           if (shouldRetainMessage(source, map, retainDeletes, entry)) {
             ByteBufferMessageSet.writeMessage(writeBuffer, entry.message, entry.offset)
             stats.recopyMessage(size)
+            if (entry.message.timestamp > maxTimestamp) {
+              maxTimestamp = entry.message.timestamp
+              offsetOfMaxTimestamp = entry.offset
+            }
           }
           messagesRead += 1
         } else {
-          val messages = ByteBufferMessageSet.deepIterator(entry.message)
+          val messages = ByteBufferMessageSet.deepIterator(entry)
           val retainedMessages = messages.filter(messageAndOffset => {
             messagesRead += 1
             shouldRetainMessage(source, map, retainDeletes, messageAndOffset)
           }).toSeq
 
-          if (retainedMessages.nonEmpty)
-            compressMessages(writeBuffer, entry.message.compressionCodec, retainedMessages)
+          if (retainedMessages.nonEmpty) {
+            compressMessages(writeBuffer, entry.message.compressionCodec, entry.message.magic,
+              entry.message.timestampType, retainedMessages)
+            for (retainedMessage <- retainedMessages if retainedMessage.message.timestamp > maxTimestamp) {
+              maxTimestamp = retainedMessage.message.timestamp
+              offsetOfMaxTimestamp = retainedMessage.offset
+            }
+          }
         }
       }
 
@@ -441,7 +651,7 @@ private[log] class Cleaner(val id: Int,
       if (writeBuffer.position > 0) {
         writeBuffer.flip()
         val retained = new ByteBufferMessageSet(writeBuffer)
-        dest.append(retained.head.offset, retained)
+        dest.append(retained.head.offset, maxTimestamp, offsetOfMaxTimestamp, retained)
         throttler.maybeThrottle(writeBuffer.limit)
       }
       
@@ -452,7 +662,11 @@ private[log] class Cleaner(val id: Int,
     restoreBuffers()
   }
 
-  private def compressMessages(buffer: ByteBuffer, compressionCodec: CompressionCodec, messages: Seq[MessageAndOffset]) {
+  private def compressMessages(buffer: ByteBuffer,
+                               compressionCodec: CompressionCodec,
+                               magicValue: Byte,
+                               timestampType: TimestampType,
+                               messages: Seq[MessageAndOffset]) {
     val messagesIterable = messages.toIterable.map(_.message)
     if (messages.isEmpty) {
       MessageSet.Empty.sizeInBytes
@@ -462,14 +676,21 @@ private[log] class Cleaner(val id: Int,
       MessageSet.messageSetSize(messagesIterable)
     } else {
       var offset = -1L
+      // from magic value 1 on the inner offsets are relative to the first retained message, the gaps are kept
+      val firstOffset = messages.head.offset
+      // the timestamp of the wrapper message is the largest timestamp of the retained messages
+      val timestamp = messagesIterable.map(_.timestamp).max
       val messageWriter = new MessageWriter(math.min(math.max(MessageSet.messageSetSize(messagesIterable) / 2, 1024), 1 << 16))
-      messageWriter.write(codec = compressionCodec) { outputStream =>
+      messageWriter.write(codec = compressionCodec, timestamp = timestamp, timestampType = timestampType, magicValue = magicValue) { outputStream =>
         val output = new DataOutputStream(CompressionFactory(compressionCodec, outputStream))
         try {
           for (messageOffset <- messages) {
             val message = messageOffset.message
             offset = messageOffset.offset
-            output.writeLong(offset)
+            if (magicValue == Message.MagicValue_V0)
+              output.writeLong(offset)
+            else
+              output.writeLong(offset - firstOffset)
             output.writeInt(message.size)
             output.write(message.buffer.array, message.buffer.arrayOffset, message.buffer.limit)
           }
@@ -518,20 +739,21 @@ private[log] class Cleaner(val id: Int,
    * Restore the I/O buffer capacity to its original size
    */
   def restoreBuffers() {
-    if(this.readBuffer.capacity > this.ioBufferSize)
-      this.readBuffer = ByteBuffer.allocate(this.ioBufferSize)
-    if(this.writeBuffer.capacity > this.ioBufferSize)
-      this.writeBuffer = ByteBuffer.allocate(this.ioBufferSize)
+    if(this.readBuffer.capacity > this.bufferSize)
+      this.readBuffer = ByteBuffer.allocate(this.bufferSize)
+    if(this.writeBuffer.capacity > this.bufferSize)
+      this.writeBuffer = ByteBuffer.allocate(this.bufferSize)
   }
 
   /**
-   * Group the segments in a log into groups totaling less than a given size. the size is enforced separately for the log data and the index data.
+   * Group the segments in a log into groups totaling less than a given size. the size is enforced separately for the log data, the index data
+   * and the time index data.
    * We collect a group of such segments together into a single
    * destination segment. This prevents segment sizes from shrinking too much.
    *
    * @param segments The log segments to group
    * @param maxSize the maximum size in bytes for the total of all log data in a group
-   * @param maxIndexSize the maximum size in bytes for the total of all index data in a group
+   * @param maxIndexSize the maximum size in bytes for the total of all index data and of all time index data in a group
    *
    * @return A list of grouped segments
    */
@@ -542,14 +764,17 @@ private[log] class Cleaner(val id: Int,
       var group = List(segs.head)
       var logSize = segs.head.size
       var indexSize = segs.head.index.sizeInBytes
+      var timeIndexSize = segs.head.timeIndex.sizeInBytes
       segs = segs.tail
       while(!segs.isEmpty &&
             logSize + segs.head.size <= maxSize &&
             indexSize + segs.head.index.sizeInBytes <= maxIndexSize &&
+            timeIndexSize + segs.head.timeIndex.sizeInBytes <= maxIndexSize &&
             segs.head.index.lastOffset - group.last.index.baseOffset <= Int.MaxValue) {
         group = segs.head :: group
         logSize += segs.head.size
         indexSize += segs.head.index.sizeInBytes
+        timeIndexSize += segs.head.timeIndex.sizeInBytes
         segs = segs.tail
       }
       grouped ::= group.reverse
@@ -563,19 +788,25 @@ private[log] class Cleaner(val id: Int,
    * @param start The offset at which dirty messages begin
    * @param end The ending offset for the map that is being built
    * @param map The map in which to store the mappings
+   * @param retainEntries Keep the entries of the map for the offsets below start if the first dirty segment fits with them
    *
    * @return The final offset the map covers
    */
-  private[log] def buildOffsetMap(log: Log, start: Long, end: Long, map: OffsetMap): Long = {
-    map.clear()
+  private[log] def buildOffsetMap(log: Log, start: Long, end: Long, map: OffsetMap, retainEntries: Boolean = false): Long = {
     val dirty = log.logSegments(start, end).toSeq
-    info("Building offset map for log %s for %d segments in offset range [%d, %d).".format(log.name, dirty.size, start, end))
+    val maxDesiredMapSize = (map.slots * this.dupBufferLoadFactor).toInt
+    if (retainEntries && map.size + dirty.head.nextOffset() - dirty.head.baseOffset <= maxDesiredMapSize) {
+      info("Building offset map for log %s for %d segments in offset range [%d, %d) onto %d entries of the last cleaning."
+        .format(log.name, dirty.size, start, end, map.size))
+    } else {
+      map.clear()
+      info("Building offset map for log %s for %d segments in offset range [%d, %d).".format(log.name, dirty.size, start, end))
+    }
     
     // Add all the dirty segments. We must take at least map.slots * load_factor,
     // but we may be able to fit more (if there is lots of duplication in the dirty section of the log)
     var offset = dirty.head.baseOffset
     require(offset == start, "Last clean offset is %d but segment base offset is %d for log %s.".format(start, offset, log.name))
-    val maxDesiredMapSize = (map.slots * this.dupBufferLoadFactor).toInt
     var full = false
     for (segment <- dirty if !full) {
       checkDone(log.topicAndPartition)
@@ -587,6 +818,7 @@ private[log] class Cleaner(val id: Int,
       else
         full = true
     }
+    offsetMapFull = full
     info("Offset map for log %s complete.".format(log.name))
     offset
   }
@@ -634,6 +866,7 @@ private case class CleanerStats(time: Time = SystemTime) {
   var startTime, mapCompleteTime, endTime, bytesRead, bytesWritten, mapBytesRead, mapMessagesRead, messagesRead,
       messagesWritten, invalidMessagesRead = 0L
   var bufferUtilization = 0.0d
+  var collisionRate = 0.0d
   clear()
   
   def readMessage(size: Int) {
@@ -650,6 +883,15 @@ private case class CleanerStats(time: Time = SystemTime) {
     bytesWritten += size
   }
 
+  /* add the messages recopied by a worker */
+  def add(worker: CleanerStats) {
+    bytesRead += worker.bytesRead
+    messagesRead += worker.messagesRead
+    invalidMessagesRead += worker.invalidMessagesRead
+    bytesWritten += worker.bytesWritten
+    messagesWritten += worker.messagesWritten
+  }
+
   def indexMessagesRead(size: Int) {
     mapMessagesRead += size
   }
@@ -682,9 +924,15 @@ private case class CleanerStats(time: Time = SystemTime) {
     invalidMessagesRead = 0L
     messagesWritten = 0L
     bufferUtilization = 0.0d
+    collisionRate = 0.0d
   }
 }
 
+/**
+ * The outcome of the last cleaning of a log, for the metrics of the log
+ */
+private case class LastCleaning(indexBytesPerSec: Long, cleanBytesPerSec: Long, dirtyBytesBacklog: Long, passesToCatchUp: Long)
+
 /**
  * Helper class for a log, its topic/partition, and the last clean position
  */
@@ -19,11 +19,14 @@ package kafka.log
 
 import java.io._
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import kafka.utils._
 import scala.collection._
-import kafka.common.{TopicAndPartition, KafkaException}
+import kafka.common.{Topic, TopicAndPartition, KafkaException}
+import kafka.metrics.KafkaMetricsGroup
 import kafka.server.{RecoveringFromUncleanShutdown, BrokerState, OffsetCheckpoint}
 import java.util.concurrent.{Executors, ExecutorService, ExecutionException, Future}
+import com.yammer.metrics.core.Gauge
 
 /**
  * The entry point to the kafka log management subsystem. The log manager is responsible for log creation, retrieval, and cleaning.
@@ -34,6 +37,11 @@ import java.util.concurrent.{Executors, ExecutorService, ExecutionException, Fut
  * size or I/O rate.
  * 
  * A background thread handles log retention by periodically truncating excess log segments.
+ *
+ * On startup the logs of each directory are loaded by ioThreads threads, while the indexes and unflushed segments of
+ * all logs are rebuilt and recovered by a pool of segmentRecoveryThreads threads shared by all directories.
+ *
+ * The indexes of inactive segments are memory-mapped when read, at most maxMappedIndexes of them are kept mapped.
  */
 @threadsafe
 class LogManager(val logDirs: Array[File],
@@ -41,21 +49,42 @@ class LogManager(val logDirs: Array[File],
                  val defaultConfig: LogConfig,
                  val cleanerConfig: CleanerConfig,
                  ioThreads: Int,
+                 segmentRecoveryThreads: Int,
+                 maxMappedIndexes: Int,
                  val flushCheckMs: Long,
                  val flushCheckpointMs: Long,
                  val retentionCheckMs: Long,
                  scheduler: Scheduler,
                  val brokerState: BrokerState,
-                 private val time: Time) extends Logging {
+                 private val time: Time) extends Logging with KafkaMetricsGroup {
   val RecoveryPointCheckpointFile = "recovery-point-offset-checkpoint"
+  val SegmentSummaryCheckpointFile = "log-segment-summary"
   val LockFile = ".lock"
   val InitialTaskDelayMs = 30*1000
   private val logCreationOrDeletionLock = new Object
   private val logs = new Pool[TopicAndPartition, Log]()
 
+  /* the progress of loading the logs on startup */
+  private val logsRemainingToLoad = new AtomicInteger(0)
+  private val segmentRecoveryPool = new SegmentRecoveryPool(segmentRecoveryThreads)
+
+  /* bounds the number of memory-mapped indexes of inactive segments across all logs */
+  private val indexMappingCache = new IndexMappingCache(maxMappedIndexes)
+
+  newGauge("LogsRemainingToLoad",
+    new Gauge[Int] {
+      def value = logsRemainingToLoad.get
+    })
+
+  newGauge("SegmentsRemainingToRecover",
+    new Gauge[Int] {
+      def value = segmentRecoveryPool.segmentsRemaining
+    })
+
   createAndValidateLogDirs(logDirs)
   private val dirLocks = lockLogDirs(logDirs)
   private val recoveryPointCheckpoints = logDirs.map(dir => (dir, new OffsetCheckpoint(new File(dir, RecoveryPointCheckpointFile)))).toMap
+  private val segmentSummaryCheckpoints = logDirs.map(dir => (dir, new LogSegmentSummaryCheckpoint(new File(dir, SegmentSummaryCheckpointFile)))).toMap
   loadLogs()
 
   // public, so we can access this from kafka.admin.DeleteTopicTest
@@ -136,10 +165,24 @@ class LogManager(val logDirs: Array[File],
         }
       }
 
-      val jobsForDir = for {
+      var segmentSummaries = Map[TopicAndPartition, Map[Long, LogSegmentSummary]]()
+      try {
+        segmentSummaries = this.segmentSummaryCheckpoints(dir).read
+      } catch {
+        case e: Exception => {
+          warn("Error occured while reading log-segment-summary file of directory " + dir, e)
+          warn("Checking the indexes of all segments")
+        }
+      }
+
+      val logDirsToLoad = for {
         dirContent <- Option(dir.listFiles).toList
         logDir <- dirContent if logDir.isDirectory
-      } yield {
+      } yield logDir
+      logsRemainingToLoad.addAndGet(logDirsToLoad.size)
+
+      // the logs of internal topics are loaded first, the broker cannot coordinate consumer groups without them
+      val jobsForDir = logDirsToLoad.sortBy(logDir => !isInternalTopicLog(logDir)).map { logDir =>
         CoreUtils.runnable {
           debug("Loading log '" + logDir.getName + "'")
 
@@ -147,8 +190,12 @@ class LogManager(val logDirs: Array[File],
           val config = topicConfigs.getOrElse(topicPartition.topic, defaultConfig)
           val logRecoveryPoint = recoveryPoints.getOrElse(topicPartition, 0L)
 
-          val current = new Log(logDir, config, logRecoveryPoint, scheduler, time)
+          val logSegmentSummaries = segmentSummaries.getOrElse(topicPartition, Map.empty[Long, LogSegmentSummary])
+
+          val current = new Log(logDir, config, logRecoveryPoint, scheduler, time, segmentRecoveryPool, logSegmentSummaries,
+                                indexMappingCache)
           val previous = this.logs.put(topicPartition, current)
+          logsRemainingToLoad.decrementAndGet()
 
           if (previous != null) {
             throw new IllegalArgumentException(
@@ -174,11 +221,21 @@ class LogManager(val logDirs: Array[File],
       }
     } finally {
       threadPools.foreach(_.shutdown())
+      segmentRecoveryPool.shutdown()
     }
 
     info("Logs loading complete.")
   }
 
+  /**
+   * Is the given directory the log of a partition of an internal topic
+   */
+  private def isInternalTopicLog(logDir: File): Boolean = {
+    val name = logDir.getName
+    val index = name.lastIndexOf('-')
+    index > 0 && Topic.InternalTopics.contains(name.substring(0, index))
+  }
+
   /**
    *  Start the background threads to flush logs and do log cleanup
    */
@@ -202,6 +259,11 @@ class LogManager(val logDirs: Array[File],
                          delay = InitialTaskDelayMs,
                          period = flushCheckpointMs,
                          TimeUnit.MILLISECONDS)
+      scheduler.schedule("kafka-segment-summary-checkpoint",
+                         checkpointSegmentSummaries,
+                         delay = InitialTaskDelayMs,
+                         period = flushCheckpointMs,
+                         TimeUnit.MILLISECONDS)
     }
     if(cleanerConfig.enableCleaner)
       cleaner.startup()
@@ -250,6 +312,10 @@ class LogManager(val logDirs: Array[File],
         debug("Updating recovery points at " + dir)
         checkpointLogsInDir(dir)
 
+        // record the segments as they are now, so that their indexes are not checked on startup
+        debug("Writing log segment summaries at " + dir)
+        checkpointSegmentSummariesInDir(dir)
+
         // mark that the shutdown was clean by creating marker file
         debug("Writing clean shutdown marker at " + dir)
         CoreUtils.swallow(new File(dir, Log.CleanShutdownFile).createNewFile())
@@ -263,6 +329,9 @@ class LogManager(val logDirs: Array[File],
       threadPools.foreach(_.shutdown())
       // regardless of whether the close succeeded, we need to unlock the data directories
       dirLocks.foreach(_.destroy())
+      removeMetric("LogsRemainingToLoad")
+      removeMetric("SegmentsRemainingToRecover")
+      indexMappingCache.shutdown()
     }
 
     info("Shutdown complete.")
@@ -327,6 +396,24 @@ class LogManager(val logDirs: Array[File],
     }
   }
 
+  /**
+   * Write out the summaries of the flushed segments of all logs to a file in each log directory, to avoid checking their
+   * indexes on startup.
+   */
+  def checkpointSegmentSummaries() {
+    this.logDirs.foreach(checkpointSegmentSummariesInDir)
+  }
+
+  /**
+   * Make a checkpoint of the flushed segment summaries for all logs in provided directory.
+   */
+  private def checkpointSegmentSummariesInDir(dir: File): Unit = {
+    val logsInDir = this.logsByDir.get(dir.toString)
+    if (logsInDir.isDefined) {
+      this.segmentSummaryCheckpoints(dir).write(logsInDir.get.mapValues(_.flushedSegmentSummaries))
+    }
+  }
+
   /**
    * Get the log if it exists, otherwise return None
    */
@@ -358,7 +445,8 @@ class LogManager(val logDirs: Array[File],
                     config,
                     recoveryPoint = 0L,
                     scheduler,
-                    time)
+                    time,
+                    indexMappingCache = indexMappingCache)
       logs.put(topicAndPartition, log)
       info("Created log for partition [%s,%d] in %s with properties {%s}."
            .format(topicAndPartition.topic, 
@@ -412,13 +500,15 @@ class LogManager(val logDirs: Array[File],
   }
 
   /**
-   * Runs through the log removing segments older than a certain age
+   * Runs through the log removing segments older than a certain age. The age of a segment is that of the largest
+   * timestamp of its messages, or of its last modification if its messages have no timestamps. How far in the future
+   * producers can set these timestamps is bounded by message.timestamp.difference.max.ms.
    */
   private def cleanupExpiredSegments(log: Log): Int = {
     if (log.config.retentionMs < 0)
       return 0
     val startMs = time.milliseconds
-    log.deleteOldSegments(startMs - _.lastModified > log.config.retentionMs)
+    log.deleteOldSegments(startMs - _.largestTimestamp > log.config.retentionMs)
   }
 
   /**
@@ -27,15 +27,17 @@ import java.io.File
 
 
  /**
- * A segment of the log. Each segment has two components: a log and an index. The log is a FileMessageSet containing
- * the actual messages. The index is an OffsetIndex that maps from logical offsets to physical file positions. Each
- * segment has a base offset which is an offset <= the least offset of any message in this segment and > any offset in
- * any previous segment.
+ * A segment of the log. Each segment has three components: a log, an index and a time index. The log is a FileMessageSet
+ * containing the actual messages. The index is an OffsetIndex that maps from logical offsets to physical file positions.
+ * The time index is a TimeIndex that maps from message timestamps to logical offsets. Each segment has a base offset
+ * which is an offset <= the least offset of any message in this segment and > any offset in any previous segment.
  *
- * A segment with a base offset of [base_offset] would be stored in two files, a [base_offset].index and a [base_offset].log file.
+ * A segment with a base offset of [base_offset] would be stored in three files, a [base_offset].index, a
+ * [base_offset].timeindex and a [base_offset].log file.
  *
  * @param log The message set containing log entries
  * @param index The offset index
+ * @param timeIndex The time index
  * @param baseOffset A lower bound on the offsets in this segment
  * @param indexIntervalBytes The approximate number of bytes between entries in the index
  * @param time The time instance
@@ -43,6 +45,7 @@ import java.io.File
 @nonthreadsafe
 class LogSegment(val log: FileMessageSet,
                  val index: OffsetIndex,
+                 val timeIndex: TimeIndex,
                  val baseOffset: Long,
                  val indexIntervalBytes: Int,
                  val rollJitterMs: Long,
@@ -53,9 +56,16 @@ class LogSegment(val log: FileMessageSet,
   /* the number of bytes since we last added an entry in the offset index */
   private var bytesSinceLastIndexEntry = 0
 
+  /* the largest message timestamp in this segment and the offset of the first message that has it, they are only read
+   * from the time index when first used so that loading a segment does not touch its time index */
+  @volatile private var maxTimestampSoFar = Message.NoTimestamp
+  @volatile private var offsetOfMaxTimestamp = baseOffset
+  @volatile private var maxTimestampLoaded = false
+
   def this(dir: File, startOffset: Long, indexIntervalBytes: Int, maxIndexSize: Int, rollJitterMs: Long, time: Time, fileAlreadyExists: Boolean = false, initFileSize: Int = 0, preallocate: Boolean = false) =
     this(new FileMessageSet(file = Log.logFilename(dir, startOffset), fileAlreadyExists = fileAlreadyExists, initFileSize = initFileSize, preallocate = preallocate),
-         new OffsetIndex(file = Log.indexFilename(dir, startOffset), baseOffset = startOffset, maxIndexSize = maxIndexSize),
+         new OffsetIndex(Log.indexFilename(dir, startOffset), startOffset, maxIndexSize),
+         new TimeIndex(Log.timeIndexFilename(dir, startOffset), startOffset, maxIndexSize),
          startOffset,
          indexIntervalBytes,
          rollJitterMs,
@@ -64,22 +74,78 @@ class LogSegment(val log: FileMessageSet,
   /* Return the size in bytes of this log segment */
   def size: Long = log.sizeInBytes()
 
+  /* read the largest timestamp from the last entry of the time index unless it is known already */
+  private def maybeLoadMaxTimestamp() {
+    if (!maxTimestampLoaded) {
+      synchronized {
+        if (!maxTimestampLoaded) {
+          val lastEntry = timeIndex.lastEntry
+          maxTimestampSoFar = lastEntry.timestamp
+          offsetOfMaxTimestamp = lastEntry.offset
+          maxTimestampLoaded = true
+        }
+      }
+    }
+  }
+
+  /**
+   * Let the given cache unmap the indexes of this segment when they are idle, or keep them mapped if the cache is null
+   */
+  def useIndexMappingCache(cache: IndexMappingCache) {
+    index.useMappingCache(cache)
+    timeIndex.useMappingCache(cache)
+  }
+
+  /**
+   * Take the largest timestamp from the given summary of this segment instead of reading it from the time index
+   */
+  def loadSummary(summary: LogSegmentSummary) {
+    synchronized {
+      maxTimestampSoFar = summary.maxTimestamp
+      offsetOfMaxTimestamp = summary.offsetOfMaxTimestamp
+      maxTimestampLoaded = true
+    }
+  }
+
+  /**
+   * A summary of this segment that allows loading it without reading its indexes, as long as its files do not change
+   */
+  def summary: LogSegmentSummary = {
+    maybeLoadMaxTimestamp()
+    LogSegmentSummary(baseOffset = baseOffset,
+                      size = log.file.length,
+                      lastModified = lastModified,
+                      indexEntries = index.entries,
+                      timeIndexEntries = timeIndex.entries,
+                      maxTimestamp = maxTimestampSoFar,
+                      offsetOfMaxTimestamp = offsetOfMaxTimestamp)
+  }
+
   /**
    * Append the given messages starting with the given offset. Add
-   * an entry to the index if needed.
+   * an entry to the index and the time index if needed.
    *
    * It is assumed this method is being called from within a lock.
    *
    * @param offset The first offset in the message set.
+   * @param largestTimestamp The largest timestamp in the message set, NoTimestamp if the messages have none.
+   * @param offsetOfLargestTimestamp The offset of the message with the largest timestamp in the message set.
    * @param messages The messages to append.
    */
   @nonthreadsafe
-  def append(offset: Long, messages: ByteBufferMessageSet) {
+  def append(offset: Long, largestTimestamp: Long, offsetOfLargestTimestamp: Long, messages: ByteBufferMessageSet) {
     if (messages.sizeInBytes > 0) {
-      trace("Inserting %d bytes at offset %d at position %d".format(messages.sizeInBytes, offset, log.sizeInBytes()))
+      trace("Inserting %d bytes at offset %d at position %d with largest timestamp %d at offset %d"
+        .format(messages.sizeInBytes, offset, log.sizeInBytes(), largestTimestamp, offsetOfLargestTimestamp))
+      maybeLoadMaxTimestamp()
+      if (largestTimestamp > maxTimestampSoFar) {
+        maxTimestampSoFar = largestTimestamp
+        offsetOfMaxTimestamp = offsetOfLargestTimestamp
+      }
       // append an entry to the index (if needed)
       if(bytesSinceLastIndexEntry > indexIntervalBytes) {
         index.append(offset, log.sizeInBytes())
+        timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
         this.bytesSinceLastIndexEntry = 0
       }
       // append the messages
@@ -159,7 +225,38 @@ class LogSegment(val log: FileMessageSet,
   }
 
   /**
-   * Run recovery on the given segment. This will rebuild the index from the log file and lop off any invalid bytes from the end of the log and index.
+   * Find the offset of the first message in this segment with a timestamp greater than or equal to the given
+   * timestamp. The time index gives the last position before which all messages have a smaller timestamp, from where
+   * the log is scanned.
+   *
+   * @return The offset found, the base offset if the messages of this segment have no timestamps, or None if all
+   *         messages in this segment have a smaller timestamp
+   */
+  @threadsafe
+  def findOffsetByTimestamp(timestamp: Long): Option[Long] = {
+    maybeLoadMaxTimestamp()
+    if (maxTimestampSoFar == Message.NoTimestamp) {
+      Some(baseOffset)
+    } else if (maxTimestampSoFar < timestamp) {
+      None
+    } else {
+      val timestampOffset = timeIndex.lookup(timestamp - 1)
+      val position = index.lookup(timestampOffset.offset).position
+      log.searchForTimestamp(timestamp, position)
+    }
+  }
+
+  /**
+   * The largest timestamp of the messages in this segment, or its last modified time if the messages have no timestamps
+   */
+  def largestTimestamp: Long = {
+    maybeLoadMaxTimestamp()
+    if (maxTimestampSoFar == Message.NoTimestamp) lastModified else maxTimestampSoFar
+  }
+
+  /**
+   * Run recovery on the given segment. This will rebuild the index and the time index from the log file and lop off
+   * any invalid bytes from the end of the log and index.
    *
    * @param maxMessageSize A bound the memory allocation in the case of a corrupt message size--we will assume any message larger than this
    * is corrupt.
@@ -170,6 +267,11 @@ class LogSegment(val log: FileMessageSet,
   def recover(maxMessageSize: Int): Int = {
     index.truncate()
     index.resize(index.maxIndexSize)
+    timeIndex.truncate()
+    timeIndex.resize(timeIndex.maxIndexSize)
+    maxTimestampSoFar = Message.NoTimestamp
+    offsetOfMaxTimestamp = baseOffset
+    maxTimestampLoaded = true
     var validBytes = 0
     var lastIndexEntry = 0
     val iter = log.iterator(maxMessageSize)
@@ -177,6 +279,11 @@ class LogSegment(val log: FileMessageSet,
       while(iter.hasNext) {
         val entry = iter.next
         entry.message.ensureValid()
+        // the timestamp of a compressed message is the largest of the messages it wraps, whose offsets it ends with
+        if (entry.message.timestamp > maxTimestampSoFar) {
+          maxTimestampSoFar = entry.message.timestamp
+          offsetOfMaxTimestamp = entry.offset
+        }
         if(validBytes - lastIndexEntry > indexIntervalBytes) {
           // we need to decompress the message, if required, to get the offset of the first uncompressed message
           val startOffset =
@@ -184,9 +291,10 @@ class LogSegment(val log: FileMessageSet,
               case NoCompressionCodec =>
                 entry.offset
               case _ =>
-                ByteBufferMessageSet.deepIterator(entry.message).next().offset
+                ByteBufferMessageSet.deepIterator(entry).next().offset
           }
           index.append(startOffset, validBytes)
+          timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
           lastIndexEntry = validBytes
         }
         validBytes += MessageSet.entrySize(entry.message)
@@ -198,6 +306,9 @@ class LogSegment(val log: FileMessageSet,
     val truncated = log.sizeInBytes - validBytes
     log.truncateTo(validBytes)
     index.trimToValidSize()
+    // make sure the largest timestamp is in the time index, so that it is known when the segment is loaded again
+    timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
+    timeIndex.trimToValidSize()
     truncated
   }
 
@@ -215,8 +326,13 @@ class LogSegment(val log: FileMessageSet,
     if(mapping == null)
       return 0
     index.truncateTo(offset)
+    timeIndex.truncateTo(offset)
     // after truncation, reset and allocate more space for the (new currently  active) index
     index.resize(index.maxIndexSize)
+    timeIndex.resize(timeIndex.maxIndexSize)
+    // the largest timestamp is only known as of the last time index entry, later messages may have had larger ones
+    maxTimestampLoaded = false
+    maybeLoadMaxTimestamp()
     val bytesTruncated = log.truncateTo(mapping.position)
     if(log.sizeInBytes == 0)
       created = time.milliseconds
@@ -249,11 +365,30 @@ class LogSegment(val log: FileMessageSet,
     LogFlushStats.logFlushTimer.time {
       log.flush()
       index.flush()
+      timeIndex.flush()
     }
   }
 
   /**
-   * Change the suffix for the index and log file for this log segment
+   * Record the largest timestamp in the time index and trim the files of this segment when it stops being the active
+   * segment of the log
+   */
+  def onBecomeInactiveSegment() {
+    maybeAppendLargestTimestamp()
+    index.trimToValidSize()
+    timeIndex.trimToValidSize()
+    log.trim()
+  }
+
+  /* the time index of a segment that is not being appended to should end with the largest timestamp of the segment */
+  private def maybeAppendLargestTimestamp() {
+    maybeLoadMaxTimestamp()
+    if (!timeIndex.isFull)
+      timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestamp)
+  }
+
+  /**
+   * Change the suffix for the index, time index and log file for this log segment
    */
   def changeFileSuffixes(oldSuffix: String, newSuffix: String) {
     val logRenamed = log.renameTo(new File(CoreUtils.replaceSuffix(log.file.getPath, oldSuffix, newSuffix)))
@@ -262,13 +397,18 @@ class LogSegment(val log: FileMessageSet,
     val indexRenamed = index.renameTo(new File(CoreUtils.replaceSuffix(index.file.getPath, oldSuffix, newSuffix)))
     if(!indexRenamed)
       throw new KafkaStorageException("Failed to change the index file suffix from %s to %s for log segment %d".format(oldSuffix, newSuffix, baseOffset))
+    val timeIndexRenamed = timeIndex.renameTo(new File(CoreUtils.replaceSuffix(timeIndex.file.getPath, oldSuffix, newSuffix)))
+    if(!timeIndexRenamed)
+      throw new KafkaStorageException("Failed to change the time index file suffix from %s to %s for log segment %d".format(oldSuffix, newSuffix, baseOffset))
   }
 
   /**
    * Close this log segment
    */
   def close() {
+    CoreUtils.swallow(maybeAppendLargestTimestamp())
     CoreUtils.swallow(index.close)
+    CoreUtils.swallow(timeIndex.close)
     CoreUtils.swallow(log.close)
   }
 
@@ -279,10 +419,13 @@ class LogSegment(val log: FileMessageSet,
   def delete() {
     val deletedLog = log.delete()
     val deletedIndex = index.delete()
+    val deletedTimeIndex = timeIndex.delete()
     if(!deletedLog && log.file.exists)
       throw new KafkaStorageException("Delete of log " + log.file.getName + " failed.")
     if(!deletedIndex && index.file.exists)
       throw new KafkaStorageException("Delete of index " + index.file.getName + " failed.")
+    if(!deletedTimeIndex && timeIndex.file.exists)
+      throw new KafkaStorageException("Delete of time index " + timeIndex.file.getName + " failed.")
   }
 
   /**
@@ -296,5 +439,6 @@ class LogSegment(val log: FileMessageSet,
   def lastModified_=(ms: Long) = {
     log.file.setLastModified(ms)
     index.file.setLastModified(ms)
+    timeIndex.file.setLastModified(ms)
   }
 }
@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log
+
+import java.io._
+import java.nio.charset.StandardCharsets
+
+import kafka.common.TopicAndPartition
+import kafka.utils.Logging
+import org.apache.kafka.common.utils.Crc32
+
+import scala.collection._
+
+/**
+ * What is known about a flushed log segment, so that it can be loaded on startup without reading its indexes.
+ *
+ * @param baseOffset The base offset of the segment
+ * @param size The size in bytes of the log file of the segment
+ * @param lastModified The last modified time of the log file of the segment
+ * @param indexEntries The number of entries in the offset index
+ * @param timeIndexEntries The number of entries in the time index
+ * @param maxTimestamp The largest timestamp of the messages in the segment
+ * @param offsetOfMaxTimestamp The offset of the first message with the largest timestamp
+ */
+case class LogSegmentSummary(baseOffset: Long,
+                             size: Long,
+                             lastModified: Long,
+                             indexEntries: Int,
+                             timeIndexEntries: Int,
+                             maxTimestamp: Long,
+                             offsetOfMaxTimestamp: Long) {
+
+  /**
+   * The checksum of the fields of this summary, which guards the summary against a corrupt checkpoint file
+   */
+  def checksum: Long = {
+    val bytes = fields.mkString(" ").getBytes(StandardCharsets.UTF_8)
+    Crc32.crc32(bytes, 0, bytes.length)
+  }
+
+  private[log] def fields: Seq[Long] =
+    Seq(baseOffset, size, lastModified, indexEntries, timeIndexEntries, maxTimestamp, offsetOfMaxTimestamp)
+
+  /**
+   * Are the files of the given segment still those this summary was taken of. The indexes are assumed to be valid if
+   * the log file is unchanged and the index files hold exactly the summarized number of entries.
+   */
+  def matches(segment: LogSegment): Boolean = {
+    segment.baseOffset == baseOffset &&
+      segment.log.file.length == size &&
+      segment.lastModified == lastModified &&
+      segment.index.entries == indexEntries &&
+      segment.index.file.length == segment.index.sizeInBytes &&
+      segment.timeIndex.entries == timeIndexEntries &&
+      segment.timeIndex.file.length == segment.timeIndex.sizeInBytes
+  }
+}
+
+/**
+ * This class saves out the summaries of the flushed segments of the logs in a data directory to a file. The file has
+ * a version line, a line with the number of entries and a line per segment:
+ *
+ * topic partition baseOffset size lastModified indexEntries timeIndexEntries maxTimestamp offsetOfMaxTimestamp checksum
+ *
+ * A line whose checksum does not match its fields is skipped when the file is read, that segment is then loaded by
+ * checking its indexes.
+ */
+class LogSegmentSummaryCheckpoint(val file: File) extends Logging {
+  private val lock = new Object()
+  new File(file + ".tmp").delete() // try to delete any existing temp files for cleanliness
+  file.createNewFile() // in case the file doesn't exist
+
+  def write(summaries: Map[TopicAndPartition, Iterable[LogSegmentSummary]]) {
+    lock synchronized {
+      // the summaries may be computed lazily, take them once so that the count matches the entries written
+      val entries = summaries.toList.flatMap { case (topicPart, logSummaries) => logSummaries.map(topicPart -> _) }
+
+      // write to temp file and then swap with the existing file
+      val temp = new File(file.getAbsolutePath + ".tmp")
+
+      val fileOutputStream = new FileOutputStream(temp)
+      val writer = new BufferedWriter(new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8))
+      try {
+        // write the current version
+        writer.write(0.toString)
+        writer.newLine()
+
+        // write the number of entries
+        writer.write(entries.size.toString)
+        writer.newLine()
+
+        // write the entries
+        entries.foreach { case (topicPart, summary) =>
+          writer.write("%s %d %s %d".format(topicPart.topic, topicPart.partition, summary.fields.mkString(" "), summary.checksum))
+          writer.newLine()
+        }
+
+        // flush the buffer and then fsync the underlying file
+        writer.flush()
+        fileOutputStream.getFD().sync()
+      } finally {
+        writer.close()
+      }
+
+      // swap new checkpoint file with previous one
+      if(!temp.renameTo(file)) {
+        // renameTo() fails on Windows if the destination file exists.
+        file.delete()
+        if(!temp.renameTo(file))
+          throw new IOException("File rename from %s to %s failed.".format(temp.getAbsolutePath, file.getAbsolutePath))
+      }
+    }
+  }
+
+  def read(): Map[TopicAndPartition, Map[Long, LogSegmentSummary]] = {
+    lock synchronized {
+      val reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))
+      try {
+        var line = reader.readLine()
+        if(line == null)
+          return Map.empty
+        val version = line.toInt
+        version match {
+          case 0 =>
+            line = reader.readLine()
+            if(line == null)
+              return Map.empty
+            val expectedSize = line.toInt
+            val summaries = mutable.Map[TopicAndPartition, mutable.Map[Long, LogSegmentSummary]]()
+            var found = 0
+            line = reader.readLine()
+            while(line != null) {
+              val pieces = line.split("\\s+")
+              if(pieces.length != 10)
+                throw new IOException("Malformed line in log segment summary file: '%s'.".format(line))
+
+              val topicPart = TopicAndPartition(pieces(0), pieces(1).toInt)
+              val summary = LogSegmentSummary(baseOffset = pieces(2).toLong,
+                                              size = pieces(3).toLong,
+                                              lastModified = pieces(4).toLong,
+                                              indexEntries = pieces(5).toInt,
+                                              timeIndexEntries = pieces(6).toInt,
+                                              maxTimestamp = pieces(7).toLong,
+                                              offsetOfMaxTimestamp = pieces(8).toLong)
+              if(summary.checksum == pieces(9).toLong)
+                summaries.getOrElseUpdate(topicPart, mutable.Map()) += (summary.baseOffset -> summary)
+              else
+                warn("Skipping log segment summary with an invalid checksum in %s: '%s'.".format(file.getAbsolutePath, line))
+              found += 1
+              line = reader.readLine()
+            }
+            if(found != expectedSize)
+              throw new IOException("Expected %d entries but found only %d".format(expectedSize, found))
+            summaries
+          case _ =>
+            throw new IOException("Unrecognized version of the log segment summary file: " + version)
+        }
+      } finally {
+        reader.close()
+      }
+    }
+  }
+
+}
@@ -20,10 +20,6 @@ package kafka.log
 import scala.math._
 import java.io._
 import java.nio._
-import java.nio.channels._
-import java.util.concurrent.locks._
-import java.util.concurrent.atomic._
-import kafka.utils._
 import kafka.utils.CoreUtils.inLock
 import kafka.common.InvalidOffsetException
 
@@ -52,53 +48,28 @@ import kafka.common.InvalidOffsetException
  * All external APIs translate from relative offsets to full offsets, so users of this class do not interact with the internal 
  * storage format.
  */
-class OffsetIndex(@volatile var file: File, val baseOffset: Long, val maxIndexSize: Int = -1) extends Logging {
-  
-  private val lock = new ReentrantLock
-  
-  /* initialize the memory mapping for this index */
-  private var mmap: MappedByteBuffer = 
-    {
-      val newlyCreated = file.createNewFile()
-      val raf = new RandomAccessFile(file, "rw")
-      try {
-        /* pre-allocate the file if necessary */
-        if(newlyCreated) {
-          if(maxIndexSize < 8)
-            throw new IllegalArgumentException("Invalid max index size: " + maxIndexSize)
-          raf.setLength(roundToExactMultiple(maxIndexSize, 8))
-        }
-          
-        /* memory-map the file */
-        val len = raf.length()
-        val idx = raf.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, len)
-          
-        /* set the position in the index for the next entry */
-        if(newlyCreated)
-          idx.position(0)
-        else
-          // if this is a pre-existing index, assume it is all valid and set position to last entry
-          idx.position(roundToExactMultiple(idx.limit, 8))
-        idx
-      } finally {
-        CoreUtils.swallow(raf.close())
-      }
-    }
+class OffsetIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1)
+    extends AbstractIndex(_file, baseOffset, maxIndexSize) {
+
+  override protected def entrySize = 8
+
+  /* the number of entries at the end of the index searched first, they fit in two pages */
+  private val warmEntries = 8192 / entrySize
   
-  /* the number of eight-byte entries currently in the index */
-  private var size = new AtomicInteger(mmap.position / 8)
+  /* the last offset in the index, -1 until it is first read from the index */
+  @volatile private var _lastOffset = -1L
   
+  debug("Loaded index file %s with maxEntries = %d, maxIndexSize = %d, entries = %d"
+    .format(file.getAbsolutePath, maxEntries, maxIndexSize, entries()))
+
   /**
-   * The maximum number of eight-byte entries this index can hold
+   * The last offset in the index. Reading it memory-maps the index if it is not mapped yet.
    */
-  @volatile
-  var maxEntries = mmap.limit / 8
-  
-  /* the last offset in the index */
-  var lastOffset = readLastEntry.offset
-  
-  debug("Loaded index file %s with maxEntries = %d, maxIndexSize = %d, entries = %d, lastOffset = %d, file position = %d"
-    .format(file.getAbsolutePath, maxEntries, maxIndexSize, entries(), lastOffset, mmap.position))
+  def lastOffset: Long = {
+    if(_lastOffset < 0)
+      _lastOffset = readLastEntry.offset
+    _lastOffset
+  }
 
   /**
    * The last entry in the index
@@ -136,6 +107,11 @@ class OffsetIndex(@volatile var file: File, val baseOffset: Long, val maxIndexSi
   /**
    * Find the slot in which the largest offset less than or equal to the given
    * target offset is stored.
+   *
+   * Almost all lookups are for recent offsets by consumers and followers reading the tail of the log. A plain binary
+   * search over the whole index visits entries on pages spread across the file for each of them, which keeps the
+   * whole index resident and page faults on indexes that are not. The search is thus first confined to the warm
+   * section at the end of the index, the last warmEntries entries, and only covers the rest for older offsets.
    * 
    * @param idx The index buffer
    * @param targetOffset The offset to look for
@@ -147,18 +123,29 @@ class OffsetIndex(@volatile var file: File, val baseOffset: Long, val maxIndexSi
     val relOffset = targetOffset - baseOffset
     
     // check if the index is empty
-    if(entries == 0)
+    val numEntries = entries
+    if(numEntries == 0)
       return -1
+
+    // search the warm section if the target offset is in it
+    val firstWarmEntry = max(0, numEntries - warmEntries)
+    if(relativeOffset(idx, firstWarmEntry) <= relOffset)
+      return binarySearch(idx, relOffset, firstWarmEntry, numEntries - 1)
     
     // check if the target offset is smaller than the least offset
     if(relativeOffset(idx, 0) > relOffset)
       return -1
-      
-    // binary search for the entry
-    var lo = 0
-    var hi = entries-1
+
+    binarySearch(idx, relOffset, 0, firstWarmEntry - 1)
+  }
+
+  /* find the slot of the largest relative offset less than or equal to the target between the slots from and to, the
+   * offset in the slot from is known to be less than or equal to the target */
+  private def binarySearch(idx: ByteBuffer, relOffset: Long, from: Int, to: Int): Int = {
+    var lo = from
+    var hi = to
     while(lo < hi) {
-      val mid = ceil(hi/2.0 + lo/2.0).toInt
+      val mid = (lo + hi + 1) >>> 1
       val found = relativeOffset(idx, mid)
       if(found == relOffset)
         return mid
@@ -201,7 +188,7 @@ class OffsetIndex(@volatile var file: File, val baseOffset: Long, val maxIndexSi
         this.mmap.putInt((offset - baseOffset).toInt)
         this.mmap.putInt(position)
         this.size.incrementAndGet()
-        this.lastOffset = offset
+        this._lastOffset = offset
         require(entries * 8 == mmap.position, entries + " entries but file position in index is " + mmap.position + ".")
       } else {
         throw new InvalidOffsetException("Attempt to append an offset (%d) to position %d no larger than the last offset appended (%d) to %s."
@@ -210,21 +197,11 @@ class OffsetIndex(@volatile var file: File, val baseOffset: Long, val maxIndexSi
     }
   }
   
-  /**
-   * True iff there are no more slots available in this index
-   */
-  def isFull: Boolean = entries >= this.maxEntries
-  
-  /**
-   * Truncate the entire index, deleting all entries
-   */
-  def truncate() = truncateToEntries(0)
-  
   /**
    * Remove all entries from the index which have an offset greater than or equal to the given offset.
    * Truncating to an offset larger than the largest in the index has no effect.
    */
-  def truncateTo(offset: Long) {
+  override def truncateTo(offset: Long) {
     inLock(lock) {
       val idx = mmap.duplicate
       val slot = indexSlotFor(idx, offset)
@@ -248,109 +225,19 @@ class OffsetIndex(@volatile var file: File, val baseOffset: Long, val maxIndexSi
   /**
    * Truncates index to a known number of entries.
    */
-  private def truncateToEntries(entries: Int) {
+  override protected def truncateToEntries(entries: Int) {
     inLock(lock) {
       this.size.set(entries)
       mmap.position(this.size.get * 8)
-      this.lastOffset = readLastEntry.offset
-    }
-  }
-  
-  /**
-   * Trim this segment to fit just the valid entries, deleting all trailing unwritten bytes from
-   * the file.
-   */
-  def trimToValidSize() {
-    inLock(lock) {
-      resize(entries * 8)
-    }
-  }
-
-  /**
-   * Reset the size of the memory map and the underneath file. This is used in two kinds of cases: (1) in
-   * trimToValidSize() which is called at closing the segment or new segment being rolled; (2) at
-   * loading segments from disk or truncating back to an old segment where a new log segment became active;
-   * we want to reset the index size to maximum index size to avoid rolling new segment.
-   */
-  def resize(newSize: Int) {
-    inLock(lock) {
-      val raf = new RandomAccessFile(file, "rw")
-      val roundedNewSize = roundToExactMultiple(newSize, 8)
-      val position = this.mmap.position
-      
-      /* Windows won't let us modify the file length while the file is mmapped :-( */
-      if(Os.isWindows)
-        forceUnmap(this.mmap)
-      try {
-        raf.setLength(roundedNewSize)
-        this.mmap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, roundedNewSize)
-        this.maxEntries = this.mmap.limit / 8
-        this.mmap.position(position)
-      } finally {
-        CoreUtils.swallow(raf.close())
-      }
+      this._lastOffset = readLastEntry.offset
     }
   }
   
-  /**
-   * Forcefully free the buffer's mmap. We do this only on windows.
-   */
-  private def forceUnmap(m: MappedByteBuffer) {
-    try {
-      if(m.isInstanceOf[sun.nio.ch.DirectBuffer])
-        (m.asInstanceOf[sun.nio.ch.DirectBuffer]).cleaner().clean()
-    } catch {
-      case t: Throwable => warn("Error when freeing index buffer", t)
-    }
-  }
-  
-  /**
-   * Flush the data in the index to disk
-   */
-  def flush() {
-    inLock(lock) {
-      mmap.force()
-    }
-  }
-  
-  /**
-   * Delete this index file
-   */
-  def delete(): Boolean = {
-    info("Deleting index " + this.file.getAbsolutePath)
-    if(Os.isWindows)
-      CoreUtils.swallow(forceUnmap(this.mmap))
-    this.file.delete()
-  }
-  
-  /** The number of entries in this index */
-  def entries() = size.get
-  
-  /**
-   * The number of bytes actually used by this index
-   */
-  def sizeInBytes() = 8 * entries
-  
-  /** Close the index */
-  def close() {
-    trimToValidSize()
-  }
-  
-  /**
-   * Rename the file that backs this offset index
-   * @return true iff the rename was successful
-   */
-  def renameTo(f: File): Boolean = {
-    val success = this.file.renameTo(f)
-    this.file = f
-    success
-  }
-  
   /**
    * Do a basic sanity check on this index to detect obvious problems
    * @throws IllegalArgumentException if any problems are found
    */
-  def sanityCheck() {
+  override def sanityCheck() {
     require(entries == 0 || lastOffset > baseOffset,
             "Corrupt index found, index file (%s) has non-zero size but the last offset is %d and the base offset is %d"
             .format(file.getAbsolutePath, lastOffset, baseOffset))
@@ -359,26 +246,4 @@ class OffsetIndex(@volatile var file: File, val baseOffset: Long, val maxIndexSi
               "Index file " + file.getName + " is corrupt, found " + len + 
               " bytes which is not positive or not a multiple of 8.")
   }
-  
-  /**
-   * Round a number to the greatest exact multiple of the given factor less than the given number.
-   * E.g. roundToExactMultiple(67, 8) == 64
-   */
-  private def roundToExactMultiple(number: Int, factor: Int) = factor * (number / factor)
-  
-  /**
-   * Execute the given function in a lock only if we are running on windows. We do this 
-   * because Windows won't let us resize a file while it is mmapped. As a result we have to force unmap it
-   * and this requires synchronizing reads.
-   */
-  private def maybeLock[T](lock: Lock)(fun: => T): T = {
-    if(Os.isWindows)
-      lock.lock()
-    try {
-      fun
-    } finally {
-      if(Os.isWindows)
-        lock.unlock()
-    }
-  }
 }
@@ -19,7 +19,7 @@ package kafka.log
 
 import java.util.Arrays
 import java.security.MessageDigest
-import java.nio.ByteBuffer
+import java.nio.{ByteBuffer, ByteOrder}
 import kafka.utils._
 import org.apache.kafka.common.utils.Utils
 
@@ -30,6 +30,29 @@ trait OffsetMap {
   def clear()
   def size: Int
   def utilization: Double = size.toDouble / slots
+  /* the number of additional probes per lookup since the map was last cleared */
+  def collisionRate: Double = 0.0
+  /* a map that shares the entries of this one but not its lookup state, for lookups from another thread; it cannot be
+   * updated and it is only valid until this map is updated or cleared */
+  def readOnlyView: OffsetMap
+}
+
+object OffsetMap {
+
+  /* the hash algorithms of the DirectOffsetMap, any other is a MessageDigest algorithm used by the SkimpyOffsetMap */
+  val Murmur3x64 = "MURMUR3-64"
+  val Murmur3x128 = "MURMUR3-128"
+
+  /**
+   * Create the offset map for the given hash algorithm
+   * @param memory The amount of memory the map can use
+   * @param hashAlgorithm MURMUR3-64 or MURMUR3-128 for a DirectOffsetMap, otherwise the MessageDigest algorithm of a SkimpyOffsetMap
+   */
+  def apply(memory: Int, hashAlgorithm: String): OffsetMap = hashAlgorithm match {
+    case Murmur3x64 => new DirectOffsetMap(memory, hashBytes = 8)
+    case Murmur3x128 => new DirectOffsetMap(memory, hashBytes = 16)
+    case _ => new SkimpyOffsetMap(memory, hashAlgorithm)
+  }
 }
 
 /**
@@ -39,9 +62,10 @@ trait OffsetMap {
  * @param hashAlgorithm The hash algorithm instance to use: MD2, MD5, SHA-1, SHA-256, SHA-384, SHA-512
  */
 @nonthreadsafe
-class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extends OffsetMap {
-  private val bytes = ByteBuffer.allocate(memory)
-  
+class SkimpyOffsetMap private (val memory: Int, val hashAlgorithm: String, bytes: ByteBuffer, private var entries: Int) extends OffsetMap {
+
+  def this(memory: Int, hashAlgorithm: String = "MD5") = this(memory, hashAlgorithm, ByteBuffer.allocate(memory), 0)
+
   /* the hash algorithm instance to use, default is MD5 */
   private val digest = MessageDigest.getInstance(hashAlgorithm)
   
@@ -52,9 +76,6 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   private val hash1 = new Array[Byte](hashSize)
   private val hash2 = new Array[Byte](hashSize)
   
-  /* number of entries put into the map */
-  private var entries = 0
-  
   /* number of lookups on the map */
   private var lookups = 0L
   
@@ -148,8 +169,13 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   /**
    * The rate of collisions in the lookups
    */
-  def collisionRate: Double = 
-    (this.probes - this.lookups) / this.lookups.toDouble
+  override def collisionRate: Double = 
+    if(this.lookups == 0) 0.0 else (this.probes - this.lookups) / this.lookups.toDouble
+
+  /**
+   * A read-only map over the same buffer with its own digest and hash buffers
+   */
+  override def readOnlyView: OffsetMap = new SkimpyOffsetMap(memory, hashAlgorithm, bytes.asReadOnlyBuffer(), entries)
   
   /**
    * Calculate the ith probe position. We first try reading successive integers from the hash itself
@@ -178,3 +204,214 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   }
   
 }
+
+/**
+ * An open-addressing hash table used for deduplicating the log, which stores the 64 or 128 bit MurmurHash3 of the key
+ * as a proxy for the key in a direct buffer. Hashing a key with MurmurHash3 is an order of magnitude cheaper than with
+ * a MessageDigest, and with 64 bit hashes an entry takes 16 bytes instead of 24 so that 50% more keys fit in the same
+ * memory. Collisions are resolved by linear probing, which visits adjacent entries. This hash table does not support
+ * deletes.
+ *
+ * Two keys with the same hash are taken for the same key and the older message is discarded, with 64 bit hashes this
+ * becomes likely for logs with billions of distinct keys.
+ *
+ * @param memory The amount of memory this map can use
+ * @param hashBytes The number of bytes of the hash stored for each key, 8 or 16
+ */
+@nonthreadsafe
+class DirectOffsetMap private (val memory: Int, val hashBytes: Int, bytes: ByteBuffer, private var entries: Int) extends OffsetMap {
+  import DirectOffsetMap._
+
+  def this(memory: Int, hashBytes: Int = 16) = this(memory, hashBytes, ByteBuffer.allocateDirect(memory), 0)
+
+  require(hashBytes == 8 || hashBytes == 16, "The hash of a key is either 8 or 16 bytes, not " + hashBytes)
+
+  /* the hash of the key last hashed, the first half is never 0 so that an all zero entry is empty */
+  private var hash1 = 0L
+  private var hash2 = 0L
+
+  /* number of lookups on the map */
+  private var lookups = 0L
+
+  /* the number of probes for all lookups */
+  private var probes = 0L
+
+  /**
+   * The number of bytes of space each entry uses (the number of bytes in the hash plus an 8 byte offset)
+   */
+  val bytesPerEntry = hashBytes + 8
+
+  /**
+   * The maximum number of entries this map can contain
+   */
+  val slots: Int = memory / bytesPerEntry
+
+  /**
+   * Associate this offset to the given key.
+   * @param key The key
+   * @param offset The offset
+   */
+  override def put(key: ByteBuffer, offset: Long) {
+    require(entries < slots, "Attempt to add a new entry to a full offset map.")
+    lookups += 1
+    hash(key)
+    // probe until we find the entry of this hash or the first empty slot
+    var pos = firstPositionOf(hash1)
+    while(!isEmpty(pos)) {
+      if(hashEquals(pos)) {
+        // we found an existing entry, overwrite it and return (size does not change)
+        bytes.putLong(pos + hashBytes, offset)
+        return
+      }
+      pos = nextPosition(pos)
+    }
+    // found an empty slot, update it--size grows by 1
+    bytes.putLong(pos, hash1)
+    if(hashBytes == 16)
+      bytes.putLong(pos + 8, hash2)
+    bytes.putLong(pos + hashBytes, offset)
+    entries += 1
+  }
+
+  /**
+   * Get the offset associated with this key.
+   * @param key The key
+   * @return The offset associated with this key or -1 if the key is not found
+   */
+  override def get(key: ByteBuffer): Long = {
+    lookups += 1
+    hash(key)
+    // probe until we find the entry of this hash or an empty slot
+    var pos = firstPositionOf(hash1)
+    while(!isEmpty(pos)) {
+      if(hashEquals(pos))
+        return bytes.getLong(pos + hashBytes)
+      pos = nextPosition(pos)
+    }
+    -1L
+  }
+
+  /**
+   * Remove all entries, the buffer is zeroed.
+   */
+  override def clear() {
+    this.entries = 0
+    this.lookups = 0L
+    this.probes = 0L
+    var pos = 0
+    while(pos <= bytes.limit - 8) {
+      bytes.putLong(pos, 0L)
+      pos += 8
+    }
+  }
+
+  /**
+   * The number of entries put into the map (note that not all may remain)
+   */
+  override def size: Int = entries
+
+  /**
+   * The rate of collisions in the lookups
+   */
+  override def collisionRate: Double =
+    if(this.lookups == 0) 0.0 else (this.probes - this.lookups) / this.lookups.toDouble
+
+  /**
+   * A read-only map over the same buffer with its own hash of the last key
+   */
+  override def readOnlyView: OffsetMap = new DirectOffsetMap(memory, hashBytes, bytes.asReadOnlyBuffer(), entries)
+
+  private def isEmpty(position: Int): Boolean = bytes.getLong(position) == 0
+
+  private def hashEquals(position: Int): Boolean =
+    bytes.getLong(position) == hash1 && (hashBytes == 8 || bytes.getLong(position + 8) == hash2)
+
+  private def firstPositionOf(hash: Long): Int = {
+    this.probes += 1
+    ((hash >>> 1) % slots).toInt * bytesPerEntry
+  }
+
+  private def nextPosition(position: Int): Int = {
+    this.probes += 1
+    val next = position + bytesPerEntry
+    if(next >= slots * bytesPerEntry) 0 else next
+  }
+
+  /**
+   * Compute the 128 bit MurmurHash3 (x64 variant) of the remaining bytes of the key into hash1 and hash2, without
+   * changing the position of the key
+   */
+  private def hash(key: ByteBuffer) {
+    val start = key.position
+    val length = key.remaining
+    var h1 = 0L
+    var h2 = 0L
+
+    val blocks = length / 16
+    var i = 0
+    while(i < blocks) {
+      var k1 = littleEndianLong(key, start + 16 * i)
+      var k2 = littleEndianLong(key, start + 16 * i + 8)
+
+      k1 *= C1; k1 = java.lang.Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1
+      h1 = java.lang.Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729
+
+      k2 *= C2; k2 = java.lang.Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2
+      h2 = java.lang.Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5
+      i += 1
+    }
+
+    // the remaining 0 to 15 bytes
+    val tail = start + 16 * blocks
+    var k1 = 0L
+    var k2 = 0L
+    var j = length - 16 * blocks - 1
+    while(j >= 8) {
+      k2 ^= (key.get(tail + j) & 0xffL) << ((j - 8) * 8)
+      j -= 1
+    }
+    if(k2 != 0) {
+      k2 *= C2; k2 = java.lang.Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2
+    }
+    while(j >= 0) {
+      k1 ^= (key.get(tail + j) & 0xffL) << (j * 8)
+      j -= 1
+    }
+    if(k1 != 0) {
+      k1 *= C1; k1 = java.lang.Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1
+    }
+
+    h1 ^= length
+    h2 ^= length
+    h1 += h2
+    h2 += h1
+    h1 = fmix(h1)
+    h2 = fmix(h2)
+    h1 += h2
+    h2 += h1
+
+    this.hash1 = if(h1 == 0) 1L else h1
+    this.hash2 = h2
+  }
+
+  private def littleEndianLong(buffer: ByteBuffer, index: Int): Long = {
+    val value = buffer.getLong(index)
+    if(buffer.order == ByteOrder.BIG_ENDIAN) java.lang.Long.reverseBytes(value) else value
+  }
+
+  private def fmix(hash: Long): Long = {
+    var k = hash
+    k ^= k >>> 33
+    k *= 0xff51afd7ed558ccdL
+    k ^= k >>> 33
+    k *= 0xc4ceb9fe1a85ec53L
+    k ^= k >>> 33
+    k
+  }
+}
+
+private object DirectOffsetMap {
+  /* the multiplication constants of MurmurHash3 */
+  val C1 = 0x87c37b91114253d5L
+  val C2 = 0x4cf5ad432745937fL
+}
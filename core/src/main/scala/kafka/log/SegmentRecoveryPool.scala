@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
+
+import kafka.utils.{Logging, threadsafe}
+import org.apache.kafka.common.utils.Utils
+
+object SegmentRecoveryPool {
+  /** The pool of logs that are not loaded on broker startup, which recovers their segments on the calling thread */
+  val Serial = new SegmentRecoveryPool(1)
+}
+
+/**
+ * The threads that rebuild the indexes of log segments and recover unflushed segments while logs are loaded on broker
+ * startup. The pool is shared by the logs of all data directories, so that a log with many segments to recover is not
+ * bound to the single thread loading it. The segments of a log are independent of one another, only the outcome of
+ * their recovery has to be applied in order.
+ *
+ * With a single thread the segments are recovered on the calling thread, one after the other.
+ *
+ * @param numThreads The number of threads recovering segments
+ */
+@threadsafe
+class SegmentRecoveryPool(val numThreads: Int) extends Logging {
+
+  private val executor: ExecutorService =
+    if (numThreads > 1) {
+      val threadId = new AtomicInteger(0)
+      Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        def newThread(runnable: Runnable): Thread =
+          Utils.newThread("kafka-segment-recovery-" + threadId.getAndIncrement(), runnable, true)
+      })
+    } else {
+      null
+    }
+
+  /* the number of segments submitted that have not been recovered yet */
+  private val remaining = new AtomicInteger(0)
+
+  /**
+   * The number of segments submitted for recovery that have not been recovered yet
+   */
+  def segmentsRemaining: Int = remaining.get
+
+  /**
+   * Apply the given recovery function to each of the segments and return the results in the order of the segments.
+   * The call returns once all segments are recovered; if recovering a segment fails its exception is thrown.
+   *
+   * @param segments The segments to recover
+   * @param fun The recovery of a single segment
+   */
+  def recover[T](segments: Seq[LogSegment])(fun: LogSegment => T): Seq[T] = {
+    // make sure the segments are only traversed once and not lazily
+    val toRecover = segments.toList
+    remaining.addAndGet(toRecover.size)
+    if (executor == null || toRecover.size <= 1) {
+      toRecover.map(segment => try fun(segment) finally remaining.decrementAndGet())
+    } else {
+      val futures = toRecover.map { segment =>
+        executor.submit(new Callable[T] {
+          def call(): T = try fun(segment) finally remaining.decrementAndGet()
+        })
+      }
+      futures.map { future =>
+        try {
+          future.get
+        } catch {
+          case e: ExecutionException => throw e.getCause
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop the recovery threads once the segments submitted so far are recovered
+   */
+  def shutdown() {
+    if (executor != null) {
+      debug("Shutting down segment recovery pool.")
+      executor.shutdown()
+    }
+  }
+}
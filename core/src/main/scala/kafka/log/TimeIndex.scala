@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+import java.nio.ByteBuffer
+
+import kafka.common.InvalidOffsetException
+import kafka.message.Message
+import kafka.utils.CoreUtils.inLock
+
+/**
+ * An index that maps timestamps to offsets for a particular log segment. Like the offset index it is sparse: an entry
+ * is appended along with each offset index entry, and only when the largest timestamp seen in the segment has grown
+ * since the last entry. Each entry holds that largest timestamp and the offset of the first message that reached it,
+ * so both the timestamps and the offsets in the index are strictly increasing and all messages up to the offset of an
+ * entry have a timestamp no larger than the timestamp of the entry.
+ *
+ * The file format is a series of 12 byte entries: an 8 byte timestamp and a 4 byte offset relative to the base offset
+ * of the segment, as in the offset index.
+ *
+ * Segments written before messages had timestamps have an empty time index.
+ */
+class TimeIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1)
+    extends AbstractIndex(_file, baseOffset, maxIndexSize) {
+
+  override protected def entrySize = 12
+
+  /* the last entry in the index, null until it is first read from the index */
+  @volatile private var _lastEntry: TimestampOffset = null
+
+  debug("Loaded time index file %s with maxEntries = %d, maxIndexSize = %d, entries = %d"
+    .format(file.getAbsolutePath, maxEntries, maxIndexSize, entries()))
+
+  /**
+   * The last entry in the index, or (NoTimestamp, baseOffset) if the index is empty. Reading it memory-maps the index
+   * if it is not mapped yet.
+   */
+  def lastEntry: TimestampOffset = {
+    if(_lastEntry == null)
+      _lastEntry = readLastEntry()
+    _lastEntry
+  }
+
+  private def readLastEntry(): TimestampOffset = {
+    inLock(lock) {
+      size.get match {
+        case 0 => TimestampOffset(Message.NoTimestamp, baseOffset)
+        case s => TimestampOffset(timestamp(this.mmap, s - 1), baseOffset + relativeOffset(this.mmap, s - 1))
+      }
+    }
+  }
+
+  /* return the nth timestamp */
+  private def timestamp(buffer: ByteBuffer, n: Int): Long = buffer.getLong(n * entrySize)
+
+  /* return the nth offset relative to the base offset */
+  private def relativeOffset(buffer: ByteBuffer, n: Int): Int = buffer.getInt(n * entrySize + 8)
+
+  /**
+   * Get the nth timestamp mapping from the index
+   * @param n The entry number in the index
+   * @return The timestamp/offset pair at that entry
+   */
+  def entry(n: Int): TimestampOffset = {
+    maybeLock(lock) {
+      if(n >= entries)
+        throw new IllegalArgumentException("Attempt to fetch the %dth entry from a time index of size %d.".format(n, entries))
+      val idx = mmap.duplicate
+      TimestampOffset(timestamp(idx, n), baseOffset + relativeOffset(idx, n))
+    }
+  }
+
+  /**
+   * Append an entry for the given timestamp/offset pair if the timestamp is larger than the timestamp of the last
+   * entry. The offset must be no smaller than the offset of the last entry.
+   */
+  def maybeAppend(timestamp: Long, offset: Long) {
+    inLock(lock) {
+      require(!isFull, "Attempt to append to a full time index (size = " + entries + ").")
+      if (entries > 0 && offset < lastEntry.offset)
+        throw new InvalidOffsetException("Attempt to append an offset (%d) to slot %d smaller than the last offset appended (%d) to %s."
+          .format(offset, entries, lastEntry.offset, file.getAbsolutePath))
+      if (timestamp > lastEntry.timestamp) {
+        debug("Adding time index entry %d => %d to %s.".format(timestamp, offset, file.getName))
+        this.mmap.putLong(timestamp)
+        this.mmap.putInt((offset - baseOffset).toInt)
+        this.size.incrementAndGet()
+        this._lastEntry = TimestampOffset(timestamp, offset)
+        require(entries * entrySize == mmap.position, entries + " entries but file position in time index is " + mmap.position + ".")
+      }
+    }
+  }
+
+  /**
+   * Find the entry with the largest timestamp less than or equal to the given target timestamp.
+   *
+   * @param targetTimestamp The timestamp to look up.
+   *
+   * @return The timestamp/offset pair found. If the target timestamp is smaller than the least timestamp in the index
+   * (or the index is empty), (NoTimestamp, baseOffset) is returned.
+   */
+  def lookup(targetTimestamp: Long): TimestampOffset = {
+    maybeLock(lock) {
+      val idx = mmap.duplicate
+      val slot = largestLowerBoundSlotFor(idx, targetTimestamp, timestamp)
+      if(slot == -1)
+        TimestampOffset(Message.NoTimestamp, baseOffset)
+      else
+        TimestampOffset(timestamp(idx, slot), baseOffset + relativeOffset(idx, slot))
+    }
+  }
+
+  /**
+   * Find the slot holding the largest key less than or equal to the target, where the key is either the timestamp or
+   * the relative offset of the entries; both are strictly increasing.
+   *
+   * @return The slot found or -1 if the least entry in the index is larger than the target or the index is empty
+   */
+  private def largestLowerBoundSlotFor(idx: ByteBuffer, target: Long, key: (ByteBuffer, Int) => Long): Int = {
+    if(entries == 0 || key(idx, 0) > target)
+      return -1
+
+    // binary search for the entry
+    var lo = 0
+    var hi = entries - 1
+    while(lo < hi) {
+      val mid = (lo + hi + 1) >>> 1
+      val found = key(idx, mid)
+      if(found == target)
+        return mid
+      else if(found < target)
+        lo = mid
+      else
+        hi = mid - 1
+    }
+    lo
+  }
+
+  /**
+   * Remove all entries from the index which have an offset greater than or equal to the given offset.
+   * Truncating to an offset larger than the largest in the index has no effect.
+   */
+  override def truncateTo(offset: Long) {
+    inLock(lock) {
+      val idx = mmap.duplicate
+      val relOffset = offset - baseOffset
+      val slot = largestLowerBoundSlotFor(idx, relOffset, (buffer, n) => relativeOffset(buffer, n).toLong)
+      val newEntries =
+        if(slot < 0)
+          0
+        else if(relativeOffset(idx, slot) == relOffset)
+          slot
+        else
+          slot + 1
+      truncateToEntries(newEntries)
+    }
+  }
+
+  /**
+   * Truncates index to a known number of entries.
+   */
+  override protected def truncateToEntries(entries: Int) {
+    inLock(lock) {
+      this.size.set(entries)
+      mmap.position(this.size.get * entrySize)
+      this._lastEntry = readLastEntry()
+    }
+  }
+
+  /**
+   * Do a basic sanity check on this index to detect obvious problems
+   * @throws IllegalArgumentException if any problems are found
+   */
+  override def sanityCheck() {
+    require(entries == 0 || lastEntry.offset >= baseOffset,
+            "Corrupt time index found, time index file (%s) has non-zero size but the last offset is %d and the base offset is %d"
+            .format(file.getAbsolutePath, lastEntry.offset, baseOffset))
+    val firstTimestamp = if (entries <= 1) -1L else maybeLock(lock) { timestamp(mmap, 0) }
+    require(entries <= 1 || lastEntry.timestamp > firstTimestamp,
+            "Corrupt time index found, time index file (%s) has %d entries but the last timestamp %d is not larger than the first timestamp %d"
+            .format(file.getAbsolutePath, entries, lastEntry.timestamp, firstTimestamp))
+    val len = file.length()
+    require(len % entrySize == 0,
+            "Time index file " + file.getName + " is corrupt, found " + len +
+            " bytes which is not positive or not a multiple of " + entrySize + ".")
+  }
+}
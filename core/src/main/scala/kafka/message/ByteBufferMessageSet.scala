@@ -17,8 +17,9 @@
 
 package kafka.message
 
-import kafka.utils.{IteratorTemplate, Logging}
+import kafka.utils.{IteratorTemplate, Logging, SystemTime}
 import kafka.common.KafkaException
+import org.apache.kafka.common.record.TimestampType
 
 import java.nio.ByteBuffer
 import java.nio.channels._
@@ -27,7 +28,10 @@ import java.util.concurrent.atomic.AtomicLong
 
 object ByteBufferMessageSet {
 
-  private def create(offsetCounter: AtomicLong, compressionCodec: CompressionCodec, messages: Message*): ByteBuffer = {
+  private def create(offsetCounter: AtomicLong,
+                     compressionCodec: CompressionCodec,
+                     magicValue: Byte,
+                     messages: Message*): ByteBuffer = {
     if(messages.size == 0) {
       MessageSet.Empty.buffer
     } else if(compressionCodec == NoCompressionCodec) {
@@ -38,13 +42,24 @@ object ByteBufferMessageSet {
       buffer
     } else {
       var offset = -1L
+      var relativeOffset = 0L
+      // the wrapper takes the largest timestamp of the messages and has the log append time only if they all have it
+      val timestamp = messages.map(_.timestamp).max
+      val timestampType =
+        if (messages.forall(_.timestampType == TimestampType.LOG_APPEND_TIME)) TimestampType.LOG_APPEND_TIME
+        else TimestampType.CREATE_TIME
       val messageWriter = new MessageWriter(math.min(math.max(MessageSet.messageSetSize(messages) / 2, 1024), 1 << 16))
-      messageWriter.write(codec = compressionCodec) { outputStream =>
+      messageWriter.write(codec = compressionCodec, timestamp = timestamp, timestampType = timestampType,
+                          magicValue = magicValue) { outputStream =>
         val output = new DataOutputStream(CompressionFactory(compressionCodec, outputStream))
         try {
           for (message <- messages) {
             offset = offsetCounter.getAndIncrement
-            output.writeLong(offset)
+            if (magicValue == Message.MagicValue_V0)
+              output.writeLong(offset)
+            else
+              output.writeLong(relativeOffset)
+            relativeOffset += 1
             output.writeInt(message.size)
             output.write(message.buffer.array, message.buffer.arrayOffset, message.buffer.limit)
           }
@@ -59,8 +74,29 @@ object ByteBufferMessageSet {
     }
   }
 
-  /** Deep iterator that decompresses the message sets in-place. */
-  def deepIterator(wrapperMessage: Message): Iterator[MessageAndOffset] = {
+  /**
+   * Deep iterator that decompresses the message sets in-place. The messages are returned with their absolute offsets,
+   * which from magic value 1 on means all inner messages are read before the first one is returned.
+   */
+  def deepIterator(wrapperMessageAndOffset: MessageAndOffset): Iterator[MessageAndOffset] = {
+    val wrapperMessage = wrapperMessageAndOffset.message
+    if (wrapperMessage.magic == Message.MagicValue_V0) {
+      decompressedIterator(wrapperMessage)
+    } else {
+      // the inner offsets are relative to the first inner message and the wrapper has the offset of the last one
+      val innerMessages = decompressedIterator(wrapperMessage).toBuffer
+      if (innerMessages.isEmpty) {
+        Iterator.empty
+      } else {
+        val firstOffset = wrapperMessageAndOffset.offset - innerMessages.last.offset
+        innerMessages.iterator.map(messageAndOffset =>
+          new MessageAndOffset(messageAndOffset.message, firstOffset + messageAndOffset.offset))
+      }
+    }
+  }
+
+  /** Iterator over the messages inside a compressed message, with the offsets as they are stored */
+  private def decompressedIterator(wrapperMessage: Message): Iterator[MessageAndOffset] = {
     new IteratorTemplate[MessageAndOffset] {
 
       val inputStream: InputStream = new ByteBufferBackedInputStream(wrapperMessage.payload)
@@ -125,11 +161,15 @@ class ByteBufferMessageSet(val buffer: ByteBuffer) extends MessageSet with Loggi
   private var shallowValidByteCount = -1
 
   def this(compressionCodec: CompressionCodec, messages: Message*) {
-    this(ByteBufferMessageSet.create(new AtomicLong(0), compressionCodec, messages:_*))
+    this(ByteBufferMessageSet.create(new AtomicLong(0), compressionCodec, Message.CurrentMagicValue, messages:_*))
   }
 
   def this(compressionCodec: CompressionCodec, offsetCounter: AtomicLong, messages: Message*) {
-    this(ByteBufferMessageSet.create(offsetCounter, compressionCodec, messages:_*))
+    this(ByteBufferMessageSet.create(offsetCounter, compressionCodec, Message.CurrentMagicValue, messages:_*))
+  }
+
+  def this(compressionCodec: CompressionCodec, offsetCounter: AtomicLong, magicValue: Byte, messages: Message*) {
+    this(ByteBufferMessageSet.create(offsetCounter, compressionCodec, magicValue, messages:_*))
   }
 
   def this(messages: Message*) {
@@ -203,7 +243,7 @@ class ByteBufferMessageSet(val buffer: ByteBuffer) extends MessageSet with Loggi
               innerIter = null
               new MessageAndOffset(newMessage, offset)
             case _ =>
-              innerIter = ByteBufferMessageSet.deepIterator(newMessage)
+              innerIter = ByteBufferMessageSet.deepIterator(new MessageAndOffset(newMessage, offset))
               if(!innerIter.hasNext)
                 innerIter = null
               makeNext()
@@ -227,47 +267,239 @@ class ByteBufferMessageSet(val buffer: ByteBuffer) extends MessageSet with Loggi
 
   /**
    * Update the offsets for this message set and do further validation on messages. This method attempts to do an
-   * in-place conversion if there is no compression, but otherwise recopies the messages
+   * in-place conversion if there is no compression or if the messages are already compressed in the target format,
+   * but otherwise recopies the messages
    */
   private[kafka] def validateMessagesAndAssignOffsets(offsetCounter: AtomicLong,
                                                       sourceCodec: CompressionCodec,
                                                       targetCodec: CompressionCodec,
-                                                      compactedTopic: Boolean = false): ByteBufferMessageSet = {
+                                                      compactedTopic: Boolean = false,
+                                                      messageFormatVersion: Byte = Message.CurrentMagicValue,
+                                                      messageTimestampType: TimestampType = TimestampType.CREATE_TIME,
+                                                      messageTimestampDifferenceMaxMs: Long = Long.MaxValue,
+                                                      now: Long = SystemTime.milliseconds): ByteBufferMessageSet = {
+    validateMessages(Some(offsetCounter.get), sourceCodec, targetCodec, compactedTopic, messageFormatVersion,
+      messageTimestampType, messageTimestampDifferenceMaxMs, now).assignOffsets(offsetCounter)
+  }
+
+  /**
+   * Validate the messages in this set and lay them out in the form they will be appended in, without assigning their
+   * final offsets. This does all the expensive work (deep iteration, decompression and recompression) so that it can
+   * be done outside of the log lock; the returned set only needs a cheap offset assignment once the real offsets are
+   * known.
+   *
+   * Compressed messages that already have the target codec and use relative inner offsets (magic value 1 or later) are
+   * only decompressed to check their relative offsets, not recompressed: as the wrapper carries the relative offset of
+   * its last inner message, only the wrapper offset has to be rewritten. This is not possible for compacted topics,
+   * whose inner messages must be checked for keys, nor for topics that use the log append time, whose inner messages
+   * must be given the append time.
+   *
+   * Messages that do not have the magic value of the topic's message format are converted to it.
+   *
+   * @param expectedOffset The offset the first message is expected to get, if known. Messages recompressed with magic
+   *                       value 0 are written with offsets starting here so that they need not be rebuilt if the guess
+   *                       turns out to be right; if it is None their compression is left to the offset assignment.
+   *                       All other messages are laid out so that their offsets can be assigned in-place.
+   * @param messageFormatVersion The magic value the messages are stored with
+   * @param messageTimestampType Whether to keep the create time of the messages or to give them the log append time
+   * @param messageTimestampDifferenceMaxMs The largest difference allowed between the create time of a message and the
+   *                                        log append time, so that a producer cannot set timestamps that keep a
+   *                                        segment from being deleted by time based retention
+   * @param now The log append time
+   */
+  private[kafka] def validateMessages(expectedOffset: Option[Long],
+                                      sourceCodec: CompressionCodec,
+                                      targetCodec: CompressionCodec,
+                                      compactedTopic: Boolean = false,
+                                      messageFormatVersion: Byte = Message.CurrentMagicValue,
+                                      messageTimestampType: TimestampType = TimestampType.CREATE_TIME,
+                                      messageTimestampDifferenceMaxMs: Long = Long.MaxValue,
+                                      now: Long = SystemTime.milliseconds): ValidatedMessageSet = {
+    val logAppendTime = messageFormatVersion >= Message.MagicValue_V2 && messageTimestampType == TimestampType.LOG_APPEND_TIME
     if(sourceCodec == NoCompressionCodec && targetCodec == NoCompressionCodec) {
-      // do in-place validation and offset assignment
+      // validate in-place, the offsets will be overwritten in-place when they are assigned
+      var messageCount = 0
       var messagePosition = 0
+      var maxTimestamp = Message.NoTimestamp
+      var maxTimestampRelativeOffset = 0L
+      var sameFormat = true
       buffer.mark()
       while(messagePosition < sizeInBytes - MessageSet.LogOverhead) {
-        buffer.position(messagePosition)
-        buffer.putLong(offsetCounter.getAndIncrement())
+        buffer.position(messagePosition + MessageSet.OffsetLength)
         val messageSize = buffer.getInt()
-        val positionAfterKeySize = buffer.position + Message.KeySizeOffset + Message.KeySizeLength
+        val magic = buffer.get(buffer.position + Message.MagicOffset)
+        val keySizeOffset = if (magic < Message.MagicValue_V2) Message.KeySizeOffset_V0 else Message.KeySizeOffset_V2
+        val positionAfterKeySize = buffer.position + keySizeOffset + Message.KeySizeLength
         if (compactedTopic && positionAfterKeySize < sizeInBytes) {
-          buffer.position(buffer.position() + Message.KeySizeOffset)
+          buffer.position(buffer.position() + keySizeOffset)
           val keySize = buffer.getInt()
           if (keySize <= 0) {
             buffer.reset()
             throw new InvalidMessageException("Compacted topic cannot accept message without key.")
           }
         }
+        if (magic != messageFormatVersion) {
+          sameFormat = false
+        } else if (magic >= Message.MagicValue_V2) {
+          if (logAppendTime) {
+            val messageBuffer = buffer.duplicate()
+            messageBuffer.position(messagePosition + MessageSet.LogOverhead)
+            messageBuffer.limit(messagePosition + MessageSet.LogOverhead + messageSize)
+            new Message(messageBuffer.slice()).setLogAppendTime(now)
+          }
+          val timestamp = buffer.getLong(messagePosition + MessageSet.LogOverhead + Message.TimestampOffset)
+          if (!logAppendTime) {
+            try validateTimestamp(timestamp, now, messageTimestampDifferenceMaxMs)
+            catch {
+              case e: InvalidMessageException =>
+                buffer.reset()
+                throw e
+            }
+          }
+          if (timestamp > maxTimestamp) {
+            maxTimestamp = timestamp
+            maxTimestampRelativeOffset = messageCount
+          }
+        }
         messagePosition += MessageSet.LogOverhead + messageSize
+        messageCount += 1
       }
       buffer.reset()
-      this
+      if (sameFormat) {
+        new ValidatedMessageSet(NoCompressionCodec, messageCount, Some(this), expectedOffset, Seq.empty, inPlace = true,
+                                maxTimestamp = maxTimestamp, maxTimestampRelativeOffset = maxTimestampRelativeOffset)
+      } else {
+        // the messages are rewritten in the topic's format, after which their offsets can be assigned in-place
+        val converted = convertMessages(messageFormatVersion, compactedTopic = false, logAppendTime = false, now)
+        new ByteBufferMessageSet(NoCompressionCodec, new AtomicLong(0), messageFormatVersion, converted:_*)
+          .validateMessages(expectedOffset, NoCompressionCodec, NoCompressionCodec, compactedTopic = false,
+                            messageFormatVersion, messageTimestampType, messageTimestampDifferenceMaxMs, now)
+      }
+    } else if(sourceCodec == targetCodec && messageFormatVersion > Message.MagicValue_V0 && !compactedTopic && !logAppendTime &&
+              shallowIterator.forall(entry => entry.message.compressionCodec == targetCodec &&
+                                              entry.message.magic == messageFormatVersion)) {
+      validateRelativeOffsets(expectedOffset, targetCodec, messageTimestampDifferenceMaxMs, now).getOrElse(
+        recompressMessages(expectedOffset, targetCodec, compactedTopic, messageFormatVersion, logAppendTime,
+                           messageTimestampDifferenceMaxMs, now))
+    } else {
+      recompressMessages(expectedOffset, targetCodec, compactedTopic, messageFormatVersion, logAppendTime,
+                         messageTimestampDifferenceMaxMs, now)
+    }
+  }
+
+  /**
+   * Reject a create time that differs from the log append time by more than the given difference, messages without a
+   * timestamp are accepted
+   */
+  private def validateTimestamp(timestamp: Long, now: Long, timestampDifferenceMaxMs: Long) {
+    if (timestamp != Message.NoTimestamp && timestampDifferenceMaxMs < Long.MaxValue &&
+        math.abs(timestamp - now) > timestampDifferenceMaxMs)
+      throw new InvalidMessageException("Message timestamp %d is more than %d ms away from the log append time %d"
+        .format(timestamp, timestampDifferenceMaxMs, now))
+  }
+
+  /**
+   * Validate compressed messages whose offsets can be assigned in-place, i.e. whose inner messages have the magic value
+   * of their wrapper and the relative offsets 0 to n - 1, and whose wrapper has the relative offset n - 1 of its last
+   * inner message. The inner messages are decompressed to check this but are not recompressed.
+   *
+   * @return None if the offsets of some wrapper cannot be trusted, in which case the messages have to be recompressed
+   */
+  private def validateRelativeOffsets(expectedOffset: Option[Long],
+                                      codec: CompressionCodec,
+                                      timestampDifferenceMaxMs: Long,
+                                      now: Long): Option[ValidatedMessageSet] = {
+    var messageCount = 0L
+    var maxTimestamp = Message.NoTimestamp
+    var maxTimestampRelativeOffset = 0L
+    var valid = true
+    val entries = shallowIterator
+    while (valid && entries.hasNext) {
+      val entry = entries.next()
+      val innerMessages = ByteBufferMessageSet.decompressedIterator(entry.message)
+      var relativeOffset = 0L
+      while (valid && innerMessages.hasNext) {
+        val inner = innerMessages.next()
+        valid = inner.offset == relativeOffset && inner.message.magic == entry.message.magic
+        validateTimestamp(inner.message.timestamp, now, timestampDifferenceMaxMs)
+        if (inner.message.timestamp > maxTimestamp) {
+          maxTimestamp = inner.message.timestamp
+          maxTimestampRelativeOffset = messageCount + relativeOffset
+        }
+        relativeOffset += 1
+      }
+      valid = valid && relativeOffset > 0 && entry.offset == relativeOffset - 1
+      messageCount += relativeOffset
+      if (messageCount > Int.MaxValue)
+        throw new InvalidMessageException("Compressed message set claims %d messages".format(messageCount))
+    }
+    if (!valid)
+      None
+    else
+      Some(new ValidatedMessageSet(codec, messageCount.toInt, Some(this), expectedOffset, Seq.empty, inPlace = true,
+                                   maxTimestamp = maxTimestamp, maxTimestampRelativeOffset = maxTimestampRelativeOffset))
+  }
+
+  /**
+   * Decompress the messages and lay them out to be recompressed, which is needed if any of these are true:
+   * (i) messages are compressed in a different codec or format than they will be stored with, or their relative
+   * offsets cannot be trusted
+   * (ii) the topic is configured with a target compression codec so we need to recompress regardless of original codec
+   * (iii) the topic is compacted, so every inner message needs to be checked for a key
+   * (iv) the topic uses the log append time, so every inner message needs to be given the append time
+   */
+  private def recompressMessages(expectedOffset: Option[Long],
+                                 targetCodec: CompressionCodec,
+                                 compactedTopic: Boolean,
+                                 messageFormatVersion: Byte,
+                                 logAppendTime: Boolean,
+                                 timestampDifferenceMaxMs: Long,
+                                 now: Long): ValidatedMessageSet = {
+    val messages = convertMessages(messageFormatVersion, compactedTopic, logAppendTime, now)
+    var maxTimestamp = Message.NoTimestamp
+    var maxTimestampRelativeOffset = 0L
+    for ((message, relativeOffset) <- messages.zipWithIndex) {
+      validateTimestamp(message.timestamp, now, timestampDifferenceMaxMs)
+      if (message.timestamp > maxTimestamp) {
+        maxTimestamp = message.timestamp
+        maxTimestampRelativeOffset = relativeOffset
+      }
+    }
+    if (targetCodec == NoCompressionCodec || messageFormatVersion > Message.MagicValue_V0) {
+      // laid out from offset 0, the offsets are then assigned in-place: uncompressed messages have their offsets
+      // rewritten and a wrapper has the relative offset of its last inner message
+      val messageSet = new ByteBufferMessageSet(compressionCodec = targetCodec, offsetCounter = new AtomicLong(0),
+                                                magicValue = messageFormatVersion, messages = messages:_*)
+      new ValidatedMessageSet(targetCodec, messages.size, Some(messageSet), expectedOffset, Seq.empty, inPlace = true,
+                              messageFormatVersion, maxTimestamp, maxTimestampRelativeOffset)
     } else {
-      // We need to deep-iterate over the message-set if any of these are true:
-      // (i) messages are compressed
-      // (ii) the topic is configured with a target compression codec so we need to recompress regardless of original codec
-      val messages = this.internalIterator(isShallow = false).map(messageAndOffset => {
-        if (compactedTopic && !messageAndOffset.message.hasKey)
-          throw new InvalidMessageException("Compacted topic cannot accept message without key.")
-
-        messageAndOffset.message
-      })
-      new ByteBufferMessageSet(compressionCodec = targetCodec, offsetCounter = offsetCounter, messages = messages.toBuffer:_*)
+      // the inner messages of magic value 0 have absolute offsets, so they are compressed against the expected offset
+      val messageSet = expectedOffset.map(offset =>
+        new ByteBufferMessageSet(compressionCodec = targetCodec, offsetCounter = new AtomicLong(offset),
+                                 magicValue = messageFormatVersion, messages = messages:_*))
+      new ValidatedMessageSet(targetCodec, messages.size, messageSet, expectedOffset, messages, inPlace = false,
+                              messageFormatVersion, maxTimestamp, maxTimestampRelativeOffset)
     }
   }
 
+  /**
+   * The deep messages of this set in the given format, with the given log append time if the topic uses it. Messages
+   * converted from magic value 0 or 1 have no create time.
+   */
+  private def convertMessages(toMagicValue: Byte, compactedTopic: Boolean, logAppendTime: Boolean, now: Long): Seq[Message] = {
+    this.internalIterator(isShallow = false).map { messageAndOffset =>
+      val message = messageAndOffset.message
+      if (compactedTopic && !message.hasKey)
+        throw new InvalidMessageException("Compacted topic cannot accept message without key.")
+      if (logAppendTime) {
+        val converted = message.toFormatVersion(toMagicValue)
+        converted.setLogAppendTime(now)
+        converted
+      } else {
+        message.toFormatVersion(toMagicValue)
+      }
+    }.toBuffer
+  }
 
   /**
    * The total number of bytes in this message set, including any partial trailing messages
@@ -293,3 +525,54 @@ class ByteBufferMessageSet(val buffer: ByteBuffer) extends MessageSet with Loggi
   override def hashCode: Int = buffer.hashCode
 
 }
+
+/**
+ * A message set that has been validated by ByteBufferMessageSet.validateMessages but has not had its final offsets
+ * assigned yet.
+ *
+ * @param codec The codec the messages will be appended with
+ * @param messageCount The number of (deep) messages, i.e. the number of offsets that will be consumed
+ * @param messages The messages in the layout they will be appended in, if already built
+ * @param expectedOffset The offset the messages were laid out against
+ * @param deepMessages The decompressed messages, retained so that compressed messages can be (re)built if they were
+ *                     not laid out against the right offset
+ * @param inPlace Whether the offsets are assigned by rewriting the shallow offsets of the messages in-place
+ * @param magicValue The magic value to (re)build compressed messages with
+ * @param maxTimestamp The largest timestamp of the messages, NoTimestamp if they have none
+ * @param maxTimestampRelativeOffset The offset of the message with the largest timestamp relative to the first offset
+ */
+private[kafka] class ValidatedMessageSet(val codec: CompressionCodec,
+                                         val messageCount: Int,
+                                         messages: Option[ByteBufferMessageSet],
+                                         expectedOffset: Option[Long],
+                                         deepMessages: Seq[Message],
+                                         inPlace: Boolean,
+                                         magicValue: Byte = Message.CurrentMagicValue,
+                                         val maxTimestamp: Long = Message.NoTimestamp,
+                                         val maxTimestampRelativeOffset: Long = 0L) {
+
+  /**
+   * Assign offsets starting at the current value of the offset counter. Messages validated for in-place assignment
+   * just have their shallow offsets rewritten: an uncompressed message takes the next offset and a compressed wrapper
+   * (whose offset is still the relative offset of its last inner message) takes the offset of its last inner message.
+   * Other compressed messages only have to be built when they were not laid out against the current offset.
+   */
+  def assignOffsets(offsetCounter: AtomicLong): ByteBufferMessageSet = {
+    if(inPlace) {
+      val messageSet = messages.get
+      val buffer = messageSet.buffer
+      var messagePosition = 0
+      while(messagePosition < messageSet.sizeInBytes - MessageSet.LogOverhead) {
+        val lastRelativeOffset = if(codec == NoCompressionCodec) 0L else buffer.getLong(messagePosition)
+        buffer.putLong(messagePosition, offsetCounter.addAndGet(lastRelativeOffset + 1) - 1)
+        messagePosition += MessageSet.LogOverhead + buffer.getInt(messagePosition + MessageSet.OffsetLength)
+      }
+      messageSet
+    } else if(messages.isDefined && offsetCounter.compareAndSet(expectedOffset.get, expectedOffset.get + messageCount)) {
+      messages.get
+    } else {
+      new ByteBufferMessageSet(compressionCodec = codec, offsetCounter = offsetCounter, magicValue = magicValue,
+                               messages = deepMessages:_*)
+    }
+  }
+}
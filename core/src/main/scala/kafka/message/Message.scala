@@ -20,6 +20,7 @@ package kafka.message
 import java.nio._
 import scala.math._
 import kafka.utils._
+import org.apache.kafka.common.record.TimestampType
 import org.apache.kafka.common.utils.Utils
 
 /**
@@ -36,23 +37,48 @@ object Message {
   val MagicLength = 1
   val AttributesOffset = MagicOffset + MagicLength
   val AttributesLength = 1
-  val KeySizeOffset = AttributesOffset + AttributesLength
+  val TimestampOffset = AttributesOffset + AttributesLength
+  val TimestampLength = 8
+  val KeySizeOffset_V0 = AttributesOffset + AttributesLength
+  val KeySizeOffset_V1 = KeySizeOffset_V0
+  val KeySizeOffset_V2 = TimestampOffset + TimestampLength
   val KeySizeLength = 4
-  val KeyOffset = KeySizeOffset + KeySizeLength
+  val KeyOffset_V0 = KeySizeOffset_V0 + KeySizeLength
+  val KeyOffset_V1 = KeySizeOffset_V1 + KeySizeLength
+  val KeyOffset_V2 = KeySizeOffset_V2 + KeySizeLength
   val ValueSizeLength = 4
-  
-  /** The amount of overhead bytes in a message */
-  val MessageOverhead = KeyOffset + ValueSizeLength
+
+  /** The amount of overhead bytes in a message with magic value 0 */
+  val MessageOverhead_V0 = KeyOffset_V0 + ValueSizeLength
+
+  /** The amount of overhead bytes in a message with magic value 1 */
+  val MessageOverhead_V1 = KeyOffset_V1 + ValueSizeLength
+
+  /** The amount of overhead bytes in a message with magic value 2 */
+  val MessageOverhead_V2 = KeyOffset_V2 + ValueSizeLength
+
+  /** The amount of overhead bytes in a message in the current format */
+  val MessageOverhead = MessageOverhead_V2
+
+  /** The smallest amount of overhead bytes in a message of any format */
+  val MinMessageOverhead = MessageOverhead_V0
   
   /**
    * The minimum valid size for the message header
    */
   val MinHeaderSize = CrcLength + MagicLength + AttributesLength + KeySizeLength + ValueSizeLength
   
+  /**
+   * The "magic" values
+   */
+  val MagicValue_V0: Byte = 0
+  val MagicValue_V1: Byte = 1
+  val MagicValue_V2: Byte = 2
+
   /**
    * The current "magic" value
    */
-  val CurrentMagicValue: Byte = 0
+  val CurrentMagicValue: Byte = MagicValue_V2
 
   /**
    * Specifies the mask for the compression code. 3 bits to hold the compression codec.
@@ -65,20 +91,49 @@ object Message {
    */
   val NoCompression: Int = 0
 
+  /**
+   * Specifies the mask for the timestamp type. 0 for the create time, 1 for the log append time. Messages with magic
+   * value 0 or 1 have no timestamp and always have this bit unset.
+   */
+  val TimestampTypeMask: Int = 0x08
+
+  /**
+   * The timestamp of messages that do not have one
+   */
+  val NoTimestamp: Long = -1L
+
+  /**
+   * The length of the timestamp in a message with the given magic value, 0 if it has none
+   */
+  def timestampLength(magicValue: Byte): Int = if (magicValue < MagicValue_V2) 0 else TimestampLength
+
+  /**
+   * The number of bytes the header of a message grows by when it is converted from one magic value to another
+   */
+  def headerSizeDiff(fromMagicValue: Byte, toMagicValue: Byte): Int =
+    timestampLength(toMagicValue) - timestampLength(fromMagicValue)
+
 }
 
 /**
  * A message. The format of an N byte message is the following:
  *
  * 1. 4 byte CRC32 of the message
- * 2. 1 byte "magic" identifier to allow format changes, value is 0 currently
- * 3. 1 byte "attributes" identifier to allow annotations on the message independent of the version (e.g. compression enabled, type of codec used)
- * 4. 4 byte key length, containing length K
- * 5. K byte key
- * 6. 4 byte payload length, containing length V
- * 7. V byte payload
+ * 2. 1 byte "magic" identifier to allow format changes, value is 0, 1 or 2
+ * 3. 1 byte "attributes" identifier to allow annotations on the message independent of the version (e.g. compression enabled, type of codec used, timestamp type)
+ * 4. 8 byte timestamp (only if the magic value is 2)
+ * 5. 4 byte key length, containing length K
+ * 6. K byte key
+ * 7. 4 byte payload length, containing length V
+ * 8. V byte payload
  *
  * Default constructor wraps an existing ByteBuffer with the Message object with no change to the contents.
+ *
+ * Magic values 0 and 1 differ in the offsets of the messages wrapped by a compressed message: with magic value 0 the
+ * inner messages carry their absolute offsets, with magic value 1 they carry offsets relative to the first inner
+ * message while the wrapper carries the absolute offset of the last one. The latter lets the broker assign offsets to a
+ * compressed message set by only rewriting the offset of the wrapper. Magic value 2 keeps the relative offsets and adds
+ * the timestamp; the timestamp of a compressed message is the largest timestamp of the messages it wraps.
  */
 class Message(val buffer: ByteBuffer) {
   
@@ -89,17 +144,24 @@ class Message(val buffer: ByteBuffer) {
    * @param bytes The payload of the message
    * @param codec The compression codec used on the contents of the message (if any)
    * @param key The key of the message (null, if none)
+   * @param timestamp The timestamp of the message, ignored if the magic value is below 2
+   * @param timestampType The type of the timestamp, ignored if the magic value is below 2
    * @param payloadOffset The offset into the payload array used to extract payload
    * @param payloadSize The size of the payload to use
+   * @param magicValue The magic value to use
    */
   def this(bytes: Array[Byte], 
            key: Array[Byte],            
+           timestamp: Long,
+           timestampType: TimestampType,
            codec: CompressionCodec, 
            payloadOffset: Int, 
-           payloadSize: Int) = {
+           payloadSize: Int,
+           magicValue: Byte) = {
     this(ByteBuffer.allocate(Message.CrcLength + 
                              Message.MagicLength + 
                              Message.AttributesLength + 
+                             Message.timestampLength(magicValue) +
                              Message.KeySizeLength + 
                              (if(key == null) 0 else key.length) + 
                              Message.ValueSizeLength + 
@@ -108,11 +170,15 @@ class Message(val buffer: ByteBuffer) {
                               else bytes.length - payloadOffset)))
     // skip crc, we will fill that in at the end
     buffer.position(MagicOffset)
-    buffer.put(CurrentMagicValue)
+    buffer.put(magicValue)
     var attributes: Byte = 0
     if (codec.codec > 0)
       attributes =  (attributes | (CompressionCodeMask & codec.codec)).toByte
+    if (magicValue >= MagicValue_V2 && timestampType == TimestampType.LOG_APPEND_TIME)
+      attributes = (attributes | TimestampTypeMask).toByte
     buffer.put(attributes)
+    if (magicValue >= MagicValue_V2)
+      buffer.putLong(timestamp)
     if(key == null) {
       buffer.putInt(-1)
     } else {
@@ -131,6 +197,17 @@ class Message(val buffer: ByteBuffer) {
     Utils.writeUnsignedInt(buffer, CrcOffset, computeChecksum)
   }
   
+  def this(bytes: Array[Byte], key: Array[Byte], codec: CompressionCodec, payloadOffset: Int, payloadSize: Int) =
+    this(bytes = bytes, key = key, timestamp = Message.NoTimestamp, timestampType = TimestampType.CREATE_TIME,
+         codec = codec, payloadOffset = payloadOffset, payloadSize = payloadSize, magicValue = Message.CurrentMagicValue)
+
+  def this(bytes: Array[Byte], key: Array[Byte], timestamp: Long, codec: CompressionCodec) =
+    this(bytes = bytes, key = key, timestamp = timestamp, timestampType = TimestampType.CREATE_TIME, codec = codec,
+         payloadOffset = 0, payloadSize = -1, magicValue = Message.CurrentMagicValue)
+
+  def this(bytes: Array[Byte], key: Array[Byte], timestamp: Long) =
+    this(bytes = bytes, key = key, timestamp = timestamp, codec = NoCompressionCodec)
+
   def this(bytes: Array[Byte], key: Array[Byte], codec: CompressionCodec) = 
     this(bytes = bytes, key = key, codec = codec, payloadOffset = 0, payloadSize = -1)
   
@@ -172,10 +249,15 @@ class Message(val buffer: ByteBuffer) {
    */
   def size: Int = buffer.limit
   
+  /**
+   * The position where the key size is stored, which depends on the magic value of this message
+   */
+  private def keySizeOffset = if(magic < MagicValue_V2) KeySizeOffset_V0 else KeySizeOffset_V2
+
   /**
    * The length of the key in bytes
    */
-  def keySize: Int = buffer.getInt(Message.KeySizeOffset)
+  def keySize: Int = buffer.getInt(keySizeOffset)
   
   /**
    * Does the message have a key?
@@ -185,7 +267,7 @@ class Message(val buffer: ByteBuffer) {
   /**
    * The position where the payload size is stored
    */
-  private def payloadSizeOffset = Message.KeyOffset + max(0, keySize)
+  private def payloadSizeOffset = keySizeOffset + KeySizeLength + max(0, keySize)
   
   /**
    * The length of the message value in bytes
@@ -207,6 +289,17 @@ class Message(val buffer: ByteBuffer) {
    */
   def attributes: Byte = buffer.get(AttributesOffset)
   
+  /**
+   * The timestamp of this message, or NoTimestamp if the magic value is below 2
+   */
+  def timestamp: Long = if(magic < MagicValue_V2) NoTimestamp else buffer.getLong(TimestampOffset)
+
+  /**
+   * The type of the timestamp of this message
+   */
+  def timestampType: TimestampType =
+    if((attributes & TimestampTypeMask) == 0) TimestampType.CREATE_TIME else TimestampType.LOG_APPEND_TIME
+
   /**
    * The compression codec used with this message
    */
@@ -221,7 +314,40 @@ class Message(val buffer: ByteBuffer) {
   /**
    * A ByteBuffer containing the message key
    */
-  def key: ByteBuffer = sliceDelimited(KeySizeOffset)
+  def key: ByteBuffer = sliceDelimited(keySizeOffset)
+
+  /**
+   * Convert this message to the given magic value. Converting to magic value 2 gives the message the given timestamp,
+   * converting to a lower magic value drops the timestamp. A message that already has the magic value is returned as is.
+   */
+  def toFormatVersion(toMagicValue: Byte, timestamp: Long = NoTimestamp): Message = {
+    if(magic == toMagicValue) {
+      this
+    } else {
+      val converted = ByteBuffer.allocate(size + headerSizeDiff(magic, toMagicValue))
+      converted.position(MagicOffset)
+      converted.put(toMagicValue)
+      converted.put((attributes & ~TimestampTypeMask).toByte)
+      if(toMagicValue >= MagicValue_V2)
+        converted.putLong(timestamp)
+      val rest = buffer.duplicate
+      rest.position(keySizeOffset)
+      converted.put(rest)
+      converted.rewind()
+      val message = new Message(converted)
+      Utils.writeUnsignedInt(converted, CrcOffset, message.computeChecksum)
+      message
+    }
+  }
+
+  /**
+   * Set the timestamp of a message with magic value 2 to the given log append time and update the checksum
+   */
+  def setLogAppendTime(logAppendTime: Long) {
+    buffer.putLong(TimestampOffset, logAppendTime)
+    buffer.put(AttributesOffset, (attributes | TimestampTypeMask).toByte)
+    Utils.writeUnsignedInt(buffer, CrcOffset, computeChecksum)
+  }
   
   /**
    * Read a size-delimited byte buffer starting at the given offset
@@ -241,7 +367,7 @@ class Message(val buffer: ByteBuffer) {
   }
 
   override def toString(): String = 
-    "Message(magic = %d, attributes = %d, crc = %d, key = %s, payload = %s)".format(magic, attributes, checksum, key, payload)
+    "Message(magic = %d, attributes = %d, crc = %d, timestamp = %d, key = %s, payload = %s)".format(magic, attributes, checksum, timestamp, key, payload)
   
   override def equals(any: Any): Boolean = {
     any match {
@@ -20,19 +20,29 @@ package kafka.message
 import java.io.{InputStream, OutputStream}
 import java.nio.ByteBuffer
 
+import org.apache.kafka.common.record.TimestampType
 import org.apache.kafka.common.utils.Crc32
 
 class MessageWriter(segmentSize: Int) extends BufferingOutputStream(segmentSize) {
 
   import Message._
 
-  def write(key: Array[Byte] = null, codec: CompressionCodec)(writePayload: OutputStream => Unit): Unit = {
+  def write(key: Array[Byte] = null,
+            codec: CompressionCodec,
+            timestamp: Long = NoTimestamp,
+            timestampType: TimestampType = TimestampType.CREATE_TIME,
+            magicValue: Byte = CurrentMagicValue)(writePayload: OutputStream => Unit): Unit = {
     withCrc32Prefix {
-      write(CurrentMagicValue)
+      write(magicValue)
       var attributes: Byte = 0
       if (codec.codec > 0)
         attributes = (attributes | (CompressionCodeMask & codec.codec)).toByte
+      if (magicValue >= MagicValue_V2 && timestampType == TimestampType.LOG_APPEND_TIME)
+        attributes = (attributes | TimestampTypeMask).toByte
       write(attributes)
+      // write the timestamp
+      if (magicValue >= MagicValue_V2)
+        writeLong(timestamp)
       // write the key
       if (key == null) {
         writeInt(-1)
@@ -47,6 +57,11 @@ class MessageWriter(segmentSize: Int) extends BufferingOutputStream(segmentSize)
     }
   }
 
+  private def writeLong(value: Long): Unit = {
+    writeInt((value >>> 32).toInt)
+    writeInt(value.toInt)
+  }
+
   private def writeInt(value: Int): Unit = {
     write(value >>> 24)
     write(value >>> 16)
@@ -21,8 +21,9 @@ import java.net.InetAddress
 import java.nio.ByteBuffer
 import java.security.Principal
 import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
 
-import com.yammer.metrics.core.Gauge
+import com.yammer.metrics.core.{Gauge, Histogram}
 import kafka.api._
 import kafka.common.TopicAndPartition
 import kafka.message.ByteBufferMessageSet
@@ -49,6 +50,16 @@ object RequestChannel extends Logging {
 
   case class Session(principal: KafkaPrincipal, clientAddress: InetAddress)
 
+  /** The lanes of the request channel, in the order the request handler threads take requests from them */
+  sealed trait Lane { def name: String }
+  case object ControlPlaneLane extends Lane { val name = "ControlPlane" }
+  case object ReplicationLane extends Lane { val name = "Replication" }
+  case object ClientLane extends Lane { val name = "Client" }
+  val Lanes = Seq(ControlPlaneLane, ReplicationLane, ClientLane)
+
+  private[network] val controlPlaneRequestIds = Set(ApiKeys.LEADER_AND_ISR.id, ApiKeys.STOP_REPLICA.id,
+    ApiKeys.UPDATE_METADATA_KEY.id, ApiKeys.CONTROLLED_SHUTDOWN_KEY.id)
+
   case class Request(processor: Int, connectionId: String, session: Session, private var buffer: ByteBuffer, startTimeMs: Long, securityProtocol: SecurityProtocol) {
     // These need to be volatile because the readers are in the network thread and the writers are in the request
     // handler threads or the purgatory threads
@@ -94,6 +105,10 @@ object RequestChannel extends Logging {
         null
 
     buffer = null
+
+    // the lane the request is queued in, which is set by the request channel
+    @volatile var lane: Lane = ClientLane
+
     private val requestLogger = Logger.getLogger("kafka.request.logger")
 
     private def requestDesc(details: Boolean): String = {
@@ -143,6 +158,7 @@ object RequestChannel extends Logging {
              m.responseSendTimeHist.update(responseSendTime)
              m.totalTimeHist.update(totalTime)
       }
+      RequestMetrics.laneQueueTimeHists(lane).update(requestQueueTime)
 
       if(requestLogger.isTraceEnabled)
         requestLogger.trace("Completed request:%s from connection %s;totalTime:%d,requestQueueTime:%d,localTime:%d,remoteTime:%d,responseQueueTime:%d,sendTime:%d,securityProtocol:%s,principal:%s"
@@ -169,9 +185,40 @@ object RequestChannel extends Logging {
   case object CloseConnectionAction extends ResponseAction
 }
 
-class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMetricsGroup {
+/**
+ * The queues between the processors and the request handler threads. The requests that arrive on the listener of the
+ * `brokerProtocol`, which the other brokers use, are queued in lanes of their own: the requests of the controller in
+ * the control plane lane and the others, mostly replica fetch requests, in the replication lane. The handler threads
+ * take requests from these lanes before the requests of the clients, and the first `numReservedHandlers` handler
+ * threads only take requests from these lanes, so that leadership changes and replication are not held up by the
+ * clients when the broker is overloaded. Requests are not classified by their api key or replica id alone, since
+ * clients choose those.
+ *
+ * Each processor has its own queue for the requests of clients, with an equal share of the `queueSize` requests
+ * allowed, so that the processors and the handler threads do not all contend on a single queue. Each handler thread
+ * takes client requests from one of the queues and steals requests from the other queues when it is empty.
+ */
+class RequestChannel(val numProcessors: Int,
+                     val queueSize: Int,
+                     val numReservedHandlers: Int = 0,
+                     val brokerProtocol: Option[SecurityProtocol] = None) extends KafkaMetricsGroup {
+  import RequestChannel.{AllDone, ClientLane, ControlPlaneLane, Lane, ReplicationLane, controlPlaneRequestIds}
+
   private var responseListeners: List[(Int) => Unit] = Nil
-  private val requestQueue = new ArrayBlockingQueue[RequestChannel.Request](queueSize)
+  // the lanes are bounded like the request queue of a processor, so that the processors of the broker listener block
+  // rather than queue requests without limit when the handler threads fall behind
+  private val controlPlaneQueue = new ArrayBlockingQueue[RequestChannel.Request](math.max(1, queueSize / numProcessors))
+  private val replicationQueue = new ArrayBlockingQueue[RequestChannel.Request](math.max(1, queueSize / numProcessors))
+  private val requestQueues = Array.fill(numProcessors)(new ArrayBlockingQueue[RequestChannel.Request](math.max(1, queueSize / numProcessors)))
+  // a permit for every request in the client request queues and in the control plane and replication lanes, which the
+  // handler threads that are not reserved wait on, so that they are woken up by the requests of every lane
+  private val queuedRequests = new Semaphore(0)
+  // a permit for every request in the control plane and replication lanes, which the reserved handler threads wait on.
+  // Without reserved handler threads all handler threads wait on the permits of `queuedRequests` instead.
+  private val queuedPriorityRequests = if (numReservedHandlers > 0) new Semaphore(0) else queuedRequests
+  // the requests of the control plane and replication lanes taken by reserved handler threads while the permit of
+  // `queuedRequests` they were added with was held by a handler thread that is not reserved, which then drops it
+  private val unmatchedPriorityPermits = new AtomicInteger(0)
   private val responseQueues = new Array[BlockingQueue[RequestChannel.Response]](numProcessors)
   for(i <- 0 until numProcessors)
     responseQueues(i) = new LinkedBlockingQueue[RequestChannel.Response]()
@@ -179,10 +226,36 @@ class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMe
   newGauge(
     "RequestQueueSize",
     new Gauge[Int] {
-      def value = requestQueue.size
+      def value = requestQueues.foldLeft(controlPlaneQueue.size() + replicationQueue.size()) {(total, q) => total + q.size()}
     }
   )
 
+  for (i <- 0 until numProcessors) {
+    newGauge("RequestQueueSize",
+      new Gauge[Int] {
+        def value = requestQueues(i).size()
+      },
+      Map("processor" -> i.toString)
+    )
+  }
+
+  for ((lane, queue) <- Seq(ControlPlaneLane -> controlPlaneQueue, ReplicationLane -> replicationQueue)) {
+    newGauge("RequestQueueSize",
+      new Gauge[Int] {
+        def value = queue.size()
+      },
+      Map("lane" -> lane.name)
+    )
+  }
+
+  // time a request spent in the request queue of a processor
+  private val requestQueueTimeHists = (0 until numProcessors).map { i =>
+    newHistogram("RequestQueueTimeMs", biased = true, Map("processor" -> i.toString))
+  }
+
+  // requests taken by handler threads from the queue of another processor than their own
+  private val stolenRequestRate = newMeter("StolenRequestsPerSec", "requests", TimeUnit.SECONDS)
+
   newGauge("ResponseQueueSize", new Gauge[Int]{
     def value = responseQueues.foldLeft(0) {(total, q) => total + q.size()}
   })
@@ -198,9 +271,41 @@ class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMe
 
   /** Send a request to be handled, potentially blocking until there is room in the queue for the request */
   def sendRequest(request: RequestChannel.Request) {
-    requestQueue.put(request)
+    // the shutdown request of a handler thread does not come from a processor and has to reach the reserved handler
+    // threads too
+    val lane = if (request eq AllDone) ControlPlaneLane else laneOf(request)
+    request.lane = lane
+    lane match {
+      case ControlPlaneLane =>
+        controlPlaneQueue.put(request)
+        releasePriorityPermits()
+      case ReplicationLane =>
+        replicationQueue.put(request)
+        releasePriorityPermits()
+      case ClientLane =>
+        requestQueues(request.processor).put(request)
+        queuedRequests.release()
+    }
+  }
+
+  private def releasePriorityPermits() {
+    if (queuedPriorityRequests ne queuedRequests)
+      queuedRequests.release()
+    queuedPriorityRequests.release()
   }
 
+  /**
+   * The lane of a request: the control plane or replication lane if it arrived on the listener of the other brokers,
+   * the client lane otherwise
+   */
+  private[network] def laneOf(request: RequestChannel.Request): Lane =
+    if (!brokerProtocol.exists(_ == request.securityProtocol))
+      ClientLane
+    else if (controlPlaneRequestIds.contains(request.requestId))
+      ControlPlaneLane
+    else
+      ReplicationLane
+
   /** Send a response back to the socket server to be sent over the network */
   def sendResponse(response: RequestChannel.Response) {
     responseQueues(response.processor).put(response)
@@ -222,13 +327,90 @@ class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMe
       onResponse(processor)
   }
 
-  /** Get the next request or block until specified time has elapsed */
-  def receiveRequest(timeout: Long): RequestChannel.Request =
-    requestQueue.poll(timeout, TimeUnit.MILLISECONDS)
+  /**
+   * Get the next request or block until specified time has elapsed. Requests of the control plane and replication lanes
+   * are taken first. Client requests are taken from the queue of the given handler thread, or from the queue of another
+   * processor if that queue is empty, unless the handler thread is one of the reserved ones. A handler thread that is
+   * not reserved may return null before the time has elapsed when a reserved one took the request it was woken up for.
+   */
+  def receiveRequest(timeout: Long, handlerId: Int = 0, reserved: Boolean = false): RequestChannel.Request =
+    if (reserved && (queuedPriorityRequests ne queuedRequests)) {
+      if (queuedPriorityRequests.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        // the permit of `queuedRequests` the request was added with is dropped as well, by the handler thread that
+        // holds it if there is one
+        if (!queuedRequests.tryAcquire())
+          unmatchedPriorityPermits.incrementAndGet()
+        takePriorityRequest()
+      } else
+        null
+    } else if (queuedRequests.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+      takeRequest(handlerId)
+    else
+      null
 
   /** Get the next request or block until there is one */
-  def receiveRequest(): RequestChannel.Request =
-    requestQueue.take()
+  def receiveRequest(): RequestChannel.Request = {
+    var request: RequestChannel.Request = null
+    while (request == null)
+      request = receiveRequest(300)
+    request
+  }
+
+  private def pollPriorityRequest(): RequestChannel.Request = {
+    val request = controlPlaneQueue.poll()
+    if (request != null) request else replicationQueue.poll()
+  }
+
+  /**
+   * Take a request of the control plane or replication lane that a permit of `queuedPriorityRequests` has been acquired
+   * for. Every permit is released after its request has been added, so the lanes hold a request for every acquired
+   * permit, but another thread may take the request from the control plane lane after it has been searched.
+   */
+  private def takePriorityRequest(): RequestChannel.Request = {
+    var request: RequestChannel.Request = null
+    while (request == null)
+      request = pollPriorityRequest()
+    request
+  }
+
+  /**
+   * Take a request that a permit of `queuedRequests` has been acquired for, or return null if the permit is dropped for
+   * a request of the control plane or replication lane that a reserved handler thread took. Every permit is released
+   * after its request has been added, so the queues hold a request for every acquired permit that is not dropped, but
+   * another thread may take the request from a queue that has been searched already.
+   */
+  private def takeRequest(handlerId: Int): RequestChannel.Request = {
+    val home = handlerId % numProcessors
+    var request: RequestChannel.Request = null
+    var dropped = false
+    var i = 0
+    while (request == null && !dropped) {
+      if (queuedPriorityRequests eq queuedRequests)
+        request = pollPriorityRequest()
+      else if (queuedPriorityRequests.tryAcquire())
+        request = takePriorityRequest()
+      if (request == null) {
+        val queue = (home + i) % numProcessors
+        request = requestQueues(queue).poll()
+        if (request != null) {
+          requestQueueTimeHists(queue).update(math.max(SystemTime.milliseconds - request.startTimeMs, 0L))
+          if (queue != home)
+            stolenRequestRate.mark()
+        }
+        i += 1
+      }
+      if (request == null && (queuedPriorityRequests ne queuedRequests))
+        dropped = dropUnmatchedPriorityPermit()
+    }
+    request
+  }
+
+  private def dropUnmatchedPriorityPermit(): Boolean = {
+    var current = unmatchedPriorityPermits.get
+    while (current > 0 && !unmatchedPriorityPermits.compareAndSet(current, current - 1))
+      current = unmatchedPriorityPermits.get
+    current > 0
+  }
 
   /** Get a response for the given processor if there is one */
   def receiveResponse(processor: Int): RequestChannel.Response = {
@@ -243,16 +425,25 @@ class RequestChannel(val numProcessors: Int, val queueSize: Int) extends KafkaMe
   }
 
   def shutdown() {
-    requestQueue.clear
+    controlPlaneQueue.clear()
+    replicationQueue.clear()
+    requestQueues.foreach(_.clear)
+    queuedRequests.drainPermits()
+    queuedPriorityRequests.drainPermits()
+    unmatchedPriorityPermits.set(0)
   }
 }
 
-object RequestMetrics {
+object RequestMetrics extends KafkaMetricsGroup {
   val metricsMap = new scala.collection.mutable.HashMap[String, RequestMetrics]
   val consumerFetchMetricName = ApiKeys.FETCH.name + "Consumer"
   val followFetchMetricName = ApiKeys.FETCH.name + "Follower"
   (ApiKeys.values().toList.map(e => e.name)
     ++ List(consumerFetchMetricName, followFetchMetricName)).foreach(name => metricsMap.put(name, new RequestMetrics(name)))
+  // time a request spent in the request queues of its lane
+  val laneQueueTimeHists = RequestChannel.Lanes.map { lane =>
+    lane -> newHistogram("RequestQueueTimeMs", biased = true, Map("lane" -> lane.name))
+  }.toMap[RequestChannel.Lane, Histogram]
 }
 
 class RequestMetrics(name: String) extends KafkaMetricsGroup {
@@ -32,10 +32,12 @@ import kafka.metrics.KafkaMetricsGroup
 import kafka.server.KafkaConfig
 import kafka.utils._
 import org.apache.kafka.common.MetricName
+import org.apache.kafka.common.memory.{MemoryPool, SimpleMemoryPool}
 import org.apache.kafka.common.metrics._
-import org.apache.kafka.common.network.{Selector => KSelector, LoginType, Mode, ChannelBuilders}
+import org.apache.kafka.common.metrics.stats.Rate
+import org.apache.kafka.common.network.{Selector => KSelector, LoginType, Mode, ChannelBuilders, NetworkReceive}
 import org.apache.kafka.common.security.auth.KafkaPrincipal
-import org.apache.kafka.common.protocol.SecurityProtocol
+import org.apache.kafka.common.protocol.{ApiKeys, SecurityProtocol}
 import org.apache.kafka.common.protocol.types.SchemaException
 import org.apache.kafka.common.utils.{Time, Utils}
 
@@ -61,12 +63,24 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
 
   this.logIdent = "[Socket Server on Broker " + config.brokerId + "], "
 
-  val requestChannel = new RequestChannel(totalProcessorThreads, maxQueuedRequests)
+  // the requests of the other brokers only have lanes of their own if the clients can be given other listeners
+  private val brokerProtocol = if (endpoints.size > 1) Some(config.interBrokerSecurityProtocol) else None
+  val requestChannel = new RequestChannel(totalProcessorThreads, maxQueuedRequests,
+    if (brokerProtocol.isDefined) config.numReservedIoThreads else 0, brokerProtocol)
   private val processors = new Array[Processor](totalProcessorThreads)
 
   private[network] val acceptors = mutable.Map[EndPoint, Acceptor]()
   private var connectionQuotas: ConnectionQuotas = _
 
+  private val memoryPoolSensor = metrics.sensor("MemoryPoolDepleted")
+  memoryPoolSensor.add(metrics.metricName("memory-pool-depleted-ratio", "socket-server-metrics",
+    "The fraction of time the memory pool for requests was out of memory."), new Rate(TimeUnit.NANOSECONDS))
+  private[network] val memoryPool =
+    if (config.queuedMaxRequestBytes > 0)
+      new SimpleMemoryPool(config.queuedMaxRequestBytes, config.socketRequestMaxBytes, time, memoryPoolSensor)
+    else
+      MemoryPool.NONE
+
   private val allMetricNames = (0 until totalProcessorThreads).map { i =>
     val tags = new util.HashMap[String, String]()
     tags.put("networkProcessor", i.toString)
@@ -85,6 +99,7 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
       val recvBufferSize = config.socketReceiveBufferBytes
       val maxRequestSize = config.socketRequestMaxBytes
       val connectionsMaxIdleMs = config.connectionsMaxIdleMs
+      val maxPipelinedRequestsPerConnection = config.maxPipelinedRequestsPerConnection
       val brokerId = config.brokerId
 
       var processorBeginIndex = 0
@@ -99,9 +114,11 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
             requestChannel,
             connectionQuotas,
             connectionsMaxIdleMs,
+            maxPipelinedRequestsPerConnection,
             protocol,
             config.values,
-            metrics
+            metrics,
+            memoryPool
           )
         }
 
@@ -122,6 +139,18 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
       }
     )
 
+    newGauge("MemoryPoolAvailable",
+      new Gauge[Long] {
+        def value = memoryPool.availableMemory
+      }
+    )
+
+    newGauge("MemoryPoolUsed",
+      new Gauge[Long] {
+        def value = memoryPool.size - memoryPool.availableMemory
+      }
+    )
+
     info("Started " + acceptors.size + " acceptor threads")
   }
 
@@ -355,9 +384,11 @@ private[kafka] class Processor(val id: Int,
                                requestChannel: RequestChannel,
                                connectionQuotas: ConnectionQuotas,
                                connectionsMaxIdleMs: Long,
+                               maxPipelinedRequestsPerConnection: Int,
                                protocol: SecurityProtocol,
                                channelConfigs: java.util.Map[String, _],
-                               metrics: Metrics) extends AbstractServerThread(connectionQuotas) with KafkaMetricsGroup {
+                               metrics: Metrics,
+                               memoryPool: MemoryPool) extends AbstractServerThread(connectionQuotas) with KafkaMetricsGroup {
 
   private object ConnectionId {
     def fromString(s: String): Option[ConnectionId] = s.split("-") match {
@@ -374,8 +405,24 @@ private[kafka] class Processor(val id: Int,
     override def toString: String = s"$localHost:$localPort-$remoteHost:$remotePort"
   }
 
+  /**
+   * A request of a connection that is being processed, with its response once it has been processed. A produce request
+   * is held back, i.e. not sent to the request channel, while an earlier produce request of the connection is processed.
+   */
+  private class InflightRequest(val request: RequestChannel.Request) {
+    var dispatched = false
+    var response: RequestChannel.Response = null
+
+    def isProduce: Boolean = request.requestId == ApiKeys.PRODUCE.id
+  }
+
   private val newConnections = new ConcurrentLinkedQueue[SocketChannel]()
+  // the requests of each connection in the order they were received, up to the one whose response is being sent
+  private val inflightRequests = mutable.Map[String, mutable.Queue[InflightRequest]]()
   private val inflightResponses = mutable.Map[String, RequestChannel.Response]()
+  // the receives of the requests being processed, whose buffers are released to the memory pool once the requests
+  // have been responded to, whether or not their connections are still open
+  private val requestReceives = new util.IdentityHashMap[RequestChannel.Request, NetworkReceive]()
   private val channelBuilder = ChannelBuilders.create(protocol, Mode.SERVER, LoginType.SERVER, channelConfigs)
   private val metricTags = new util.HashMap[String, String]()
   metricTags.put("networkProcessor", id.toString)
@@ -398,7 +445,8 @@ private[kafka] class Processor(val id: Int,
     "socket-server",
     metricTags,
     false,
-    channelBuilder)
+    channelBuilder,
+    memoryPool)
 
   override def run() {
     startupComplete()
@@ -423,15 +471,30 @@ private[kafka] class Processor(val id: Int,
             val channel = selector.channel(receive.source)
             val session = RequestChannel.Session(new KafkaPrincipal(KafkaPrincipal.USER_TYPE, channel.principal.getName),
               channel.socketAddress)
-            val req = RequestChannel.Request(processor = id, connectionId = receive.source, session = session, buffer = receive.payload, startTimeMs = time.milliseconds, securityProtocol = protocol)
-            requestChannel.sendRequest(req)
+            val req = try {
+              RequestChannel.Request(processor = id, connectionId = receive.source, session = session, buffer = receive.payload, startTimeMs = time.milliseconds, securityProtocol = protocol)
+            } catch {
+              case e: Throwable =>
+                receive.release()
+                throw e
+            }
+            requestReceives.put(req, receive)
+            val requests = inflightRequests.getOrElseUpdate(receive.source, mutable.Queue[InflightRequest]())
+            val inflightRequest = new InflightRequest(req)
+            // the produce requests of a connection are processed one at a time so that they are appended in the order
+            // they were sent, the requests of the other apis are processed concurrently
+            if (!inflightRequest.isProduce || !requests.exists(r => r.isProduce && r.response == null))
+              dispatch(inflightRequest)
+            requests += inflightRequest
+            // stop reading requests from the connection until one of its requests has been responded to
+            if (requests.size >= maxPipelinedRequestsPerConnection)
+              selector.mute(receive.source)
           } catch {
             case e @ (_: InvalidRequestException | _: SchemaException) =>
               // note that even though we got an exception, we can assume that receive.source is valid. Issues with constructing a valid receive object were handled earlier
               error("Closing socket for " + receive.source + " because of error", e)
-              close(selector, receive.source)
+              closeConnection(receive.source)
           }
-          selector.mute(receive.source)
         }
 
         selector.completedSends.asScala.foreach { send =>
@@ -439,10 +502,12 @@ private[kafka] class Processor(val id: Int,
             throw new IllegalStateException(s"Send for ${send.destination} completed, but not in `inflightResponses`")
           }
           resp.request.updateRequestMetrics()
-          selector.unmute(send.destination)
+          inflightRequests.get(send.destination).foreach(_.dequeue())
+          processCompletedRequests(send.destination)
         }
 
         selector.disconnected.asScala.foreach { connectionId =>
+          removeInflightRequests(connectionId)
           val remoteHost = ConnectionId.fromString(connectionId).getOrElse {
             throw new IllegalStateException(s"connectionId has unexpected format: $connectionId")
           }.remoteHost
@@ -470,26 +535,82 @@ private[kafka] class Processor(val id: Int,
     var curr = requestChannel.receiveResponse(id)
     while(curr != null) {
       try {
+        val receive = requestReceives.remove(curr.request)
+        if (receive != null)
+          receive.release()
+        val connectionId = curr.request.connectionId
+        inflightRequests.get(connectionId).flatMap(_.find(_.request eq curr.request)) match {
+          case Some(inflightRequest) =>
+            inflightRequest.response = curr
+            processCompletedRequests(connectionId)
+            // the next produce request of the connection can be processed now that the previous one has been, unless
+            // the connection was closed
+            if (inflightRequest.isProduce)
+              inflightRequests.get(connectionId).flatMap(_.find(!_.dispatched)).foreach(dispatch)
+          case None =>
+            curr.request.updateRequestMetrics
+            trace(s"Socket server received response for closed connection $connectionId, dropping it: " + curr)
+        }
+      } finally {
+        curr = requestChannel.receiveResponse(id)
+      }
+    }
+  }
+
+  /**
+   * Act on the responses of the requests of a connection in the order of the requests, as long as the oldest request
+   * has been responded to and no response is being sent on the connection
+   */
+  private def processCompletedRequests(connectionId: String) {
+    inflightRequests.get(connectionId).foreach { requests =>
+      while (requests.nonEmpty && requests.head.response != null && !inflightResponses.contains(connectionId)) {
+        val curr = requests.head.response
         curr.responseAction match {
           case RequestChannel.NoOpAction =>
             // There is no response to send to the client, we need to read more pipelined requests
             // that are sitting in the server's socket buffer
+            requests.dequeue()
             curr.request.updateRequestMetrics
             trace("Socket server received empty response to send, registering for read: " + curr)
-            selector.unmute(curr.request.connectionId)
           case RequestChannel.SendAction =>
             trace("Socket server received response to send, registering for write and sending data: " + curr)
             selector.send(curr.responseSend)
-            inflightResponses += (curr.request.connectionId -> curr)
+            inflightResponses += (connectionId -> curr)
           case RequestChannel.CloseConnectionAction =>
             curr.request.updateRequestMetrics
             trace("Closing socket connection actively according to the response code.")
-            close(selector, curr.request.connectionId)
+            closeConnection(connectionId)
+            requests.clear()
         }
-      } finally {
-        curr = requestChannel.receiveResponse(id)
+      }
+      if (inflightRequests.contains(connectionId) && requests.size < maxPipelinedRequestsPerConnection)
+        selector.unmute(connectionId)
+    }
+  }
+
+  private def dispatch(inflightRequest: InflightRequest) {
+    inflightRequest.dispatched = true
+    requestChannel.sendRequest(inflightRequest.request)
+  }
+
+  private def closeConnection(connectionId: String) {
+    removeInflightRequests(connectionId)
+    close(selector, connectionId)
+  }
+
+  /**
+   * Forget the requests of a closed connection. The requests that were held back are never dispatched, so their
+   * receives are released here, the others are released when their response is processed
+   */
+  private def removeInflightRequests(connectionId: String) {
+    inflightRequests.remove(connectionId).foreach { requests =>
+      requests.filterNot(_.dispatched).foreach { inflightRequest =>
+        val receive = requestReceives.remove(inflightRequest.request)
+        if (receive != null)
+          receive.release()
       }
     }
+    inflightResponses.remove(connectionId)
   }
 
   /**
@@ -530,6 +651,7 @@ private[kafka] class Processor(val id: Int,
    */
   private def closeAll() {
     selector.channels.asScala.foreach { channel =>
+      removeInflightRequests(channel.id)
       close(selector, channel.id)
     }
     selector.close()
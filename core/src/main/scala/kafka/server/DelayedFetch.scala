@@ -57,6 +57,35 @@ class DelayedFetch(delayMs: Long,
                    responseCallback: Map[TopicAndPartition, FetchResponsePartitionData] => Unit)
   extends DelayedOperation(delayMs) {
 
+  /**
+   * The end offset trackers of the partitions with the count at which each fetch offset lies, or None if some partition
+   * can not be tracked, in which case the offsets of the partitions are checked instead
+   */
+  private val trackedPartitions: Option[Seq[TrackedPartition]] = {
+    val partitions = fetchMetadata.fetchPartitionStatus.toSeq.collect {
+      // partitions with an unknown fetch offset never accumulate bytes
+      case (topicAndPartition, fetchStatus) if fetchStatus.startOffsetMetadata != LogOffsetMetadata.UnknownOffsetMetadata =>
+        trackPartition(topicAndPartition, fetchStatus)
+    }
+    if (partitions.forall(_.isDefined)) Some(partitions.flatten) else None
+  }
+
+  private def trackPartition(topicAndPartition: TopicAndPartition, fetchStatus: FetchPartitionStatus): Option[TrackedPartition] = {
+    replicaManager.getPartition(topicAndPartition.topic, topicAndPartition.partition).flatMap { partition =>
+      val tracker =
+        if (fetchMetadata.fetchOnlyCommitted) partition.highWatermarkTracker
+        else partition.logEndOffsetTracker
+      // read the position before checking the leadership, since a leadership change starts a new generation
+      val position = tracker.current
+      val fetchOffset = fetchStatus.startOffsetMetadata
+      if (partition.leaderReplicaIfLocal().isDefined && EndOffsetTracker.onSameSegment(position.endOffset, fetchOffset))
+        Some(TrackedPartition(tracker, position.generation, position.bytes - position.endOffset.positionDiff(fetchOffset),
+          fetchStatus.fetchInfo.fetchSize))
+      else
+        None
+    }
+  }
+
   /**
    * The operation can be completed if:
    *
@@ -65,9 +94,32 @@ class DelayedFetch(delayMs: Long,
    * Case C: The fetch offset locates not on the last segment of the log
    * Case D: The accumulated bytes from all the fetching partitions exceeds the minimum bytes
    *
+   * While the end offset trackers of the partitions stay in the generations seen when the fetch was created, only case D
+   * can occur and it is checked from the counts of the trackers.
+   *
    * Upon completion, should return whatever data is available for each valid partition
    */
   override def tryComplete() : Boolean = {
+    trackedPartitions match {
+      case Some(partitions) =>
+        var accumulatedSize = 0L
+        var sameGenerations = true
+        partitions.foreach { tracked =>
+          val position = tracked.tracker.current
+          if (position.generation != tracked.generation)
+            sameGenerations = false
+          else
+            accumulatedSize += math.min(math.max(position.bytes - tracked.fetchOffsetBytes, 0L), tracked.fetchSize)
+        }
+        // Case D, otherwise some end offset moved to another segment or the leadership changed
+        if (sameGenerations)
+          return accumulatedSize >= fetchMetadata.fetchMinBytes && forceComplete()
+      case None =>
+    }
+    checkEndOffsets()
+  }
+
+  private def checkEndOffsets(): Boolean = {
     var accumulatedSize = 0
     fetchMetadata.fetchPartitionStatus.foreach {
       case (topicAndPartition, fetchStatus) =>
@@ -134,6 +186,12 @@ class DelayedFetch(delayMs: Long,
   }
 }
 
+/**
+ * A partition of a delayed fetch whose readable bytes are the count of its end offset tracker past the count at its
+ * fetch offset, as long as the tracker is in the same generation
+ */
+private case class TrackedPartition(tracker: EndOffsetTracker, generation: Int, fetchOffsetBytes: Long, fetchSize: Int)
+
 object DelayedFetchMetrics extends KafkaMetricsGroup {
   private val FetcherTypeKey = "fetcherType"
   val followerExpiredRequestMeter = newMeter("ExpiresPerSec", "requests", TimeUnit.SECONDS, tags = Map(FetcherTypeKey -> "follower"))
@@ -22,7 +22,6 @@ import kafka.utils.timer._
 import kafka.utils.CoreUtils.{inReadLock, inWriteLock}
 import kafka.metrics.KafkaMetricsGroup
 
-import java.util.LinkedList
 import java.util.concurrent._
 import java.util.concurrent.atomic._
 import java.util.concurrent.locks.ReentrantReadWriteLock
@@ -110,10 +109,20 @@ abstract class DelayedOperation(delayMs: Long) extends TimerTask with Logging {
   }
 }
 
+object DelayedOperationPurgatory {
+  val Shards = 512
+}
+
 /**
  * A helper purgatory class for bookkeeping delayed operations with a timeout, and expiring timed out operations.
+ *
+ * The watch lists are spread over a number of shards by key, each with its own lock, so that operations watched on
+ * different keys rarely contend.
  */
-class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, brokerId: Int = 0, purgeInterval: Int = 1000)
+class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
+                                                       brokerId: Int = 0,
+                                                       purgeInterval: Int = 1000,
+                                                       shards: Int = DelayedOperationPurgatory.Shards)
         extends Logging with KafkaMetricsGroup {
 
   // timeout timer
@@ -121,15 +130,13 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, br
     def newThread(runnable: Runnable): Thread =
       Utils.newThread("executor-"+purgatoryName, runnable, false)
   })
-  private[this] val timeoutTimer = new Timer(executor)
-
-  /* a list of operation watching keys */
-  private val watchersForKey = new Pool[Any, Watchers](Some((key: Any) => new Watchers(key)))
+  private[this] val timeoutTimer = new Timer(executor, batchExpiration = true)
 
-  private val removeWatchersLock = new ReentrantReadWriteLock()
+  /* the watch lists of the keys, sharded by key */
+  private val watcherLists = Array.fill[WatcherList](shards)(new WatcherList)
 
-  // the number of estimated total operations in the purgatory
-  private[this] val estimatedTotalOperations = new AtomicInteger(0)
+  // the number of entries added to the watch lists of a shard after which its completed entries are purged
+  private[this] val shardPurgeInterval = math.max(1, purgeInterval / shards)
 
   /* background thread expiring operations that have timed out */
   private val expirationReaper = new ExpiredOperationReaper()
@@ -152,6 +159,10 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, br
     metricsTags
   )
 
+  // the checks of whether operations can be completed, and the checks that did not complete the operation
+  private val tryCompleteRate = newMeter("TryCompletePerSec", "checks", TimeUnit.SECONDS, metricsTags)
+  private val wastedTryCompleteRate = newMeter("WastedTryCompletePerSec", "checks", TimeUnit.SECONDS, metricsTags)
+
   expirationReaper.start()
 
   /**
@@ -160,8 +171,8 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, br
    * Note that a delayed operation can be watched on multiple keys. It is possible that
    * an operation is completed after it has been added to the watch list for some, but
    * not all of the keys. In this case, the operation is considered completed and won't
-   * be added to the watch list of the remaining keys. The expiration reaper thread will
-   * remove this operation from any watcher list in which the operation exists.
+   * be added to the watch list of the remaining keys. The operation will be purged from
+   * any watcher list in which it exists by a later purge of the shard of the list.
    *
    * @param operation the delayed operation to be checked
    * @param watchKeys keys for bookkeeping the operation
@@ -178,26 +189,20 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, br
     // event since the operation is already on the watcher list for all keys. This does mean that
     // if the operation is completed (by another thread) between the two tryComplete() calls, the
     // operation is unnecessarily added for watch. However, this is a less severe issue since the
-    // expire reaper will clean it up periodically.
+    // shard of the watch list will be purged of it periodically.
 
-    var isCompletedByMe = operation synchronized operation.tryComplete()
+    var isCompletedByMe = tryComplete(operation)
     if (isCompletedByMe)
       return true
 
-    var watchCreated = false
     for(key <- watchKeys) {
       // If the operation is already completed, stop adding it to the rest of the watcher list.
       if (operation.isCompleted())
         return false
       watchForOperation(key, operation)
-
-      if (!watchCreated) {
-        watchCreated = true
-        estimatedTotalOperations.incrementAndGet()
-      }
     }
 
-    isCompletedByMe = operation synchronized operation.tryComplete()
+    isCompletedByMe = tryComplete(operation)
     if (isCompletedByMe)
       return true
 
@@ -213,6 +218,14 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, br
     false
   }
 
+  private def tryComplete(operation: T): Boolean = {
+    val completed = operation synchronized operation.tryComplete()
+    tryCompleteRate.mark()
+    if (!completed)
+      wastedTryCompleteRate.mark()
+    completed
+  }
+
   /**
    * Check if some some delayed operations can be completed with the given watch key,
    * and if yes complete them.
@@ -220,7 +233,8 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, br
    * @return the number of completed operations during this process
    */
   def checkAndComplete(key: Any): Int = {
-    val watchers = inReadLock(removeWatchersLock) { watchersForKey.get(key) }
+    val wl = watcherList(key)
+    val watchers = inReadLock(wl.watchersLock) { wl.watchersByKey.get(key) }
     if(watchers == null)
       0
     else
@@ -232,41 +246,73 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, br
    * on multiple lists, and some of its watched entries may still be in the watch lists
    * even when it has been completed, this number may be larger than the number of real operations watched
    */
-  def watched() = allWatchers.map(_.watched).sum
+  def watched() = watcherLists.foldLeft(0) { case (sum, wl) => sum + wl.watched.get }
 
   /**
    * Return the number of delayed operations in the expiry queue
    */
   def delayed() = timeoutTimer.size
 
-  /*
-   * Return all the current watcher lists,
-   * note that the returned watchers may be removed from the list by other threads
-   */
-  private def allWatchers = inReadLock(removeWatchersLock) { watchersForKey.values }
+  private def watcherList(key: Any): WatcherList = watcherLists(Math.abs(key.hashCode % watcherLists.length))
 
   /*
-   * Return the watch list of the given key, note that we need to
-   * grab the removeWatchersLock to avoid the operation being added to a removed watcher list
+   * Return the watch list of the given key, note that we need to grab the lock of its shard
+   * to avoid the operation being added to a removed watcher list
    */
   private def watchForOperation(key: Any, operation: T) {
-    inReadLock(removeWatchersLock) {
-      val watcher = watchersForKey.getAndMaybePut(key)
+    val wl = watcherList(key)
+    inReadLock(wl.watchersLock) {
+      val watcher = wl.watchersByKey.getAndMaybePut(key)
       watcher.watch(operation)
     }
+    wl.maybePurge()
   }
 
   /*
    * Remove the key from watcher lists if its list is empty
    */
   private def removeKeyIfEmpty(key: Any, watchers: Watchers) {
-    inWriteLock(removeWatchersLock) {
+    val wl = watcherList(key)
+    inWriteLock(wl.watchersLock) {
       // if the current key is no longer correlated to the watchers to remove, skip
-      if (watchersForKey.get(key) != watchers)
+      if (wl.watchersByKey.get(key) != watchers)
         return
 
-      if (watchers != null && watchers.watched == 0) {
-        watchersForKey.remove(key)
+      if (watchers != null && watchers.isEmpty) {
+        wl.watchersByKey.remove(key)
+      }
+    }
+  }
+
+  /**
+   * The watch lists of the keys of a shard
+   */
+  private class WatcherList {
+    val watchersByKey = new Pool[Any, Watchers](Some((key: Any) => new Watchers(key, this)))
+
+    val watchersLock = new ReentrantReadWriteLock()
+
+    // the number of entries in the watch lists of the shard, including those of completed operations
+    val watched = new AtomicInteger(0)
+
+    // the number of entries added to the watch lists of the shard since they were last purged
+    private val watchedSinceLastPurge = new AtomicInteger(0)
+
+    /*
+     * Return all the current watcher lists of the shard,
+     * note that the returned watchers may be removed from the list by other threads
+     */
+    def allWatchers = inReadLock(watchersLock) { watchersByKey.values }
+
+    /*
+     * Purge the watch lists of the shard of their completed operations once enough entries have been added to them
+     * since they were last purged, only the thread that resets the count does the purge
+     */
+    def maybePurge() {
+      if (watchedSinceLastPurge.incrementAndGet() > shardPurgeInterval &&
+          watchedSinceLastPurge.getAndSet(0) > shardPurgeInterval) {
+        val purged = allWatchers.map(_.purgeCompleted()).sum
+        debug("Purged %d elements from watch lists.".format(purged))
       }
     }
   }
@@ -282,56 +328,69 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, br
   /**
    * A linked list of watched delayed operations based on some key
    */
-  private class Watchers(val key: Any) {
+  private class Watchers(val key: Any, shard: WatcherList) {
 
-    private[this] val operations = new LinkedList[T]()
+    private[this] val operations = new ConcurrentLinkedQueue[T]()
 
-    def watched: Int = operations synchronized operations.size
+    def isEmpty: Boolean = operations.isEmpty
 
     // add the element to watch
     def watch(t: T) {
-      operations synchronized operations.add(t)
+      operations.add(t)
+      shard.watched.incrementAndGet()
     }
 
     // traverse the list and try to complete some watched elements
     def tryCompleteWatched(): Int = {
 
       var completed = 0
-      operations synchronized {
-        val iter = operations.iterator()
-        while (iter.hasNext) {
-          val curr = iter.next()
-          if (curr.isCompleted) {
-            // another thread has completed this operation, just remove it
-            iter.remove()
-          } else if (curr synchronized curr.tryComplete()) {
+      var checked = 0
+      val iter = operations.iterator()
+      while (iter.hasNext) {
+        val curr = iter.next()
+        if (curr.isCompleted) {
+          // another thread has completed this operation, just remove it
+          remove(curr)
+        } else {
+          checked += 1
+          if (curr synchronized curr.tryComplete()) {
             completed += 1
-            iter.remove()
+            remove(curr)
           }
         }
       }
+      // mark the meters once per key rather than once per operation
+      if (checked > 0) {
+        tryCompleteRate.mark(checked)
+        wastedTryCompleteRate.mark(checked - completed)
+      }
 
-      if (operations.size == 0)
+      if (operations.isEmpty)
         removeKeyIfEmpty(key, this)
 
       completed
     }
 
+    // remove the element, it is only counted out of the shard by the thread that removes it since the list may be
+    // traversed by several threads at once
+    private def remove(t: T): Boolean = {
+      val removed = operations.remove(t)
+      if (removed)
+        shard.watched.decrementAndGet()
+      removed
+    }
+
     // traverse the list and purge elements that are already completed by others
     def purgeCompleted(): Int = {
       var purged = 0
-      operations synchronized {
-        val iter = operations.iterator()
-        while (iter.hasNext) {
-          val curr = iter.next()
-          if (curr.isCompleted) {
-            iter.remove()
-            purged += 1
-          }
-        }
+      val iter = operations.iterator()
+      while (iter.hasNext) {
+        val curr = iter.next()
+        if (curr.isCompleted && remove(curr))
+          purged += 1
       }
 
-      if (operations.size == 0)
+      if (operations.isEmpty)
         removeKeyIfEmpty(key, this)
 
       purged
@@ -347,19 +406,6 @@ class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String, br
 
     override def doWork() {
       timeoutTimer.advanceClock(200L)
-
-      // Trigger a purge if the number of completed but still being watched operations is larger than
-      // the purge threshold. That number is computed by the difference btw the estimated total number of
-      // operations and the number of pending delayed operations.
-      if (estimatedTotalOperations.get - delayed > purgeInterval) {
-        // now set estimatedTotalOperations to delayed (the number of pending operations) since we are going to
-        // clean up watchers. Note that, if more operations are completed during the clean up, we may end up with
-        // a little overestimated total number of operations.
-        estimatedTotalOperations.getAndSet(delayed)
-        debug("Begin purging watch lists")
-        val purged = allWatchers.map(_.purgeCompleted()).sum
-        debug("Purged %d elements from watch lists.".format(purged))
-      }
     }
   }
 }
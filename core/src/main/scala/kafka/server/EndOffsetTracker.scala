@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import kafka.utils.threadsafe
+
+object EndOffsetTracker {
+
+  /**
+   * The end offset and the bytes it has advanced by since the start of the generation
+   */
+  case class Position(generation: Int, bytes: Long, endOffset: LogOffsetMetadata)
+
+  /**
+   * Whether the bytes between the two offsets are known, which is the case if both are positions on the same segment
+   */
+  def onSameSegment(offset: LogOffsetMetadata, that: LogOffsetMetadata): Boolean =
+    offset != LogOffsetMetadata.UnknownOffsetMetadata && that != LogOffsetMetadata.UnknownOffsetMetadata &&
+      !offset.messageOffsetOnly && !that.messageOffsetOnly && offset.offsetOnSameSegment(that)
+}
+
+/**
+ * Counts the bytes an end offset of a leader partition, its log end offset or its high watermark, has advanced by, so
+ * that a delayed fetch can tell how many bytes became readable past its fetch offset by comparing two counts instead
+ * of looking up the partition and its offsets. Counts are only comparable within a generation, which changes when the
+ * end offset moves to another segment, has no position in its segment, or is reset on a leadership change.
+ */
+@threadsafe
+class EndOffsetTracker {
+  import EndOffsetTracker.Position
+
+  @volatile private var position = Position(0, 0L, LogOffsetMetadata.UnknownOffsetMetadata)
+
+  def current: Position = position
+
+  /**
+   * Move the end offset forward; an end offset that does not follow the current one is ignored since appends may
+   * report their end offsets out of order
+   */
+  def advance(endOffset: LogOffsetMetadata): Unit = synchronized {
+    val current = position
+    if (current.endOffset == LogOffsetMetadata.UnknownOffsetMetadata)
+      position = Position(current.generation + 1, 0L, endOffset)
+    else if (current.endOffset.precedes(endOffset)) {
+      if (EndOffsetTracker.onSameSegment(current.endOffset, endOffset))
+        position = Position(current.generation, current.bytes + endOffset.positionDiff(current.endOffset), endOffset)
+      else
+        position = Position(current.generation + 1, 0L, endOffset)
+    }
+  }
+
+  /**
+   * Start a new generation at the given end offset
+   */
+  def reset(endOffset: LogOffsetMetadata): Unit = synchronized {
+    position = Position(position.generation + 1, 0L, endOffset)
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.util
+import java.util.concurrent.ThreadLocalRandom
+
+import kafka.api.{FetchRequest, FetchResponsePartitionData, PartitionFetchInfo, Request}
+import kafka.common.TopicAndPartition
+import kafka.utils.{Logging, Time, threadsafe}
+import org.apache.kafka.common.protocol.Errors
+
+import scala.collection.JavaConverters._
+import scala.collection._
+
+/**
+ * The state of a partition in an incremental fetch session: the fetch offset and max bytes last sent by the fetcher
+ * and the high watermark last sent to it
+ */
+class CachedPartition(var fetchOffset: Long, var maxBytes: Int, var highWatermark: Long = -1L) {
+
+  override def toString = "[fetchOffset: " + fetchOffset + ", maxBytes: " + maxBytes + ", highWatermark: " + highWatermark + "]"
+}
+
+/**
+ * An incremental fetch session of a follower or consumer. The epoch is the one expected in the next fetch request of
+ * the session.
+ */
+class FetchSession(val id: Int, val replicaId: Int, var epoch: Int, var lastUsedMs: Long) {
+  val partitions = new util.LinkedHashMap[TopicAndPartition, CachedPartition]
+
+  def isFromFollower = Request.isValidBrokerId(replicaId)
+
+  def fetchInfo: immutable.Map[TopicAndPartition, PartitionFetchInfo] =
+    partitions.asScala.map { case (topicAndPartition, cached) =>
+      topicAndPartition -> PartitionFetchInfo(cached.fetchOffset, cached.maxBytes)
+    }.toMap
+}
+
+/**
+ * The partitions to fetch for a fetch request, resolved against its fetch session if it has one
+ *
+ * @param sessionId The session id to return in the response, or the invalid session id if the fetch is sessionless
+ * @param fetchInfo The partitions to read
+ * @param error The error of the session, in which case no partition should be read
+ */
+class FetchContext(val sessionId: Int,
+                   val fetchInfo: immutable.Map[TopicAndPartition, PartitionFetchInfo],
+                   val error: Errors,
+                   cache: FetchSessionCache,
+                   session: Option[FetchSession]) {
+
+  /**
+   * Select the partitions to return in the response. A sessionless fetch returns all the partitions, a fetch session
+   * only returns the partitions that have messages, an error or a high watermark that changed since it was last sent.
+   */
+  def filterResponse(data: Map[TopicAndPartition, FetchResponsePartitionData]): Map[TopicAndPartition, FetchResponsePartitionData] = {
+    session match {
+      case None => data
+      case Some(fetchSession) => cache.filterResponse(fetchSession, data)
+    }
+  }
+}
+
+object FetchSessionCache {
+  // a session is only evicted for a new one if it has not been used for this long, unless a follower needs its slot
+  val EvictionMs = 120000L
+}
+
+/**
+ * The incremental fetch sessions of a broker, up to a maximum number of sessions. When the cache is full, a new session
+ * takes the slot of the least recently used session that has been idle for at least the eviction time, or of the least
+ * recently used consumer session if the new session is for a follower, since followers fetch many partitions and do
+ * not come and go. Otherwise the fetch is served without a session.
+ */
+@threadsafe
+class FetchSessionCache(maxSlots: Int, time: Time, evictionMs: Long = FetchSessionCache.EvictionMs)
+  extends Logging {
+
+  // the sessions in order of last use
+  private val sessions = new util.LinkedHashMap[Int, FetchSession](16, 0.75f, true)
+
+  def size: Int = synchronized {
+    sessions.size
+  }
+
+  def get(sessionId: Int): Option[FetchSession] = synchronized {
+    Option(sessions.get(sessionId))
+  }
+
+  /**
+   * Resolve the partitions to fetch for a fetch request:
+   * - a sessionless fetch (the final epoch) closes the given session if any and fetches the partitions of the request
+   * - a full fetch (the initial epoch) closes the given session if any, fetches the partitions of the request and
+   *   caches them in a new session if there is a slot for it
+   * - an incremental fetch (any other epoch) applies the partitions of the request and the forgotten partitions to its
+   *   session and fetches all the partitions of the session
+   */
+  def newContext(fetchRequest: FetchRequest): FetchContext = synchronized {
+    val now = time.milliseconds
+    fetchRequest.sessionEpoch match {
+      case FetchRequest.FinalEpoch =>
+        remove(fetchRequest.sessionId)
+        new FetchContext(FetchRequest.InvalidSessionId, fetchRequest.requestInfo, Errors.NONE, this, None)
+
+      case FetchRequest.InitialEpoch =>
+        remove(fetchRequest.sessionId)
+        if (!makeRoom(Request.isValidBrokerId(fetchRequest.replicaId), now)) {
+          debug("No slot for a new fetch session of replica %d and client %s".format(fetchRequest.replicaId, fetchRequest.clientId))
+          new FetchContext(FetchRequest.InvalidSessionId, fetchRequest.requestInfo, Errors.NONE, this, None)
+        } else {
+          val session = new FetchSession(newSessionId(), fetchRequest.replicaId, nextEpoch(FetchRequest.InitialEpoch), now)
+          fetchRequest.requestInfo.foreach { case (topicAndPartition, PartitionFetchInfo(offset, fetchSize)) =>
+            session.partitions.put(topicAndPartition, new CachedPartition(offset, fetchSize))
+          }
+          sessions.put(session.id, session)
+          debug("Created fetch session %d of replica %d and client %s with %d partitions"
+            .format(session.id, fetchRequest.replicaId, fetchRequest.clientId, session.partitions.size))
+          new FetchContext(session.id, fetchRequest.requestInfo, Errors.NONE, this, Some(session))
+        }
+
+      case epoch =>
+        val session = sessions.get(fetchRequest.sessionId)
+        if (session == null || session.replicaId != fetchRequest.replicaId) {
+          debug("Fetch session %d of replica %d not found".format(fetchRequest.sessionId, fetchRequest.replicaId))
+          new FetchContext(FetchRequest.InvalidSessionId, immutable.Map.empty, Errors.FETCH_SESSION_ID_NOT_FOUND, this, None)
+        } else if (session.epoch != epoch) {
+          debug("Fetch session %d expected epoch %d, but got %d".format(session.id, session.epoch, epoch))
+          new FetchContext(session.id, immutable.Map.empty, Errors.INVALID_FETCH_SESSION_EPOCH, this, None)
+        } else {
+          fetchRequest.requestInfo.foreach { case (topicAndPartition, PartitionFetchInfo(offset, fetchSize)) =>
+            val cached = session.partitions.get(topicAndPartition)
+            if (cached == null) {
+              session.partitions.put(topicAndPartition, new CachedPartition(offset, fetchSize))
+            } else {
+              cached.fetchOffset = offset
+              cached.maxBytes = fetchSize
+            }
+          }
+          fetchRequest.forgotten.foreach(session.partitions.remove)
+          session.epoch = nextEpoch(epoch)
+          session.lastUsedMs = now
+          new FetchContext(session.id, session.fetchInfo, Errors.NONE, this, Some(session))
+        }
+    }
+  }
+
+  private[server] def filterResponse(session: FetchSession,
+                                     data: Map[TopicAndPartition, FetchResponsePartitionData]): Map[TopicAndPartition, FetchResponsePartitionData] = synchronized {
+    data.filter { case (topicAndPartition, partitionData) =>
+      val cached = session.partitions.get(topicAndPartition)
+      if (cached == null) {
+        // the partition was forgotten while the fetch was delayed
+        false
+      } else {
+        val include = partitionData.messages.sizeInBytes > 0 || partitionData.error != Errors.NONE.code ||
+          partitionData.hw != cached.highWatermark
+        cached.highWatermark = partitionData.hw
+        include
+      }
+    }
+  }
+
+  private def remove(sessionId: Int) {
+    if (sessionId != FetchRequest.InvalidSessionId && sessions.remove(sessionId) != null)
+      debug("Closed fetch session %d".format(sessionId))
+  }
+
+  /**
+   * Make sure there is a slot for a new session, evicting a session if needed
+   */
+  private def makeRoom(isFromFollower: Boolean, now: Long): Boolean = {
+    if (sessions.size < maxSlots)
+      return true
+    val candidates = sessions.values.asScala
+    val evicted = candidates.find(now - _.lastUsedMs >= evictionMs)
+      .orElse(if (isFromFollower) candidates.find(!_.isFromFollower) else None)
+    evicted.foreach { session =>
+      debug("Evicted fetch session %d of replica %d, last used %d ms ago".format(session.id, session.replicaId, now - session.lastUsedMs))
+      sessions.remove(session.id)
+    }
+    evicted.isDefined
+  }
+
+  private def newSessionId(): Int = {
+    var id = FetchRequest.InvalidSessionId
+    while (id == FetchRequest.InvalidSessionId || sessions.containsKey(id))
+      id = ThreadLocalRandom.current.nextInt(1, Int.MaxValue)
+    id
+  }
+
+  private def nextEpoch(epoch: Int): Int = if (epoch == Int.MaxValue) 1 else epoch + 1
+}
@@ -35,11 +35,11 @@ import kafka.utils.{Logging, SystemTime, ZKGroupTopicDirs, ZkUtils}
 import org.apache.kafka.common.errors.{InvalidTopicException, NotLeaderForPartitionException, UnknownTopicOrPartitionException,
 ClusterAuthorizationException}
 import org.apache.kafka.common.metrics.Metrics
-import org.apache.kafka.common.protocol.{ApiKeys, Errors, SecurityProtocol}
+import org.apache.kafka.common.protocol.{ApiKeys, Errors, Protocol, SecurityProtocol}
 import org.apache.kafka.common.requests.{ListOffsetRequest, ListOffsetResponse, GroupCoordinatorRequest, GroupCoordinatorResponse, ListGroupsResponse,
 DescribeGroupsRequest, DescribeGroupsResponse, HeartbeatRequest, HeartbeatResponse, JoinGroupRequest, JoinGroupResponse,
 LeaveGroupRequest, LeaveGroupResponse, ResponseHeader, ResponseSend, SyncGroupRequest, SyncGroupResponse, LeaderAndIsrRequest, LeaderAndIsrResponse,
-StopReplicaRequest, StopReplicaResponse}
+StopReplicaRequest, StopReplicaResponse, ApiVersionsResponse}
 import org.apache.kafka.common.utils.Utils
 import org.apache.kafka.common.{TopicPartition, Node}
 
@@ -58,7 +58,8 @@ class KafkaApis(val requestChannel: RequestChannel,
                 val config: KafkaConfig,
                 val metadataCache: MetadataCache,
                 val metrics: Metrics,
-                val authorizer: Option[Authorizer]) extends Logging {
+                val authorizer: Option[Authorizer],
+                val fetchSessionCache: FetchSessionCache) extends Logging {
 
   this.logIdent = "[KafkaApi-%d] ".format(brokerId)
   // Store all the quota managers for each type of request
@@ -89,6 +90,7 @@ class KafkaApis(val requestChannel: RequestChannel,
         case ApiKeys.SYNC_GROUP => handleSyncGroupRequest(request)
         case ApiKeys.DESCRIBE_GROUPS => handleDescribeGroupRequest(request)
         case ApiKeys.LIST_GROUPS => handleListGroupsRequest(request)
+        case ApiKeys.API_VERSIONS => handleApiVersionsRequest(request)
         case requestId => throw new KafkaException("Unknown api code " + requestId)
       }
     } catch {
@@ -403,8 +405,9 @@ class KafkaApis(val requestChannel: RequestChannel,
    */
   def handleFetchRequest(request: RequestChannel.Request) {
     val fetchRequest = request.requestObj.asInstanceOf[FetchRequest]
+    val fetchContext = fetchSessionCache.newContext(fetchRequest)
 
-    val (authorizedRequestInfo, unauthorizedRequestInfo) =  fetchRequest.requestInfo.partition {
+    val (authorizedRequestInfo, unauthorizedRequestInfo) =  fetchContext.fetchInfo.partition {
       case (topicAndPartition, _) => authorize(request.session, Read, new Resource(Topic, topicAndPartition.topic))
     }
 
@@ -412,7 +415,7 @@ class KafkaApis(val requestChannel: RequestChannel,
 
     // the callback for sending a fetch response
     def sendResponseCallback(responsePartitionData: Map[TopicAndPartition, FetchResponsePartitionData]) {
-      val mergedResponseStatus = responsePartitionData ++ unauthorizedResponseStatus
+      val mergedResponseStatus = fetchContext.filterResponse(responsePartitionData ++ unauthorizedResponseStatus)
 
       mergedResponseStatus.foreach { case (topicAndPartition, data) =>
         if (data.error != Errors.NONE.code) {
@@ -426,7 +429,8 @@ class KafkaApis(val requestChannel: RequestChannel,
       }
 
       def fetchResponseCallback(delayTimeMs: Int) {
-        val response = FetchResponse(fetchRequest.correlationId, mergedResponseStatus, fetchRequest.versionId, delayTimeMs)
+        val response = FetchResponse(fetchRequest.correlationId, mergedResponseStatus, fetchRequest.versionId, delayTimeMs,
+          fetchContext.error.code, fetchContext.sessionId)
         requestChannel.sendResponse(new RequestChannel.Response(request, new FetchResponseSend(request.connectionId, response)))
       }
 
@@ -439,14 +443,14 @@ class KafkaApis(val requestChannel: RequestChannel,
         fetchResponseCallback(0)
       } else {
         quotaManagers(ApiKeys.FETCH.id).recordAndMaybeThrottle(fetchRequest.clientId,
-                                                                   FetchResponse.responseSize(responsePartitionData
+                                                                   FetchResponse.responseSize(mergedResponseStatus
                                                                                                       .groupBy(_._1.topic),
                                                                                               fetchRequest.versionId),
                                                                    fetchResponseCallback)
       }
     }
 
-    if (authorizedRequestInfo.isEmpty)
+    if (authorizedRequestInfo.isEmpty || fetchContext.error != Errors.NONE)
       sendResponseCallback(Map.empty)
     else {
       // call the replica manager to fetch messages from the local replica
@@ -538,43 +542,35 @@ class KafkaApis(val requestChannel: RequestChannel,
 
   private def fetchOffsetsBefore(log: Log, timestamp: Long, maxNumOffsets: Int): Seq[Long] = {
     val segsArray = log.logSegments.toArray
-    var offsetTimeArray: Array[(Long, Long)] = null
-    if (segsArray.last.size > 0)
-      offsetTimeArray = new Array[(Long, Long)](segsArray.length + 1)
-    else
-      offsetTimeArray = new Array[(Long, Long)](segsArray.length)
-
-    for(i <- 0 until segsArray.length)
-      offsetTimeArray(i) = (segsArray(i).baseOffset, segsArray(i).lastModified)
-    if (segsArray.last.size > 0)
-      offsetTimeArray(segsArray.length) = (log.logEndOffset, SystemTime.milliseconds)
-
-    var startIndex = -1
     timestamp match {
-      case ListOffsetRequest.LATEST_TIMESTAMP =>
-        startIndex = offsetTimeArray.length - 1
-      case ListOffsetRequest.EARLIEST_TIMESTAMP =>
-        startIndex = 0
-      case _ =>
-        var isFound = false
-        debug("Offset time array = " + offsetTimeArray.foreach(o => "%d, %d".format(o._1, o._2)))
-        startIndex = offsetTimeArray.length - 1
-        while (startIndex >= 0 && !isFound) {
-          if (offsetTimeArray(startIndex)._2 <= timestamp)
-            isFound = true
-          else
-            startIndex -=1
+      case ListOffsetRequest.LATEST_TIMESTAMP | ListOffsetRequest.EARLIEST_TIMESTAMP =>
+        var offsetTimeArray: Array[(Long, Long)] = null
+        if (segsArray.last.size > 0)
+          offsetTimeArray = new Array[(Long, Long)](segsArray.length + 1)
+        else
+          offsetTimeArray = new Array[(Long, Long)](segsArray.length)
+
+        for(i <- 0 until segsArray.length)
+          offsetTimeArray(i) = (segsArray(i).baseOffset, segsArray(i).lastModified)
+        if (segsArray.last.size > 0)
+          offsetTimeArray(segsArray.length) = (log.logEndOffset, SystemTime.milliseconds)
+
+        var startIndex = if (timestamp == ListOffsetRequest.LATEST_TIMESTAMP) offsetTimeArray.length - 1 else 0
+        val retSize = maxNumOffsets.min(startIndex + 1)
+        val ret = new Array[Long](retSize)
+        for(j <- 0 until retSize) {
+          ret(j) = offsetTimeArray(startIndex)._1
+          startIndex -= 1
         }
+        // ensure that the returned seq is in descending order of offsets
+        ret.toSeq.sortBy(- _)
+      case _ =>
+        // the messages before the first message with a timestamp no smaller than the requested one were appended
+        // before it, so that offset comes first followed by the base offsets of the segments before it
+        val offset = log.fetchOffsetByTimestamp(timestamp).getOrElse(log.logEndOffset)
+        debug("Offset for timestamp %d in %s is %d".format(timestamp, log.name, offset))
+        (offset +: segsArray.map(_.baseOffset).filter(_ < offset).reverse).take(maxNumOffsets).toSeq
     }
-
-    val retSize = maxNumOffsets.min(startIndex + 1)
-    val ret = new Array[Long](retSize)
-    for(j <- 0 until retSize) {
-      ret(j) = offsetTimeArray(startIndex)._1
-      startIndex -= 1
-    }
-    // ensure that the returned seq is in descending order of offsets
-    ret.toSeq.sortBy(- _)
   }
 
   private def getTopicMetadata(topics: Set[String], securityProtocol: SecurityProtocol): Seq[TopicMetadata] = {
@@ -772,6 +768,18 @@ class KafkaApis(val requestChannel: RequestChannel,
     requestChannel.sendResponse(new RequestChannel.Response(request, new ResponseSend(request.connectionId, responseHeader, responseBody)))
   }
 
+  def handleApiVersionsRequest(request: RequestChannel.Request) {
+    // the versions of every api this broker supports, so that clients only send requests and message formats it reads,
+    // from the first version that has a schema to the latest one
+    val responseHeader = new ResponseHeader(request.header.correlationId)
+    val apiVersions = ApiKeys.values.toList.map { api =>
+      val minVersion = Protocol.REQUESTS(api.id).indexWhere(_ != null)
+      new ApiVersionsResponse.ApiVersion(api.id, minVersion.toShort, Protocol.CURR_VERSION(api.id))
+    }
+    val responseBody = new ApiVersionsResponse(Errors.NONE.code, apiVersions.asJava)
+    requestChannel.sendResponse(new RequestChannel.Response(request, new ResponseSend(request.connectionId, responseHeader, responseBody)))
+  }
+
   def handleListGroupsRequest(request: RequestChannel.Request) {
     import JavaConverters._
 
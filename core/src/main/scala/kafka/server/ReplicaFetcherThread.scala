@@ -18,15 +18,17 @@
 package kafka.server
 
 import java.net.SocketTimeoutException
+import java.util
+import java.util.Collections
 
 import kafka.admin.AdminUtils
 import kafka.cluster.BrokerEndPoint
 import kafka.log.LogConfig
 import kafka.message.ByteBufferMessageSet
-import kafka.api.KAFKA_090
+import kafka.api.{KAFKA_090, KAFKA_091}
 import kafka.common.{KafkaStorageException, TopicAndPartition}
 import ReplicaFetcherThread._
-import org.apache.kafka.clients.{ManualMetadataUpdater, NetworkClient, ClientRequest, ClientResponse}
+import org.apache.kafka.clients.{FetchSessionHandler, ManualMetadataUpdater, NetworkClient, ClientRequest, ClientResponse}
 import org.apache.kafka.common.network.{LoginType, Selectable, ChannelBuilders, NetworkReceive, Selector, Mode}
 import org.apache.kafka.common.requests.{ListOffsetResponse, FetchResponse, RequestSend, AbstractRequest, ListOffsetRequest}
 import org.apache.kafka.common.requests.{FetchRequest => JFetchRequest}
@@ -36,7 +38,7 @@ import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.protocol.{Errors, ApiKeys}
 import org.apache.kafka.common.utils.Time
 
-import scala.collection.{JavaConverters, Map, mutable}
+import scala.collection.{JavaConverters, Map}
 import JavaConverters._
 
 class ReplicaFetcherThread(name: String,
@@ -55,7 +57,10 @@ class ReplicaFetcherThread(name: String,
   type REQ = FetchRequest
   type PD = PartitionData
 
-  private val fetchRequestVersion: Short = if (brokerConfig.interBrokerProtocolVersion.onOrAfter(KAFKA_090)) 1 else 0
+  private val fetchRequestVersion: Short =
+    if (brokerConfig.interBrokerProtocolVersion.onOrAfter(KAFKA_091)) 2
+    else if (brokerConfig.interBrokerProtocolVersion.onOrAfter(KAFKA_090)) 1
+    else 0
   private val socketTimeout: Int = brokerConfig.replicaSocketTimeoutMs
   private val replicaId = brokerConfig.brokerId
   private val maxWait = brokerConfig.replicaFetchWaitMaxMs
@@ -66,6 +71,10 @@ class ReplicaFetcherThread(name: String,
 
   private val sourceNode = new Node(sourceBroker.id, sourceBroker.host, sourceBroker.port)
 
+  // the incremental fetch session with the leader, if the leader supports fetch sessions
+  private val fetchSessionHandler =
+    if (fetchRequestVersion >= 2) Some(new FetchSessionHandler(sourceBroker.id)) else None
+
   // we need to include both the broker id and the fetcher id
   // as the metrics tag to avoid metric name conflicts with
   // more than one fetcher thread to the same broker
@@ -196,10 +205,21 @@ class ReplicaFetcherThread(name: String,
   }
 
   protected def fetch(fetchRequest: FetchRequest): Map[TopicAndPartition, PartitionData] = {
-    val clientResponse = sendRequest(ApiKeys.FETCH, Some(fetchRequestVersion), fetchRequest.underlying)
-    new FetchResponse(clientResponse.responseBody).responseData.asScala.map { case (key, value) =>
-      TopicAndPartition(key.topic, key.partition) -> new PartitionData(value)
-    }
+    val clientResponse =
+      try sendRequest(ApiKeys.FETCH, Some(fetchRequestVersion), fetchRequest.underlying)
+      catch {
+        case e: Throwable =>
+          fetchSessionHandler.foreach(_.handleError(e))
+          throw e
+      }
+    val fetchResponse = new FetchResponse(clientResponse.responseBody)
+    // the partitions of a failed fetch session are not read, the next request sends all of them again
+    if (fetchSessionHandler.exists(!_.handleResponse(fetchResponse)))
+      Map.empty
+    else
+      fetchResponse.responseData.asScala.map { case (key, value) =>
+        TopicAndPartition(key.topic, key.partition) -> new PartitionData(value)
+      }
   }
 
   private def sendRequest(apiKey: ApiKeys, apiVersion: Option[Short], request: AbstractRequest): ClientResponse = {
@@ -240,24 +260,40 @@ class ReplicaFetcherThread(name: String,
   }
 
   protected def buildFetchRequest(partitionMap: Map[TopicAndPartition, PartitionFetchState]): FetchRequest = {
-    val requestMap = mutable.Map.empty[TopicPartition, JFetchRequest.PartitionData]
+    val requestMap = new util.LinkedHashMap[TopicPartition, JFetchRequest.PartitionData]
 
     partitionMap.foreach { case ((TopicAndPartition(topic, partition), partitionFetchState)) =>
       if (partitionFetchState.isActive)
-        requestMap(new TopicPartition(topic, partition)) = new JFetchRequest.PartitionData(partitionFetchState.offset, fetchSize)
+        requestMap.put(new TopicPartition(topic, partition), new JFetchRequest.PartitionData(partitionFetchState.offset, fetchSize))
     }
 
-    new FetchRequest(new JFetchRequest(replicaId, maxWait, minBytes, requestMap.asJava))
+    fetchSessionHandler match {
+      case Some(sessionHandler) =>
+        val builder = sessionHandler.newBuilder()
+        requestMap.asScala.foreach { case (topicPartition, partitionData) => builder.add(topicPartition, partitionData) }
+        val data = builder.build()
+        new FetchRequest(new JFetchRequest(fetchRequestVersion, replicaId, maxWait, minBytes, data.toSend, data.sessionId,
+          data.epoch, data.toForget), data.sessionPartitions)
+      case None =>
+        new FetchRequest(new JFetchRequest(fetchRequestVersion, replicaId, maxWait, minBytes, requestMap,
+          JFetchRequest.INVALID_SESSION_ID, JFetchRequest.FINAL_EPOCH, Collections.emptyList[TopicPartition]), requestMap)
+    }
   }
 
 }
 
 object ReplicaFetcherThread {
 
-  private[server] class FetchRequest(val underlying: JFetchRequest) extends AbstractFetcherThread.FetchRequest {
-    def isEmpty: Boolean = underlying.fetchData.isEmpty
+  /**
+   * A fetch request and all the partitions it fetches, which include the partitions of its fetch session that the
+   * request does not carry
+   */
+  private[server] class FetchRequest(val underlying: JFetchRequest,
+                                     val fetchData: util.Map[TopicPartition, JFetchRequest.PartitionData])
+    extends AbstractFetcherThread.FetchRequest {
+    def isEmpty: Boolean = fetchData.isEmpty
     def offset(topicAndPartition: TopicAndPartition): Long =
-      underlying.fetchData.asScala(new TopicPartition(topicAndPartition.topic, topicAndPartition.partition)).offset
+      fetchData.asScala(new TopicPartition(topicAndPartition.topic, topicAndPartition.partition)).offset
   }
 
   private[server] class PartitionData(val underlying: FetchResponse.PartitionData) extends AbstractFetcherThread.PartitionData {
@@ -91,6 +91,9 @@ object DumpLogSegments {
       } else if(file.getName.endsWith(Log.IndexFileSuffix)) {
         println("Dumping " + file)
         dumpIndex(file, verifyOnly, misMatchesForIndexFilesMap, maxMessageSize)
+      } else if(file.getName.endsWith(Log.TimeIndexFileSuffix)) {
+        println("Dumping " + file)
+        dumpTimeIndex(file, verifyOnly)
       }
     }
     misMatchesForIndexFilesMap.foreach {
@@ -119,7 +122,7 @@ object DumpLogSegments {
     val startOffset = file.getName().split("\\.")(0).toLong
     val logFile = new File(file.getAbsoluteFile.getParent, file.getName.split("\\.")(0) + Log.LogFileSuffix)
     val messageSet = new FileMessageSet(logFile, false)
-    val index = new OffsetIndex(file = file, baseOffset = startOffset)
+    val index = new OffsetIndex(file, startOffset)
     for(i <- 0 until index.entries) {
       val entry = index.entry(i)
       val partialFileMessageSet: FileMessageSet = messageSet.read(entry.position, maxMessageSize)
@@ -137,6 +140,20 @@ object DumpLogSegments {
     }
   }
 
+  /* print out the contents of the time index */
+  private def dumpTimeIndex(file: File, verifyOnly: Boolean) {
+    val startOffset = file.getName().split("\\.")(0).toLong
+    val timeIndex = new TimeIndex(file, startOffset)
+    for(i <- 0 until timeIndex.entries) {
+      val entry = timeIndex.entry(i)
+      // since it is a sparse file, in the event of a crash there may be many zero entries, stop if we see one
+      if(entry.timestamp == 0 && i > 0)
+        return
+      if (!verifyOnly)
+        println("timestamp: %d offset: %d".format(entry.timestamp, entry.offset))
+    }
+  }
+
   private trait MessageParser[K, V] {
     def parse(message: Message): (Option[K], Option[V])
   }
@@ -251,6 +268,8 @@ object DumpLogSegments {
         print("offset: " + messageAndOffset.offset + " position: " + validBytes + " isvalid: " + msg.isValid +
               " payloadsize: " + msg.payloadSize + " magic: " + msg.magic +
               " compresscodec: " + msg.compressionCodec + " crc: " + msg.checksum)
+        if(msg.magic >= Message.MagicValue_V2)
+          print(" " + msg.timestampType + ": " + msg.timestamp)
         if(msg.hasKey)
           print(" keysize: " + msg.keySize)
         if(printContents) {
@@ -274,7 +293,7 @@ object DumpLogSegments {
         case NoCompressionCodec =>
           getSingleMessageIterator(messageAndOffset)
         case _ =>
-          ByteBufferMessageSet.deepIterator(message)
+          ByteBufferMessageSet.deepIterator(messageAndOffset)
       }
     } else
       getSingleMessageIterator(messageAndOffset)
@@ -20,10 +20,20 @@ import java.util.concurrent.{DelayQueue, ExecutorService, TimeUnit}
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.locks.ReentrantReadWriteLock
 
-import kafka.utils.threadsafe
+import kafka.utils.{Logging, threadsafe}
 
+import scala.collection.mutable.ArrayBuffer
+
+/*
+ * With batched expiration, the tasks that expire in a clock advance are handed to the executor as a single batch once
+ * all the due buckets have been drained, instead of being submitted one by one while the buckets are being drained.
+ */
 @threadsafe
-class Timer(taskExecutor: ExecutorService, tickMs: Long = 1, wheelSize: Int = 20, startMs: Long = System.currentTimeMillis) {
+class Timer(taskExecutor: ExecutorService,
+            tickMs: Long = 1,
+            wheelSize: Int = 20,
+            startMs: Long = System.currentTimeMillis,
+            batchExpiration: Boolean = false) extends Logging {
 
   private[this] val delayQueue = new DelayQueue[TimerTaskList]()
   private[this] val taskCounter = new AtomicInteger(0)
@@ -59,6 +69,17 @@ class Timer(taskExecutor: ExecutorService, tickMs: Long = 1, wheelSize: Int = 20
 
   private[this] val reinsert = (timerTaskEntry: TimerTaskEntry) => addTimerTaskEntry(timerTaskEntry)
 
+  // the tasks expired by the current clock advance in batched expiration mode, only accessed under the write lock
+  private[this] val expiredTasks = new ArrayBuffer[TimerTask]()
+
+  private[this] val reinsertOrCollect = (timerTaskEntry: TimerTaskEntry) => {
+    if (!timingWheel.add(timerTaskEntry)) {
+      // Already expired or cancelled
+      if (!timerTaskEntry.cancelled)
+        expiredTasks += timerTaskEntry.timerTask
+    }
+  }
+
   /*
    * Advances the clock if there is an expired bucket. If there isn't any expired bucket when called,
    * waits up to timeoutMs before giving up.
@@ -66,16 +87,24 @@ class Timer(taskExecutor: ExecutorService, tickMs: Long = 1, wheelSize: Int = 20
   def advanceClock(timeoutMs: Long): Boolean = {
     var bucket = delayQueue.poll(timeoutMs, TimeUnit.MILLISECONDS)
     if (bucket != null) {
+      var expired: Array[TimerTask] = null
       writeLock.lock()
       try {
+        val flush = if (batchExpiration) reinsertOrCollect else reinsert
         while (bucket != null) {
           timingWheel.advanceClock(bucket.getExpiration())
-          bucket.flush(reinsert)
+          bucket.flush(flush)
           bucket = delayQueue.poll()
         }
+        if (expiredTasks.nonEmpty) {
+          expired = expiredTasks.toArray
+          expiredTasks.clear()
+        }
       } finally {
         writeLock.unlock()
       }
+      if (expired != null)
+        taskExecutor.submit(new ExpiredTaskBatch(expired))
       true
     } else {
       false
@@ -83,5 +112,17 @@ class Timer(taskExecutor: ExecutorService, tickMs: Long = 1, wheelSize: Int = 20
   }
 
   def size(): Int = taskCounter.get
+
+  private class ExpiredTaskBatch(tasks: Array[TimerTask]) extends Runnable {
+    override def run(): Unit = {
+      tasks.foreach { task =>
+        // a failed task must not keep the rest of the batch from running
+        try task.run()
+        catch {
+          case e: Throwable => error("Error while running expired timer task", e)
+        }
+      }
+    }
+  }
 }
 
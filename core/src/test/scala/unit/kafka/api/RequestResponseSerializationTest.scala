@@ -130,6 +130,11 @@ object SerializationTestUtils {
     new FetchRequest(requestInfo = requestInfos)
   }
 
+  def createTestIncrementalFetchRequest: FetchRequest = {
+    new FetchRequest(versionId = 2, requestInfo = requestInfos, sessionId = 123, sessionEpoch = 5,
+      forgotten = Seq(TopicAndPartition(topic1, 1), TopicAndPartition(topic2, 0)))
+  }
+
   def createTestFetchResponse: FetchResponse = {
     FetchResponse(1, topicDataFetchResponse)
   }
@@ -231,6 +236,7 @@ class RequestResponseSerializationTest extends JUnitSuite {
   private val producerRequest = SerializationTestUtils.createTestProducerRequest
   private val producerResponse = SerializationTestUtils.createTestProducerResponse
   private val fetchRequest = SerializationTestUtils.createTestFetchRequest
+  private val incrementalFetchRequest = SerializationTestUtils.createTestIncrementalFetchRequest
   private val offsetRequest = SerializationTestUtils.createTestOffsetRequest
   private val offsetResponse = SerializationTestUtils.createTestOffsetResponse
   private val topicMetadataRequest = SerializationTestUtils.createTestTopicMetadataRequest
@@ -254,7 +260,7 @@ class RequestResponseSerializationTest extends JUnitSuite {
 
     val requestsAndResponses =
       collection.immutable.Seq(producerRequest, producerResponse,
-                               fetchRequest, offsetRequest, offsetResponse, topicMetadataRequest,
+                               fetchRequest, incrementalFetchRequest, offsetRequest, offsetResponse, topicMetadataRequest,
                                topicMetadataResponse,
                                offsetCommitRequestV0, offsetCommitRequestV1, offsetCommitRequestV2,
                                offsetCommitResponse, offsetFetchRequest, offsetFetchResponse,
@@ -307,5 +313,12 @@ class RequestResponseSerializationTest extends JUnitSuite {
 
     // new response should have 4 bytes more than the old response since delayTime is an INT32
     assertEquals(oldClientResponse.sizeInBytes + 4, newClientResponse.sizeInBytes)
+
+    val sessionClientResponse = FetchResponse(1, Map(
+      TopicAndPartition("t1", 0) -> new FetchResponsePartitionData(messages = new ByteBufferMessageSet(new Message("first message".getBytes)))
+    ), 2, 100, Errors.NONE.code, 123)
+
+    // the session response has 6 bytes more than the new response for the error code and the session id
+    assertEquals(newClientResponse.sizeInBytes + 6, sessionClientResponse.sizeInBytes)
   }
 }
@@ -107,6 +107,74 @@ class CleanerTest extends JUnitSuite {
                (0 until leo.toInt by 2).forall(!keys.contains(_)))
   }
 
+  /**
+   * Test that cleaning the segment groups of a log in parallel retains the latest message of each key
+   */
+  @Test
+  def testCleaningInParallel() {
+    val cleaner = makeCleaner(Int.MaxValue, numWorkers = 3)
+    try {
+      val log = makeLog(config = LogConfig.fromProps(logConfig.originals, new Properties()))
+
+      // append messages with the keys 0 through N, then update every other key, until there are many segment groups
+      while(log.numberOfSegments < 6)
+        log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+      val leo = log.logEndOffset.toInt
+      for(key <- 0 until leo by 2)
+        log.append(message(key, key + 1))
+      val updated = log.logEndOffset.toInt
+      while(log.numberOfSegments < 12)
+        log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+      val messagesBefore = log.activeSegment.baseOffset
+
+      cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+      val keys = keysInLog(log).toSeq
+      assertEquals("Each key should remain exactly once.", keys.distinct, keys)
+      assertEquals("No key should be lost.", ((0 until leo) ++ (updated until log.logEndOffset.toInt)).toSet, keys.toSet)
+      assertEquals("The stats of the workers should add up.", messagesBefore, cleaner.stats.messagesRead)
+      assertEquals(messagesBefore, cleaner.workers.map(_.stats.messagesRead).sum)
+    } finally {
+      cleaner.shutdown()
+    }
+  }
+
+  /**
+   * Test that the I/O buffers of a cleaner are split with its workers rather than allocated again for each of them
+   */
+  @Test
+  def testIoBuffersAreSplitWithWorkers() {
+    val cleaner = makeCleaner(Int.MaxValue, numWorkers = 3)
+    try {
+      assertEquals(16*1024, cleaner.bufferSize)
+      assertEquals(Seq.fill(3)(16*1024), cleaner.workers.map(_.bufferSize))
+    } finally {
+      cleaner.shutdown()
+    }
+    assertEquals(64*1024, makeCleaner(Int.MaxValue).bufferSize)
+  }
+
+  /**
+   * Test that the failure of a worker cleaning a segment group in parallel is thrown by the cleaning
+   */
+  @Test
+  def testCleaningInParallelWithFailure() {
+    def failOnWorker(topicAndPartition: TopicAndPartition) {
+      if (Thread.currentThread.getName.endsWith("-worker-0"))
+        throw new IllegalStateException("Worker failed")
+    }
+    val cleaner = makeCleaner(Int.MaxValue, failOnWorker, numWorkers = 2)
+    try {
+      val log = makeLog(config = LogConfig.fromProps(logConfig.originals, new Properties()))
+      while(log.numberOfSegments < 6)
+        log.append(message(log.logEndOffset.toInt, log.logEndOffset.toInt))
+      intercept[IllegalStateException] {
+        cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+      }
+    } finally {
+      cleaner.shutdown()
+    }
+  }
+
   @Test
   def testLogToClean: Unit = {
     // create a log with small segment size
@@ -319,6 +387,72 @@ class CleanerTest extends JUnitSuite {
     checkRange(map, segments(1).baseOffset.toInt, segments(3).baseOffset.toInt)
     checkRange(map, segments(3).baseOffset.toInt, log.logEndOffset.toInt)
   }
+
+  @Test
+  def testBuildOffsetMapRetainingEntries() {
+    val log = makeLog()
+    val cleaner = makeCleaner(Int.MaxValue)
+    writeToLog(log, (0 until 500) zip (0 until 500))
+    val segments = log.logSegments.toSeq
+    val map = new FakeOffsetMap(1000)
+    cleaner.buildOffsetMap(log, 0, segments(1).baseOffset, map)
+
+    // the entries of the last cleaning are kept while the next dirty segments fit with them
+    cleaner.buildOffsetMap(log, segments(1).baseOffset, segments(3).baseOffset, map, retainEntries = true)
+    assertEquals("Should keep the entries of the last cleaning.", segments(3).baseOffset, map.size)
+    for(i <- 0 until segments(3).baseOffset.toInt)
+      assertEquals("Should find all the keys", i.toLong, map.get(key(i)))
+
+    // a map that cannot fit the next dirty segment with the entries of the last cleaning is cleared
+    val smallMap = new FakeOffsetMap((segments(2).baseOffset * 4 / 3 + 2).toInt)
+    cleaner.buildOffsetMap(log, 0, segments(1).baseOffset, smallMap)
+    cleaner.buildOffsetMap(log, segments(1).baseOffset, segments(2).baseOffset, smallMap, retainEntries = true)
+    assertEquals("Should keep the entries of the last cleaning.", segments(2).baseOffset, smallMap.size)
+    cleaner.buildOffsetMap(log, segments(2).baseOffset, segments(3).baseOffset, smallMap, retainEntries = true)
+    assertEquals("Should drop the entries of the last cleaning.", -1L, smallMap.get(key(0)))
+    assertEquals(segments(3).baseOffset - segments(2).baseOffset, smallMap.size)
+  }
+
+  /**
+   * Test that the offset map is only kept for the next cleaning of a log if it continues where the last cleaning ended
+   */
+  @Test
+  def testCleaningRetainsOffsetMap() {
+    val cleaner = makeCleaner(Int.MaxValue)
+    val map = cleaner.offsetMap.asInstanceOf[FakeOffsetMap]
+    val log = makeLog()
+    writeToLog(log, (0 until 100) zip (0 until 100))
+    val endOffset = cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+    writeToLog(log, (100 until 200) zip (100 until 200))
+
+    cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, endOffset))
+    assertEquals("The next cleaning should keep the entries of the last one.", 0L, map.get(key(0)))
+
+    // the cleaning of a log that was truncated starts over
+    cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+    val restartOffset = log.logSegments.toSeq(1).baseOffset
+    cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, restartOffset))
+    assertEquals("A cleaning from another offset should drop the entries.", -1L, map.get(key(0)))
+  }
+
+  /**
+   * Test that a cleaning that fills the offset map does not keep it, the next cleaning indexes the backlog from an
+   * empty map
+   */
+  @Test
+  def testCleaningWithBacklogDropsOffsetMap() {
+    val log = makeLog()
+    writeToLog(log, (0 until 500) zip (0 until 500))
+    val segments = log.logSegments.toSeq
+    // the map fits the first two segments only
+    val cleaner = makeCleaner((segments(2).baseOffset * 4 / 3 + 2).toInt)
+    val map = cleaner.offsetMap.asInstanceOf[FakeOffsetMap]
+    val endOffset = cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, 0))
+    assertTrue("The cleaning should leave a backlog.", endOffset < log.activeSegment.baseOffset)
+
+    cleaner.clean(LogToClean(TopicAndPartition("test", 0), log, endOffset))
+    assertEquals("The next cleaning should drop the entries of the last one.", -1L, map.get(key(0)))
+  }
   
   
   /**
@@ -429,7 +563,7 @@ class CleanerTest extends JUnitSuite {
 
   def noOpCheckDone(topicAndPartition: TopicAndPartition) { /* do nothing */  }
 
-  def makeCleaner(capacity: Int, checkDone: (TopicAndPartition) => Unit = noOpCheckDone) =
+  def makeCleaner(capacity: Int, checkDone: (TopicAndPartition) => Unit = noOpCheckDone, numWorkers: Int = 1) =
     new Cleaner(id = 0, 
                 offsetMap = new FakeOffsetMap(capacity), 
                 ioBufferSize = 64*1024, 
@@ -437,7 +571,8 @@ class CleanerTest extends JUnitSuite {
                 dupBufferLoadFactor = 0.75,                
                 throttler = throttler, 
                 time = time,
-                checkDone = checkDone )
+                checkDone = checkDone,
+                numWorkers = numWorkers)
   
   def writeToLog(log: Log, seq: Iterable[(Int, Int)]): Iterable[Long] = {
     for((key, value) <- seq)
@@ -477,5 +612,7 @@ class FakeOffsetMap(val slots: Int) extends OffsetMap {
   def clear() = map.clear()
   
   def size: Int = map.size
+
+  def readOnlyView: OffsetMap = this
   
 }
\ No newline at end of file
@@ -124,6 +124,26 @@ class FileMessageSetTest extends BaseMessageSetTestCases {
                  messageSet.searchFor(50,  position))
   }
   
+  /**
+   * Test searching and iterating over more messages than the files are read ahead by at once, with messages larger
+   * than the read ahead
+   */
+  @Test
+  def testSearchAndIterationAcrossReadAhead() {
+    val sizes = (0 until 2000).map(i => if (i % 500 == 499) 100 * 1024 else i % 200)
+    val messages = sizes.map(size => new Message(new Array[Byte](size)))
+    val messageSet = createMessageSet(messages)
+    checkEquals(messages.iterator, messageSet.map(m => m.message).iterator)
+
+    var position = 0
+    for ((message, offset) <- messages.zipWithIndex) {
+      assertEquals(OffsetPosition(offset, position), messageSet.searchFor(offset, 0))
+      assertEquals(OffsetPosition(offset, position), messageSet.searchFor(offset, position))
+      position += MessageSet.entrySize(message)
+    }
+    assertNull(messageSet.searchFor(messages.size, 0))
+  }
+
   /**
    * Test that the message set iterator obeys start and end slicing
    */
@@ -21,6 +21,7 @@ import java.io._
 import java.util.Properties
 
 import kafka.common._
+import kafka.message.Message
 import kafka.server.OffsetCheckpoint
 import kafka.utils._
 import org.apache.kafka.common.errors.OffsetOutOfRangeException
@@ -99,7 +100,7 @@ class LogManagerTest {
     time.sleep(maxLogAgeMs + 1)
     assertEquals("Now there should only be only one segment in the index.", 1, log.numberOfSegments)
     time.sleep(log.config.fileDeleteDelayMs + 1)
-    assertEquals("Files should have been deleted", log.numberOfSegments * 2, log.dir.list.length)
+    assertEquals("Files should have been deleted", log.numberOfSegments * 3, log.dir.list.length)
     assertEquals("Should get empty fetch off new log.", 0, log.read(offset+1, 1024).messageSet.sizeInBytes)
 
     try {
@@ -122,6 +123,7 @@ class LogManagerTest {
     val logProps = new Properties()
     logProps.put(LogConfig.SegmentBytesProp, 10 * setSize: java.lang.Integer)
     logProps.put(LogConfig.RetentionBytesProp, 5L * 10L * setSize + 10L: java.lang.Long)
+    logProps.put(LogConfig.MessageFormatVersionProp, Message.CurrentMagicValue.toInt: java.lang.Integer)
     val config = LogConfig.fromProps(logConfig.originals, logProps)
 
     logManager = createLogManager()
@@ -145,7 +147,7 @@ class LogManagerTest {
     time.sleep(logManager.InitialTaskDelayMs)
     assertEquals("Now there should be exactly 6 segments", 6, log.numberOfSegments)
     time.sleep(log.config.fileDeleteDelayMs + 1)
-    assertEquals("Files should have been deleted", log.numberOfSegments * 2, log.dir.list.length)
+    assertEquals("Files should have been deleted", log.numberOfSegments * 3, log.dir.list.length)
     assertEquals("Should get empty fetch off new log.", 0, log.read(offset + 1, 1024).messageSet.sizeInBytes)
     try {
       log.read(0, 1024)
@@ -248,6 +250,55 @@ class LogManagerTest {
     verifyCheckpointRecovery(Seq(TopicAndPartition("test-a", 1)), logManager)
   }
 
+  /**
+   * Test that the segments of a log that was shut down cleanly are loaded from their summaries without reading
+   * their indexes
+   */
+  @Test
+  def testSegmentSummariesOnRestart() {
+    val log = logManager.createLog(TopicAndPartition(name, 0), logConfig)
+    for(i <- 0 until 200)
+      log.append(TestUtils.singleMessageSet("test".getBytes()))
+    assertTrue("There should be more than one segment", log.numberOfSegments > 1)
+    val logEndOffset = log.logEndOffset
+    val largestTimestamps = log.logSegments.map(_.largestTimestamp).toList
+    logManager.shutdown()
+
+    val summaries = new LogSegmentSummaryCheckpoint(new File(logDir, logManager.SegmentSummaryCheckpointFile)).read()
+    assertEquals("Every segment should be summarized", log.numberOfSegments, summaries(TopicAndPartition(name, 0)).size)
+
+    logManager = createLogManager()
+    val reloaded = logManager.getLog(TopicAndPartition(name, 0)).get
+    assertEquals("The log end offset should not change", logEndOffset, reloaded.logEndOffset)
+    for(segment <- reloaded.logSegments.toSeq.dropRight(1)) {
+      assertFalse("The index of an inactive segment should not be mapped", segment.index.isMapped)
+      assertFalse("The time index of an inactive segment should not be mapped", segment.timeIndex.isMapped)
+    }
+    assertEquals("The largest timestamps should be taken from the summaries", largestTimestamps,
+      reloaded.logSegments.map(_.largestTimestamp).toList)
+    assertEquals("Reads should map the index", 0L, reloaded.read(0, 1024).messageSet.head.offset)
+  }
+
+  /**
+   * Test that a segment summary whose checksum does not match is skipped
+   */
+  @Test
+  def testCorruptSegmentSummaryIsSkipped() {
+    val checkpoint = new LogSegmentSummaryCheckpoint(new File(logDir, logManager.SegmentSummaryCheckpointFile))
+    val tp = TopicAndPartition(name, 0)
+    checkpoint.write(Map(tp -> Seq(LogSegmentSummary(0L, 1024L, 1000L, 2, 1, 500L, 10L),
+                                   LogSegmentSummary(20L, 1024L, 1000L, 2, 1, 600L, 30L))))
+    val reader = new BufferedReader(new FileReader(checkpoint.file))
+    val lines = try Iterator.continually(reader.readLine()).takeWhile(_ != null).toList finally reader.close()
+    val writer = new PrintWriter(checkpoint.file)
+    try {
+      // corrupt the largest timestamp of the second segment
+      lines.foreach(line => writer.println(if (line.startsWith(name + " 0 20 ")) line.replace(" 600 ", " 700 ") else line))
+    } finally {
+      writer.close()
+    }
+    assertEquals(Map(tp -> Map(0L -> LogSegmentSummary(0L, 1024L, 1000L, 2, 1, 500L, 10L))), checkpoint.read())
+  }
 
   private def verifyCheckpointRecovery(topicAndPartitions: Seq[TopicAndPartition],
                                        logManager: LogManager) {
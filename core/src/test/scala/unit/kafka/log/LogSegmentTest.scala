@@ -35,7 +35,10 @@ class LogSegmentTest {
     val idxFile = TestUtils.tempFile()
     idxFile.delete()
     val idx = new OffsetIndex(idxFile, offset, 1000)
-    val seg = new LogSegment(ms, idx, offset, 10, 0, SystemTime)
+    val timeIdxFile = TestUtils.tempFile()
+    timeIdxFile.delete()
+    val timeIdx = new TimeIndex(timeIdxFile, offset, 1500)
+    val seg = new LogSegment(ms, idx, timeIdx, offset, 10, 0, SystemTime)
     segments += seg
     seg
   }
@@ -46,11 +49,19 @@ class LogSegmentTest {
                              offsetCounter = new AtomicLong(offset), 
                              messages = messages.map(s => new Message(s.getBytes)):_*)
   }
+
+  /* create a ByteBufferMessageSet for the given timestamped messages starting from the given offset */
+  def timestampedMessages(offset: Long, messages: (Long, String)*): ByteBufferMessageSet = {
+    new ByteBufferMessageSet(compressionCodec = NoCompressionCodec,
+                             offsetCounter = new AtomicLong(offset),
+                             messages = messages.map { case (timestamp, s) => new Message(s.getBytes, null, timestamp) }:_*)
+  }
   
   @After
   def teardown() {
     for(seg <- segments) {
       seg.index.delete()
+      seg.timeIndex.delete()
       seg.log.delete()
     }
   }
@@ -73,7 +84,7 @@ class LogSegmentTest {
   def testReadBeforeFirstOffset() {
     val seg = createSegment(40)
     val ms = messages(50, "hello", "there", "little", "bee")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val read = seg.read(startOffset = 41, maxSize = 300, maxOffset = None).messageSet
     assertEquals(ms.toList, read.toList)
   }
@@ -87,7 +98,7 @@ class LogSegmentTest {
     val baseOffset = 50
     val seg = createSegment(baseOffset)
     val ms = messages(baseOffset, "hello", "there", "beautiful")
-    seg.append(baseOffset, ms)
+    seg.append(baseOffset, Message.NoTimestamp, -1L, ms)
     def validate(offset: Long) = 
       assertEquals(ms.filter(_.offset == offset).toList, 
                    seg.read(startOffset = offset, maxSize = 1024, maxOffset = Some(offset+1)).messageSet.toList)
@@ -103,7 +114,7 @@ class LogSegmentTest {
   def testReadAfterLast() {
     val seg = createSegment(40)
     val ms = messages(50, "hello", "there")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val read = seg.read(startOffset = 52, maxSize = 200, maxOffset = None)
     assertNull("Read beyond the last offset in the segment should give null", read)
   }
@@ -116,9 +127,9 @@ class LogSegmentTest {
   def testReadFromGap() {
     val seg = createSegment(40)
     val ms = messages(50, "hello", "there")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val ms2 = messages(60, "alpha", "beta")
-    seg.append(60, ms2)
+    seg.append(60, Message.NoTimestamp, -1L, ms2)
     val read = seg.read(startOffset = 55, maxSize = 200, maxOffset = None)
     assertEquals(ms2.toList, read.messageSet.toList)
   }
@@ -133,9 +144,9 @@ class LogSegmentTest {
     var offset = 40
     for(i <- 0 until 30) {
       val ms1 = messages(offset, "hello")
-      seg.append(offset, ms1)
+      seg.append(offset, Message.NoTimestamp, -1L, ms1)
       val ms2 = messages(offset+1, "hello")
-      seg.append(offset+1, ms2)
+      seg.append(offset+1, Message.NoTimestamp, -1L, ms2)
       // check that we can read back both messages
       val read = seg.read(offset, None, 10000)
       assertEquals(List(ms1.head, ms2.head), read.messageSet.toList)
@@ -155,10 +166,10 @@ class LogSegmentTest {
   def testTruncateFull() {
     // test the case where we fully truncate the log
     val seg = createSegment(40)
-    seg.append(40, messages(40, "hello", "there"))
+    seg.append(40, Message.NoTimestamp, -1L, messages(40, "hello", "there"))
     seg.truncateTo(0)
     assertNull("Segment should be empty.", seg.read(0, None, 1024))
-    seg.append(40, messages(40, "hello", "there"))    
+    seg.append(40, Message.NoTimestamp, -1L, messages(40, "hello", "there"))    
   }
   
   /**
@@ -168,7 +179,7 @@ class LogSegmentTest {
   def testNextOffsetCalculation() {
     val seg = createSegment(40)
     assertEquals(40, seg.nextOffset)
-    seg.append(50, messages(50, "hello", "there", "you"))
+    seg.append(50, Message.NoTimestamp, -1L, messages(50, "hello", "there", "you"))
     assertEquals(53, seg.nextOffset())
   }
   
@@ -180,11 +191,14 @@ class LogSegmentTest {
     val seg = createSegment(40)
     val logFile = seg.log.file
     val indexFile = seg.index.file
+    val timeIndexFile = seg.timeIndex.file
     seg.changeFileSuffixes("", ".deleted")
     assertEquals(logFile.getAbsolutePath + ".deleted", seg.log.file.getAbsolutePath)
     assertEquals(indexFile.getAbsolutePath + ".deleted", seg.index.file.getAbsolutePath)
+    assertEquals(timeIndexFile.getAbsolutePath + ".deleted", seg.timeIndex.file.getAbsolutePath)
     assertTrue(seg.log.file.exists)
     assertTrue(seg.index.file.exists)
+    assertTrue(seg.timeIndex.file.exists)
   }
   
   /**
@@ -195,7 +209,7 @@ class LogSegmentTest {
   def testRecoveryFixesCorruptIndex() {
     val seg = createSegment(0)
     for(i <- 0 until 100)
-      seg.append(i, messages(i, i.toString))
+      seg.append(i, Message.NoTimestamp, -1L, messages(i, i.toString))
     val indexFile = seg.index.file
     TestUtils.writeNonsenseToFile(indexFile, 5, indexFile.length.toInt)
     seg.recover(64*1024)
@@ -203,6 +217,43 @@ class LogSegmentTest {
       assertEquals(i, seg.read(i, Some(i+1), 1024).messageSet.head.offset)
   }
   
+  /**
+   * Create a segment with timestamped data. Then corrupt the time index,
+   * and recover the segment, the timestamps should all be found again.
+   */
+  @Test
+  def testRecoveryFixesCorruptTimeIndex() {
+    val seg = createSegment(0)
+    for(i <- 0 until 100)
+      seg.append(i, i * 10, i, timestampedMessages(i, (i * 10L, i.toString)))
+    val timeIndexFile = seg.timeIndex.file
+    TestUtils.writeNonsenseToFile(timeIndexFile, 5, timeIndexFile.length.toInt)
+    seg.recover(64*1024)
+    assertTrue("The time index should have been rebuilt", seg.timeIndex.entries > 0)
+    for(i <- 0 until 100)
+      assertEquals(Some(i.toLong), seg.findOffsetByTimestamp(i * 10 - 5))
+  }
+
+  /**
+   * The offset found for a timestamp is that of the first message with a timestamp no smaller than it,
+   * even if the timestamps of the messages are not in order.
+   */
+  @Test
+  def testFindOffsetByTimestamp() {
+    val seg = createSegment(40)
+    assertEquals("A segment without timestamps is matched as a whole", Some(40L), seg.findOffsetByTimestamp(100))
+    seg.append(40, 300, 41, timestampedMessages(40, (100L, "hello"), (300L, "there")))
+    seg.append(42, 200, 42, timestampedMessages(42, (200L, "little")))
+    seg.append(43, 500, 43, timestampedMessages(43, (500L, "bee")))
+    assertEquals(500L, seg.largestTimestamp)
+    assertEquals(Some(40L), seg.findOffsetByTimestamp(50))
+    assertEquals(Some(40L), seg.findOffsetByTimestamp(100))
+    assertEquals(Some(41L), seg.findOffsetByTimestamp(101))
+    assertEquals(Some(41L), seg.findOffsetByTimestamp(300))
+    assertEquals(Some(43L), seg.findOffsetByTimestamp(301))
+    assertEquals(None, seg.findOffsetByTimestamp(501))
+  }
+
   /**
    * Randomly corrupt a log a number of times and attempt recovery.
    */
@@ -212,7 +263,7 @@ class LogSegmentTest {
     for(iteration <- 0 until 10) {
       val seg = createSegment(0)
       for(i <- 0 until messagesAppended)
-        seg.append(i, messages(i, i.toString))
+        seg.append(i, Message.NoTimestamp, -1L, messages(i, i.toString))
       val offsetToBeginCorruption = TestUtils.random.nextInt(messagesAppended)
       // start corrupting somewhere in the middle of the chosen record all the way to the end
       val position = seg.log.searchFor(offsetToBeginCorruption, 0).position + TestUtils.random.nextInt(15)
@@ -236,9 +287,9 @@ class LogSegmentTest {
   def testCreateWithInitFileSizeAppendMessage() {
     val seg = createSegment(40, false, 512*1024*1024, true)
     val ms = messages(50, "hello", "there")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val ms2 = messages(60, "alpha", "beta")
-    seg.append(60, ms2)
+    seg.append(60, Message.NoTimestamp, -1L, ms2)
     val read = seg.read(startOffset = 55, maxSize = 200, maxOffset = None)
     assertEquals(ms2.toList, read.messageSet.toList)
   }
@@ -250,9 +301,9 @@ class LogSegmentTest {
     val seg = new LogSegment(tempDir, 40, 10, 1000, 0, SystemTime, false, 512*1024*1024, true)
 
     val ms = messages(50, "hello", "there")
-    seg.append(50, ms)
+    seg.append(50, Message.NoTimestamp, -1L, ms)
     val ms2 = messages(60, "alpha", "beta")
-    seg.append(60, ms2)
+    seg.append(60, Message.NoTimestamp, -1L, ms2)
     val read = seg.read(startOffset = 55, maxSize = 200, maxOffset = None)
     assertEquals(ms2.toList, read.messageSet.toList)
     val oldSize = seg.log.sizeInBytes()
@@ -132,6 +132,7 @@ class LogTest extends JUnitSuite {
 
     val logProps = new Properties()
     logProps.put(LogConfig.SegmentBytesProp, segmentSize: java.lang.Integer)
+    logProps.put(LogConfig.MessageFormatVersionProp, Message.CurrentMagicValue.toInt: java.lang.Integer)
     // create a log
     val log = new Log(logDir, LogConfig(logProps), recoveryPoint = 0L, time.scheduler, time = time)
     assertEquals("There should be exactly 1 segment.", 1, log.numberOfSegments)
@@ -160,6 +161,7 @@ class LogTest extends JUnitSuite {
   def testAppendAndReadWithSequentialOffsets() {
     val logProps = new Properties()
     logProps.put(LogConfig.SegmentBytesProp, 71: java.lang.Integer)
+    logProps.put(LogConfig.MessageFormatVersionProp, Message.CurrentMagicValue.toInt: java.lang.Integer)
     val log = new Log(logDir, LogConfig(logProps), recoveryPoint = 0L, time.scheduler, time = time)
     val messages = (0 until 100 by 2).map(id => new Message(id.toString.getBytes)).toArray
 
@@ -253,6 +255,7 @@ class LogTest extends JUnitSuite {
     /* create a multipart log with 100 messages */
     val logProps = new Properties()
     logProps.put(LogConfig.SegmentBytesProp, 100: java.lang.Integer)
+    logProps.put(LogConfig.MessageFormatVersionProp, Message.CurrentMagicValue.toInt: java.lang.Integer)
     val log = new Log(logDir, LogConfig(logProps), recoveryPoint = 0L, time.scheduler, time = time)
     val numMessages = 100
     val messageSets = (0 until numMessages).map(i => TestUtils.singleMessageSet(i.toString.getBytes))
@@ -290,7 +293,7 @@ class LogTest extends JUnitSuite {
     log.append(new ByteBufferMessageSet(DefaultCompressionCodec, new Message("hello".getBytes), new Message("there".getBytes)))
     log.append(new ByteBufferMessageSet(DefaultCompressionCodec, new Message("alpha".getBytes), new Message("beta".getBytes)))
 
-    def read(offset: Int) = ByteBufferMessageSet.deepIterator(log.read(offset, 4096).messageSet.head.message)
+    def read(offset: Int) = ByteBufferMessageSet.deepIterator(log.read(offset, 4096).messageSet.head)
 
     /* we should always get the first message in the compressed set when reading any offset in the set */
     assertEquals("Read at offset 0 should produce 0", 0, read(0).next().offset)
@@ -299,6 +302,34 @@ class LogTest extends JUnitSuite {
     assertEquals("Read at offset 3 should produce 2", 2, read(3).next().offset)
   }
 
+  /**
+   * Test that compressed message sets appended in-place with relative inner offsets are read back and recovered with
+   * their absolute offsets.
+   */
+  @Test
+  def testCompressedMessagesWithRelativeOffsets() {
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 100: java.lang.Integer)
+    logProps.put(LogConfig.MessageFormatVersionProp, Message.CurrentMagicValue.toInt: java.lang.Integer)
+    val config = LogConfig(logProps)
+    var log = new Log(logDir, config, recoveryPoint = 0L, time.scheduler, time = time)
+
+    /* append 2 compressed message sets, each with two messages giving offsets 0, 1, 2, 3 */
+    log.append(new ByteBufferMessageSet(GZIPCompressionCodec, new Message("hello".getBytes), new Message("there".getBytes)))
+    log.append(new ByteBufferMessageSet(GZIPCompressionCodec, new Message("alpha".getBytes), new Message("beta".getBytes)))
+    assertEquals("Both message sets should have consumed two offsets", 4L, log.logEndOffset)
+
+    def readOffsets(offset: Int) = ByteBufferMessageSet.deepIterator(log.read(offset, 4096).messageSet.head).map(_.offset).toList
+
+    assertEquals(List(0L, 1L), readOffsets(1))
+    assertEquals(List(2L, 3L), readOffsets(3))
+
+    log.close()
+    log = new Log(logDir, config, recoveryPoint = 0L, time.scheduler, time = time)
+    assertEquals("Recovery should find the same log end offset", 4L, log.logEndOffset)
+    assertEquals(List(2L, 3L), readOffsets(2))
+  }
+
   /**
    * Test garbage collecting old segments
    */
@@ -343,6 +374,7 @@ class LogTest extends JUnitSuite {
     val configSegmentSize = messageSet.sizeInBytes - 1
     val logProps = new Properties()
     logProps.put(LogConfig.SegmentBytesProp, configSegmentSize: java.lang.Integer)
+    logProps.put(LogConfig.MessageFormatVersionProp, Message.CurrentMagicValue.toInt: java.lang.Integer)
     val log = new Log(logDir, LogConfig(logProps), recoveryPoint = 0L, time.scheduler, time = time)
 
     try {
@@ -791,6 +823,42 @@ class LogTest extends JUnitSuite {
     }
   }
 
+  /**
+   * Recover a log with a corrupt segment in the middle while the unflushed segments are recovered in parallel. The
+   * log should end with the corrupt segment, as if the segments had been recovered one after the other.
+   */
+  @Test
+  def testParallelRecoveryOfCorruptSegment() {
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 1000: java.lang.Integer)
+    logProps.put(LogConfig.IndexIntervalBytesProp, 1: java.lang.Integer)
+    val config = LogConfig(logProps)
+    val set = TestUtils.singleMessageSet("test".getBytes())
+    var log = new Log(logDir, config, recoveryPoint = 0L, time.scheduler, time)
+    for(i <- 0 until 200)
+      log.append(set)
+    val segments = log.logSegments.toList
+    assertTrue("There should be more than 3 segments.", segments.size > 3)
+    val corrupt = segments(2)
+    val expectedEndOffset = corrupt.nextOffset
+    val expectedMessages = segments.take(3).flatMap(_.log.iterator.toList)
+    log.close()
+
+    TestUtils.appendNonsenseToFile(corrupt.log.file, TestUtils.random.nextInt(1024) + 1)
+
+    val recoveryPool = new SegmentRecoveryPool(4)
+    try {
+      log = new Log(logDir, config, recoveryPoint = 0L, time.scheduler, time, recoveryPool)
+      assertEquals("The log should end with the corrupt segment.", expectedEndOffset, log.logEndOffset)
+      assertEquals(3, log.numberOfSegments)
+      assertEquals("Messages in the log after recovery should be the same.", expectedMessages,
+        log.logSegments.flatMap(_.log.iterator.toList).toList)
+      assertEquals(0, recoveryPool.segmentsRemaining)
+    } finally {
+      recoveryPool.shutdown()
+    }
+  }
+
   @Test
   def testCleanShutdownFile() {
     // append some messages to create some segments
@@ -34,7 +34,7 @@ class OffsetIndexTest extends JUnitSuite {
   
   @Before
   def setup() {
-    this.idx = new OffsetIndex(file = nonExistantTempFile(), baseOffset = 45L, maxIndexSize = 30 * 8)
+    this.idx = new OffsetIndex(nonExistantTempFile(), 45L, 30 * 8)
   }
   
   @After
@@ -81,6 +81,27 @@ class OffsetIndexTest extends JUnitSuite {
     assertEquals(OffsetPosition(idx.baseOffset + idx.maxEntries, idx.maxEntries - 1), idx.lookup(idx.baseOffset + idx.maxEntries))
   }
   
+  @Test
+  def lookupInAndBeforeWarmSection() {
+    val index = new OffsetIndex(nonExistantTempFile(), 0L, 3000 * 8)
+    try {
+      for(i <- 0 until index.maxEntries)
+        index.append(2 * i + 1, 10 * i)
+      // the last 1024 entries are searched first, the lookups before them search the rest of the index
+      for(offset <- Seq(0L, 1L, 2L, 1000L, 1951L, 1952L, 1953L, 2 * 1976L, 2 * 1976L + 1, 5998L, 5999L, 10000L)) {
+        val expected =
+          if(offset < 1) OffsetPosition(0L, 0)
+          else {
+            val slot = math.min((offset - 1) / 2, index.maxEntries - 1).toInt
+            OffsetPosition(2 * slot + 1, 10 * slot)
+          }
+        assertEquals("Lookup of offset " + offset, expected, index.lookup(offset))
+      }
+    } finally {
+      index.file.delete()
+    }
+  }
+
   @Test
   def appendTooMany() {
     for(i <- 0 until idx.maxEntries) {
@@ -103,7 +124,7 @@ class OffsetIndexTest extends JUnitSuite {
     idx.append(first.offset, first.position)
     idx.append(sec.offset, sec.position)
     idx.close()
-    val idxRo = new OffsetIndex(file = idx.file, baseOffset = idx.baseOffset)
+    val idxRo = new OffsetIndex(idx.file, idx.baseOffset)
     assertEquals(first, idxRo.lookup(first.offset))
     assertEquals(sec, idxRo.lookup(sec.offset))
     assertEquals(sec.offset, idxRo.lastOffset)
@@ -113,7 +134,7 @@ class OffsetIndexTest extends JUnitSuite {
   
   @Test
   def truncate() {
-	val idx = new OffsetIndex(file = nonExistantTempFile(), baseOffset = 0L, maxIndexSize = 10 * 8)
+	val idx = new OffsetIndex(nonExistantTempFile(), 0L, 10 * 8)
 	idx.truncate()
     for(i <- 1 until 10)
       idx.append(i, i)
@@ -144,6 +165,74 @@ class OffsetIndexTest extends JUnitSuite {
     idx.append(0, 0)
   }
   
+  @Test
+  def testMappingCache() {
+    val cache = new IndexMappingCache(2)
+    val indexes = (0 until 3).map { i =>
+      val index = new OffsetIndex(nonExistantTempFile(), i * 100L, 30 * 8)
+      index.append(i * 100L + 1, 10)
+      index.useMappingCache(cache)
+      index
+    }
+    try {
+      assertEquals("Mapped indexes should be counted when they are managed", 3, cache.mappedIndexes)
+      cache.evict()
+      assertEquals("Idle indexes should be unmapped down to the bound", 2, cache.mappedIndexes)
+      assertEquals("An unmapped index should be mapped again on lookup", OffsetPosition(1L, 10), indexes(0).lookup(1L))
+      assertTrue(indexes(0).isMapped)
+      assertEquals("Mapping an index should keep the mapped indexes within the bound", 2, cache.mappedIndexes)
+
+      // an index that is no longer managed stays mapped
+      indexes.foreach(_.useMappingCache(null))
+      assertEquals(0, cache.mappedIndexes)
+      indexes(0).lookup(1L)
+      cache.evict()
+      assertTrue("An index that is not managed should stay mapped", indexes(0).isMapped)
+    } finally {
+      cache.shutdown()
+      indexes.foreach(_.delete())
+    }
+  }
+
+  @Test
+  def testLookupsWhileTheMappingCacheUnmaps() {
+    val cache = new IndexMappingCache(1)
+    val indexes = (0 until 3).map { i =>
+      val index = new OffsetIndex(nonExistantTempFile(), i * 100L, 30 * 8)
+      index.append(i * 100L + 1, 10)
+      index.useMappingCache(cache)
+      index
+    }
+    @volatile var failure: Throwable = null
+    val readers = (0 until 2).map { _ =>
+      new Thread() {
+        override def run() {
+          try {
+            for (n <- 0 until 10000) {
+              val i = n % indexes.size
+              assertEquals(OffsetPosition(i * 100L + 1, 10), indexes(i).lookup(i * 100L + 1))
+            }
+          } catch {
+            case e: Throwable => failure = e
+          }
+        }
+      }
+    }
+    try {
+      readers.foreach(_.start())
+      // the indexes are freed by the eviction of the readers too, the mappings being read are skipped
+      while (readers.exists(_.isAlive))
+        cache.evict()
+      readers.foreach(_.join())
+      assertNull("Lookups should not read a freed mapping", failure)
+      cache.evict()
+      assertEquals("Idle indexes should be unmapped down to the bound", 1, cache.mappedIndexes)
+    } finally {
+      cache.shutdown()
+      indexes.foreach(_.delete())
+    }
+  }
+
   def assertWriteFails[T](message: String, idx: OffsetIndex, offset: Int, klass: Class[T]) {
     try {
       idx.append(offset, 1)
@@ -32,22 +32,63 @@ class OffsetMapTest extends JUnitSuite {
     validateMap(5000)
   }
   
+  @Test
+  def testDirectOffsetMapValidation() {
+    for(hashAlgorithm <- Seq(OffsetMap.Murmur3x64, OffsetMap.Murmur3x128)) {
+      validateMap(10, hashAlgorithm = hashAlgorithm)
+      validateMap(1000, hashAlgorithm = hashAlgorithm)
+      // a full map probes through long runs of entries
+      validateMap(5000, loadFactor = 0.99, hashAlgorithm = hashAlgorithm)
+    }
+  }
+
   @Test
   def testClear() {
-    val map = new SkimpyOffsetMap(4000)
-    for(i <- 0 until 10)
-      map.put(key(i), i)
-    for(i <- 0 until 10)
-      assertEquals(i.toLong, map.get(key(i)))
-    map.clear()
-    for(i <- 0 until 10)
-      assertEquals(map.get(key(i)), -1L)
+    for(hashAlgorithm <- Seq("MD5", OffsetMap.Murmur3x64, OffsetMap.Murmur3x128)) {
+      val map = OffsetMap(4000, hashAlgorithm)
+      for(i <- 0 until 10)
+        map.put(key(i), i)
+      for(i <- 0 until 10)
+        assertEquals(i.toLong, map.get(key(i)))
+      map.clear()
+      for(i <- 0 until 10)
+        assertEquals(map.get(key(i)), -1L)
+    }
+  }
+
+  @Test
+  def testDirectOffsetMapOverwrite() {
+    val map = new DirectOffsetMap(4000, hashBytes = 8)
+    // keys of every length up to two blocks of the hash, starting at a non-zero position
+    val keys = (0 until 40).map(length => ByteBuffer.wrap(("x" * (length + 1)).getBytes, 1, length))
+    keys.zipWithIndex.foreach { case (k, i) => map.put(k, i) }
+    keys.zipWithIndex.foreach { case (k, i) => map.put(k, 100 + i) }
+    assertEquals("Putting a key again should not add an entry", keys.size, map.size)
+    keys.zipWithIndex.foreach { case (k, i) => assertEquals(100L + i, map.get(k)) }
+    assertEquals("Hashing should not move the key", 1, keys(10).position)
   }
   
+  @Test
+  def testReadOnlyView() {
+    for(hashAlgorithm <- Seq("MD5", OffsetMap.Murmur3x64, OffsetMap.Murmur3x128)) {
+      val map = OffsetMap(4000, hashAlgorithm)
+      for(i <- 0 until 10)
+        map.put(key(i), i)
+      val view = map.readOnlyView
+      assertEquals(map.size, view.size)
+      for(i <- 0 until 20)
+        assertEquals(map.get(key(i)), view.get(key(i)))
+      intercept[ReadOnlyBufferException] {
+        view.put(key(20), 20)
+      }
+    }
+  }
+
   def key(key: Int) = ByteBuffer.wrap(key.toString.getBytes)
-  
-  def validateMap(items: Int, loadFactor: Double = 0.5): SkimpyOffsetMap = {
-    val map = new SkimpyOffsetMap((items/loadFactor * 24).toInt)
+
+  def validateMap(items: Int, loadFactor: Double = 0.5, hashAlgorithm: String = "MD5"): OffsetMap = {
+    val bytesPerEntry = if(hashAlgorithm == OffsetMap.Murmur3x64) 16 else 24
+    val map = OffsetMap((items/loadFactor * bytesPerEntry).toInt, hashAlgorithm)
     for(i <- 0 until items)
       map.put(key(i), i)
     var misses = 0
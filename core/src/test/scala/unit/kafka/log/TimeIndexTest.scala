@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io._
+import org.junit.Assert._
+import org.junit._
+import org.scalatest.junit.JUnitSuite
+import kafka.utils.TestUtils
+import kafka.common.InvalidOffsetException
+import kafka.message.Message
+
+class TimeIndexTest extends JUnitSuite {
+
+  var idx: TimeIndex = null
+  val maxEntries = 30
+  val baseOffset = 45L
+
+  @Before
+  def setup() {
+    this.idx = new TimeIndex(nonExistantTempFile(), baseOffset, maxEntries * 12)
+  }
+
+  @After
+  def teardown() {
+    if(this.idx != null)
+      this.idx.file.delete()
+  }
+
+  @Test
+  def testLookUp() {
+    assertEquals("Lookup on empty file", TimestampOffset(Message.NoTimestamp, baseOffset), idx.lookup(100L))
+    // the timestamps are 100, 110, ..., 390 at the offsets 46, 47, ..., 75
+    appendEntries(maxEntries)
+    assertEquals(TimestampOffset(Message.NoTimestamp, baseOffset), idx.lookup(99L))
+    assertEquals(TimestampOffset(100L, 46L), idx.lookup(100L))
+    assertEquals(TimestampOffset(100L, 46L), idx.lookup(109L))
+    assertEquals(TimestampOffset(110L, 47L), idx.lookup(110L))
+    assertEquals(TimestampOffset(380L, 74L), idx.lookup(389L))
+    assertEquals(TimestampOffset(390L, 75L), idx.lookup(390L))
+    assertEquals(TimestampOffset(390L, 75L), idx.lookup(Long.MaxValue))
+  }
+
+  @Test
+  def testMaybeAppendSkipsSmallerTimestamps() {
+    idx.maybeAppend(100L, 50L)
+    idx.maybeAppend(100L, 51L)
+    idx.maybeAppend(90L, 52L)
+    assertEquals("Only growing timestamps should be appended", 1, idx.entries)
+    assertEquals(TimestampOffset(100L, 50L), idx.lastEntry)
+    idx.maybeAppend(101L, 52L)
+    assertEquals(2, idx.entries)
+    assertEquals(TimestampOffset(101L, 52L), idx.lastEntry)
+  }
+
+  @Test
+  def appendTooMany() {
+    appendEntries(maxEntries)
+    try {
+      idx.maybeAppend(10000L, 1000L)
+      fail("Append should fail on a full index")
+    } catch {
+      case e: IllegalArgumentException => // this is good
+    }
+  }
+
+  @Test(expected = classOf[InvalidOffsetException])
+  def appendOutOfOrderOffset() {
+    idx.maybeAppend(100L, 51L)
+    idx.maybeAppend(110L, 50L)
+  }
+
+  @Test
+  def testReopen() {
+    appendEntries(2)
+    idx.close()
+    val idxRo = new TimeIndex(idx.file, idx.baseOffset)
+    assertEquals(2, idxRo.entries)
+    assertEquals(TimestampOffset(110L, 47L), idxRo.lastEntry)
+    assertEquals(TimestampOffset(100L, 46L), idxRo.lookup(105L))
+    idxRo.sanityCheck()
+  }
+
+  @Test
+  def testTruncate() {
+    appendEntries(maxEntries)
+    idx.truncateTo(100L)
+    assertEquals("Index should be unchanged by truncate past the end", maxEntries, idx.entries)
+
+    idx.truncateTo(60L)
+    assertEquals("Index should truncate off the entries from offset 60", 14, idx.entries)
+    assertEquals(TimestampOffset(230L, 59L), idx.lastEntry)
+    idx.maybeAppend(231L, 60L)
+    assertEquals(TimestampOffset(231L, 60L), idx.lastEntry)
+
+    idx.truncateTo(baseOffset)
+    assertEquals("Truncation to the base offset should leave no entries", 0, idx.entries)
+    assertEquals(TimestampOffset(Message.NoTimestamp, baseOffset), idx.lastEntry)
+    idx.maybeAppend(0L, baseOffset)
+    assertEquals(1, idx.entries)
+  }
+
+  @Test
+  def testSanityCheckDetectsZeroEntries() {
+    appendEntries(2)
+    idx.close()
+    // an index resized without being trimmed on a crash ends with zero entries
+    val raf = new RandomAccessFile(idx.file, "rw")
+    try raf.setLength(10 * 12) finally raf.close()
+    val reopened = new TimeIndex(idx.file, idx.baseOffset)
+    try {
+      reopened.sanityCheck()
+      fail("The sanity check should fail on a time index ending with zero entries")
+    } catch {
+      case e: IllegalArgumentException => // this is good
+    }
+  }
+
+  private def appendEntries(numEntries: Int) {
+    for (i <- 1 to numEntries)
+      idx.maybeAppend(90L + i * 10, baseOffset + i)
+  }
+
+  def nonExistantTempFile(): File = {
+    val file = TestUtils.tempFile()
+    file.delete()
+    file
+  }
+}
@@ -22,6 +22,7 @@ import java.util.concurrent.atomic.AtomicLong
 import org.junit.Assert._
 import org.junit.Test
 import kafka.utils.TestUtils
+import org.apache.kafka.common.record.TimestampType
 
 class ByteBufferMessageSetTest extends BaseMessageSetTestCases {
 
@@ -154,6 +155,135 @@ class ByteBufferMessageSetTest extends BaseMessageSetTestCases {
     checkOffsets(compressedMessages.validateMessagesAndAssignOffsets(new AtomicLong(offset), DefaultCompressionCodec, DefaultCompressionCodec), offset)
   }
   
+  @Test
+  def testOffsetAssignmentAfterValidation() {
+    val messages = new ByteBufferMessageSet(NoCompressionCodec,
+                                            new Message("hello".getBytes),
+                                            new Message("there".getBytes),
+                                            new Message("beautiful".getBytes))
+    val compressedMessages = new ByteBufferMessageSet(compressionCodec = DefaultCompressionCodec,
+                                                      offsetCounter = new AtomicLong(0),
+                                                      magicValue = Message.MagicValue_V0,
+                                                      messages = messages.map(_.message).toBuffer:_*)
+    val offset = 1234567
+    val V0 = Message.MagicValue_V0
+
+    // uncompressed messages are rebased in-place regardless of the expected offset
+    val validated = messages.validateMessages(Some(0L), NoCompressionCodec, NoCompressionCodec)
+    assertEquals(3, validated.messageCount)
+    checkOffsets(validated.assignOffsets(new AtomicLong(offset)), offset)
+
+    // compressed messages laid out against the right offset are used as is
+    val expected = compressedMessages.validateMessages(Some(offset.toLong), DefaultCompressionCodec, DefaultCompressionCodec,
+      messageFormatVersion = V0)
+    val counter = new AtomicLong(offset)
+    checkOffsets(expected.assignOffsets(counter), offset)
+    assertEquals(offset + 3, counter.get)
+
+    // compressed messages laid out against the wrong offset or not laid out at all are rebuilt
+    val unexpected = compressedMessages.validateMessages(Some(0L), DefaultCompressionCodec, DefaultCompressionCodec,
+      messageFormatVersion = V0)
+    checkOffsets(unexpected.assignOffsets(new AtomicLong(offset)), offset)
+    val deferred = compressedMessages.validateMessages(None, DefaultCompressionCodec, DefaultCompressionCodec,
+      messageFormatVersion = V0)
+    checkOffsets(deferred.assignOffsets(new AtomicLong(offset)), offset)
+
+    // messages recompressed with relative offsets are only rebased, whatever the expected offset
+    val relative = compressedMessages.validateMessages(Some(0L), DefaultCompressionCodec, DefaultCompressionCodec,
+      messageFormatVersion = Message.MagicValue_V1)
+    val relativeCounter = new AtomicLong(offset)
+    val rebased = relative.assignOffsets(relativeCounter)
+    assertEquals(offset + 3, relativeCounter.get)
+    assertEquals(offset + 2, rebased.shallowIterator.next().offset)
+    checkOffsets(rebased, offset)
+  }
+
+  @Test
+  def testInPlaceOffsetAssignmentWithRelativeOffsets() {
+    val messages = Seq(new Message("hello".getBytes), new Message("there".getBytes), new Message("beautiful".getBytes))
+      .map(_.toFormatVersion(Message.MagicValue_V1))
+    val compressedMessages = new ByteBufferMessageSet(compressionCodec = GZIPCompressionCodec,
+                                                      offsetCounter = new AtomicLong(0),
+                                                      magicValue = Message.MagicValue_V1,
+                                                      messages = messages:_*)
+    val offset = 1234567
+    val counter = new AtomicLong(offset)
+    val validated = compressedMessages.validateMessagesAndAssignOffsets(counter, GZIPCompressionCodec,
+      GZIPCompressionCodec, messageFormatVersion = Message.MagicValue_V1)
+
+    // the wrapper is kept, only its offset is changed to the offset of the last inner message
+    assertTrue("The compressed message set should not be rebuilt", validated eq compressedMessages)
+    assertEquals(offset + 3, counter.get)
+    assertEquals(offset + 2, validated.shallowIterator.next().offset)
+    checkOffsets(validated, offset)
+    TestUtils.checkEquals[Message](messages.iterator, TestUtils.getMessageIterator(validated.iterator))
+
+    // messages compressed with a different codec, in the old format or to a compacted topic are recompressed
+    assertFalse(compressedMessages.validateMessagesAndAssignOffsets(new AtomicLong(offset), GZIPCompressionCodec,
+      SnappyCompressionCodec, messageFormatVersion = Message.MagicValue_V1) eq compressedMessages)
+    val recompressed = compressedMessages.validateMessagesAndAssignOffsets(new AtomicLong(offset), GZIPCompressionCodec,
+      GZIPCompressionCodec, messageFormatVersion = Message.MagicValue_V0)
+    assertEquals(Message.MagicValue_V0, recompressed.shallowIterator.next().message.magic)
+    checkOffsets(recompressed, offset)
+  }
+
+  @Test
+  def testInPlaceOffsetAssignmentRequiresValidRelativeOffsets() {
+    val messages = Seq(new Message("hello".getBytes), new Message("there".getBytes), new Message("beautiful".getBytes))
+    val offset = 1234567
+
+    // a wrapper that does not carry the relative offset of its last inner message is recompressed
+    val wrongWrapperOffset = new ByteBufferMessageSet(compressionCodec = GZIPCompressionCodec,
+                                                      offsetCounter = new AtomicLong(0),
+                                                      magicValue = Message.MagicValue_V1,
+                                                      messages = messages.map(_.toFormatVersion(Message.MagicValue_V1)):_*)
+    wrongWrapperOffset.buffer.putLong(0, 100L)
+    val counter = new AtomicLong(offset)
+    val validated = wrongWrapperOffset.validateMessagesAndAssignOffsets(counter, GZIPCompressionCodec,
+      GZIPCompressionCodec, messageFormatVersion = Message.MagicValue_V1)
+    assertFalse("The compressed message set should be rebuilt", validated eq wrongWrapperOffset)
+    assertEquals(offset + 3, counter.get)
+    checkOffsets(validated, offset)
+
+    // so is a wrapper whose inner messages have a different magic value
+    val wrongInnerMagic = new ByteBufferMessageSet(compressionCodec = GZIPCompressionCodec,
+                                                   offsetCounter = new AtomicLong(0),
+                                                   magicValue = Message.MagicValue_V1,
+                                                   messages = messages:_*)
+    val converted = wrongInnerMagic.validateMessagesAndAssignOffsets(new AtomicLong(offset), GZIPCompressionCodec,
+      GZIPCompressionCodec, messageFormatVersion = Message.MagicValue_V1)
+    assertFalse("The compressed message set should be rebuilt", converted eq wrongInnerMagic)
+    for (messageAndOffset <- converted)
+      assertEquals(Message.MagicValue_V1, messageAndOffset.message.magic)
+    checkOffsets(converted, offset)
+  }
+
+  @Test
+  def testTimestampDifferenceIsValidated() {
+    val now = 100000L
+    for (codec <- Seq(NoCompressionCodec, GZIPCompressionCodec)) {
+      val inRange = new ByteBufferMessageSet(codec, new Message("hello".getBytes, "key".getBytes, now - 1000L),
+                                             new Message("there".getBytes, "key".getBytes, now + 1000L))
+      inRange.validateMessagesAndAssignOffsets(new AtomicLong(0), codec, codec, messageTimestampDifferenceMaxMs = 1000L,
+        now = now)
+
+      // a timestamp far in the future would keep the segment from being deleted by time based retention
+      val future = new ByteBufferMessageSet(codec, new Message("hello".getBytes, "key".getBytes, now),
+                                            new Message("there".getBytes, "key".getBytes, now + 1001L))
+      try {
+        future.validateMessagesAndAssignOffsets(new AtomicLong(0), codec, codec, messageTimestampDifferenceMaxMs = 1000L,
+          now = now)
+        fail("A message timestamp too far from the log append time should be rejected")
+      } catch {
+        case e: InvalidMessageException => // this is good
+      }
+
+      // the difference is not checked for the log append time, which replaces the create time
+      future.validateMessagesAndAssignOffsets(new AtomicLong(0), codec, codec,
+        messageTimestampType = TimestampType.LOG_APPEND_TIME, messageTimestampDifferenceMaxMs = 1000L, now = now)
+    }
+  }
+
   /* check that offsets are assigned based on byte offset from the given base offset */
   def checkOffsets(messages: ByteBufferMessageSet, baseOffset: Long) {
     var offset = baseOffset
@@ -44,13 +44,13 @@ class MessageCompressionTest extends JUnitSuite {
     val bytes3k: Array[Byte] = (3000 until 4000).map(_.toByte).toArray
     val messages: List[Message] = List(new Message(bytes1k), new Message(bytes2k), new Message(bytes3k))
 
-    testCompressSize(GZIPCompressionCodec, messages, 388)
+    testCompressSize(GZIPCompressionCodec, messages, 396)
 
     if(isSnappyAvailable)
-      testCompressSize(SnappyCompressionCodec, messages, 491)
+      testCompressSize(SnappyCompressionCodec, messages, 502)
 
     if(isLZ4Available)
-      testCompressSize(LZ4CompressionCodec, messages, 380)
+      testCompressSize(LZ4CompressionCodec, messages, 387)
   }
 
   def testSimpleCompressDecompress(compressionCodec: CompressionCodec) {
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package kafka.network
+
+import java.net.InetAddress
+import java.nio.ByteBuffer
+
+import kafka.api.{ControlledShutdownRequest, FetchRequest, PartitionFetchInfo, RequestOrResponse}
+import kafka.common.TopicAndPartition
+import org.apache.kafka.common.protocol.SecurityProtocol
+import org.apache.kafka.common.security.auth.KafkaPrincipal
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.junit.JUnitSuite
+
+class RequestChannelTest extends JUnitSuite {
+
+  private def request(processor: Int): RequestChannel.Request =
+    request(processor, RequestChannel.getShutdownReceive())
+
+  private def request(processor: Int, requestObj: RequestOrResponse,
+                      securityProtocol: SecurityProtocol = SecurityProtocol.PLAINTEXT): RequestChannel.Request = {
+    val buffer = ByteBuffer.allocate(requestObj.sizeInBytes + 2)
+    buffer.putShort(requestObj.requestId.get)
+    requestObj.writeTo(buffer)
+    buffer.rewind()
+    request(processor, buffer, securityProtocol)
+  }
+
+  private def request(processor: Int, buffer: ByteBuffer,
+                      securityProtocol: SecurityProtocol = SecurityProtocol.PLAINTEXT): RequestChannel.Request =
+    RequestChannel.Request(processor = processor, connectionId = "connection-" + processor,
+      session = RequestChannel.Session(KafkaPrincipal.ANONYMOUS, InetAddress.getLoopbackAddress),
+      buffer = buffer, startTimeMs = 0, securityProtocol = securityProtocol)
+
+  // the brokers use the SSL listener in the tests of the lanes
+  private def controlledShutdownRequest(processor: Int, securityProtocol: SecurityProtocol = SecurityProtocol.SSL) =
+    request(processor, ControlledShutdownRequest(1, 0, Some("broker-1"), 1), securityProtocol)
+
+  private def followerFetchRequest(processor: Int, securityProtocol: SecurityProtocol = SecurityProtocol.SSL) =
+    request(processor, FetchRequest(replicaId = 1, requestInfo = Map(TopicAndPartition("topic", 0) -> PartitionFetchInfo(0, 1024))),
+      securityProtocol)
+
+  @Test
+  def testHandlerTakesFromItsOwnQueueFirst() {
+    val channel = new RequestChannel(2, 10)
+    val first = request(0)
+    val second = request(1)
+    channel.sendRequest(first)
+    channel.sendRequest(second)
+    assertSame(second, channel.receiveRequest(100, handlerId = 1))
+    assertSame(first, channel.receiveRequest(100, handlerId = 1))
+    assertNull(channel.receiveRequest(10, handlerId = 1))
+  }
+
+  @Test
+  def testHandlerStealsFromOtherQueues() {
+    val channel = new RequestChannel(3, 30)
+    val requests = (0 until 3).map(request(_: Int))
+    requests.foreach(channel.sendRequest)
+    // handler 4 takes from the queue of processor 1 and then from the following queues in turn
+    assertSame(requests(1), channel.receiveRequest(100, handlerId = 4))
+    assertSame(requests(2), channel.receiveRequest(100, handlerId = 4))
+    assertSame(requests(0), channel.receiveRequest(100, handlerId = 4))
+    assertNull(channel.receiveRequest(10, handlerId = 4))
+  }
+
+  @Test
+  def testShutdownRequestWithSingleProcessor() {
+    val channel = new RequestChannel(1, 10)
+    channel.sendRequest(RequestChannel.AllDone)
+    assertSame(RequestChannel.AllDone, channel.receiveRequest())
+  }
+
+  @Test
+  def testControlPlaneAndReplicationRequestsAreTakenFirst() {
+    val channel = new RequestChannel(2, 10, brokerProtocol = Some(SecurityProtocol.SSL))
+    val client = request(0)
+    val replication = followerFetchRequest(1)
+    val controlPlane = controlledShutdownRequest(1)
+    assertEquals(RequestChannel.ClientLane, channel.laneOf(client))
+    assertEquals(RequestChannel.ReplicationLane, channel.laneOf(replication))
+    assertEquals(RequestChannel.ControlPlaneLane, channel.laneOf(controlPlane))
+    channel.sendRequest(client)
+    channel.sendRequest(replication)
+    channel.sendRequest(controlPlane)
+    assertSame(controlPlane, channel.receiveRequest(100))
+    assertSame(replication, channel.receiveRequest(100))
+    assertSame(client, channel.receiveRequest(100))
+    assertNull(channel.receiveRequest(10))
+  }
+
+  @Test
+  def testRequestsOfClientsAreNotPrioritized() {
+    // requests that do not arrive on the listener of the brokers are queued with the client requests, whatever they are
+    val channel = new RequestChannel(2, 10, brokerProtocol = Some(SecurityProtocol.SSL))
+    assertEquals(RequestChannel.ClientLane, channel.laneOf(followerFetchRequest(0, SecurityProtocol.PLAINTEXT)))
+    assertEquals(RequestChannel.ClientLane, channel.laneOf(controlledShutdownRequest(0, SecurityProtocol.PLAINTEXT)))
+
+    // and so are all requests if the brokers have no listener of their own
+    val sharedChannel = new RequestChannel(2, 10)
+    assertEquals(RequestChannel.ClientLane, sharedChannel.laneOf(followerFetchRequest(0)))
+    assertEquals(RequestChannel.ClientLane, sharedChannel.laneOf(controlledShutdownRequest(0)))
+  }
+
+  @Test
+  def testReservedHandlerOnlyTakesControlPlaneAndReplicationRequests() {
+    val channel = new RequestChannel(2, 10, numReservedHandlers = 1, brokerProtocol = Some(SecurityProtocol.SSL))
+    val client = request(0)
+    val replication = followerFetchRequest(0)
+    channel.sendRequest(client)
+    assertNull(channel.receiveRequest(10, handlerId = 0, reserved = true))
+    channel.sendRequest(replication)
+    assertSame(replication, channel.receiveRequest(100, handlerId = 0, reserved = true))
+    channel.sendRequest(replication)
+    // the other handlers take the requests of the reserved ones too, before the requests of clients
+    assertSame(replication, channel.receiveRequest(100, handlerId = 1))
+    assertSame(client, channel.receiveRequest(100, handlerId = 1))
+    assertNull(channel.receiveRequest(10, handlerId = 1))
+  }
+
+  @Test
+  def testWaitingHandlerIsWokenUpByReplicationRequests() {
+    val channel = new RequestChannel(2, 10, numReservedHandlers = 1, brokerProtocol = Some(SecurityProtocol.SSL))
+    @volatile var received: RequestChannel.Request = null
+    val handler = new Thread() {
+      override def run() {
+        received = channel.receiveRequest(30000, handlerId = 1)
+      }
+    }
+    handler.start()
+    val replication = followerFetchRequest(0)
+    channel.sendRequest(replication)
+    handler.join(5000)
+    assertFalse("The handler should not wait for a client request", handler.isAlive)
+    assertSame(replication, received)
+    // the reserved handler does not find the request the other handler took
+    assertNull(channel.receiveRequest(10, handlerId = 0, reserved = true))
+  }
+
+  @Test
+  def testShutdownRequestReachesReservedHandlers() {
+    val channel = new RequestChannel(2, 10, numReservedHandlers = 1, brokerProtocol = Some(SecurityProtocol.SSL))
+    channel.sendRequest(RequestChannel.AllDone)
+    assertSame(RequestChannel.AllDone, channel.receiveRequest(100, handlerId = 0, reserved = true))
+  }
+}
@@ -24,7 +24,7 @@ import java.io._
 
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.network.NetworkSend
-import org.apache.kafka.common.protocol.SecurityProtocol
+import org.apache.kafka.common.protocol.{ApiKeys, SecurityProtocol}
 import org.apache.kafka.common.security.auth.KafkaPrincipal
 import org.apache.kafka.common.utils.SystemTime
 import org.junit.Assert._
@@ -32,7 +32,7 @@ import org.junit._
 import org.scalatest.junit.JUnitSuite
 import java.util.Random
 import kafka.producer.SyncProducerConfig
-import kafka.api.ProducerRequest
+import kafka.api.{ProducerRequest, RequestOrResponse, TopicMetadataRequest}
 import java.nio.ByteBuffer
 import kafka.common.TopicAndPartition
 import kafka.message.ByteBufferMessageSet
@@ -74,7 +74,10 @@ class SocketServerTest extends JUnitSuite {
 
   /* A simple request handler that just echos back the response */
   def processRequest(channel: RequestChannel) {
-    val request = channel.receiveRequest
+    processRequest(channel, channel.receiveRequest())
+  }
+
+  def processRequest(channel: RequestChannel, request: RequestChannel.Request) {
     val byteBuffer = ByteBuffer.allocate(request.requestObj.sizeInBytes)
     request.requestObj.writeTo(byteBuffer)
     byteBuffer.rewind()
@@ -91,8 +94,9 @@ class SocketServerTest extends JUnitSuite {
     server.shutdown()
   }
 
-  private def producerRequestBytes: Array[Byte] = {
-    val correlationId = -1
+  private def producerRequestBytes: Array[Byte] = producerRequestBytes(-1)
+
+  private def producerRequestBytes(correlationId: Int): Array[Byte] = {
     val clientId = SyncProducerConfig.DefaultClientId
     val ackTimeoutMs = SyncProducerConfig.DefaultAckTimeoutMs
     val ack = SyncProducerConfig.DefaultRequiredAcks
@@ -107,6 +111,15 @@ class SocketServerTest extends JUnitSuite {
     serializedBytes
   }
 
+  private def metadataRequestBytes(correlationId: Int): Array[Byte] =
+    requestBytes(new TopicMetadataRequest(TopicMetadataRequest.CurrentVersion, correlationId, SyncProducerConfig.DefaultClientId, Seq("topic")))
+
+  private def requestBytes(request: RequestOrResponse): Array[Byte] = {
+    val byteBuffer = ByteBuffer.allocate(request.sizeInBytes)
+    request.writeTo(byteBuffer)
+    byteBuffer.array
+  }
+
   @Test
   def simpleRequest() {
     val plainSocket = connect(protocol = SecurityProtocol.PLAINTEXT)
@@ -258,6 +271,114 @@ class SocketServerTest extends JUnitSuite {
     }
   }
 
+  @Test
+  def testPipelinedRequests() {
+    val overrideProps = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 0)
+    overrideProps.put("max.pipelined.requests.per.connection", "2")
+    val serverMetrics = new Metrics
+    val overrideServer = new SocketServer(KafkaConfig.fromProps(overrideProps), serverMetrics, new SystemTime)
+    overrideServer.startup()
+    try {
+      val socket = new Socket("localhost", overrideServer.boundPort(SecurityProtocol.PLAINTEXT))
+      val requestBytes = (0 until 3).map(i => metadataRequestBytes(i))
+      requestBytes.foreach(sendRequest(socket, 3, _))
+
+      val first = overrideServer.requestChannel.receiveRequest(2000)
+      val second = overrideServer.requestChannel.receiveRequest(2000)
+      assertNotNull(first)
+      assertNotNull(second)
+      assertNull("Requests beyond the maximum pipelined should not be read", overrideServer.requestChannel.receiveRequest(500))
+
+      // the responses are sent in the order of the requests, whatever the order they complete in
+      processRequest(overrideServer.requestChannel, second)
+      processRequest(overrideServer.requestChannel, first)
+      assertEquals(requestBytes(0).toSeq, receiveResponse(socket).toSeq)
+      assertEquals(requestBytes(1).toSeq, receiveResponse(socket).toSeq)
+
+      processRequest(overrideServer.requestChannel)
+      assertEquals(requestBytes(2).toSeq, receiveResponse(socket).toSeq)
+      socket.close()
+    } finally {
+      overrideServer.shutdown()
+      serverMetrics.close()
+    }
+  }
+
+  @Test
+  def testPipelinedProduceRequestsAreProcessedOneAtATime() {
+    val overrideProps = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 0)
+    overrideProps.put("max.pipelined.requests.per.connection", "3")
+    val serverMetrics = new Metrics
+    val overrideServer = new SocketServer(KafkaConfig.fromProps(overrideProps), serverMetrics, new SystemTime)
+    overrideServer.startup()
+    try {
+      val socket = new Socket("localhost", overrideServer.boundPort(SecurityProtocol.PLAINTEXT))
+      val firstProduce = producerRequestBytes(0)
+      val metadata = metadataRequestBytes(1)
+      val secondProduce = producerRequestBytes(2)
+      sendRequest(socket, 0, firstProduce)
+      sendRequest(socket, 3, metadata)
+      sendRequest(socket, 0, secondProduce)
+
+      // the metadata request is processed along with the first produce request, but not the second produce request
+      val first = overrideServer.requestChannel.receiveRequest(2000)
+      val second = overrideServer.requestChannel.receiveRequest(2000)
+      assertEquals(Set(ApiKeys.PRODUCE.id, ApiKeys.METADATA.id), Set(first.requestId, second.requestId))
+      assertNull("A produce request should wait for the previous one", overrideServer.requestChannel.receiveRequest(500))
+
+      val (produce, other) = if (first.requestId == ApiKeys.PRODUCE.id) (first, second) else (second, first)
+      processRequest(overrideServer.requestChannel, produce)
+      val third = overrideServer.requestChannel.receiveRequest(2000)
+      assertNotNull("The next produce request should be processed once the previous one has been", third)
+      assertEquals(ApiKeys.PRODUCE.id, third.requestId)
+
+      processRequest(overrideServer.requestChannel, third)
+      processRequest(overrideServer.requestChannel, other)
+      assertEquals(firstProduce.toSeq, receiveResponse(socket).toSeq)
+      assertEquals(metadata.toSeq, receiveResponse(socket).toSeq)
+      assertEquals(secondProduce.toSeq, receiveResponse(socket).toSeq)
+      socket.close()
+    } finally {
+      overrideServer.shutdown()
+      serverMetrics.close()
+    }
+  }
+
+  @Test
+  def testHeldBackRequestsAreReleasedOnDisconnect() {
+    val overrideProps = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 0)
+    overrideProps.put("max.pipelined.requests.per.connection", "3")
+    overrideProps.put("queued.max.request.bytes", "100000")
+    val serverMetrics = new Metrics
+    val overrideServer = new SocketServer(KafkaConfig.fromProps(overrideProps), serverMetrics, new SystemTime)
+    overrideServer.startup()
+    try {
+      val memoryPool = overrideServer.memoryPool
+      val poolSize = memoryPool.availableMemory
+      val socket = new Socket("localhost", overrideServer.boundPort(SecurityProtocol.PLAINTEXT))
+      sendRequest(socket, 0, producerRequestBytes(0))
+      sendRequest(socket, 0, producerRequestBytes(1))
+
+      // the second produce request is held back until the first one is processed
+      val produce = overrideServer.requestChannel.receiveRequest(2000)
+      assertNotNull(produce)
+      assertNull("A produce request should wait for the previous one", overrideServer.requestChannel.receiveRequest(500))
+      TestUtils.waitUntilTrue(() => memoryPool.availableMemory < poolSize, "The requests should hold memory of the pool")
+
+      socket.close()
+      TestUtils.waitUntilTrue(() => overrideServer.connectionCount(socket.getInetAddress) == 0,
+        "The connection should be closed")
+      processRequest(overrideServer.requestChannel, produce)
+      TestUtils.waitUntilTrue(() => memoryPool.availableMemory == poolSize,
+        "The memory of the held back request should be released once its connection is closed")
+      assertNull("A held back request should not be processed once its connection is closed",
+        overrideServer.requestChannel.receiveRequest(500))
+    } finally {
+      overrideServer.shutdown()
+      serverMetrics.close()
+    }
+  }
+
   @Test
   def testSessionPrincipal(): Unit = {
     val socket = connect()
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.io.{DataInputStream, DataOutputStream}
+import java.net.Socket
+import java.nio.ByteBuffer
+
+import kafka.integration.KafkaServerTestHarness
+import kafka.utils.TestUtils
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.protocol.{ApiKeys, Errors, Protocol}
+import org.apache.kafka.common.record.{CompressionType, MemoryRecords, Record}
+import org.apache.kafka.common.requests._
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.collection.JavaConverters._
+
+class ApiVersionsRequestTest extends KafkaServerTestHarness {
+  val topic = "topic"
+  val tp = new TopicPartition(topic, 0)
+
+  def generateConfigs() = TestUtils.createBrokerConfigs(1, zkConnect).map(KafkaConfig.fromProps)
+
+  @Test
+  def testApiVersionsRequest() {
+    val response = ApiVersionsResponse.parse(sendAndReceive(ApiKeys.API_VERSIONS, 0, new ApiVersionsRequest))
+    assertEquals(Errors.NONE.code, response.errorCode)
+
+    val apiVersions = response.apiVersions.asScala.map(v => v.apiKey -> v).toMap
+    assertEquals("Every api should be listed", ApiKeys.values.map(_.id).toSet, apiVersions.keySet)
+    for (api <- ApiKeys.values) {
+      val apiVersion = apiVersions(api.id)
+      assertEquals(s"Min version of $api does not match", Protocol.REQUESTS(api.id).indexWhere(_ != null), apiVersion.minVersion)
+      assertEquals(s"Max version of $api does not match", Protocol.CURR_VERSION(api.id), apiVersion.maxVersion)
+    }
+    assertEquals(2, apiVersions(ApiKeys.PRODUCE.id).maxVersion)
+    assertEquals(0, apiVersions(ApiKeys.API_VERSIONS.id).maxVersion)
+  }
+
+  @Test
+  def testProduceRequestV2() {
+    TestUtils.createTopic(zkUtils, topic, 1, 1, servers)
+
+    val records = MemoryRecords.emptyRecords(ByteBuffer.allocate(1024), CompressionType.NONE, 1024, false, Record.CURRENT_MAGIC_VALUE)
+    records.append(0L, System.currentTimeMillis, "key".getBytes, "value".getBytes)
+    records.close()
+    val request = new ProduceRequest(1, 5000, Map(tp -> records.buffer).asJava)
+
+    val response = ProduceResponse.parse(sendAndReceive(ApiKeys.PRODUCE, 2, request))
+    val partitionResponse = response.responses.get(tp)
+    assertEquals(Errors.NONE.code, partitionResponse.errorCode)
+    assertEquals(0L, partitionResponse.baseOffset)
+    assertEquals(0, response.getThrottleTime)
+  }
+
+  private def sendAndReceive(api: ApiKeys, version: Int, request: AbstractRequest): ByteBuffer = {
+    val socket = new Socket("localhost", servers.head.boundPort())
+    try {
+      val header = new RequestHeader(api.id, version.toShort, "client", 1)
+      val buffer = ByteBuffer.allocate(header.sizeOf + request.sizeOf)
+      header.writeTo(buffer)
+      request.writeTo(buffer)
+
+      val outgoing = new DataOutputStream(socket.getOutputStream)
+      outgoing.writeInt(buffer.capacity)
+      outgoing.write(buffer.array)
+      outgoing.flush()
+
+      val incoming = new DataInputStream(socket.getInputStream)
+      val response = new Array[Byte](incoming.readInt())
+      incoming.readFully(response)
+      val responseBuffer = ByteBuffer.wrap(response)
+      assertEquals(1, ResponseHeader.parse(responseBuffer).correlationId)
+      responseBuffer
+    } finally {
+      socket.close()
+    }
+  }
+}
@@ -98,6 +98,55 @@ class DelayedOperationTest {
     assertEquals("Purgatory should have 1 watched elements instead of " + purgatory.watched(), 1, purgatory.watched())
   }
 
+  @Test
+  def testKeysSharingAShard() {
+    val shardedPurgatory = new DelayedOperationPurgatory[MockDelayedOperation]("sharded", shards = 2)
+    try {
+      val operations = (0 until 10).map { i =>
+        val r = new MockDelayedOperation(100000L)
+        assertFalse(shardedPurgatory.tryCompleteElseWatch(r, Array("test" + i)))
+        r
+      }
+      assertEquals(10, shardedPurgatory.watched())
+
+      // completing the operations of one key leaves the other keys of its shard watched
+      operations.head.completable = true
+      assertEquals(1, shardedPurgatory.checkAndComplete("test0"))
+      assertEquals(9, shardedPurgatory.watched())
+      assertEquals(0, shardedPurgatory.checkAndComplete("test1"))
+      assertEquals(9, shardedPurgatory.delayed())
+    } finally {
+      shardedPurgatory.shutdown()
+    }
+  }
+
+  @Test
+  def testShardsArePurgedAsOperationsAreWatched() {
+    val purgeInterval = 4
+    val shardedPurgatory = new DelayedOperationPurgatory[MockDelayedOperation]("purged", purgeInterval = purgeInterval, shards = 2)
+    try {
+      val operations = (0 until 20).map { i =>
+        val r = new MockDelayedOperation(100000L)
+        assertFalse(shardedPurgatory.tryCompleteElseWatch(r, Array("test" + i)))
+        r
+      }
+      assertEquals(20, shardedPurgatory.watched())
+
+      // completed by another path than the purgatory, so that only a purge removes them from the watch lists
+      operations.foreach(_.forceComplete())
+      assertEquals(0, shardedPurgatory.delayed())
+      assertEquals(20, shardedPurgatory.watched())
+
+      // watching more operations than the purge interval of each shard purges the shard of its completed operations
+      (0 until 10).foreach { i =>
+        assertFalse(shardedPurgatory.tryCompleteElseWatch(new MockDelayedOperation(100000L), Array("other" + i)))
+      }
+      assertEquals(10, shardedPurgatory.watched())
+    } finally {
+      shardedPurgatory.shutdown()
+    }
+  }
+
   class MockDelayedOperation(delayMs: Long) extends DelayedOperation(delayMs) {
     var completable = false
 
@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import org.junit.Assert._
+import org.junit.Test
+
+class EndOffsetTrackerTest {
+
+  @Test
+  def testAdvanceWithinSegment() {
+    val tracker = new EndOffsetTracker
+    tracker.reset(new LogOffsetMetadata(10L, 0L, 1000))
+    val start = tracker.current
+
+    tracker.advance(new LogOffsetMetadata(20L, 0L, 1500))
+    assertEquals(start.generation, tracker.current.generation)
+    assertEquals(start.bytes + 500, tracker.current.bytes)
+
+    // an end offset reported out of order is ignored
+    tracker.advance(new LogOffsetMetadata(15L, 0L, 1200))
+    assertEquals(start.bytes + 500, tracker.current.bytes)
+    assertEquals(20L, tracker.current.endOffset.messageOffset)
+  }
+
+  @Test
+  def testNewGenerationWhenPositionsAreNotComparable() {
+    val tracker = new EndOffsetTracker
+    tracker.reset(new LogOffsetMetadata(10L, 0L, 1000))
+    val generation = tracker.current.generation
+
+    // the end offset moves to a new segment
+    tracker.advance(new LogOffsetMetadata(20L, 20L, 0))
+    assertEquals(generation + 1, tracker.current.generation)
+
+    // the end offset has no position
+    tracker.advance(new LogOffsetMetadata(30L))
+    assertEquals(generation + 2, tracker.current.generation)
+
+    tracker.reset(LogOffsetMetadata.UnknownOffsetMetadata)
+    assertEquals(generation + 3, tracker.current.generation)
+    tracker.advance(new LogOffsetMetadata(40L, 20L, 500))
+    assertEquals(generation + 4, tracker.current.generation)
+    assertEquals(0L, tracker.current.bytes)
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import kafka.api.{FetchRequest, FetchResponsePartitionData, PartitionFetchInfo}
+import kafka.common.TopicAndPartition
+import kafka.message.{ByteBufferMessageSet, Message, MessageSet, NoCompressionCodec}
+import kafka.utils.MockTime
+import org.apache.kafka.common.protocol.Errors
+import org.junit.Assert._
+import org.junit.Test
+
+class FetchSessionTest {
+
+  private val time = new MockTime()
+  private val tp0 = TopicAndPartition("foo", 0)
+  private val tp1 = TopicAndPartition("foo", 1)
+  private val tp2 = TopicAndPartition("bar", 0)
+
+  private def fetchRequest(replicaId: Int, sessionId: Int, epoch: Int, partitions: Map[TopicAndPartition, Long],
+                           forgotten: Seq[TopicAndPartition] = Seq.empty) =
+    FetchRequest(versionId = 2, replicaId = replicaId, requestInfo = partitions.mapValues(PartitionFetchInfo(_, 1024)),
+      sessionId = sessionId, sessionEpoch = epoch, forgotten = forgotten)
+
+  private def partitionData(hw: Long, withMessages: Boolean = false) =
+    FetchResponsePartitionData(Errors.NONE.code, hw,
+      if (withMessages) new ByteBufferMessageSet(NoCompressionCodec, new Message("value".getBytes)) else MessageSet.Empty)
+
+  @Test
+  def testIncrementalFetch() {
+    val cache = new FetchSessionCache(10, time)
+    val full = cache.newContext(fetchRequest(1, FetchRequest.InvalidSessionId, FetchRequest.InitialEpoch,
+      Map(tp0 -> 10L, tp1 -> 20L)))
+    assertEquals(Errors.NONE, full.error)
+    assertNotEquals(FetchRequest.InvalidSessionId, full.sessionId)
+    assertEquals(Set(tp0, tp1), full.fetchInfo.keySet)
+    assertEquals(Set(tp0, tp1), full.filterResponse(Map(tp0 -> partitionData(10L), tp1 -> partitionData(20L))).keySet)
+
+    // the request only carries the changed and new partitions, the session fetches all of them
+    val incremental = cache.newContext(fetchRequest(1, full.sessionId, 1, Map(tp0 -> 15L, tp2 -> 0L), Seq(tp1)))
+    assertEquals(Errors.NONE, incremental.error)
+    assertEquals(full.sessionId, incremental.sessionId)
+    assertEquals(Map(tp0 -> PartitionFetchInfo(15L, 1024), tp2 -> PartitionFetchInfo(0L, 1024)), incremental.fetchInfo)
+
+    // only the partitions with messages or a new high watermark are returned
+    val response = incremental.filterResponse(Map(tp0 -> partitionData(10L, withMessages = true), tp2 -> partitionData(5L)))
+    assertEquals(Set(tp0, tp2), response.keySet)
+    val next = cache.newContext(fetchRequest(1, full.sessionId, 2, Map.empty))
+    assertEquals(Set(tp0, tp2), next.fetchInfo.keySet)
+    assertEquals(Map.empty, next.filterResponse(Map(tp0 -> partitionData(10L), tp2 -> partitionData(5L))))
+  }
+
+  @Test
+  def testSessionErrors() {
+    val cache = new FetchSessionCache(10, time)
+    val full = cache.newContext(fetchRequest(1, FetchRequest.InvalidSessionId, FetchRequest.InitialEpoch, Map(tp0 -> 10L)))
+
+    val wrongEpoch = cache.newContext(fetchRequest(1, full.sessionId, 5, Map.empty))
+    assertEquals(Errors.INVALID_FETCH_SESSION_EPOCH, wrongEpoch.error)
+    assertTrue(wrongEpoch.fetchInfo.isEmpty)
+
+    val unknownSession = cache.newContext(fetchRequest(1, full.sessionId + 1, 1, Map.empty))
+    assertEquals(Errors.FETCH_SESSION_ID_NOT_FOUND, unknownSession.error)
+
+    val otherReplica = cache.newContext(fetchRequest(2, full.sessionId, 1, Map.empty))
+    assertEquals(Errors.FETCH_SESSION_ID_NOT_FOUND, otherReplica.error)
+
+    // a full fetch closes the previous session of the fetcher
+    val newSession = cache.newContext(fetchRequest(1, full.sessionId, FetchRequest.InitialEpoch, Map(tp0 -> 10L)))
+    assertEquals(None, cache.get(full.sessionId))
+    assertTrue(cache.get(newSession.sessionId).isDefined)
+    assertEquals(1, cache.size)
+  }
+
+  @Test
+  def testSessionlessFetch() {
+    val cache = new FetchSessionCache(10, time)
+    val full = cache.newContext(fetchRequest(1, FetchRequest.InvalidSessionId, FetchRequest.InitialEpoch, Map(tp0 -> 10L)))
+
+    // a sessionless fetch closes the given session
+    val sessionless = cache.newContext(fetchRequest(1, full.sessionId, FetchRequest.FinalEpoch, Map(tp0 -> 10L, tp1 -> 20L)))
+    assertEquals(FetchRequest.InvalidSessionId, sessionless.sessionId)
+    assertEquals(Set(tp0, tp1), sessionless.fetchInfo.keySet)
+    val response = Map(tp0 -> partitionData(10L), tp1 -> partitionData(20L))
+    assertEquals(response, sessionless.filterResponse(response))
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  def testEviction() {
+    val cache = new FetchSessionCache(2, time, evictionMs = 1000L)
+    val consumer1 = cache.newContext(fetchRequest(-1, FetchRequest.InvalidSessionId, FetchRequest.InitialEpoch, Map(tp0 -> 0L)))
+    time.sleep(10)
+    val consumer2 = cache.newContext(fetchRequest(-1, FetchRequest.InvalidSessionId, FetchRequest.InitialEpoch, Map(tp1 -> 0L)))
+
+    // no session is idle for long enough to make room for another consumer
+    val consumer3 = cache.newContext(fetchRequest(-1, FetchRequest.InvalidSessionId, FetchRequest.InitialEpoch, Map(tp2 -> 0L)))
+    assertEquals(FetchRequest.InvalidSessionId, consumer3.sessionId)
+    assertEquals(Set(tp2), consumer3.fetchInfo.keySet)
+
+    // a follower takes the slot of the least recently used consumer session
+    cache.newContext(fetchRequest(-1, consumer1.sessionId, 1, Map.empty))
+    val follower = cache.newContext(fetchRequest(1, FetchRequest.InvalidSessionId, FetchRequest.InitialEpoch, Map(tp2 -> 0L)))
+    assertNotEquals(FetchRequest.InvalidSessionId, follower.sessionId)
+    assertTrue(cache.get(consumer1.sessionId).isDefined)
+    assertEquals(None, cache.get(consumer2.sessionId))
+
+    // an idle session makes room for a consumer
+    time.sleep(1000)
+    val consumer4 = cache.newContext(fetchRequest(-1, FetchRequest.InvalidSessionId, FetchRequest.InitialEpoch, Map(tp2 -> 0L)))
+    assertNotEquals(FetchRequest.InvalidSessionId, consumer4.sessionId)
+    assertEquals(2, cache.size)
+  }
+}
@@ -875,6 +875,8 @@ object TestUtils extends Logging {
                    defaultConfig = defaultConfig,
                    cleanerConfig = cleanerConfig,
                    ioThreads = 4,
+                   segmentRecoveryThreads = 4,
+                   maxMappedIndexes = 1000,
                    flushCheckMs = 1000L,
                    flushCheckpointMs = 10000L,
                    retentionCheckMs = 1000L,
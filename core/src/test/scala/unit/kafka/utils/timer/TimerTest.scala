@@ -108,4 +108,24 @@ class TimerTest {
 
     assertEquals("output should match", ids.sorted, output.toSeq)
   }
+
+  @Test
+  def testBatchedExpiration(): Unit = {
+    val startTime = System.currentTimeMillis()
+    val timer = new Timer(taskExecutor = executor, tickMs = 1, wheelSize = 3, startMs = startTime, batchExpiration = true)
+    val output = new ArrayBuffer[Int]()
+    val latch = new CountDownLatch(100)
+
+    timer.add(new TimerTask {
+      override val expirationMs = startTime + 1
+      def run(): Unit = throw new RuntimeException("expected")
+    })
+    Random.shuffle((0 until 100).map(i => new TestTask(startTime + i + 1, i, latch, output))).foreach(timer.add)
+
+    while (timer.advanceClock(1000)) {}
+
+    // the failed task does not keep the other tasks of its batch from running
+    assertTrue(latch.await(3, TimeUnit.SECONDS))
+    assertEquals("output should match", (0 until 100).toSeq, output.toSeq)
+  }
 }
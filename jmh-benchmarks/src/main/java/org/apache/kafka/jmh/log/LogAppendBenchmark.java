@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import kafka.log.Log;
+import kafka.log.LogAppendInfo;
+import kafka.log.LogConfig;
+import kafka.log.LogSegmentSummary;
+import kafka.log.SegmentRecoveryPool;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.CompressionCodec;
+import kafka.message.CompressionCodec$;
+import kafka.message.Message;
+import kafka.utils.KafkaScheduler;
+import kafka.utils.SystemTime$;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.collection.JavaConversions;
+
+/**
+ * Measures the append throughput of a single partition for each compression codec and message format version with
+ * 1, 4 and 16 producers appending to the same log concurrently. Each benchmark operation appends one produce batch.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LogAppendBenchmark {
+
+    @Param({"none", "gzip", "snappy", "lz4"})
+    private String codec;
+
+    @Param({"0", "1"})
+    private int messageFormatVersion;
+
+    @Param({"100"})
+    private int messagesPerBatch;
+
+    @Param({"100"})
+    private int messageSize;
+
+    private File logDir;
+    private KafkaScheduler scheduler;
+    private Log log;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        scheduler = new KafkaScheduler(1, "kafka-scheduler-", true);
+        scheduler.startup();
+    }
+
+    /* start every iteration on an empty log so that long runs do not fill up the disk */
+    @Setup(Level.Iteration)
+    public void setupLog() throws Exception {
+        logDir = new File(Files.createTempDirectory("kafka-jmh").toFile(), "benchmark-0");
+        Properties props = new Properties();
+        props.put(LogConfig.SegmentBytesProp(), Integer.toString(256 * 1024 * 1024));
+        props.put(LogConfig.MessageFormatVersionProp(), Integer.toString(messageFormatVersion));
+        log = new Log(logDir, new LogConfig(props), 0L, scheduler, SystemTime$.MODULE$, SegmentRecoveryPool.Serial(),
+            scala.collection.immutable.Map$.MODULE$.<Object, LogSegmentSummary>empty());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownLog() throws Exception {
+        log.close();
+        Utils.delete(logDir.getParentFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        scheduler.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        private ByteBuffer batchBuffer;
+        private ByteBuffer appendBuffer;
+
+        @Setup(Level.Trial)
+        public void setup(LogAppendBenchmark benchmark) {
+            CompressionCodec compressionCodec = CompressionCodec$.MODULE$.getCompressionCodec(benchmark.codec);
+            Random random = new Random();
+            List<Message> batch = new ArrayList<>(benchmark.messagesPerBatch);
+            for (int i = 0; i < benchmark.messagesPerBatch; i++) {
+                // half random, half repeated bytes to get a realistic compression ratio
+                byte[] value = new byte[benchmark.messageSize];
+                byte[] randomBytes = new byte[benchmark.messageSize / 2];
+                random.nextBytes(randomBytes);
+                System.arraycopy(randomBytes, 0, value, 0, randomBytes.length);
+                batch.add(new Message(value));
+            }
+            batchBuffer = new ByteBufferMessageSet(compressionCodec, JavaConversions.asScalaBuffer(batch)).buffer();
+            appendBuffer = ByteBuffer.allocate(batchBuffer.limit());
+        }
+
+        /* the append rewrites offsets in-place, so every append gets a fresh copy of the batch as it was produced */
+        private ByteBufferMessageSet messages() {
+            appendBuffer.clear();
+            appendBuffer.put(batchBuffer.duplicate());
+            appendBuffer.flip();
+            return new ByteBufferMessageSet(appendBuffer);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public LogAppendInfo appendOneProducer(Producer producer) {
+        return log.append(producer.messages(), true);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public LogAppendInfo appendFourProducers(Producer producer) {
+        return log.append(producer.messages(), true);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public LogAppendInfo appendSixteenProducers(Producer producer) {
+        return log.append(producer.messages(), true);
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import kafka.log.CleanerConfig;
+import kafka.log.Log;
+import kafka.log.LogConfig;
+import kafka.log.LogManager;
+import kafka.log.LogSegmentSummary;
+import kafka.log.SegmentRecoveryPool;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.Message;
+import kafka.message.NoCompressionCodec$;
+import kafka.server.BrokerState;
+import kafka.utils.KafkaScheduler;
+import kafka.utils.SystemTime$;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.collection.JavaConversions;
+
+/**
+ * Measures the time a broker takes to load its logs after an unclean shutdown, when every segment of every partition
+ * has to be recovered. The data directory is filled once with the given number of partitions of synthetic segments;
+ * each benchmark operation is one restart.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LogRecoveryBenchmark {
+
+    @Param({"100", "1000"})
+    private int partitions;
+
+    @Param({"4"})
+    private int segmentsPerPartition;
+
+    @Param({"262144"})
+    private int segmentBytes;
+
+    @Param({"1", "8"})
+    private int segmentRecoveryThreads;
+
+    @Param({"1"})
+    private int recoveryThreadsPerDataDir;
+
+    private File dataDir;
+    private LogConfig logConfig;
+    private KafkaScheduler scheduler;
+    private LogManager logManager;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        scheduler = new KafkaScheduler(1, "kafka-scheduler-", true);
+        scheduler.startup();
+        dataDir = Files.createTempDirectory("kafka-jmh").toFile();
+        Properties props = new Properties();
+        props.put(LogConfig.SegmentBytesProp(), Integer.toString(segmentBytes));
+        logConfig = new LogConfig(props);
+
+        Random random = new Random();
+        List<Message> batch = new ArrayList<>(100);
+        for (int i = 0; i < 100; i++) {
+            byte[] value = new byte[100];
+            random.nextBytes(value);
+            batch.add(new Message(value));
+        }
+        ByteBufferMessageSet messages = new ByteBufferMessageSet(NoCompressionCodec$.MODULE$,
+            JavaConversions.asScalaBuffer(batch));
+        for (int partition = 0; partition < partitions; partition++) {
+            Log log = new Log(new File(dataDir, "benchmark-" + partition), logConfig, 0L, scheduler,
+                SystemTime$.MODULE$, SegmentRecoveryPool.Serial(),
+                scala.collection.immutable.Map$.MODULE$.<Object, LogSegmentSummary>empty());
+            while (log.numberOfSegments() <= segmentsPerPartition)
+                log.append(new ByteBufferMessageSet(messages.buffer().duplicate()), true);
+            log.close();
+        }
+    }
+
+    /* without the clean shutdown marker and the checkpoints every segment is recovered on startup */
+    @Setup(Level.Iteration)
+    public void crash() {
+        new File(dataDir, Log.CleanShutdownFile()).delete();
+        new File(dataDir, "recovery-point-offset-checkpoint").delete();
+        new File(dataDir, "log-segment-summary").delete();
+    }
+
+    @TearDown(Level.Iteration)
+    public void shutdown() {
+        if (logManager != null)
+            logManager.shutdown();
+        logManager = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws Exception {
+        scheduler.shutdown();
+        Utils.delete(dataDir);
+    }
+
+    @Benchmark
+    public LogManager restart() {
+        logManager = new LogManager(new File[] {dataDir},
+                                    scala.collection.immutable.Map$.MODULE$.<String, LogConfig>empty(),
+                                    logConfig,
+                                    new CleanerConfig(1, 1, 4 * 1024 * 1024L, 0.9d, 1024 * 1024, 32 * 1024 * 1024,
+                                                      Double.MAX_VALUE, 15 * 1000, false, "MD5"),
+                                    recoveryThreadsPerDataDir,
+                                    segmentRecoveryThreads,
+                                    32768,
+                                    1000L,
+                                    10000L,
+                                    1000L,
+                                    scheduler,
+                                    new BrokerState(),
+                                    SystemTime$.MODULE$);
+        return logManager;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import kafka.log.OffsetIndex;
+import kafka.log.OffsetPosition;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures offset lookups in a full offset index for offsets near the end of the index, as read by consumers and
+ * followers that keep up, and for offsets anywhere in the index.
+ *
+ * With a warm page cache the index is mapped once and all its pages are touched before measuring. With a cold page
+ * cache the index is mapped again for every lookup, so that each page the search visits takes a page fault. JMH cannot
+ * drop the page cache of the operating system, the faults are thus minor ones unless the page cache is dropped
+ * externally while the benchmark runs.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OffsetIndexLookupBenchmark {
+
+    private static final long BASE_OFFSET = 0L;
+
+    @Param({"10485760"})
+    private int indexBytes;
+
+    @Param({"tail", "random"})
+    private String lookups;
+
+    @Param({"warm", "cold"})
+    private String pageCache;
+
+    private File indexFile;
+    private OffsetIndex index;
+    private long lastOffset;
+    private Random random;
+    private long target;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        indexFile = new File(Files.createTempDirectory("kafka-jmh").toFile(), "00000000000000000000.index");
+        OffsetIndex writer = new OffsetIndex(indexFile, BASE_OFFSET, indexBytes);
+        // one entry for every 10 messages of roughly 400 bytes, as with the default index interval
+        long offset = BASE_OFFSET;
+        int position = 0;
+        while (!writer.isFull()) {
+            writer.append(offset, position);
+            offset += 10;
+            position += 4096;
+        }
+        lastOffset = writer.lastOffset();
+        writer.close();
+        random = new Random(42);
+        index = new OffsetIndex(indexFile, BASE_OFFSET, indexBytes);
+        // touch every entry so that all pages are resident
+        for (int i = 0; i < index.entries(); i++)
+            index.entry(i);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupLookup() {
+        if (lookups.equals("tail"))
+            target = lastOffset - random.nextInt(10000);
+        else
+            target = BASE_OFFSET + (long) (random.nextDouble() * lastOffset);
+        if (pageCache.equals("cold"))
+            index = new OffsetIndex(indexFile, BASE_OFFSET, indexBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws Exception {
+        Utils.delete(indexFile.getParentFile());
+    }
+
+    @Benchmark
+    public OffsetPosition lookup() {
+        return index.lookup(target);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import kafka.log.OffsetMap;
+import kafka.log.OffsetMap$;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the keys per second the log cleaner can put into and look up in its offset map for each hash algorithm,
+ * as when building the map and when recopying the segments of a log. The keys per MB of dedupe buffer and the
+ * collision rate of the last fill of the map are reported as secondary results.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OffsetMapBenchmark {
+
+    @Param({"MD5", "MURMUR3-64", "MURMUR3-128"})
+    private String hashAlgorithm;
+
+    @Param({"67108864"})
+    private int memory;
+
+    @Param({"36"})
+    private int keySize;
+
+    @Param({"0.9"})
+    private double loadFactor;
+
+    private OffsetMap map;
+    private ByteBuffer[] keys;
+    private int maxEntries;
+    private int next;
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class MapStats {
+        public double keysPerMB;
+        public double collisionPercent;
+    }
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        map = OffsetMap$.MODULE$.apply(memory, hashAlgorithm);
+        maxEntries = (int) (map.slots() * loadFactor);
+        // distinct random keys, e.g. uuids, in a log with twice as many messages as fit in the map
+        Random random = new Random(42);
+        keys = new ByteBuffer[2 * maxEntries];
+        for (int i = 0; i < keys.length; i++) {
+            byte[] key = new byte[keySize];
+            random.nextBytes(key);
+            keys[i] = ByteBuffer.wrap(key);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        map.clear();
+        next = 0;
+    }
+
+    @Benchmark
+    public void put(MapStats stats) {
+        if (map.size() >= maxEntries) {
+            stats.collisionPercent = 100 * map.collisionRate();
+            map.clear();
+        }
+        map.put(keys[next], next);
+        next = (next + 1) % keys.length;
+        stats.keysPerMB = map.slots() / (memory / (1024.0 * 1024.0));
+    }
+
+    @Benchmark
+    public long get(MapStats stats) {
+        if (map.size() == 0) {
+            for (int i = 0; i < maxEntries; i++)
+                map.put(keys[i], i);
+            stats.collisionPercent = 100 * map.collisionRate();
+        }
+        // half of the keys looked up are not in the map, as for the messages of the clean section of a log
+        long offset = map.get(keys[next]);
+        next = (next + 1) % (2 * maxEntries);
+        stats.keysPerMB = map.slots() / (memory / (1024.0 * 1024.0));
+        return offset;
+    }
+}
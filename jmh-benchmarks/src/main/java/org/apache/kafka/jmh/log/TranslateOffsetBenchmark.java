@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.log;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kafka.log.LogSegment;
+import kafka.message.ByteBufferMessageSet;
+import kafka.message.Message;
+import kafka.message.NoCompressionCodec$;
+import kafka.server.FetchDataInfo;
+import kafka.utils.SystemTime$;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+import scala.collection.JavaConversions;
+
+/**
+ * Measures the translation of a fetch offset to a file position in a segment of uncompressed messages, which looks up
+ * the offset index and then scans the message headers from the indexed position to the target offset. With the default
+ * index interval of 4KB the scan passes about 40 messages of 100 bytes or 4 messages of 1KB.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TranslateOffsetBenchmark {
+
+    private static final int TARGETS = 4096;
+
+    @Param({"100", "1024"})
+    private int messageSize;
+
+    @Param({"4096"})
+    private int indexIntervalBytes;
+
+    @Param({"134217728"})
+    private int segmentBytes;
+
+    private File dir;
+    private LogSegment segment;
+    private long[] targets;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        dir = Files.createTempDirectory("kafka-jmh").toFile();
+        segment = new LogSegment(dir, 0L, indexIntervalBytes, 10 * 1024 * 1024, 0L, SystemTime$.MODULE$, false, 0, false);
+        Random random = new Random(42);
+        List<Message> batch = new ArrayList<>(100);
+        for (int i = 0; i < 100; i++) {
+            byte[] value = new byte[messageSize];
+            random.nextBytes(value);
+            batch.add(new Message(value));
+        }
+        long offset = 0L;
+        while (segment.size() < segmentBytes) {
+            ByteBufferMessageSet messages = new ByteBufferMessageSet(NoCompressionCodec$.MODULE$, new AtomicLong(offset),
+                JavaConversions.asScalaBuffer(batch));
+            segment.append(offset, Message.NoTimestamp(), offset, messages);
+            offset += batch.size();
+        }
+        targets = new long[TARGETS];
+        for (int i = 0; i < TARGETS; i++)
+            targets[i] = (long) (random.nextDouble() * offset);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws Exception {
+        segment.close();
+        Utils.delete(dir);
+    }
+
+    @Benchmark
+    public FetchDataInfo translateOffset() {
+        long target = targets[next];
+        next = (next + 1) % TARGETS;
+        return segment.read(target, Option.<Object>empty(), 1, segment.size());
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import kafka.log.FileMessageSet;
+import org.apache.kafka.common.config.SslConfigs;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.network.ChannelBuilder;
+import org.apache.kafka.common.network.ChannelBuilders;
+import org.apache.kafka.common.network.LoginType;
+import org.apache.kafka.common.network.Mode;
+import org.apache.kafka.common.network.NetworkReceive;
+import org.apache.kafka.common.network.Selectable;
+import org.apache.kafka.common.network.Selector;
+import org.apache.kafka.common.network.Send;
+import org.apache.kafka.common.network.TransportLayer;
+import org.apache.kafka.common.protocol.SecurityProtocol;
+import org.apache.kafka.common.utils.SystemTime;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.kafka.test.TestSslUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the fetch responses per second a broker selector can send from a file message set to a consumer over a
+ * loopback connection, for a PLAINTEXT listener, which transfers the file with zero copy, and for an SSL listener,
+ * which has to read and encrypt the file in the broker.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FetchTransferBenchmark {
+
+    private static final String BROKER = "broker";
+    private static final String CONSUMER = "consumer";
+
+    @Param({"PLAINTEXT", "SSL"})
+    private String securityProtocol;
+
+    @Param({"1048576"})
+    private int fetchBytes;
+
+    private File file;
+    private FileMessageSet messageSet;
+    private ServerSocketChannel serverSocketChannel;
+    private Metrics metrics;
+    private Selector brokerSelector;
+    private Selector consumerSelector;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        file = File.createTempFile("kafka-jmh", ".log");
+        byte[] bytes = new byte[fetchBytes];
+        new Random(42).nextBytes(bytes);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        messageSet = new FileMessageSet(file, false);
+
+        SecurityProtocol protocol = SecurityProtocol.valueOf(securityProtocol);
+        Map<String, Object> brokerConfigs = new HashMap<>();
+        Map<String, Object> consumerConfigs = new HashMap<>();
+        if (protocol == SecurityProtocol.SSL) {
+            File trustStoreFile = File.createTempFile("truststore", ".jks");
+            trustStoreFile.deleteOnExit();
+            brokerConfigs = TestSslUtils.createSslConfig(false, true, Mode.SERVER, trustStoreFile, "server");
+            consumerConfigs = TestSslUtils.createSslConfig(false, false, Mode.SERVER, trustStoreFile, "client");
+        }
+        brokerConfigs.put(SslConfigs.PRINCIPAL_BUILDER_CLASS_CONFIG, Class.forName(SslConfigs.DEFAULT_PRINCIPAL_BUILDER_CLASS));
+        ChannelBuilder brokerChannelBuilder = ChannelBuilders.create(protocol, Mode.SERVER, LoginType.SERVER, brokerConfigs);
+        ChannelBuilder consumerChannelBuilder = ChannelBuilders.create(protocol, Mode.CLIENT, LoginType.CLIENT, consumerConfigs);
+
+        metrics = new Metrics();
+        brokerSelector = new Selector(NetworkReceive.UNLIMITED, 60000, metrics, new SystemTime(), "broker",
+            new HashMap<String, String>(), false, brokerChannelBuilder);
+        consumerSelector = new Selector(NetworkReceive.UNLIMITED, 60000, metrics, new SystemTime(), "consumer",
+            new HashMap<String, String>(), false, consumerChannelBuilder);
+
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        consumerSelector.connect(BROKER, (InetSocketAddress) serverSocketChannel.getLocalAddress(),
+            Selectable.USE_DEFAULT_BUFFER_SIZE, Selectable.USE_DEFAULT_BUFFER_SIZE);
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        socketChannel.configureBlocking(false);
+        brokerSelector.register(CONSUMER, socketChannel);
+        while (!brokerSelector.isChannelReady(CONSUMER) || !consumerSelector.isChannelReady(BROKER)) {
+            brokerSelector.poll(1);
+            consumerSelector.poll(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws Exception {
+        consumerSelector.close();
+        brokerSelector.close();
+        serverSocketChannel.close();
+        metrics.close();
+        messageSet.close();
+        Utils.delete(file);
+    }
+
+    @Benchmark
+    public long fetch() throws IOException {
+        brokerSelector.send(new FileRegionSend(CONSUMER, messageSet));
+        while (true) {
+            brokerSelector.poll(0);
+            consumerSelector.poll(0);
+            if (!consumerSelector.completedReceives().isEmpty())
+                return consumerSelector.completedReceives().get(0).payload().limit();
+        }
+    }
+
+    /**
+     * A send of a size delimited file message set, as in the partition data of a fetch response
+     */
+    private static class FileRegionSend implements Send {
+        private final String destination;
+        private final FileMessageSet messageSet;
+        private final ByteBuffer sizeBuffer;
+        private int messageSetWritten = 0;
+        private boolean pending = false;
+
+        FileRegionSend(String destination, FileMessageSet messageSet) {
+            this.destination = destination;
+            this.messageSet = messageSet;
+            this.sizeBuffer = ByteBuffer.allocate(4);
+            this.sizeBuffer.putInt(0, messageSet.sizeInBytes());
+        }
+
+        @Override
+        public String destination() {
+            return destination;
+        }
+
+        @Override
+        public boolean completed() {
+            return !sizeBuffer.hasRemaining() && messageSetWritten >= messageSet.sizeInBytes() && !pending;
+        }
+
+        @Override
+        public long writeTo(GatheringByteChannel channel) throws IOException {
+            long written = 0;
+            if (sizeBuffer.hasRemaining())
+                written += channel.write(sizeBuffer);
+            if (!sizeBuffer.hasRemaining() && messageSetWritten < messageSet.sizeInBytes()) {
+                int bytes = messageSet.writeTo(channel, messageSetWritten, messageSet.sizeInBytes() - messageSetWritten);
+                messageSetWritten += bytes;
+                written += bytes;
+            }
+            if (channel instanceof TransportLayer)
+                pending = ((TransportLayer) channel).hasPendingWrites();
+            return written;
+        }
+
+        @Override
+        public long size() {
+            return 4 + messageSet.sizeInBytes();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.network;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import kafka.network.RequestChannel;
+import org.apache.kafka.common.protocol.SecurityProtocol;
+import org.apache.kafka.common.security.auth.KafkaPrincipal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the requests per second that pass through a request channel from processor threads to request handler
+ * threads that do no work, for different numbers of processors and handlers. Each invocation has every processor
+ * thread queue its share of a round of requests and waits until the handlers have taken all of them.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RequestChannelBenchmark {
+
+    private static final int REQUESTS_PER_ROUND = 8000;
+    // the stride between the counters of the handlers, so that they do not share a cache line
+    private static final int COUNTER_STRIDE = 16;
+
+    @Param({"1", "4", "8"})
+    private int processors;
+
+    @Param({"1", "8", "16"})
+    private int handlers;
+
+    @Param({"500"})
+    private int queuedMaxRequests;
+
+    private RequestChannel channel;
+    private CyclicBarrier roundStart;
+    private AtomicLongArray handled;
+    private long expectedHandled;
+    private volatile boolean running;
+    private List<Thread> threads;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        channel = new RequestChannel(processors, queuedMaxRequests, 0, scala.Option.<SecurityProtocol>empty());
+        roundStart = new CyclicBarrier(processors + 1);
+        handled = new AtomicLongArray(handlers * COUNTER_STRIDE);
+        expectedHandled = 0;
+        running = true;
+        threads = new ArrayList<>();
+        for (int i = 0; i < processors; i++)
+            threads.add(new Thread(new ProcessorLoop(i), "processor-" + i));
+        for (int i = 0; i < handlers; i++)
+            threads.add(new Thread(new HandlerLoop(i), "handler-" + i));
+        for (Thread thread : threads)
+            thread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws Exception {
+        running = false;
+        roundStart.reset();
+        for (int i = 0; i < handlers; i++)
+            channel.sendRequest(RequestChannel.AllDone());
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS_PER_ROUND)
+    public long round() throws Exception {
+        expectedHandled += REQUESTS_PER_ROUND;
+        roundStart.await();
+        long total;
+        do {
+            total = 0;
+            for (int i = 0; i < handlers; i++)
+                total += handled.get(i * COUNTER_STRIDE);
+        } while (total < expectedHandled);
+        return total;
+    }
+
+    private static RequestChannel.Request request(int processor) {
+        return new RequestChannel.Request(processor, "connection-" + processor,
+            new RequestChannel.Session(KafkaPrincipal.ANONYMOUS, InetAddress.getLoopbackAddress()),
+            RequestChannel.getShutdownReceive(), System.currentTimeMillis(), SecurityProtocol.PLAINTEXT);
+    }
+
+    private class ProcessorLoop implements Runnable {
+        private final RequestChannel.Request request;
+
+        ProcessorLoop(int processor) {
+            // the handlers do not look at the requests, so one request is queued over and over
+            this.request = request(processor);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    roundStart.await();
+                    for (int i = 0; i < REQUESTS_PER_ROUND / processors; i++)
+                        channel.sendRequest(request);
+                }
+            } catch (Exception e) {
+                // the barrier is broken at the end of the trial
+            }
+        }
+    }
+
+    private class HandlerLoop implements Runnable {
+        private final int id;
+
+        HandlerLoop(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                RequestChannel.Request request = channel.receiveRequest(300, id, false);
+                if (request == RequestChannel.AllDone())
+                    return;
+                if (request != null)
+                    handled.incrementAndGet(id * COUNTER_STRIDE);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.producer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.producer.internals.RecordAccumulator;
+import org.apache.kafka.clients.producer.internals.RecordBatch;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.utils.SystemTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the records per second that threads sending to the same partition can append to a record accumulator, for
+ * different codecs, with records compressed as they are appended or when their batch is drained. This is the part of
+ * KafkaProducer.send that runs after serialization and partitioning; a background thread stands in for the sender,
+ * draining the full batches, closing them, which compresses them if compression is deferred, and freeing them.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RecordAccumulatorAppendBenchmark {
+
+    private static final String TOPIC = "benchmark";
+
+    @Param({"gzip", "snappy", "lz4"})
+    private String codec;
+
+    @Param({"false", "true"})
+    private boolean deferCompression;
+
+    @Param({"100"})
+    private int recordSize;
+
+    @Param({"16384"})
+    private int batchSize;
+
+    private final Node node = new Node(0, "localhost", 9092);
+    private final TopicPartition tp = new TopicPartition(TOPIC, 0);
+    private Metrics metrics;
+    private RecordAccumulator accumulator;
+    private byte[] value;
+    private volatile boolean running;
+    private Thread sender;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        metrics = new Metrics();
+        // only full batches are drained
+        accumulator = new RecordAccumulator(batchSize, 32 * 1024 * 1024L, CompressionType.forName(codec), deferCompression,
+                Long.MAX_VALUE, 100L, metrics, new SystemTime());
+        // text-like values, so that they compress about as well as typical payloads
+        Random random = new Random(0);
+        value = new byte[recordSize];
+        for (int i = 0; i < recordSize; i++)
+            value[i] = (byte) ('a' + random.nextInt(16));
+
+        final Cluster cluster = new Cluster(Collections.singletonList(node),
+                Collections.singletonList(new PartitionInfo(TOPIC, 0, node, new Node[] {node}, new Node[] {node})),
+                Collections.<String>emptySet());
+        running = true;
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    long now = System.currentTimeMillis();
+                    Map<Integer, List<RecordBatch>> drained = accumulator.drain(cluster,
+                            accumulator.ready(cluster, now).readyNodes, Integer.MAX_VALUE, now);
+                    for (List<RecordBatch> batches : drained.values()) {
+                        for (RecordBatch batch : batches) {
+                            batch.done(0L, null);
+                            accumulator.deallocate(batch);
+                        }
+                    }
+                }
+            }
+        }, "sender");
+        sender.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws Exception {
+        running = false;
+        sender.join();
+        metrics.close();
+    }
+
+    @Benchmark
+    public RecordAccumulator.RecordAppendResult append() throws Exception {
+        return accumulator.append(tp, null, value, null, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.producer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.producer.internals.RecordAccumulator;
+import org.apache.kafka.clients.producer.internals.RecordBatch;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.utils.SystemTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how producer threads appending to a record accumulator and the sender draining it get in each other's way.
+ * The threads of a group append records to random partitions while one thread calls ready and drain, as the sender
+ * does, and then closes and frees the drained batches. The number of appending threads is set with the thread groups
+ * option of JMH, for instance "-tg 32,1" for 32 appending threads.
+ * <p>
+ * Records are appended concurrently to the open batch of their partition when they are appended uncompressed, that
+ * is without compression or with deferred compression, and under the lock of the partition otherwise.
+ */
+@State(Scope.Group)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RecordAccumulatorBenchmark {
+
+    private static final String TOPIC = "benchmark";
+    private static final long MAX_BLOCK_MS = 100L;
+
+    @Param({"none", "lz4", "lz4-deferred"})
+    private String compression;
+
+    @Param({"1", "16"})
+    private int partitions;
+
+    @Param({"100"})
+    private int recordSize;
+
+    @Param({"16384"})
+    private int batchSize;
+
+    @Param({"0"})
+    private long lingerMs;
+
+    private final Node node = new Node(0, "localhost", 9092);
+    private Metrics metrics;
+    private RecordAccumulator accumulator;
+    private Cluster cluster;
+    private TopicPartition[] topicPartitions;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        metrics = new Metrics();
+        boolean deferCompression = compression.endsWith("-deferred");
+        String codec = deferCompression ? compression.substring(0, compression.length() - "-deferred".length()) : compression;
+        accumulator = new RecordAccumulator(batchSize, 32 * 1024 * 1024L, CompressionType.forName(codec), deferCompression,
+                lingerMs, 100L, metrics, new SystemTime());
+
+        List<PartitionInfo> partitionInfos = new ArrayList<PartitionInfo>();
+        topicPartitions = new TopicPartition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            partitionInfos.add(new PartitionInfo(TOPIC, i, node, new Node[] {node}, new Node[] {node}));
+            topicPartitions[i] = new TopicPartition(TOPIC, i);
+        }
+        cluster = new Cluster(Collections.singletonList(node), partitionInfos, Collections.<String>emptySet());
+        value = new byte[recordSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        metrics.close();
+    }
+
+    @Benchmark
+    @Group("accumulator")
+    @GroupThreads(4)
+    public RecordAccumulator.RecordAppendResult append() throws Exception {
+        TopicPartition tp = topicPartitions[ThreadLocalRandom.current().nextInt(partitions)];
+        try {
+            return accumulator.append(tp, null, value, null, MAX_BLOCK_MS);
+        } catch (TimeoutException e) {
+            // the drain thread may stop before the appending threads at the end of an iteration
+            return null;
+        }
+    }
+
+    @Benchmark
+    @Group("accumulator")
+    @GroupThreads(1)
+    public int drain() {
+        long now = System.currentTimeMillis();
+        Map<Integer, List<RecordBatch>> drained = accumulator.drain(cluster,
+                accumulator.ready(cluster, now).readyNodes, Integer.MAX_VALUE, now);
+        int records = 0;
+        for (List<RecordBatch> batches : drained.values()) {
+            for (RecordBatch batch : batches) {
+                records += batch.recordCount;
+                batch.done(0L, null);
+                accumulator.deallocate(batch);
+            }
+        }
+        return records;
+    }
+}
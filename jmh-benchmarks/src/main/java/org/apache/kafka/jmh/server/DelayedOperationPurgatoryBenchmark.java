@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.server;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import kafka.server.DelayedOperation;
+import kafka.server.DelayedOperationPurgatory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scala.collection.JavaConversions;
+import scala.collection.Seq;
+
+/**
+ * Measures the operations per second that concurrent threads can watch in a purgatory and then complete, for different
+ * numbers of watch keys and shards. Each invocation watches an operation on a random key the way a delayed produce is
+ * watched on its partition, and then completes it the way an append to the partition would.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DelayedOperationPurgatoryBenchmark {
+
+    @Param({"1", "512"})
+    private int shards;
+
+    @Param({"16", "1000"})
+    private int keys;
+
+    @Param({"30000"})
+    private long delayMs;
+
+    private DelayedOperationPurgatory<BenchmarkOperation> purgatory;
+    private Seq<Object>[] watchKeys;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setupTrial() {
+        purgatory = new DelayedOperationPurgatory<>("Benchmark", 0, 1000, shards);
+        watchKeys = new Seq[keys];
+        for (int i = 0; i < keys; i++)
+            watchKeys[i] = JavaConversions.asScalaBuffer(Collections.<Object>singletonList("topic-" + i));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        purgatory.shutdown();
+    }
+
+    @Benchmark
+    public int watchAndComplete() {
+        Seq<Object> key = watchKeys[ThreadLocalRandom.current().nextInt(keys)];
+        BenchmarkOperation operation = new BenchmarkOperation(delayMs);
+        purgatory.tryCompleteElseWatch(operation, key);
+        operation.completable = true;
+        return purgatory.checkAndComplete(key.head());
+    }
+
+    private static class BenchmarkOperation extends DelayedOperation {
+        private volatile boolean completable = false;
+
+        BenchmarkOperation(long delayMs) {
+            super(delayMs);
+        }
+
+        @Override
+        public boolean tryComplete() {
+            return completable && forceComplete();
+        }
+
+        @Override
+        public void onExpiration() {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.timer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kafka.utils.timer.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the operations per second that can be added to a timer and then completed, or added and left to be
+ * cancelled later, while it holds a large number of outstanding operations. Half of the operations time out like
+ * delayed fetches and half like delayed produces. The clock of the timer is not advanced, so no operation expires.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TimerBenchmark {
+
+    @Param({"1000000"})
+    private int outstanding;
+
+    @Param({"500"})
+    private long fetchDelayMs;
+
+    @Param({"30000"})
+    private long produceDelayMs;
+
+    private ExecutorService executor;
+    private Timer timer;
+    private TimerOperation[] operations;
+    // the operations never expire, the counter is only there because the operations need one
+    private final AtomicInteger expired = new AtomicInteger(0);
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        executor = Executors.newSingleThreadExecutor();
+        timer = new Timer(executor, 1L, 20, System.currentTimeMillis(), false);
+        operations = new TimerOperation[outstanding];
+        for (int i = 0; i < outstanding; i++) {
+            operations[i] = new TimerOperation(delayMs(), expired);
+            timer.add(operations[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * An operation that is completed soon after it is added, like a delayed produce that is acknowledged
+     */
+    @Benchmark
+    public boolean addAndComplete() {
+        TimerOperation operation = new TimerOperation(delayMs(), expired);
+        timer.add(operation);
+        return operation.forceComplete();
+    }
+
+    /**
+     * An operation that replaces a random outstanding operation, which is cancelled
+     */
+    @Benchmark
+    public int addAndCancel() {
+        int i = ThreadLocalRandom.current().nextInt(outstanding);
+        TimerOperation operation = new TimerOperation(delayMs(), expired);
+        timer.add(operation);
+        operations[i].cancel();
+        operations[i] = operation;
+        return timer.size();
+    }
+
+    private long delayMs() {
+        return ThreadLocalRandom.current().nextBoolean() ? fetchDelayMs : produceDelayMs;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.timer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kafka.utils.timer.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time it takes a timer to expire a large number of outstanding operations, with and without batched
+ * expiration. The timer is started in the past and the operations time out over the window before now, so that every
+ * bucket is due as soon as the clock is advanced and the time measured is that of draining the buckets and running the
+ * expired operations.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TimerExpirationBenchmark {
+
+    @Param({"1000000"})
+    private int outstanding;
+
+    @Param({"30000"})
+    private long windowMs;
+
+    @Param({"false", "true"})
+    private boolean batchExpiration;
+
+    private ExecutorService executor;
+    private Timer timer;
+    private AtomicInteger expired;
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        executor = Executors.newSingleThreadExecutor();
+        timer = new Timer(executor, 1L, 20, System.currentTimeMillis() - windowMs - 1000L, batchExpiration);
+        expired = new AtomicInteger(0);
+        for (int i = 0; i < outstanding; i++)
+            timer.add(new TimerOperation(-ThreadLocalRandom.current().nextLong(windowMs), expired));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int expireAll() {
+        while (expired.get() < outstanding)
+            timer.advanceClock(0L);
+        return expired.get();
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.jmh.timer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kafka.server.DelayedOperation;
+
+/**
+ * A delayed operation that is never completable and counts its expiration
+ */
+class TimerOperation extends DelayedOperation {
+    private final AtomicInteger expired;
+
+    TimerOperation(long delayMs, AtomicInteger expired) {
+        super(delayMs);
+        this.expired = expired;
+    }
+
+    @Override
+    public boolean tryComplete() {
+        return false;
+    }
+
+    @Override
+    public void onExpiration() {
+        expired.incrementAndGet();
+    }
+
+    @Override
+    public void onComplete() {
+    }
+}
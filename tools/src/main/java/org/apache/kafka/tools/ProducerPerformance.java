@@ -16,6 +16,7 @@ import static net.sourceforge.argparse4j.impl.Arguments.store;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.kafka.clients.producer.Callback;
@@ -23,6 +24,8 @@ import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -76,8 +79,11 @@ public class ProducerPerformance {
             }
 
             /* print final results */
+            producer.flush();
+            Map<MetricName, ? extends Metric> metrics = producer.metrics();
             producer.close();
             stats.printTotal();
+            printBatchStats(metrics, props);
         } catch (ArgumentParserException e) {
             if (args.length == 0) {
                 parser.printHelp();
@@ -90,6 +96,30 @@ public class ProducerPerformance {
 
     }
 
+    /**
+     * Print how full the batches sent were, which together with the latency percentiles shows the effect of the
+     * batching configs, e.g. linger.ms or partitioner.sticky.enable
+     */
+    private static void printBatchStats(Map<MetricName, ? extends Metric> metrics, Properties props) {
+        // the default batch.size of the producer
+        int batchSize = 16384;
+        if (props.containsKey(ProducerConfig.BATCH_SIZE_CONFIG))
+            batchSize = Integer.parseInt(props.getProperty(ProducerConfig.BATCH_SIZE_CONFIG));
+        double batchSizeAvg = producerMetric(metrics, "batch-size-avg");
+        System.out.printf("%.1f bytes avg batch size, %.1f%% avg batch fill ratio, %.1f records per request.\n",
+                          batchSizeAvg,
+                          batchSize > 0 ? 100.0 * batchSizeAvg / batchSize : 0.0,
+                          producerMetric(metrics, "records-per-request-avg"));
+    }
+
+    private static double producerMetric(Map<MetricName, ? extends Metric> metrics, String name) {
+        for (Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet()) {
+            if (entry.getKey().group().equals("producer-metrics") && entry.getKey().name().equals(name))
+                return entry.getValue().value();
+        }
+        return Double.NaN;
+    }
+
     /** Get the command-line argument parser. */
     private static ArgumentParser argParser() {
         ArgumentParser parser = ArgumentParsers